@@ -0,0 +1,48 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks of this module with the GC profiler enabled, so that
+ * the bytes allocated per packet (<tt>gc.alloc.rate.norm</tt>) are reported
+ * next to the time per packet. Accepts the usual JMH command line options
+ * (e.g. a benchmark regexp or <tt>-p mediaType=video</tt>).
+ */
+public class BenchmarkRunner
+{
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the JMH command line options.
+     * @throws Exception if the options cannot be parsed or the benchmarks
+     * fail.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        Options options
+            = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
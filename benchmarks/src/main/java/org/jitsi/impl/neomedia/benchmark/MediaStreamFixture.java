@@ -0,0 +1,206 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import java.net.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.rtp.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.utils.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * A {@link MediaStream} configured the way a bridge configures its streams
+ * (SDES-keyed SRTP, transport-cc, abs-send-time, RTX and the payload types
+ * of {@link RtpPacketGenerator}) but not started, so that its transform
+ * chain can be exercised directly. Also provides the SRTP transformer of the
+ * remote peer, which protects the packets that the stream is to receive.
+ */
+public class MediaStreamFixture
+{
+    /**
+     * The stream.
+     */
+    private final MediaStreamImpl stream;
+
+    /**
+     * The transport-cc engine of {@link #stream}.
+     */
+    private final TransportCCEngine transportCCEngine;
+
+    /**
+     * The SRTP control of the remote peer of {@link #stream}.
+     */
+    private final SrtpControl peerSrtpControl;
+
+    /**
+     * The sockets of the connector of {@link #stream}.
+     */
+    private final DatagramSocket rtpSocket, rtcpSocket;
+
+    /**
+     * Initializes a new <tt>MediaStreamFixture</tt> instance.
+     *
+     * @param mediaType the type of the media of the stream.
+     * @throws SocketException if the sockets of the stream cannot be
+     * created.
+     */
+    public MediaStreamFixture(MediaType mediaType)
+        throws SocketException
+    {
+        LibJitsi.start();
+
+        MediaService mediaService = LibJitsi.getMediaService();
+
+        // Key the two ends of the session with SDES.
+        SDesControl srtpControl
+            = (SDesControl)
+                mediaService.createSrtpControl(SrtpControlType.SDES);
+        SDesControl peerSDesControl
+            = (SDesControl)
+                mediaService.createSrtpControl(SrtpControlType.SDES);
+
+        srtpControl.initiatorSelectAttribute(
+                Collections.singletonList(
+                        peerSDesControl.responderSelectAttribute(
+                                Arrays.asList(
+                                        srtpControl
+                                            .getInitiatorCryptoAttributes()))));
+        peerSrtpControl = peerSDesControl;
+
+        stream
+            = (MediaStreamImpl)
+                mediaService.createMediaStream(
+                        null, mediaType, srtpControl);
+
+        MediaFormatFactory formatFactory = mediaService.getFormatFactory();
+
+        if (MediaType.AUDIO.equals(mediaType))
+        {
+            stream.addDynamicRTPPayloadType(
+                    RtpPacketGenerator.AUDIO_PT,
+                    formatFactory.createMediaFormat(Constants.OPUS, 48000, 2));
+            stream.addRTPExtension(
+                    RtpPacketGenerator.AUDIO_LEVEL_ID,
+                    new RTPExtension(
+                            URI.create(RTPExtension.SSRC_AUDIO_LEVEL_URN)));
+        }
+        else
+        {
+            Map<String, String> rtxParams = new HashMap<>();
+
+            rtxParams.put("apt", Byte.toString(RtpPacketGenerator.VIDEO_PT));
+            stream.addDynamicRTPPayloadType(
+                    RtpPacketGenerator.VIDEO_PT,
+                    formatFactory.createMediaFormat(Constants.VP8, 90000));
+            stream.addDynamicRTPPayloadType(
+                    RtpPacketGenerator.RTX_PT,
+                    formatFactory.createMediaFormat(
+                            Constants.RTX, 90000, rtxParams, null));
+        }
+
+        transportCCEngine = new TransportCCEngine(new DiagnosticContext());
+        stream.setTransportCCEngine(transportCCEngine);
+
+        // Setting the connector creates the transform chain.
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        rtpSocket = new DatagramSocket(0, loopback);
+        rtcpSocket = new DatagramSocket(0, loopback);
+        stream.setConnector(new DefaultStreamConnector(rtpSocket, rtcpSocket));
+        stream.setTarget(
+                new MediaStreamTarget(
+                        (InetSocketAddress) rtpSocket.getLocalSocketAddress(),
+                        (InetSocketAddress)
+                            rtcpSocket.getLocalSocketAddress()));
+
+        stream.addRTPExtension(
+                RtpPacketGenerator.ABS_SEND_TIME_ID,
+                new RTPExtension(URI.create(RTPExtension.ABS_SEND_TIME_URN)));
+        stream.addRTPExtension(
+                RtpPacketGenerator.TRANSPORT_CC_ID,
+                new RTPExtension(URI.create(RTPExtension.TRANSPORT_CC_URN)));
+    }
+
+    /**
+     * Gets the stream.
+     *
+     * @return the stream.
+     */
+    public MediaStreamImpl getStream()
+    {
+        return stream;
+    }
+
+    /**
+     * Gets the transport-cc engine of the stream.
+     *
+     * @return the transport-cc engine of the stream.
+     */
+    public TransportCCEngine getTransportCCEngine()
+    {
+        return transportCCEngine;
+    }
+
+    /**
+     * Gets the transform chain of the stream.
+     *
+     * @return the transform chain of the stream.
+     */
+    public TransformEngineChain getTransformEngineChain()
+    {
+        return stream.getTransformEngineChain();
+    }
+
+    /**
+     * Gets the SRTP transform engine of the stream.
+     *
+     * @return the SRTP transform engine of the stream.
+     */
+    public TransformEngine getSrtpTransformEngine()
+    {
+        return stream.getSrtpControl().getTransformEngine();
+    }
+
+    /**
+     * Gets the SRTP transform engine of the remote peer of the stream, i.e.
+     * the one which protects the packets that the stream receives.
+     *
+     * @return the SRTP transform engine of the remote peer of the stream.
+     */
+    public TransformEngine getPeerSrtpTransformEngine()
+    {
+        return peerSrtpControl.getTransformEngine();
+    }
+
+    /**
+     * Releases the resources of this instance.
+     */
+    public void close()
+    {
+        stream.setTransportCCEngine(null);
+        stream.close();
+        peerSrtpControl.cleanup(null);
+        rtpSocket.close();
+        rtcpSocket.close();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+import org.jitsi.utils.*;
+
+import java.util.*;
+
+/**
+ * Generates a synthetic stream of RTP packets which looks like what a
+ * browser sends: Opus audio with an ssrc-audio-level header extension (one
+ * 20ms frame per packet), or VP8 video at 30fps with abs-send-time and
+ * transport-cc header extensions (a key frame every 10 seconds, which is
+ * split into more packets than a delta frame).
+ *
+ * The packets are written into a pool of preallocated {@link RawPacket}s
+ * (with enough room for SRTP and RTX to grow them), so that generating a
+ * packet does not allocate and does not skew the allocation figures of the
+ * benchmarks. A packet returned by {@link #next()} is overwritten after
+ * {@link #POOL_SIZE} more calls.
+ *
+ * Instances are not thread-safe.
+ */
+public class RtpPacketGenerator
+{
+    /**
+     * The RTP payload type of the audio (Opus) packets.
+     */
+    public static final byte AUDIO_PT = 111;
+
+    /**
+     * The RTP payload type of the video (VP8) packets.
+     */
+    public static final byte VIDEO_PT = 100;
+
+    /**
+     * The RTP payload type of RTX.
+     */
+    public static final byte RTX_PT = 96;
+
+    /**
+     * The RTP payload type of ulpfec.
+     */
+    public static final byte ULPFEC_PT = 116;
+
+    /**
+     * The ID of the ssrc-audio-level header extension.
+     */
+    public static final byte AUDIO_LEVEL_ID = 1;
+
+    /**
+     * The ID of the abs-send-time header extension.
+     */
+    public static final byte ABS_SEND_TIME_ID = 3;
+
+    /**
+     * The ID of the transport-cc header extension.
+     */
+    public static final byte TRANSPORT_CC_ID = 5;
+
+    /**
+     * The number of packets in the pool.
+     */
+    public static final int POOL_SIZE = 512;
+
+    /**
+     * The size of the buffers of the packets in the pool.
+     */
+    private static final int BUFFER_SIZE = 1500;
+
+    /**
+     * The length of the payload of a video packet which is not the last of
+     * its frame.
+     */
+    private static final int VIDEO_PAYLOAD_LENGTH = 1100;
+
+    /**
+     * The number of video frames between two key frames.
+     */
+    private static final int KEY_FRAME_INTERVAL = 300;
+
+    /**
+     * The number of packets of a video key frame.
+     */
+    private static final int KEY_FRAME_PACKETS = 30;
+
+    /**
+     * Random bytes to use as the payload of the packets.
+     */
+    private final byte[] payload = new byte[BUFFER_SIZE];
+
+    /**
+     * The pool of packets.
+     */
+    private final RawPacket[] pool = new RawPacket[POOL_SIZE];
+
+    /**
+     * The index in {@link #pool} of the next packet.
+     */
+    private int poolIndex = 0;
+
+    /**
+     * Whether this instance generates audio (or video) packets.
+     */
+    private final boolean audio;
+
+    /**
+     * The SSRC of the packets.
+     */
+    private final long ssrc;
+
+    /**
+     * The source of the packet and frame sizes.
+     */
+    private final Random random = new Random(0x5eed);
+
+    /**
+     * The RTP sequence number of the next packet.
+     */
+    private int seq = 0;
+
+    /**
+     * The transport-wide sequence number of the next packet.
+     */
+    private int transportSeq = 0;
+
+    /**
+     * The RTP timestamp of the current frame.
+     */
+    private long ts = 0;
+
+    /**
+     * The number of the current frame.
+     */
+    private int frame = -1;
+
+    /**
+     * The number of packets of the current video frame which remain to be
+     * generated.
+     */
+    private int packetsLeftInFrame = 0;
+
+    /**
+     * Initializes a new <tt>RtpPacketGenerator</tt> instance.
+     *
+     * @param mediaType the type of the media of the packets.
+     * @param ssrc the SSRC of the packets.
+     */
+    public RtpPacketGenerator(MediaType mediaType, long ssrc)
+    {
+        this.audio = MediaType.AUDIO.equals(mediaType);
+        this.ssrc = ssrc;
+
+        random.nextBytes(payload);
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = new RawPacket(new byte[BUFFER_SIZE], 0, 0);
+        }
+    }
+
+    /**
+     * Gets the SSRC of the packets of this instance.
+     *
+     * @return the SSRC of the packets of this instance.
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Generates the next packet.
+     *
+     * @return the next packet.
+     */
+    public RawPacket next()
+    {
+        RawPacket pkt = pool[poolIndex];
+
+        poolIndex = (poolIndex + 1) % POOL_SIZE;
+        if (audio)
+            nextAudio(pkt);
+        else
+            nextVideo(pkt);
+        seq = (seq + 1) & 0xffff;
+        transportSeq = (transportSeq + 1) & 0xffff;
+        return pkt;
+    }
+
+    /**
+     * Writes the next audio packet.
+     *
+     * @param pkt the packet to write into.
+     */
+    private void nextAudio(RawPacket pkt)
+    {
+        frame++;
+        ts += 960;
+
+        byte[] buf = pkt.getBuffer();
+        int off = writeHeader(buf, false, AUDIO_PT, 1);
+
+        // ssrc-audio-level with the voice activity bit set now and then.
+        buf[off++] = (byte) (AUDIO_LEVEL_ID << 4);
+        buf[off++] = (byte) ((frame % 4 == 0 ? 0x80 : 0) | (frame % 127));
+        buf[off++] = 0;
+        buf[off++] = 0;
+
+        off = writePayload(buf, off, 60 + random.nextInt(100));
+        reset(pkt, off);
+    }
+
+    /**
+     * Writes the next video packet.
+     *
+     * @param pkt the packet to write into.
+     */
+    private void nextVideo(RawPacket pkt)
+    {
+        boolean startOfFrame = packetsLeftInFrame == 0;
+
+        if (startOfFrame)
+        {
+            frame++;
+            ts += 3000;
+            packetsLeftInFrame
+                = frame % KEY_FRAME_INTERVAL == 0
+                    ? KEY_FRAME_PACKETS
+                    : 2 + random.nextInt(5);
+        }
+        packetsLeftInFrame--;
+
+        boolean endOfFrame = packetsLeftInFrame == 0;
+        byte[] buf = pkt.getBuffer();
+        int off = writeHeader(buf, endOfFrame, VIDEO_PT, 2);
+
+        // abs-send-time, 6.18 fixed point seconds of a 30fps clock.
+        long sendTimeMs = frame * 33L;
+        int absSendTime = (int) (((sendTimeMs << 18) / 1000) & 0xffffff);
+
+        buf[off++] = (byte) ((ABS_SEND_TIME_ID << 4) | 2);
+        off += RTPUtils.writeUint24(buf, off, absSendTime);
+
+        // transport-cc
+        buf[off++] = (byte) ((TRANSPORT_CC_ID << 4) | 1);
+        off += RTPUtils.writeShort(buf, off, (short) transportSeq);
+        buf[off++] = 0;
+
+        // A minimal VP8 payload descriptor (the S bit on the first packet of
+        // a frame) followed by the VP8 payload header (the P bit is clear
+        // for a key frame).
+        int payloadStart = off;
+
+        off = writePayload(
+                buf,
+                off,
+                endOfFrame
+                    ? 200 + random.nextInt(VIDEO_PAYLOAD_LENGTH - 200)
+                    : VIDEO_PAYLOAD_LENGTH);
+        buf[payloadStart] = (byte) (startOfFrame ? 0x10 : 0x00);
+        if (startOfFrame)
+        {
+            boolean keyFrame = frame % KEY_FRAME_INTERVAL == 0;
+
+            buf[payloadStart + 1]
+                = (byte) ((buf[payloadStart + 1] & 0xfe) | (keyFrame ? 0 : 1));
+        }
+        reset(pkt, off);
+    }
+
+    /**
+     * Writes the fixed header of the next packet followed by the header of
+     * a one-byte header extension block.
+     *
+     * @param buf the buffer to write into.
+     * @param marker the value of the marker bit.
+     * @param pt the payload type.
+     * @param extensionWords the length of the header extension block in
+     * 32-bit words.
+     * @return the offset of the header extension elements.
+     */
+    private int writeHeader(
+            byte[] buf, boolean marker, byte pt, int extensionWords)
+    {
+        buf[0] = (byte) 0x90; // V=2, X=1
+        buf[1] = (byte) ((marker ? 0x80 : 0) | pt);
+        RTPUtils.writeShort(buf, 2, (short) seq);
+        RTPUtils.writeInt(buf, 4, (int) ts);
+        RTPUtils.writeInt(buf, 8, (int) ssrc);
+        RTPUtils.writeShort(buf, 12, (short) 0xBEDE);
+        RTPUtils.writeShort(buf, 14, (short) extensionWords);
+        return 16;
+    }
+
+    /**
+     * Writes random bytes as the payload of the next packet.
+     *
+     * @param buf the buffer to write into.
+     * @param off the offset at which to write.
+     * @param length the number of bytes to write.
+     * @return the offset right after the payload.
+     */
+    private int writePayload(byte[] buf, int off, int length)
+    {
+        System.arraycopy(payload, (seq * 31) % 64, buf, off, length);
+        return off + length;
+    }
+
+    /**
+     * Resets the offset, length and flags of a packet of the pool.
+     *
+     * @param pkt the packet to reset.
+     * @param length the new length of the packet.
+     */
+    private static void reset(RawPacket pkt, int length)
+    {
+        pkt.setOffset(0);
+        pkt.setLength(length);
+        pkt.setFlags(0);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the packets per second that the SRTP transformer of a stream
+ * protects and unprotects when a sending and a receiving thread use it
+ * concurrently, as they do on a bridge, with packets of several SSRCs (e.g.
+ * simulcast layers and their RTX streams) interleaved in each direction.
+ * This is where the crypto contexts are looked up by SSRC.
+ *
+ * As in {@link TransformEngineBenchmark}, the packets of the
+ * <tt>unprotect</tt> benchmark are first protected by the SRTP transformer of
+ * the remote peer.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SrtpContextBenchmark
+{
+    /**
+     * The number of SSRCs of the packets in each direction.
+     */
+    @Param({ "1", "3", "6" })
+    public int ssrcCount;
+
+    /**
+     * The type of the media of the packets.
+     */
+    @Param({ "AUDIO", "VIDEO" })
+    public MediaType mediaType;
+
+    /**
+     * The stream whose SRTP transformer is measured.
+     */
+    private MediaStreamFixture fixture;
+
+    /**
+     * The SRTP transformer of the stream.
+     */
+    private PacketTransformer transformer;
+
+    /**
+     * The SRTP transformer of the remote peer of the stream.
+     */
+    private PacketTransformer peerTransformer;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        fixture = new MediaStreamFixture(mediaType);
+        transformer = fixture.getSrtpTransformEngine().getRTPTransformer();
+        peerTransformer
+            = fixture.getPeerSrtpTransformEngine().getRTPTransformer();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        fixture.close();
+    }
+
+    @Benchmark
+    @Group("srtp")
+    @GroupThreads(1)
+    public RawPacket[] protect(Packets packets)
+    {
+        return transformer.transform(packets.next());
+    }
+
+    @Benchmark
+    @Group("srtp")
+    @GroupThreads(1)
+    public RawPacket[] unprotect(Packets packets)
+    {
+        return transformer.reverseTransform(
+                peerTransformer.transform(packets.next()));
+    }
+
+    /**
+     * The packets of a thread, with their SSRCs interleaved.
+     */
+    @State(Scope.Thread)
+    public static class Packets
+    {
+        /**
+         * The SSRC of the packets of the first thread. The SSRCs of the
+         * threads do not overlap, so that no crypto context is used by two
+         * threads.
+         */
+        private static final long BASE_SSRC = 0x11111111L;
+
+        /**
+         * The number of threads which have been set up.
+         */
+        private static final AtomicInteger threadCount = new AtomicInteger();
+
+        /**
+         * The sources of the packets, one per SSRC.
+         */
+        private RtpPacketGenerator[] generators;
+
+        /**
+         * The index in {@link #generators} of the source of the next packet.
+         */
+        private int index = 0;
+
+        /**
+         * The array passed to the transformers.
+         */
+        private final RawPacket[] pkts = new RawPacket[1];
+
+        @Setup
+        public void setUp(SrtpContextBenchmark benchmark)
+        {
+            long ssrc
+                = BASE_SSRC + 0x01000000L * threadCount.getAndIncrement();
+
+            generators = new RtpPacketGenerator[benchmark.ssrcCount];
+            for (int i = 0; i < generators.length; i++)
+            {
+                generators[i]
+                    = new RtpPacketGenerator(
+                            benchmark.mediaType,
+                            (ssrc + i) & 0xffffffffL);
+            }
+        }
+
+        /**
+         * Gets the next packet.
+         *
+         * @return an array which contains the next packet.
+         */
+        RawPacket[] next()
+        {
+            pkts[0] = generators[index].next();
+            if (++index == generators.length)
+                index = 0;
+            return pkts;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.utils.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the time and the allocations per RTP packet of the complete
+ * {@link TransformEngineChain} of a {@link MediaStream}, as assembled by
+ * <tt>MediaStreamImpl#createTransformEngineChain()</tt>, in both directions.
+ *
+ * The packets of the <tt>ingress</tt> benchmark are first protected by the
+ * SRTP transformer of the remote peer, so its figures include one SRTP
+ * protect operation (see {@link TransformEngineBenchmark} for the cost of
+ * SRTP alone).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformChainBenchmark
+{
+    /**
+     * The type of the media of the stream.
+     */
+    @Param({ "AUDIO", "VIDEO" })
+    public MediaType mediaType;
+
+    /**
+     * The stream whose chain is measured.
+     */
+    private MediaStreamFixture fixture;
+
+    /**
+     * The RTP transformer of the chain.
+     */
+    private PacketTransformer chain;
+
+    /**
+     * The RTP transformer of the remote peer.
+     */
+    private PacketTransformer peerSrtp;
+
+    /**
+     * The source of the outgoing packets.
+     */
+    private RtpPacketGenerator egressPackets;
+
+    /**
+     * The source of the incoming packets.
+     */
+    private RtpPacketGenerator ingressPackets;
+
+    /**
+     * The array passed to the transformers.
+     */
+    private final RawPacket[] pkts = new RawPacket[1];
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        fixture = new MediaStreamFixture(mediaType);
+        chain = fixture.getTransformEngineChain().getRTPTransformer();
+        peerSrtp = fixture.getPeerSrtpTransformEngine().getRTPTransformer();
+        egressPackets = new RtpPacketGenerator(mediaType, 0x11111111L);
+        ingressPackets = new RtpPacketGenerator(mediaType, 0x22222222L);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        fixture.close();
+    }
+
+    @Benchmark
+    public RawPacket[] egress()
+    {
+        pkts[0] = egressPackets.next();
+        return chain.transform(pkts);
+    }
+
+    @Benchmark
+    public RawPacket[] ingress()
+    {
+        pkts[0] = ingressPackets.next();
+        return chain.reverseTransform(peerSrtp.transform(pkts));
+    }
+}
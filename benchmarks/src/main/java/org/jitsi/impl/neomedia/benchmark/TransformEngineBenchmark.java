@@ -0,0 +1,191 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.benchmark;
+
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.impl.neomedia.transform.fec.*;
+import org.jitsi.impl.neomedia.transform.rtcp.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.utils.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the time and the allocations per RTP packet of individual
+ * transform engines, in both directions. The engines are attached to a
+ * {@link MediaStreamFixture} stream wherever they need one.
+ *
+ * The packets of the <tt>ingress</tt> benchmark of the <tt>srtp</tt> engine
+ * are first protected by the SRTP transformer of the remote peer, so its
+ * figures are those of a protect and an unprotect operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformEngineBenchmark
+{
+    /**
+     * The engine to measure.
+     */
+    @Param({
+            "srtp",
+            "statistics",
+            "caching",
+            "rtx",
+            "fec",
+            "abs-send-time",
+            "transport-cc"
+        })
+    public String engine;
+
+    /**
+     * The type of the media of the packets.
+     */
+    @Param({ "AUDIO", "VIDEO" })
+    public MediaType mediaType;
+
+    /**
+     * The stream to which the engines are attached.
+     */
+    private MediaStreamFixture fixture;
+
+    /**
+     * The RTP transformer of the outgoing packets.
+     */
+    private PacketTransformer egressTransformer;
+
+    /**
+     * The RTP transformer of the incoming packets.
+     */
+    private PacketTransformer ingressTransformer;
+
+    /**
+     * The transformer which prepares the incoming packets, or
+     * <tt>null</tt>.
+     */
+    private PacketTransformer ingressSource;
+
+    /**
+     * The engine which is to be closed with the benchmark, or <tt>null</tt>.
+     */
+    private PacketTransformer closeable;
+
+    /**
+     * The source of the outgoing packets.
+     */
+    private RtpPacketGenerator egressPackets;
+
+    /**
+     * The source of the incoming packets.
+     */
+    private RtpPacketGenerator ingressPackets;
+
+    /**
+     * The array passed to the transformers.
+     */
+    private final RawPacket[] pkts = new RawPacket[1];
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        fixture = new MediaStreamFixture(mediaType);
+        egressPackets = new RtpPacketGenerator(mediaType, 0x11111111L);
+        ingressPackets = new RtpPacketGenerator(mediaType, 0x22222222L);
+
+        TransformEngine ingressEngine = null;
+        TransformEngine egressEngine;
+
+        switch (engine)
+        {
+        case "srtp":
+            egressEngine = fixture.getSrtpTransformEngine();
+            ingressSource
+                = fixture.getPeerSrtpTransformEngine().getRTPTransformer();
+            break;
+        case "statistics":
+            egressEngine = new StatisticsEngine(fixture.getStream());
+            break;
+        case "caching":
+            CachingTransformer cachingTransformer
+                = new CachingTransformer(fixture.getStream());
+
+            cachingTransformer.setEnabled(true);
+            egressEngine = cachingTransformer;
+            closeable = cachingTransformer;
+            break;
+        case "rtx":
+            egressEngine = new RtxTransformer(fixture.getStream());
+            break;
+        case "fec":
+            egressEngine
+                = new FECTransformEngine(
+                        FECTransformEngine.FecType.ULPFEC,
+                        RtpPacketGenerator.ULPFEC_PT,
+                        RtpPacketGenerator.ULPFEC_PT,
+                        fixture.getStream());
+            break;
+        case "abs-send-time":
+            AbsSendTimeEngine absSendTimeEngine = new AbsSendTimeEngine();
+
+            absSendTimeEngine.setExtensionID(
+                    RtpPacketGenerator.ABS_SEND_TIME_ID);
+            egressEngine = absSendTimeEngine;
+            break;
+        case "transport-cc":
+            egressEngine = fixture.getTransportCCEngine().getEgressEngine();
+            ingressEngine = fixture.getTransportCCEngine().getIngressEngine();
+            break;
+        default:
+            throw new IllegalArgumentException("engine " + engine);
+        }
+
+        egressTransformer = egressEngine.getRTPTransformer();
+        ingressTransformer
+            = (ingressEngine == null ? egressEngine : ingressEngine)
+                .getRTPTransformer();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (closeable != null)
+            closeable.close();
+        fixture.close();
+    }
+
+    @Benchmark
+    public RawPacket[] egress()
+    {
+        pkts[0] = egressPackets.next();
+        return egressTransformer.transform(pkts);
+    }
+
+    @Benchmark
+    public RawPacket[] ingress()
+    {
+        pkts[0] = ingressPackets.next();
+
+        RawPacket[] in
+            = ingressSource == null ? pkts : ingressSource.transform(pkts);
+
+        return ingressTransformer.reverseTransform(in);
+    }
+}
@@ -35,6 +35,7 @@
 import org.jitsi.impl.neomedia.format.*;
 import org.jitsi.impl.neomedia.protocol.*;
 import org.jitsi.impl.neomedia.rtp.*;
+import org.jitsi.impl.neomedia.rtp.pacing.*;
 import org.jitsi.impl.neomedia.rtp.remotebitrateestimator.*;
 import org.jitsi.impl.neomedia.rtp.translator.*;
 import org.jitsi.impl.neomedia.stats.*;
@@ -926,6 +927,8 @@ protected void configureDataOutputStream(
             RTPConnectorOutputStream dataOutputStream)
     {
         dataOutputStream.setPriority(getPriority());
+        if (this instanceof AudioMediaStream)
+            dataOutputStream.setPacketPriority(PacketPriority.AUDIO);
     }
 
     /**
@@ -2045,6 +2048,32 @@ protected AbstractRTPConnector getRTPConnector()
         return rtpConnector;
     }
 
+    /**
+     * Gets the <tt>RTPConnectorOutputStream</tt> through which this instance
+     * sends RTP traffic, if it has been created.
+     *
+     * @return the <tt>RTPConnectorOutputStream</tt> through which this
+     * instance sends RTP traffic or <tt>null</tt> if it has not been created
+     * yet.
+     */
+    public RTPConnectorOutputStream getDataOutputStream()
+    {
+        AbstractRTPConnector rtpConnector = this.rtpConnector;
+
+        if (rtpConnector == null)
+            return null;
+
+        try
+        {
+            return rtpConnector.getDataOutputStream(false);
+        }
+        catch (IOException ioe)
+        {
+            // We should not enter here because we are not creating the stream.
+            return null;
+        }
+    }
+
     /**
      * Gets the <tt>RTPManager</tt> instance which sends and receives RTP and
      * RTCP traffic on behalf of this <tt>MediaStream</tt>. If the
@@ -3724,9 +3753,34 @@ public void setExternalTransformer(TransformEngine transformEngine)
      * {@inheritDoc}
      */
     @Override
-    @SuppressWarnings("unchecked")
     public void injectPacket(RawPacket pkt, boolean data, TransformEngine after)
         throws TransmissionFailedException
+    {
+        injectPacket(pkt, data, after, null);
+    }
+
+    /**
+     * Sends a given RTP or RTP Control Protocol (RTCP) packet to the remote
+     * peer/side with a specific {@link PacketPriority}, which determines the
+     * order in which the pacer of the data output stream sends it relative to
+     * the other queued packets.
+     *
+     * @param pkt the packet to send.
+     * @param data {@code true} to send an RTP packet or {@code false} to send
+     * an RTCP packet.
+     * @param after the {@code TransformEngine} in the {@code TransformEngine}
+     * chain of this {@code MediaStream} after which the injection is to begin.
+     * @param priority the {@code PacketPriority} of {@code pkt} or
+     * {@code null} to use the default priority of the output stream.
+     * @throws TransmissionFailedException if the transmission failed.
+     */
+    @SuppressWarnings("unchecked")
+    public void injectPacket(
+            RawPacket pkt,
+            boolean data,
+            TransformEngine after,
+            PacketPriority priority)
+        throws TransmissionFailedException
     {
         try
         {
@@ -3764,11 +3818,23 @@ public void injectPacket(RawPacket pkt, boolean data, TransformEngine after)
                 }
             }
 
-            outputStream.write(
-                    pkt.getBuffer(),
-                    pkt.getOffset(),
-                    pkt.getLength(),
-                    /* context */ after);
+            if (priority == null)
+            {
+                outputStream.write(
+                        pkt.getBuffer(),
+                        pkt.getOffset(),
+                        pkt.getLength(),
+                        /* context */ after);
+            }
+            else
+            {
+                outputStream.write(
+                        pkt.getBuffer(),
+                        pkt.getOffset(),
+                        pkt.getLength(),
+                        /* context */ after,
+                        priority);
+            }
         }
         catch (IllegalStateException | IOException | NullPointerException e)
         {
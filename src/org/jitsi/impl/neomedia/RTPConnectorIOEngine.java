@@ -0,0 +1,723 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.sf.fmj.media.util.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
+import org.jitsi.utils.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * Implements a shared, {@link Selector}-based I/O engine which allows many
+ * {@link RTPConnectorInputStream}s and {@link RTPConnectorOutputStream}s to
+ * receive and send through a small, fixed pool of I/O threads instead of
+ * starting a receive and a send thread each.
+ *
+ * Each I/O thread owns a {@code Selector} on which the
+ * {@link DatagramChannel}s of the registered input streams are polled, a queue
+ * of tasks submitted from other threads and a set of timers. A channel is
+ * always serviced by the same I/O thread so the single-reader assumptions of
+ * {@code RTPConnectorInputStream} continue to hold.
+ *
+ * The engine is disabled by default and is enabled through the
+ * {@link #ENABLED_PNAME} property. Only sockets which are backed by a
+ * {@code DatagramChannel} (i.e. for which {@link DatagramSocket#getChannel()}
+ * returns non-{@code null}) can be registered with it; all others keep using
+ * the thread-per-stream model.
+ */
+public class RTPConnectorIOEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPConnectorIOEngine</tt> class and
+     * its instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RTPConnectorIOEngine.class);
+
+    /**
+     * The name of the property which enables the shared I/O engine.
+     */
+    public static final String ENABLED_PNAME
+        = RTPConnectorIOEngine.class.getName() + ".ENABLED";
+
+    /**
+     * The name of the property which specifies the number of I/O threads of
+     * the shared I/O engine. Defaults to the number of available processors.
+     */
+    public static final String THREAD_COUNT_PNAME
+        = RTPConnectorIOEngine.class.getName() + ".THREAD_COUNT";
+
+    /**
+     * The name of the property which specifies the maximum number of
+     * datagrams read from a single channel before the I/O thread moves on to
+     * the next ready channel.
+     */
+    public static final String MAX_READS_PER_SELECT_PNAME
+        = RTPConnectorIOEngine.class.getName() + ".MAX_READS_PER_SELECT";
+
+    /**
+     * Whether the shared I/O engine is enabled.
+     */
+    private static final boolean ENABLED;
+
+    /**
+     * The number of I/O threads of the shared I/O engine.
+     */
+    private static final int THREAD_COUNT;
+
+    /**
+     * The maximum number of datagrams read from a single channel per
+     * selection in order to prevent a busy channel from starving the others
+     * serviced by the same I/O thread.
+     */
+    private static final int MAX_READS_PER_SELECT;
+
+    /**
+     * The granularity of the timers of the I/O threads. Matches the
+     * granularity of {@link Selector#select(long)}.
+     */
+    private static final long TIMER_TICK_NANOS
+        = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The number of ticks per rotation of the timer wheels of the I/O threads.
+     */
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        ENABLED = ConfigUtils.getBoolean(cfg, ENABLED_PNAME, false);
+
+        int threadCount = ConfigUtils.getInt(cfg, THREAD_COUNT_PNAME, -1);
+
+        THREAD_COUNT
+            = threadCount > 0
+                ? threadCount
+                : Runtime.getRuntime().availableProcessors();
+
+        MAX_READS_PER_SELECT
+            = Math.max(
+                    1,
+                    ConfigUtils.getInt(cfg, MAX_READS_PER_SELECT_PNAME, 64));
+    }
+
+    /**
+     * The shared instance, initialized on first use.
+     */
+    private static RTPConnectorIOEngine instance;
+
+    /**
+     * Gets the shared <tt>RTPConnectorIOEngine</tt> instance if the engine is
+     * enabled through configuration.
+     *
+     * @return the shared <tt>RTPConnectorIOEngine</tt> instance or
+     * <tt>null</tt> if the engine is disabled or could not be started.
+     */
+    public static synchronized RTPConnectorIOEngine getInstance()
+    {
+        if (ENABLED && instance == null)
+        {
+            try
+            {
+                instance = new RTPConnectorIOEngine(THREAD_COUNT);
+            }
+            catch (IOException ioe)
+            {
+                logger.error(
+                        "Failed to start the shared I/O engine, falling back"
+                            + " to a thread per stream.",
+                        ioe);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Checks whether a specific <tt>DatagramSocket</tt> can be serviced by the
+     * shared engine and, if so, returns its <tt>DatagramChannel</tt>.
+     *
+     * @param socket the <tt>DatagramSocket</tt> to check.
+     * @return the <tt>DatagramChannel</tt> of <tt>socket</tt> if the engine is
+     * enabled and <tt>socket</tt> has a channel; otherwise, <tt>null</tt>.
+     */
+    public static DatagramChannel getChannel(DatagramSocket socket)
+    {
+        return ENABLED && socket != null ? socket.getChannel() : null;
+    }
+
+    /**
+     * Creates a <tt>DatagramSocket</tt> bound to a specific local address. If
+     * the shared engine is enabled, the socket is created through a
+     * <tt>DatagramChannel</tt> so that it can be registered with the engine
+     * (see {@link #getChannel(DatagramSocket)}).
+     *
+     * @param bindAddr the local address to bind the new socket to.
+     * @return a new <tt>DatagramSocket</tt> bound to <tt>bindAddr</tt>.
+     * @throws IOException if the socket could not be created or bound.
+     */
+    public static DatagramSocket createDatagramSocket(SocketAddress bindAddr)
+        throws IOException
+    {
+        if (!ENABLED)
+            return new DatagramSocket(bindAddr);
+
+        DatagramChannel channel = DatagramChannel.open();
+
+        try
+        {
+            return channel.bind(bindAddr).socket();
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * The I/O threads of this engine.
+     */
+    private final Worker[] workers;
+
+    /**
+     * The index of the {@link Worker} to be returned by the next call to
+     * {@link #nextWorker()}.
+     */
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /**
+     * Initializes a new <tt>RTPConnectorIOEngine</tt> and starts its I/O
+     * threads.
+     *
+     * @param threadCount the number of I/O threads to start.
+     * @throws IOException if a <tt>Selector</tt> could not be opened.
+     */
+    private RTPConnectorIOEngine(int threadCount)
+        throws IOException
+    {
+        workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            workers[i] = new Worker(i);
+        }
+
+        logger.info("Started the shared I/O engine with " + threadCount
+                        + " threads.");
+    }
+
+    /**
+     * Gets the next {@link Worker} in a round-robin fashion. Callers which
+     * need their tasks to be executed in order should obtain a
+     * <tt>Worker</tt> once and keep using it.
+     *
+     * @return the next {@link Worker}.
+     */
+    public Worker nextWorker()
+    {
+        int i = nextWorker.getAndIncrement() & Integer.MAX_VALUE;
+
+        return workers[i % workers.length];
+    }
+
+    /**
+     * Registers a specific <tt>DatagramChannel</tt> with one of the I/O
+     * threads of this engine. The channel is switched to non-blocking mode and
+     * all datagrams received on it are delivered to <tt>handler</tt> on the
+     * I/O thread.
+     *
+     * @param channel the <tt>DatagramChannel</tt> to register.
+     * @param handler the <tt>DatagramHandler</tt> to deliver received
+     * datagrams to.
+     * @return the <tt>Registration</tt> which allows the caller to stop
+     * receiving.
+     * @throws IOException if <tt>channel</tt> could not be switched to
+     * non-blocking mode.
+     */
+    public Registration register(
+            DatagramChannel channel,
+            DatagramHandler handler)
+        throws IOException
+    {
+        channel.configureBlocking(false);
+
+        Worker worker = nextWorker();
+        Registration registration
+            = new Registration(worker, channel, handler);
+
+        worker.execute(registration::doRegister);
+        return registration;
+    }
+
+    /**
+     * Receives the datagrams read by an I/O thread of
+     * <tt>RTPConnectorIOEngine</tt> from a registered channel.
+     */
+    public interface DatagramHandler
+    {
+        /**
+         * Notifies this handler that a datagram was received. The
+         * <tt>DatagramPacket</tt> and its buffer are owned by the I/O thread
+         * and are reused after this method returns.
+         *
+         * @param p the received datagram.
+         */
+        void datagramReceived(DatagramPacket p);
+
+        /**
+         * Notifies this handler that no more datagrams are immediately
+         * available on its channel (or that the maximum number of datagrams
+         * to be read from it in one go has been reached). Allows the handler
+         * to process the datagrams it has received so far as a batch.
+         */
+        void datagramsDrained();
+
+        /**
+         * Notifies this handler that reading from its channel failed and the
+         * channel has been deregistered.
+         *
+         * @param ioe the <tt>IOException</tt> which occurred.
+         */
+        void receiveFailed(IOException ioe);
+    }
+
+    /**
+     * Represents the registration of a <tt>DatagramChannel</tt> with an I/O
+     * thread of <tt>RTPConnectorIOEngine</tt>.
+     */
+    public static class Registration
+    {
+        /**
+         * The I/O thread which services {@link #channel}.
+         */
+        private final Worker worker;
+
+        /**
+         * The registered channel.
+         */
+        private final DatagramChannel channel;
+
+        /**
+         * The handler of the datagrams received on {@link #channel}.
+         */
+        private final DatagramHandler handler;
+
+        /**
+         * The <tt>SelectionKey</tt> of {@link #channel}. Accessed only by the
+         * I/O thread.
+         */
+        private SelectionKey key;
+
+        /**
+         * Whether {@link #cancel()} has been called.
+         */
+        private volatile boolean cancelled = false;
+
+        private Registration(
+                Worker worker,
+                DatagramChannel channel,
+                DatagramHandler handler)
+        {
+            this.worker = worker;
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Gets the I/O thread which services this registration. Allows the
+         * owner of the registration to execute other tasks (e.g. sending) on
+         * the same thread.
+         *
+         * @return the I/O thread which services this registration.
+         */
+        public Worker getWorker()
+        {
+            return worker;
+        }
+
+        /**
+         * Stops the delivery of datagrams to the handler of this
+         * registration.
+         */
+        public void cancel()
+        {
+            if (!cancelled)
+            {
+                cancelled = true;
+                worker.execute(this::doCancel);
+            }
+        }
+
+        /**
+         * Registers {@link #channel} with the <tt>Selector</tt> of
+         * {@link #worker}. Executed by the I/O thread.
+         */
+        private void doRegister()
+        {
+            if (cancelled || !channel.isOpen())
+                return;
+
+            try
+            {
+                key = channel.register(worker.selector, SelectionKey.OP_READ, this);
+            }
+            catch (ClosedChannelException cce)
+            {
+                handler.receiveFailed(cce);
+            }
+        }
+
+        /**
+         * Deregisters {@link #channel}. Executed by the I/O thread.
+         */
+        private void doCancel()
+        {
+            if (key != null)
+            {
+                key.cancel();
+                key = null;
+            }
+        }
+
+        /**
+         * Reads the datagrams available on {@link #channel} and delivers them
+         * to {@link #handler}. Executed by the I/O thread.
+         *
+         * @param p the <tt>DatagramPacket</tt> of the I/O thread to deliver
+         * the datagrams in.
+         * @param buffer the <tt>ByteBuffer</tt> view of the buffer of
+         * <tt>p</tt>.
+         */
+        private void read(DatagramPacket p, ByteBuffer buffer)
+        {
+            byte[] data = buffer.array();
+
+            for (int i = 0; i < MAX_READS_PER_SELECT && !cancelled; i++)
+            {
+                SocketAddress from;
+
+                buffer.clear();
+                try
+                {
+                    from = channel.receive(buffer);
+                }
+                catch (IOException ioe)
+                {
+                    doCancel();
+                    handler.receiveFailed(ioe);
+                    return;
+                }
+
+                if (from == null)
+                {
+                    // Nothing more is available at this time.
+                    break;
+                }
+
+                p.setData(data, 0, buffer.position());
+                p.setSocketAddress(from);
+                try
+                {
+                    handler.datagramReceived(p);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+
+                    // The I/O thread is shared and must not die because of a
+                    // failure in a single stream.
+                    logger.error("Failed to handle a received packet: ", t);
+                }
+            }
+
+            try
+            {
+                handler.datagramsDrained();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+
+                logger.error("Failed to handle received packets: ", t);
+            }
+        }
+    }
+
+    /**
+     * An I/O thread of <tt>RTPConnectorIOEngine</tt>. Services the channels
+     * registered with its <tt>Selector</tt> and executes tasks and timers
+     * submitted to it, all on a single thread.
+     */
+    public static class Worker
+    {
+        /**
+         * The <tt>Selector</tt> of this I/O thread.
+         */
+        private final Selector selector;
+
+        /**
+         * The tasks submitted for execution on this I/O thread.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The pending timers of this I/O thread. Accessed only by the I/O
+         * thread. A timer wheel rather than a priority queue because the
+         * pacers of all streams which send through this I/O thread schedule
+         * their (short) timers on it.
+         */
+        private final TimerWheel timers
+            = new TimerWheel(TIMER_TICK_NANOS, TIMER_TICKS_PER_WHEEL);
+
+        /**
+         * The timers which have expired and are yet to be run. Accessed only
+         * by the I/O thread.
+         */
+        private final ArrayDeque<Runnable> expiredTimers = new ArrayDeque<>();
+
+        /**
+         * Whether the I/O thread has been (or is about to be) woken up and
+         * another call to {@link Selector#wakeup()} is unnecessary.
+         */
+        private final AtomicBoolean wakenUp = new AtomicBoolean();
+
+        /**
+         * The receive buffer of this I/O thread.
+         */
+        private final ByteBuffer buffer
+            = ByteBuffer.allocate(
+                    RTPConnectorInputStream.PACKET_RECEIVE_BUFFER_LENGTH);
+
+        /**
+         * The <tt>DatagramPacket</tt> which wraps {@link #buffer} and is
+         * handed to the <tt>DatagramHandler</tt>s.
+         */
+        private final DatagramPacket packet
+            = new DatagramPacket(buffer.array(), 0, buffer.capacity());
+
+        /**
+         * The thread which runs this I/O thread's loop.
+         */
+        private final Thread thread;
+
+        private Worker(int index)
+            throws IOException
+        {
+            selector = Selector.open();
+
+            thread = new Thread(this::run);
+            thread.setDaemon(true);
+            thread.setName(
+                    RTPConnectorIOEngine.class.getName() + ".worker-" + index);
+            RTPConnectorInputStream.setThreadPriority(
+                    thread,
+                    MediaThread.getNetworkPriority());
+            thread.start();
+        }
+
+        /**
+         * Submits a task for execution on this I/O thread. Tasks are executed
+         * in the order in which they were submitted. They must not block.
+         *
+         * @param task the task to execute.
+         */
+        public void execute(Runnable task)
+        {
+            tasks.add(task);
+            if (Thread.currentThread() != thread
+                    && wakenUp.compareAndSet(false, true))
+            {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Submits a task for execution on this I/O thread after a specific
+         * delay.
+         *
+         * @param task the task to execute.
+         * @param delayNanos the delay in nanoseconds.
+         */
+        public void schedule(Runnable task, long delayNanos)
+        {
+            long deadline = System.nanoTime() + delayNanos;
+
+            if (Thread.currentThread() == thread)
+                timers.schedule(task, deadline);
+            else
+                execute(() -> timers.schedule(task, deadline));
+        }
+
+        /**
+         * Checks whether the calling thread is this I/O thread.
+         *
+         * @return <tt>true</tt> if the calling thread is this I/O thread.
+         */
+        public boolean inWorkerThread()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs the loop of this I/O thread.
+         */
+        private void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    // Reset before checking for tasks so that a task which is
+                    // submitted concurrently wakes the selection up.
+                    wakenUp.set(false);
+
+                    if (tasks.isEmpty())
+                    {
+                        long nanos
+                            = timers.getNanosUntilNextTick(System.nanoTime());
+
+                        if (nanos < 0)
+                        {
+                            selector.select();
+                        }
+                        else if (nanos > 0)
+                        {
+                            // A timeout of 0 means "forever" for select.
+                            selector.select(
+                                    Math.max(
+                                            1,
+                                            TimeUnit.NANOSECONDS.toMillis(
+                                                    nanos)));
+                        }
+                        else
+                        {
+                            selector.selectNow();
+                        }
+                    }
+                    else
+                    {
+                        selector.selectNow();
+                    }
+
+                    processSelectedKeys();
+                    runTasks();
+                    runTimers();
+                }
+                catch (ClosedSelectorException cse)
+                {
+                    break;
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+
+                    logger.error("Unexpected failure in the I/O thread: ", t);
+                }
+            }
+        }
+
+        /**
+         * Reads from the channels which the last selection reported as
+         * readable.
+         */
+        private void processSelectedKeys()
+        {
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+
+            if (selectedKeys.isEmpty())
+                return;
+
+            for (Iterator<SelectionKey> i = selectedKeys.iterator();
+                    i.hasNext();)
+            {
+                SelectionKey key = i.next();
+
+                i.remove();
+                if (key.isValid() && key.isReadable())
+                {
+                    ((Registration) key.attachment()).read(packet, buffer);
+                }
+            }
+        }
+
+        /**
+         * Runs the tasks submitted since the last iteration.
+         */
+        private void runTasks()
+        {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+            {
+                runSafely(task);
+            }
+        }
+
+        /**
+         * Runs the timers which have expired.
+         */
+        private void runTimers()
+        {
+            if (timers.isEmpty())
+                return;
+
+            timers.expire(System.nanoTime(), expiredTimers);
+
+            Runnable task;
+
+            while ((task = expiredTimers.poll()) != null)
+            {
+                runSafely(task);
+            }
+        }
+
+        /**
+         * Runs a specific task and logs any failure without letting it kill
+         * the I/O thread.
+         *
+         * @param task the task to run.
+         */
+        private static void runSafely(Runnable task)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+
+                logger.error("Failed to execute a task: ", t);
+            }
+        }
+    }
+}
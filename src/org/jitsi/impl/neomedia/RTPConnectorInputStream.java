@@ -17,6 +17,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -29,6 +30,7 @@
 import org.jitsi.impl.neomedia.protocol.*;
 import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.*;
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
@@ -71,6 +73,46 @@
     public static final String SO_RCVBUF_PNAME
         = RTPConnectorInputStream.class.getName() + ".SO_RCVBUF";
 
+    /**
+     * The name of the property which specifies the maximum number of
+     * immediately available datagrams which are converted into
+     * <tt>RawPacket</tt>s and reverse-transformed as a single
+     * <tt>RawPacket[]</tt>.
+     */
+    public static final String RECEIVE_BATCH_SIZE_PNAME
+        = RTPConnectorInputStream.class.getName() + ".RECEIVE_BATCH_SIZE";
+
+    /**
+     * The maximum number of received datagrams which are pushed through
+     * {@link #createRawPacket(DatagramPacket)}'s transformation as a single
+     * <tt>RawPacket[]</tt>. Defaults to {@link #DEFAULT_RECEIVE_BATCH_SIZE}.
+     * A value of <tt>1</tt> disables batching.
+     *
+     * Batching is only performed when packets are received through the
+     * shared {@link RTPConnectorIOEngine} because only a non-blocking channel
+     * allows us to tell whether more datagrams are immediately available
+     * without waiting for them.
+     */
+    private static final int RECEIVE_BATCH_SIZE;
+
+    /**
+     * The default value of the {@link #RECEIVE_BATCH_SIZE_PNAME} property.
+     */
+    private static final int DEFAULT_RECEIVE_BATCH_SIZE = 16;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        RECEIVE_BATCH_SIZE
+            = Math.max(
+                    1,
+                    ConfigUtils.getInt(
+                            cfg,
+                            RECEIVE_BATCH_SIZE_PNAME,
+                            DEFAULT_RECEIVE_BATCH_SIZE));
+    }
+
     /**
      * Sets a specific priority on a specific <tt>Thread</tt>.
      *
@@ -118,6 +160,19 @@ public static void setThreadPriority(Thread thread, int priority)
      */
     private final byte[] buffer = new byte[PACKET_RECEIVE_BUFFER_LENGTH];
 
+    /**
+     * The <tt>RawPacket</tt>s which have been received but have not been
+     * processed by {@link #processRawPackets(RawPacket[])} yet because more
+     * datagrams were immediately available. Only used when
+     * {@link #RECEIVE_BATCH_SIZE} is greater than <tt>1</tt>.
+     */
+    private RawPacket[] batch;
+
+    /**
+     * The number of <tt>RawPacket</tt>s in {@link #batch}.
+     */
+    private int batchLength = 0;
+
     /**
      * Whether this stream is closed. Used to control the termination of worker
      * thread.
@@ -184,6 +239,13 @@ public static void setThreadPriority(Thread thread, int priority)
      */
     private Thread receiveThread;
 
+    /**
+     * The registration of this instance with the shared
+     * {@link RTPConnectorIOEngine} if packets are received through it rather
+     * than through {@link #receiveThread}.
+     */
+    private RTPConnectorIOEngine.Registration ioEngineRegistration;
+
     protected final T socket;
 
     /**
@@ -384,6 +446,11 @@ public synchronized void addDatagramPacketFilter(
     public synchronized void close()
     {
         closed = true;
+        if (ioEngineRegistration != null)
+        {
+            ioEngineRegistration.cancel();
+            ioEngineRegistration = null;
+        }
         if (socket != null)
         {
             try
@@ -408,7 +475,7 @@ public synchronized void close()
      * <tt>null</tt> for the other elements).
      *
      * Allows extenders to intercept the packet data and possibly filter and/or
-     * modify it.
+     * modify it through {@link #processRawPackets(RawPacket[])}.
      *
      * @param datagramPacket the <tt>DatagramPacket</tt> containing the packet
      * data
@@ -420,6 +487,21 @@ protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
     {
         RawPacket[] pkts = new RawPacket[1];
 
+        pkts[0] = copyRawPacket(datagramPacket);
+        return processRawPackets(pkts);
+    }
+
+    /**
+     * Copies the packet data of a specific <tt>DatagramPacket</tt> into a
+     * (pooled) <tt>RawPacket</tt>.
+     *
+     * @param datagramPacket the <tt>DatagramPacket</tt> containing the packet
+     * data
+     * @return a <tt>RawPacket</tt> which contains the packet data of
+     * <tt>datagramPacket</tt>
+     */
+    private RawPacket copyRawPacket(DatagramPacket datagramPacket)
+    {
         RawPacket pkt = rawPacketPool.poll();
         if (pkt == null)
             pkt = new RawPacket();
@@ -442,7 +524,23 @@ protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
         pkt.setLength(length);
         pkt.setFlags(0);
 
-        pkts[0] = pkt;
+        return pkt;
+    }
+
+    /**
+     * Allows extenders to filter and/or modify the <tt>RawPacket</tt>s created
+     * from received <tt>DatagramPacket</tt>s before they are made available
+     * through {@link #read(byte[], int, int)}. The specified array may contain
+     * more than one (non-<tt>null</tt>) element when datagrams are received
+     * in batches. The default implementation returns <tt>pkts</tt>.
+     *
+     * @param pkts the <tt>RawPacket</tt>s created from received
+     * <tt>DatagramPacket</tt>s
+     * @return the <tt>RawPacket</tt>s to be made available through
+     * {@link #read(byte[], int, int)}; <tt>null</tt> elements are ignored
+     */
+    protected RawPacket[] processRawPackets(RawPacket[] pkts)
+    {
         return pkts;
     }
 
@@ -453,6 +551,21 @@ protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
      */
     protected abstract void doLogPacket(DatagramPacket packet);
 
+    /**
+     * Gets the <tt>DatagramChannel</tt> through which this instance is to
+     * receive packets using the shared {@link RTPConnectorIOEngine} instead of
+     * a receive thread of its own. The default implementation returns
+     * <tt>null</tt> i.e. the shared engine is not used.
+     *
+     * @return the <tt>DatagramChannel</tt> through which this instance is to
+     * receive packets using the shared <tt>RTPConnectorIOEngine</tt> or
+     * <tt>null</tt> to use a receive thread of its own
+     */
+    protected DatagramChannel getDatagramChannel()
+    {
+        return null;
+    }
+
     /**
      * Provides a dummy implementation of {@link
      * PushSourceStream#endOfStream()} that always returns
@@ -573,10 +686,13 @@ protected PacketLoggingService getPacketLoggingService()
 
     private synchronized void maybeStartReceiveThread()
     {
-        if (receiveThread == null)
+        if (receiveThread == null && ioEngineRegistration == null)
         {
             if ((socket != null) && !closed && (transferHandler != null))
             {
+                if (maybeRegisterWithIOEngine())
+                    return;
+
                 receiveThread
                     = new Thread(
                         RTPConnectorInputStream.this::runInReceiveThread);
@@ -598,6 +714,67 @@ private synchronized void maybeStartReceiveThread()
         }
     }
 
+    /**
+     * Tries to receive packets through the shared
+     * {@link RTPConnectorIOEngine} instead of starting a receive thread.
+     *
+     * @return <tt>true</tt> if this instance was registered with the shared
+     * <tt>RTPConnectorIOEngine</tt>; otherwise, <tt>false</tt>
+     */
+    private boolean maybeRegisterWithIOEngine()
+    {
+        DatagramChannel channel = getDatagramChannel();
+
+        if (channel == null)
+            return false;
+
+        RTPConnectorIOEngine ioEngine = RTPConnectorIOEngine.getInstance();
+
+        if (ioEngine == null)
+            return false;
+
+        if (RECEIVE_BATCH_SIZE > 1)
+            batch = new RawPacket[RECEIVE_BATCH_SIZE];
+
+        try
+        {
+            ioEngineRegistration
+                = ioEngine.register(
+                        channel,
+                        new RTPConnectorIOEngine.DatagramHandler()
+                        {
+                            @Override
+                            public void datagramReceived(DatagramPacket p)
+                            {
+                                if (!closed)
+                                    processReceivedPacket(p);
+                            }
+
+                            @Override
+                            public void datagramsDrained()
+                            {
+                                flushBatch();
+                            }
+
+                            @Override
+                            public void receiveFailed(IOException ioe)
+                            {
+                                flushBatch();
+                                ioError = true;
+                            }
+                        });
+        }
+        catch (IOException ioe)
+        {
+            logger.warn(
+                    "Failed to register with the shared I/O engine, starting"
+                        + " a receive thread instead: " + ioe);
+            batch = null;
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Pools the specified <tt>RawPacket</tt> in order to avoid future
      * allocations and to reduce the effects of garbage collection.
@@ -783,25 +960,81 @@ private void runInReceiveThread()
                 break;
             }
 
-            numberOfReceivedBytes += (long) p.getLength();
+            processReceivedPacket(p);
+        }
+    }
 
-            try
-            {
-                // Do the DatagramPacketFilters accept the received DatagramPacket?
+    /**
+     * Processes a <tt>DatagramPacket</tt> which has just been received
+     * (either by {@link #receiveThread} or by the shared
+     * {@link RTPConnectorIOEngine}): filters it, converts it into
+     * <tt>RawPacket</tt>s and pushes them out of this
+     * <tt>PushSourceStream</tt>.
+     *
+     * @param p the <tt>DatagramPacket</tt> which has been received
+     */
+    private void processReceivedPacket(DatagramPacket p)
+    {
+        numberOfReceivedBytes += (long) p.getLength();
+
+        try
+        {
+            // Do the DatagramPacketFilters accept the received DatagramPacket?
 
-                if (accept(p))
+            if (accept(p))
+            {
+                if (batch == null)
                 {
                     RawPacket[] pkts = createRawPacket(p);
                     transferData(pkts);
                 }
+                else
+                {
+                    batch[batchLength++] = copyRawPacket(p);
+                    if (batchLength == batch.length)
+                        flushBatch();
+                }
             }
-            catch (Exception e)
-            {
-                // The receive thread should not die as a result of a failure in
-                // the packetization (converting to RawPacket[] and transforming)
-                // or a failure in any of the DatagramPacketFilters.
-                logger.error("Failed to receive a packet: ", e);
-            }
+        }
+        catch (Exception e)
+        {
+            // The receive thread should not die as a result of a failure in
+            // the packetization (converting to RawPacket[] and transforming)
+            // or a failure in any of the DatagramPacketFilters.
+            logger.error("Failed to receive a packet: ", e);
+        }
+    }
+
+    /**
+     * Processes the <tt>RawPacket</tt>s accumulated in {@link #batch} as a
+     * single <tt>RawPacket[]</tt> and pushes them out of this
+     * <tt>PushSourceStream</tt>. Invoked when the batch is full or when no
+     * more datagrams are immediately available.
+     */
+    private void flushBatch()
+    {
+        if (batchLength == 0)
+            return;
+
+        RawPacket[] pkts = batch;
+
+        batchLength = 0;
+        try
+        {
+            RawPacket[] out = processRawPackets(pkts);
+
+            if (out != null)
+                transferData(out);
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to receive a batch of packets: ", e);
+        }
+        finally
+        {
+            // processRawPackets may have returned a different array, in which
+            // case the elements of batch are still referenced.
+            Arrays.fill(pkts, null);
         }
     }
 
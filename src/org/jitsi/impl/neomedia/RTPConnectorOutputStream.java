@@ -19,11 +19,12 @@
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.atomic.*;
 
 import javax.media.rtp.*;
 
 import net.sf.fmj.media.util.*;
+import org.jitsi.impl.neomedia.rtp.pacing.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
@@ -70,6 +71,31 @@
      */
     private static final int AVERAGE_BITRATE_WINDOW_MS;
 
+    /**
+     * Whether the packets written into {@code RTPConnectorOutputStream}s are
+     * paced at a rate derived from the bandwidth estimation of their streams
+     * (see {@link #setTargetBitrate(long)}).
+     */
+    private static final boolean PACING_ENABLED;
+
+    /**
+     * The ratio of the pacing rate to the target bitrate. Greater than
+     * {@code 1} so that the pacer smoothes out bursts (e.g. key frames)
+     * without building up a queue behind them.
+     */
+    private static final double PACING_FACTOR;
+
+    /**
+     * The maximum burst (at the pacing rate) in nanoseconds.
+     */
+    private static final long PACING_BURST_NANOS;
+
+    /**
+     * The maximum duration (at the pacing rate) in nanoseconds of the unused
+     * pacing budget which is accumulated for padding.
+     */
+    private static final long PADDING_WINDOW_NANOS;
+
     /**
      * The flag which controls whether this {@link RTPConnectorOutputStream}
      * should create its own thread which will perform the packetization
@@ -115,10 +141,70 @@
         = RTPConnectorOutputStream.class.getName()
             + ".AVERAGE_BITRATE_WINDOW_MS";
 
+    /**
+     * The name of the property which controls the value of {@link
+     * #PACING_ENABLED}.
+     */
+    public static final String PACING_ENABLED_PNAME
+        = RTPConnectorOutputStream.class.getName() + ".PACING_ENABLED";
+
+    /**
+     * The name of the property which specifies the value of {@link
+     * #PACING_FACTOR}.
+     */
+    public static final String PACING_FACTOR_PNAME
+        = RTPConnectorOutputStream.class.getName() + ".PACING_FACTOR";
+
+    /**
+     * The name of the property which specifies the value of {@link
+     * #PACING_BURST_NANOS} in milliseconds.
+     */
+    public static final String PACING_BURST_MS_PNAME
+        = RTPConnectorOutputStream.class.getName() + ".PACING_BURST_MS";
+
+    /**
+     * The name of the property which specifies the value of {@link
+     * #PADDING_WINDOW_NANOS} in milliseconds.
+     */
+    public static final String PADDING_WINDOW_MS_PNAME
+        = RTPConnectorOutputStream.class.getName() + ".PADDING_WINDOW_MS";
+
     static
     {
         ConfigurationService cfg = LibJitsi.getConfigurationService();
 
+        PACING_ENABLED
+            = ConfigUtils.getBoolean(cfg, PACING_ENABLED_PNAME, false);
+
+        double pacingFactor = 2.5;
+        String pacingFactorStr
+            = ConfigUtils.getString(cfg, PACING_FACTOR_PNAME, null);
+
+        if (pacingFactorStr != null)
+        {
+            try
+            {
+                pacingFactor = Double.parseDouble(pacingFactorStr);
+            }
+            catch (NumberFormatException nfe)
+            {
+                logger.warn("Invalid " + PACING_FACTOR_PNAME + ": "
+                                + pacingFactorStr);
+            }
+        }
+        PACING_FACTOR = pacingFactor;
+
+        PACING_BURST_NANOS
+            = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(
+                            1,
+                            ConfigUtils.getInt(
+                                    cfg, PACING_BURST_MS_PNAME, 10)));
+
+        PADDING_WINDOW_NANOS
+            = TimeUnit.MILLISECONDS.toNanos(
+                    ConfigUtils.getInt(cfg, PADDING_WINDOW_MS_PNAME, 500));
+
         // Set USE_SEND_THREAD
         USE_SEND_THREAD
             = ConfigUtils.getBoolean(cfg, USE_SEND_THREAD_PNAME, true);
@@ -151,7 +237,8 @@
                          + "Send thread: " + USE_SEND_THREAD
                          + ". Pool capacity: " + POOL_CAPACITY
                          + ". Queue capacity: " + PACKET_QUEUE_CAPACITY
-                         + ". Avg bitrate window: " + AVERAGE_BITRATE_WINDOW_MS);
+                         + ". Avg bitrate window: " + AVERAGE_BITRATE_WINDOW_MS
+                         + ". Pacing: " + PACING_ENABLED);
 
         }
     }
@@ -245,6 +332,12 @@ static boolean logPacket(long numOfPacket)
      */
     private boolean closed = false;
 
+    /**
+     * The {@link PacketPriority} of the packets written into this instance
+     * without an explicit priority.
+     */
+    private volatile PacketPriority packetPriority = PacketPriority.VIDEO;
+
     /**
      * The {@code RateStatistics} instance used to calculate the sending bitrate
      * of this output stream.
@@ -550,6 +643,51 @@ public boolean setMaxPacketsPerMillis(int maxPackets, long perMillis)
         return queue != null;
     }
 
+    /**
+     * Sets the bitrate which the packets of this {@code OutputDataStream} are
+     * to be paced at (e.g. the latest bandwidth estimation of the associated
+     * stream). The pacing rate is {@link #PACING_FACTOR} times the target
+     * bitrate. Has no effect unless pacing is enabled and this instance uses
+     * a send queue.
+     *
+     * @param bitrate the target bitrate in bits per second. A value less than
+     * {@code 1} disables pacing.
+     */
+    public void setTargetBitrate(long bitrate)
+    {
+        if (PACING_ENABLED && queue != null)
+        {
+            queue.pacer.setBitrate(
+                    bitrate < 1 ? bitrate : (long) (bitrate * PACING_FACTOR));
+        }
+    }
+
+    /**
+     * Gets and resets the number of bytes which the pacer of this
+     * {@code OutputDataStream} could have sent at its current rate but did not
+     * because it had nothing to send, i.e. the budget which may be filled with
+     * padding in order to probe for more bandwidth.
+     *
+     * @return the number of bytes of padding which may be sent or {@code 0}
+     * if pacing is disabled.
+     */
+    public int takePaddingBudget()
+    {
+        return queue == null ? 0 : queue.pacer.takePaddingBudget();
+    }
+
+    /**
+     * Sets the {@link PacketPriority} of the packets written into this
+     * {@code OutputDataStream} without an explicit priority (e.g. through
+     * {@link #write(byte[], int, int)}).
+     *
+     * @param packetPriority the {@code PacketPriority} to set.
+     */
+    public void setPacketPriority(PacketPriority packetPriority)
+    {
+        this.packetPriority = Objects.requireNonNull(packetPriority);
+    }
+
     /**
      * Changes current thread priority.
      * @param priority the new priority.
@@ -637,6 +775,31 @@ private int syncWrite(byte[] buf, int off, int len, Object context)
      * {@code OutputDataStream}
      */
     protected int write(byte[] buf, int off, int len, Object context)
+    {
+        return write(buf, off, len, context, packetPriority);
+    }
+
+    /**
+     * Writes a packet into this {@code OutputDataStream} with a specific
+     * {@link PacketPriority}, which determines the order in which the pacer
+     * sends the queued packets.
+     *
+     * @param buf the {@code byte[]} to write into this {@code OutputDataStream}
+     * @param off the offset in {@code buf} at which the {@code byte}s to be
+     * written into this {@code OutputDataStream} start
+     * @param len the number of {@code byte}s in {@code buf} starting at
+     * {@code off} to be written into this {@code OutputDataStream}
+     * @param context the {@code Object} to provide to invoked overridable
+     * methods such as {@link #packetize(byte[],int,int,Object)}
+     * @param priority the {@code PacketPriority} of the packet.
+     * @return the number of {@code byte}s read from {@code buf} starting at
+     * {@code off} and not exceeding {@code len} and written into this
+     * {@code OutputDataStream}
+     */
+    public int write(
+            byte[] buf, int off, int len,
+            Object context,
+            PacketPriority priority)
     {
         if (enabled)
         {
@@ -649,7 +812,7 @@ protected int write(byte[] buf, int off, int len, Object context)
 
             if (queue != null)
             {
-                queue.write(buf, off, len, context);
+                queue.write(buf, off, len, context, priority);
             }
             else
             {
@@ -660,6 +823,42 @@ protected int write(byte[] buf, int off, int len, Object context)
         return len;
     }
 
+    /**
+     * Writes the packet data of a specific {@link SharedPacketBuffer} into this
+     * {@code OutputDataStream} without copying it, if possible. If this
+     * instance uses a send queue, it holds a reference to {@code buffer} until
+     * the packet has been packetized (which is when the data is copied into
+     * the {@link RawPacket} to be transformed and sent). The caller keeps its
+     * own reference and remains responsible for releasing it.
+     *
+     * @param buffer the {@code SharedPacketBuffer} to write into this
+     * {@code OutputDataStream}
+     * @return the number of {@code byte}s written into this
+     * {@code OutputDataStream}
+     */
+    public int write(SharedPacketBuffer buffer)
+    {
+        int len = buffer.getLength();
+
+        if (enabled)
+        {
+            // See write(byte[], int, int, Object, PacketPriority).
+            if (logger.isDebugEnabled() && targets.isEmpty())
+                logger.debug("Write called without targets!", new Throwable());
+
+            if (queue != null)
+            {
+                queue.write(buffer, packetPriority);
+            }
+            else
+            {
+                syncWrite(buffer.getData(), 0, len, null);
+            }
+        }
+
+        return len;
+    }
+
     /**
      * Sends an array of {@link RawPacket}s to this
      * {@link RTPConnectorOutputStream}'s targets.
@@ -728,12 +927,32 @@ public long getOutputBitrate(long now)
     private class Queue
     {
         /**
-         * The {@link java.util.Queue} which holds {@link Buffer}s to be
-         * processed by {@link #sendThread}.
+         * The maximum number of {@link Buffer}s sent by a single invocation
+         * of {@link #drain()} so that a busy stream does not monopolize the
+         * shared I/O thread which it executes on.
+         */
+        private static final int MAX_BUFFERS_PER_DRAIN = 64;
+
+        /**
+         * The {@link java.util.Queue} which hands the {@link Buffer}s written
+         * into this {@link Queue} over to the sending thread (i.e.
+         * {@link #sendThread} or {@link #worker}).
          */
         final ArrayBlockingQueue<Buffer> queue
             = new ArrayBlockingQueue<>(PACKET_QUEUE_CAPACITY);
 
+        /**
+         * The {@link Pacer} which orders the {@link Buffer}s taken from
+         * {@link #queue} by priority and releases them at the pacing rate.
+         * Its queues are accessed only by the sending thread.
+         */
+        final Pacer<Buffer> pacer
+            = new Pacer<>(
+                    PACKET_QUEUE_CAPACITY,
+                    buffer -> buffer.len,
+                    PACING_BURST_NANOS,
+                    PADDING_WINDOW_NANOS);
+
         /**
          * A pool of {@link
          * org.jitsi.impl.neomedia.RTPConnectorOutputStream.Queue.Buffer}
@@ -770,10 +989,40 @@ public long getOutputBitrate(long now)
         /**
          * The {@link Thread} which is to read {@link Buffer}s from this
          * {@link Queue} and send them to this {@link
-         * RTPConnectorOutputStream}'s targets.
+         * RTPConnectorOutputStream}'s targets. {@code null} if {@link
+         * #worker} is used instead.
          */
         final Thread sendThread;
 
+        /**
+         * The I/O thread of the shared {@link RTPConnectorIOEngine} which
+         * sends the {@link Buffer}s of this {@link Queue} if the engine is
+         * enabled. {@code null} if {@link #sendThread} is used instead.
+         */
+        final RTPConnectorIOEngine.Worker worker;
+
+        /**
+         * Whether an invocation of {@link #drain()} has been submitted to
+         * {@link #worker} and has not completed yet. Guarantees that the
+         * {@link Buffer}s of this {@link Queue} are sent in order.
+         */
+        final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+        /**
+         * The identifier of the pacing timer which {@link #drain()} has
+         * scheduled on {@link #worker} and which is to resume it, or {@code 0}
+         * if there is no such timer. Cleared by whoever resumes {@link
+         * #drain()} first: the timer or {@link #add(Buffer)} of an audio
+         * {@link Buffer}, which must not wait for the pacing of video.
+         */
+        final AtomicLong pacingTimer = new AtomicLong();
+
+        /**
+         * The identifier of the last pacing timer scheduled by {@link
+         * #drain()}. Accessed by {@link #worker} only.
+         */
+        long lastPacingTimer = 0;
+
         /**
          * The instance optionally used to gather and print statistics about
          * this queue.
@@ -781,7 +1030,8 @@ public long getOutputBitrate(long now)
         QueueStatistics queueStats = null;
 
         /**
-         * Initializes a new {@link Queue} instance and starts its send thread.
+         * Initializes a new {@link Queue} instance and starts its send thread
+         * unless the shared {@link RTPConnectorIOEngine} is enabled.
          */
         private Queue()
         {
@@ -790,6 +1040,16 @@ private Queue()
                 queueStats = new QueueStatistics();
             }
 
+            RTPConnectorIOEngine ioEngine = RTPConnectorIOEngine.getInstance();
+
+            if (ioEngine != null)
+            {
+                worker = ioEngine.nextWorker();
+                sendThread = null;
+                return;
+            }
+
+            worker = null;
             sendThread
                 = new Thread()
             {
@@ -816,7 +1076,10 @@ public void run()
          * @param len
          * @param context
          */
-        private void write(byte[] buf, int off, int len, Object context)
+        private void write(
+                byte[] buf, int off, int len,
+                Object context,
+                PacketPriority priority)
         {
             if (closed)
                 return;
@@ -825,7 +1088,44 @@ private void write(byte[] buf, int off, int len, Object context)
             System.arraycopy(buf, off, buffer.buf, 0, len);
             buffer.len = len;
             buffer.context = context;
+            buffer.priority = priority;
 
+            add(buffer);
+        }
+
+        /**
+         * Adds a reference to the given {@link SharedPacketBuffer} to this
+         * queue. The data is copied only when it is packetized.
+         *
+         * @param sharedBuffer the {@link SharedPacketBuffer} to add.
+         * @param priority the {@link PacketPriority} of the packet.
+         */
+        private void write(
+                SharedPacketBuffer sharedBuffer,
+                PacketPriority priority)
+        {
+            if (closed)
+                return;
+
+            Buffer buffer = pool.poll();
+            if (buffer == null)
+                buffer = new Buffer();
+            buffer.shared = sharedBuffer.retain();
+            buffer.len = sharedBuffer.getLength();
+            buffer.context = null;
+            buffer.priority = priority;
+
+            add(buffer);
+        }
+
+        /**
+         * Adds a {@link Buffer} to {@link #queue}, dropping the one at the
+         * head of the queue if it is full.
+         *
+         * @param buffer the {@link Buffer} to add.
+         */
+        private void add(Buffer buffer)
+        {
             long now = System.currentTimeMillis();
             if (queue.size() >= PACKET_QUEUE_CAPACITY)
             {
@@ -833,27 +1133,322 @@ private void write(byte[] buf, int off, int len, Object context)
                 Buffer b = queue.poll();
                 if (b != null)
                 {
-                    if (queueStats != null)
+                    drop(b, now);
+                }
+            }
+
+            if (queue.offer(buffer))
+            {
+                if (queueStats != null)
+                {
+                    queueStats.add(now);
+                }
+                if (worker != null)
+                {
+                    if (buffer.priority == PacketPriority.AUDIO)
                     {
-                        queueStats.remove(now);
+                        resumeDrain();
                     }
-                    pool.offer(b);
-                    numDroppedPackets++;
-                    if (logDroppedPacket(numDroppedPackets))
+                    scheduleDrain();
+                }
+            }
+            else
+            {
+                recycle(buffer);
+            }
+        }
+
+        /**
+         * Drops a {@link Buffer} which will not be sent because a queue is
+         * full.
+         *
+         * @param buffer the {@link Buffer} to drop.
+         * @param now the current time in milliseconds.
+         */
+        private void drop(Buffer buffer, long now)
+        {
+            if (queueStats != null)
+            {
+                queueStats.remove(now);
+            }
+            recycle(buffer);
+            numDroppedPackets++;
+            if (logDroppedPacket(numDroppedPackets))
+            {
+                logger.warn(
+                        "Packets dropped (hashCode=" + hashCode() + "): "
+                                + numDroppedPackets);
+            }
+        }
+
+        /**
+         * Moves the {@link Buffer}s from {@link #queue} to {@link #pacer}.
+         * Invoked by the sending thread only.
+         */
+        private void transfer()
+        {
+            Buffer buffer;
+
+            while ((buffer = queue.poll()) != null)
+            {
+                offer(buffer);
+            }
+        }
+
+        /**
+         * Adds a {@link Buffer} to {@link #pacer}, dropping a {@link Buffer}
+         * of lower priority if it is full. Invoked by the sending thread only.
+         *
+         * @param buffer the {@link Buffer} to add.
+         */
+        private void offer(Buffer buffer)
+        {
+            Buffer dropped = pacer.offer(buffer, buffer.priority);
+
+            if (dropped != null)
+            {
+                drop(dropped, System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Packetizes and sends a {@link Buffer} and recycles it.
+         *
+         * @param buffer the {@link Buffer} to send.
+         */
+        private void send(Buffer buffer)
+        {
+            if (queueStats != null)
+            {
+                queueStats.remove(System.currentTimeMillis());
+            }
+
+            RawPacket[] pkts;
+            try
+            {
+                pkts = packetize(buffer);
+            }
+            catch (Exception e)
+            {
+                // The sending thread must not die because of a failure in the
+                // conversion to RawPacket[] or any of the transformations
+                // (because of e.g. parsing errors).
+                logger.error("Failed to handle an outgoing packet: ", e);
+                return;
+            }
+            finally
+            {
+                recycle(buffer);
+            }
+
+            try
+            {
+                RTPConnectorOutputStream.this.write(pkts);
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to send a packet: ", e);
+            }
+
+            buffersProcessedInCurrentInterval++;
+        }
+
+        /**
+         * Packetizes the data of a specific {@link Buffer} through {@link
+         * RTPConnectorOutputStream#packetize(byte[], int, int, Object)}.
+         *
+         * @param buffer the {@link Buffer} to packetize.
+         * @return the {@link RawPacket}s to send.
+         */
+        private RawPacket[] packetize(Buffer buffer)
+        {
+            byte[] buf
+                = buffer.shared == null ? buffer.buf : buffer.shared.getData();
+
+            return
+                RTPConnectorOutputStream.this.packetize(
+                        buf, 0, buffer.len,
+                        buffer.context);
+        }
+
+        /**
+         * Returns a {@link Buffer} to {@link #pool}, releasing the
+         * {@link SharedPacketBuffer} which it references, if any.
+         *
+         * @param buffer the {@link Buffer} to recycle.
+         */
+        private void recycle(Buffer buffer)
+        {
+            if (buffer.shared != null)
+            {
+                buffer.shared.release();
+                buffer.shared = null;
+            }
+            buffer.context = null;
+            pool.offer(buffer);
+        }
+
+        /**
+         * Removes all {@link Buffer}s from {@link #queue} and {@link #pacer}.
+         * Invoked by the sending thread only.
+         */
+        private void clear()
+        {
+            Buffer buffer;
+
+            while ((buffer = queue.poll()) != null)
+            {
+                recycle(buffer);
+            }
+            pacer.clear(this::recycle);
+        }
+
+        /**
+         * Submits an invocation of {@link #drain()} to {@link #worker} unless
+         * one is already pending.
+         */
+        private void scheduleDrain()
+        {
+            if (drainScheduled.compareAndSet(false, true))
+            {
+                worker.execute(this::drain);
+            }
+        }
+
+        /**
+         * Cancels the pacing timer of {@link #drain()}, if any, and resumes
+         * {@link #drain()} immediately instead. Invoked when a {@link Buffer}
+         * which the {@link #pacer} does not delay (i.e. audio) is added.
+         */
+        private void resumeDrain()
+        {
+            long timer = pacingTimer.get();
+
+            if (timer != 0 && pacingTimer.compareAndSet(timer, 0))
+            {
+                worker.execute(this::drain);
+            }
+        }
+
+        /**
+         * Resumes {@link #drain()} when a specific pacing timer expires unless
+         * it has been resumed already.
+         *
+         * @param timer the identifier of the expired pacing timer.
+         */
+        private void pacingTimerExpired(long timer)
+        {
+            if (pacingTimer.compareAndSet(timer, 0))
+            {
+                drain();
+            }
+        }
+
+        /**
+         * Sends the {@link Buffer}s of this {@link Queue} on {@link #worker}
+         * (i.e. the counterpart of {@link #runInSendThread()} when the shared
+         * {@link RTPConnectorIOEngine} is enabled). Never blocks: when the
+         * pacing policy does not allow more packets to be sent yet, schedules
+         * itself on the timer wheel of {@link #worker} instead.
+         */
+        private void drain()
+        {
+            int buffersSent = 0;
+
+            while (!closed && buffersSent < MAX_BUFFERS_PER_DRAIN)
+            {
+                transfer();
+
+                long delayNanos = getPacingDelayNanos(System.nanoTime());
+
+                if (delayNanos < 0)
+                {
+                    break;
+                }
+                if (delayNanos > 0)
+                {
+                    // Keep drainScheduled set until we resume.
+                    long timer = ++lastPacingTimer;
+
+                    pacingTimer.set(timer);
+                    worker.schedule(
+                            () -> pacingTimerExpired(timer),
+                            delayNanos);
+
+                    // An audio Buffer added after transfer() but before the
+                    // timer was armed has not seen the timer. Resume now
+                    // unless add() has done it already.
+                    if (queue.isEmpty()
+                            || !pacingTimer.compareAndSet(timer, 0))
                     {
-                        logger.warn(
-                                "Packets dropped (hashCode=" + hashCode() + "): "
-                                        + numDroppedPackets);
+                        return;
                     }
+                    continue;
+                }
+
+                Buffer buffer = pacer.poll(System.nanoTime());
+
+                if (buffer != null)
+                {
+                    send(buffer);
+                    buffersSent++;
                 }
             }
 
-            if (queue.offer(buffer) && queueStats != null)
+            if (closed)
+            {
+                clear();
+            }
+            else if (buffersSent >= MAX_BUFFERS_PER_DRAIN)
+            {
+                // Yield to the other streams of the I/O thread.
+                worker.execute(this::drain);
+                return;
+            }
+
+            drainScheduled.set(false);
+            // A Buffer may have been added after the last poll but before
+            // drainScheduled was cleared.
+            if (!closed && !queue.isEmpty())
             {
-                queueStats.add(now);
+                scheduleDrain();
             }
         }
 
+        /**
+         * Determines how long the sending thread has to wait before the
+         * pacing policy (i.e. {@link #setMaxPacketsPerMillis(int, long)} and
+         * {@link #pacer}) allows it to send another {@link Buffer}.
+         *
+         * @param nowNanos the current time (as returned by
+         * {@link System#nanoTime()}).
+         * @return the number of nanoseconds to wait, {@code 0} if a
+         * {@link Buffer} may be sent immediately, or {@code -1} if there is
+         * no {@link Buffer} to send.
+         */
+        private long getPacingDelayNanos(long nowNanos)
+        {
+            if (pacer.isEmpty())
+            {
+                return -1;
+            }
+            if (perNanos > 0 && maxBuffers > 0)
+            {
+                long elapsedNanos = nowNanos - intervalStartTimeNanos;
+
+                if (elapsedNanos >= perNanos)
+                {
+                    intervalStartTimeNanos = nowNanos;
+                    buffersProcessedInCurrentInterval = 0;
+                }
+                else if (buffersProcessedInCurrentInterval >= maxBuffers)
+                {
+                    return perNanos - elapsedNanos;
+                }
+            }
+            return pacer.getDelayNanos(nowNanos);
+        }
+
         /**
          * Reads {@link Buffer}s from {@link #queue}, "packetizes" them through
          * {@link RTPConnectorOutputStream#packetize(byte[], int, int, Object)}
@@ -866,7 +1461,9 @@ private void write(byte[] buf, int off, int len, Object context)
          * different than the number of {@link RawPacket}s sent. This is done
          * in order to keep the implementation simpler, and because in the
          * majority of the cases (and in all current cases where pacing is
-         * enabled) the numbers do match.
+         * enabled) the numbers do match. The {@link #pacer}, on the other
+         * hand, paces on the basis of the number of bytes in the
+         * {@link Buffer}s (i.e. before any transformations).
          */
         private void runInSendThread()
         {
@@ -883,91 +1480,48 @@ private void runInSendThread()
             {
                 while (!closed)
                 {
-                    Buffer buffer;
-                    try
-                    {
-                        buffer = queue.poll(500, TimeUnit.MILLISECONDS);
-                    }
-                    catch (InterruptedException iex)
-                    {
-                        continue;
-                    }
-
-                    // The current thread has potentially waited.
-                    if (closed)
-                    {
-                        break;
-                    }
-
-                    if (buffer == null)
-                    {
-                        continue;
-                    }
-
-                    if (queueStats != null)
-                    {
-                        queueStats.remove(System.currentTimeMillis());
-                    }
+                    transfer();
 
-                    RawPacket[] pkts;
-                    try
-                    {
-                        // We will sooner or later process the Buffer. Since this
-
-                        // may take a non-negligible amount of time, do it
-                        // before
-                        // taking pacing into account.
-                        pkts
-                            = packetize(
-                                buffer.buf, 0, buffer.len,
-                                buffer.context);
-                    }
-                    catch (Exception e)
-                    {
-                        // The sending thread must not die because of a failure
-                        // in the conversion to RawPacket[] or any of the
-                        // transformations (because of e.g. parsing errors).
-                        logger.error("Failed to handle an outgoing packet: ", e);
-                        continue;
-                    }
-                    finally
-                    {
-                        pool.offer(buffer);
-                    }
+                    long delayNanos = getPacingDelayNanos(System.nanoTime());
 
-                    if (perNanos > 0 && maxBuffers > 0)
+                    if (delayNanos != 0)
                     {
-                        long time = System.nanoTime();
-                        long nanosRemainingTime = time - intervalStartTimeNanos;
-
-                        if (nanosRemainingTime >= perNanos)
+                        // Wait for a new Buffer or for the pacing policy to
+                        // allow the next one to be sent, whichever comes
+                        // first (a new Buffer may have a higher priority).
+                        Buffer buffer;
+                        try
                         {
-                            intervalStartTimeNanos = time;
-                            buffersProcessedInCurrentInterval = 0;
+                            buffer
+                                = delayNanos < 0
+                                    ? queue.poll(500, TimeUnit.MILLISECONDS)
+                                    : queue.poll(
+                                            delayNanos,
+                                            TimeUnit.NANOSECONDS);
                         }
-                        else if (buffersProcessedInCurrentInterval >= maxBuffers)
+                        catch (InterruptedException iex)
                         {
-                            LockSupport.parkNanos(nanosRemainingTime);
+                            continue;
                         }
-                    }
 
-                    try
-                    {
-                        RTPConnectorOutputStream.this.write(pkts);
-                    }
-                    catch (Exception e)
-                    {
-                        logger.error("Failed to send a packet: ", e);
+                        if (buffer != null)
+                        {
+                            offer(buffer);
+                        }
                         continue;
                     }
 
-                    buffersProcessedInCurrentInterval++;
+                    Buffer buffer = pacer.poll(System.nanoTime());
 
+                    if (buffer != null)
+                    {
+                        send(buffer);
+                    }
                 }
             }
             finally
             {
-                queue.clear();
+                clear();
             }
         }
 
@@ -1007,8 +1561,17 @@ private Buffer getBuffer(int len)
         private class Buffer
         {
             byte[] buf;
+            /**
+             * The {@link SharedPacketBuffer} which holds the data of this
+             * {@link Buffer} instead of {@link #buf}, if any.
+             */
+            SharedPacketBuffer shared;
             int len;
             Object context;
+            /**
+             * The {@link PacketPriority} of the packet in this {@link Buffer}.
+             */
+            PacketPriority priority;
             private Buffer() {}
         }
     }
@@ -17,6 +17,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.packetlogging.*;
@@ -48,6 +49,18 @@ public RTPConnectorUDPInputStream(DatagramSocket socket)
         super(socket);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Returns the <tt>DatagramChannel</tt> of the UDP socket of this instance
+     * if the shared {@link RTPConnectorIOEngine} is enabled.
+     */
+    @Override
+    protected DatagramChannel getDatagramChannel()
+    {
+        return RTPConnectorIOEngine.getChannel(socket);
+    }
+
     /**
      * Log the packet.
      *
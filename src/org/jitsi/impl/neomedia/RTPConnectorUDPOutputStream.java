@@ -17,6 +17,8 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
@@ -34,6 +36,14 @@
      */
     private final DatagramSocket socket;
 
+    /**
+     * The <tt>DatagramChannel</tt> of {@link #socket} if the shared
+     * {@link RTPConnectorIOEngine} is enabled. Once the channel has been
+     * registered with the engine it is in non-blocking mode and packets have
+     * to be sent through it rather than through {@link #socket}.
+     */
+    private final DatagramChannel channel;
+
     /**
      * Initializes a new <tt>RTPConnectorUDPOutputStream</tt>.
      *
@@ -42,6 +52,7 @@
     public RTPConnectorUDPOutputStream(DatagramSocket socket)
     {
         this.socket = socket;
+        this.channel = RTPConnectorIOEngine.getChannel(socket);
     }
 
     /**
@@ -60,6 +71,20 @@ public RTPConnectorUDPOutputStream(DatagramSocket socket)
     protected void sendToTarget(RawPacket packet, InetSocketAddress target)
         throws IOException
     {
+        if (channel != null && !channel.isBlocking())
+        {
+            // A full socket send buffer makes a non-blocking send return 0
+            // i.e. the packet is dropped, which is what would happen to it
+            // further down the network path anyway.
+            channel.send(
+                    ByteBuffer.wrap(
+                            packet.getBuffer(),
+                            packet.getOffset(),
+                            packet.getLength()),
+                    target);
+            return;
+        }
+
         socket.send(
                 new DatagramPacket(
                         packet.getBuffer(),
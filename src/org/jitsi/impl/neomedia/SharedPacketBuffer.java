@@ -0,0 +1,155 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A pooled, reference-counted packet buffer which allows the same packet data
+ * to be handed to multiple {@link RTPConnectorOutputStream}s (e.g. by the RTP
+ * translator when it fans a packet out to the endpoints of a conference)
+ * without copying it for each of them.
+ *
+ * The data of a <tt>SharedPacketBuffer</tt> is to be treated as read-only once
+ * it has been shared, i.e. once {@link #retain()} has been called on it. A
+ * holder which needs to modify the data has to make its own copy.
+ */
+public class SharedPacketBuffer
+{
+    /**
+     * The pool of <tt>SharedPacketBuffer</tt>s which are not referenced.
+     */
+    private static final ArrayBlockingQueue<SharedPacketBuffer> pool
+        = new ArrayBlockingQueue<>(RTPConnectorOutputStream.POOL_CAPACITY);
+
+    /**
+     * Gets a <tt>SharedPacketBuffer</tt> (from the pool, if possible) which
+     * contains a copy of specific packet data. The returned instance has a
+     * reference count of <tt>1</tt> and the caller is responsible for
+     * releasing it.
+     *
+     * @param buf the packet data to copy.
+     * @param off the offset in <tt>buf</tt> of the packet data.
+     * @param len the length of the packet data.
+     * @return a <tt>SharedPacketBuffer</tt> which contains a copy of the
+     * specified packet data.
+     */
+    public static SharedPacketBuffer acquire(byte[] buf, int off, int len)
+    {
+        SharedPacketBuffer buffer = pool.poll();
+
+        if (buffer == null)
+            buffer = new SharedPacketBuffer();
+        if (buffer.data == null || buffer.data.length < len)
+            buffer.data = new byte[len];
+
+        System.arraycopy(buf, off, buffer.data, 0, len);
+        buffer.length = len;
+        buffer.refCount.set(1);
+        return buffer;
+    }
+
+    /**
+     * The packet data. Starts at offset <tt>0</tt>.
+     */
+    private byte[] data;
+
+    /**
+     * The length of the packet data in {@link #data}.
+     */
+    private int length;
+
+    /**
+     * The number of holders of this instance.
+     */
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    /**
+     * Prevents instances from being created other than by
+     * {@link #acquire(byte[], int, int)}.
+     */
+    private SharedPacketBuffer()
+    {
+    }
+
+    /**
+     * Gets the packet data of this instance. It starts at offset <tt>0</tt>.
+     *
+     * @return the packet data of this instance.
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Gets the length of the packet data of this instance.
+     *
+     * @return the length of the packet data of this instance.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Sets the length of the packet data of this instance. Allowed only while
+     * the instance has not been shared.
+     *
+     * @param length the new length of the packet data.
+     */
+    public void setLength(int length)
+    {
+        if (length < 0 || length > data.length)
+            throw new IllegalArgumentException("length " + length);
+        this.length = length;
+    }
+
+    /**
+     * Adds a holder of this instance.
+     *
+     * @return this instance.
+     */
+    public SharedPacketBuffer retain()
+    {
+        if (refCount.getAndIncrement() < 1)
+        {
+            refCount.decrementAndGet();
+            throw new IllegalStateException("Released buffer retained.");
+        }
+        return this;
+    }
+
+    /**
+     * Removes a holder of this instance. When the last holder releases it,
+     * the instance is returned to the pool and must no longer be used.
+     */
+    public void release()
+    {
+        int newRefCount = refCount.decrementAndGet();
+
+        if (newRefCount == 0)
+        {
+            pool.offer(this);
+        }
+        else if (newRefCount < 0)
+        {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Buffer released too many times.");
+        }
+    }
+}
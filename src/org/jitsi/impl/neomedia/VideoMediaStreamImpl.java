@@ -1410,6 +1410,16 @@ public BandwidthEstimator getOrCreateBandwidthEstimator()
             recurringRunnableExecutor
                 .registerRecurringRunnable(bandwidthEstimator);
 
+            // Pace the packets sent by this stream at (a multiple of) the
+            // estimated bandwidth.
+            bandwidthEstimator.addListener(newValueBps -> {
+                RTPConnectorOutputStream dataOutputStream
+                    = getDataOutputStream();
+
+                if (dataOutputStream != null)
+                    dataOutputStream.setTargetBitrate(newValueBps);
+            });
+
             if (logger.isDebugEnabled())
             {
                 logger.debug(
@@ -64,6 +64,50 @@ public static byte calculateAudioLevel(
 
         rms = (sampleCount == 0) ? 0 : Math.sqrt(rms / sampleCount);
 
+        return toAudioLevel(rms);
+    }
+
+    /**
+     * Calculates the audio level of a signal with specific 16-bit
+     * <tt>samples</tt>.
+     *
+     * @param samples the samples of the signal to calculate the audio level of
+     * @param offset the offset in <tt>samples</tt> in which the samples start
+     * @param length the number of samples of the signal in <tt>samples</tt>
+     * starting at <tt>offset</tt>
+     * @return the audio level of the specified signal
+     */
+    public static byte calculateAudioLevel(
+            short[] samples,
+            int offset,
+            int length)
+    {
+        // The sum of the squares cannot overflow a long for any int length.
+        long energy = 0;
+
+        for (int end = offset + length; offset < end; offset++)
+        {
+            int sample = samples[offset];
+
+            energy += sample * sample;
+        }
+
+        double rms
+            = (length == 0)
+                ? 0
+                : Math.sqrt((double) energy / length) / Short.MAX_VALUE;
+
+        return toAudioLevel(rms);
+    }
+
+    /**
+     * Converts a root mean square (RMS) amplitude to an audio level.
+     *
+     * @param rms the RMS amplitude relative to the maximum amplitude
+     * @return the audio level (in -dBov) of the specified RMS amplitude
+     */
+    private static byte toAudioLevel(double rms)
+    {
         double db;
 
         if (rms > 0)
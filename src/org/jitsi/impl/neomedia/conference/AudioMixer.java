@@ -77,6 +77,16 @@
      */
     private static final Logger logger = Logger.getLogger(AudioMixer.class);
 
+    /**
+     * The name of the property which specifies the maximum number of input
+     * streams (i.e. the loudest speakers) to be mixed at a time. The other
+     * input streams are still read but their audio samples are not mixed. A
+     * value which is not positive (the default) means that all input streams
+     * are mixed.
+     */
+    public static final String MAX_SPEAKERS_PNAME
+        = AudioMixer.class.getName() + ".MAX_SPEAKERS";
+
     /**
      * Gets the <tt>Format</tt> in which a specific <tt>DataSource</tt>
      * provides stream data.
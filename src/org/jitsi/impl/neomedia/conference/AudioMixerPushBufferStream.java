@@ -24,9 +24,12 @@
 import javax.media.format.*;
 import javax.media.protocol.*;
 
+import org.jitsi.impl.neomedia.audiolevel.*;
 import org.jitsi.impl.neomedia.control.*;
 import org.jitsi.impl.neomedia.protocol.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.util.*;
+import org.jitsi.utils.*;
 import org.jitsi.utils.logging.*;
 
 /**
@@ -52,6 +55,27 @@
     private static final Logger logger
         = Logger.getLogger(AudioMixerPushBufferStream.class);
 
+    /**
+     * The maximum number of input streams (i.e. the loudest speakers) to be
+     * mixed at a time or a non-positive value if all input streams are to be
+     * mixed.
+     *
+     * @see AudioMixer#MAX_SPEAKERS_PNAME
+     */
+    private static final int MAX_SPEAKERS
+        = ConfigUtils.getInt(
+                LibJitsi.getConfigurationService(),
+                AudioMixer.MAX_SPEAKERS_PNAME,
+                -1);
+
+    /**
+     * The number of dB by which an input stream which is not selected for
+     * mixing has to be louder than one which is in order to take its place.
+     * Keeps speakers with similar audio levels from being swapped in and out
+     * of the mix from frame to frame.
+     */
+    static final int SPEAKER_SELECTION_HYSTERESIS = 6;
+
     /**
      * The <tt>AudioMixer</tt> which created this
      * <tt>AudioMixerPushBufferStream</tt>.
@@ -107,6 +131,14 @@
      */
     private long outStreamsGeneration;
 
+    /**
+     * The indices of the input streams selected for mixing by
+     * {@link #selectLoudestSpeakers(InSampleDesc, int)} ordered from the
+     * loudest to the quietest. Cached in order to reduce allocations.
+     */
+    private final int[] selectedInStreamIndices
+        = new int[Math.max(MAX_SPEAKERS, 0)];
+
     /**
      * The <tt>BufferTransferHandler</tt> through which this instance gets
      * notifications from its input <tt>SourceStream</tt>s that new data is
@@ -481,6 +513,9 @@ public void read(Buffer buffer)
                             maxInSampleCount,
                             inSampleDesc));
 
+        if (MAX_SPEAKERS > 0)
+            selectLoudestSpeakers(inSampleDesc, maxInSampleCount);
+
         buffer.setData(inSampleDesc);
         buffer.setLength(maxInSampleCount);
 
@@ -899,18 +934,21 @@ void removeOutStream(AudioMixingPushBufferStream outStream)
     }
 
     /**
-     * Pushes a copy of a specific set of input audio samples to a specific
+     * Pushes a specific set of input audio samples to a specific
      * <tt>AudioMixingPushBufferStream</tt> for audio mixing. Audio samples read
      * from input <tt>DataSource</tt>s which the
      * <tt>AudioMixingPushBufferDataSource</tt> owner of the specified
      * <tt>AudioMixingPushBufferStream</tt> has specified to not be included in
-     * the output mix are not pushed to the
-     * <tt>AudioMixingPushBufferStream</tt>.
+     * the output mix are subtracted from the sum of all input audio samples
+     * (i.e. the mix is a mix-minus) so that the work per
+     * <tt>AudioMixingPushBufferStream</tt> does not depend on the number of
+     * input streams.
      *
      * @param outStream the <tt>AudioMixingPushBufferStream</tt> to push the
      * specified set of audio samples to
      * @param inSampleDesc the set of audio samples to be pushed to
-     * <tt>outStream</tt> for audio mixing
+     * <tt>outStream</tt> for audio mixing. Its sum is expected to have been
+     * computed already.
      * @param maxInSampleCount the maximum number of audio samples available
      * in <tt>inSamples</tt>
      */
@@ -922,8 +960,6 @@ private void setInSamples(
         short[][] inSamples = inSampleDesc.inSamples;
         InStreamDesc[] inStreams = inSampleDesc.inStreams;
 
-        inSamples = inSamples.clone();
-
         CaptureDevice captureDevice = audioMixer.captureDevice;
         AudioMixingPushBufferDataSource outDataSource
             = outStream.getDataSource();
@@ -933,56 +969,257 @@ private void setInSamples(
                 : false;
         boolean outDataSourceIsMute = outDataSource.isMute();
 
-        for (int i = 0, o = 0; i < inSamples.length; i++)
+        /*
+         * The input streams which are not to be heard in the mix of outStream
+         * are those of its own DataSource and, if it is muted or is sending
+         * DTMF, those of the capture device. The latter are replaced by the
+         * inband DTMF signal in the case of DTMF.
+         */
+        int[] outDataSourceInStreamIndices
+            = inSampleDesc.getOutDataSourceInStreamIndices(outDataSource);
+        int[] captureDeviceInStreamIndices
+            = (outDataSourceIsSendingDTMF || outDataSourceIsMute)
+                ? inSampleDesc.getCaptureDeviceInStreamIndices(
+                        (DataSource) captureDevice)
+                : null;
+        int excludedInSampleCount = 0;
+        short[][] excludedInSamples
+            = new short[
+                    outDataSourceInStreamIndices.length
+                        + ((captureDeviceInStreamIndices == null)
+                                ? 0
+                                : captureDeviceInStreamIndices.length)][];
+
+        for (int i : outDataSourceInStreamIndices)
         {
-            InStreamDesc inStreamDesc = inStreams[i];
-            DataSource inDataSource
-                = inStreamDesc.inDataSourceDesc.inDataSource;
+            if (inSamples[i] != null)
+                excludedInSamples[excludedInSampleCount++] = inSamples[i];
+        }
 
-            if (outDataSourceIsSendingDTMF && (inDataSource == captureDevice))
+        short[] toneSignal = null;
+
+        if (captureDeviceInStreamIndices != null)
+        {
+            for (int i : captureDeviceInStreamIndices)
             {
-                PushBufferStream inStream
-                    = (PushBufferStream) inStreamDesc.getInStream();
-                AudioFormat inStreamFormat = (AudioFormat) inStream.getFormat();
-                // Generate the inband DTMF signal.
-                short[] nextToneSignal
-                    = outDataSource.getNextToneSignal(
-                            inStreamFormat.getSampleRate(),
-                            inStreamFormat.getSampleSizeInBits());
-
-                inSamples[i] = nextToneSignal;
-                if (maxInSampleCount < nextToneSignal.length)
-                    maxInSampleCount = nextToneSignal.length;
+                // The input stream may have been excluded already.
+                if ((inSamples[i] != null)
+                        && !outDataSource.equals(
+                                inStreams[i].getOutDataSource()))
+                {
+                    excludedInSamples[excludedInSampleCount++] = inSamples[i];
+                }
+                if (outDataSourceIsSendingDTMF && (toneSignal == null))
+                {
+                    PushBufferStream inStream
+                        = (PushBufferStream) inStreams[i].getInStream();
+                    AudioFormat inStreamFormat
+                        = (AudioFormat) inStream.getFormat();
+
+                    // Generate the inband DTMF signal.
+                    toneSignal
+                        = outDataSource.getNextToneSignal(
+                                inStreamFormat.getSampleRate(),
+                                inStreamFormat.getSampleSizeInBits());
+                    if (maxInSampleCount < toneSignal.length)
+                        maxInSampleCount = toneSignal.length;
+                }
             }
-            else if (outDataSource.equals(inStreamDesc.getOutDataSource())
-                    || (outDataSourceIsMute && (inDataSource == captureDevice)))
+        }
+
+        int contributingInSampleCount
+            = inSampleDesc.getInSampleCount()
+                - excludedInSampleCount
+                + ((toneSignal == null) ? 0 : 1);
+
+        if (contributingInSampleCount > 1)
+        {
+            if (excludedInSampleCount != excludedInSamples.length)
             {
-                inSamples[i] = null;
+                excludedInSamples
+                    = Arrays.copyOf(excludedInSamples, excludedInSampleCount);
             }
-
+            outStream.setInSamples(
+                    inSampleDesc.getInSampleSum(),
+                    excludedInSamples,
+                    toneSignal,
+                    maxInSampleCount,
+                    inSampleDesc.getTimeStamp());
+        }
+        else
+        {
             /*
-             * Have the samples of the contributing streams at the head of the
-             * sample set (and the non-contributing at the tail) in order to
-             * optimize determining the number of contributing streams later on
-             * and, consequently, the mixing.
+             * There is at most one contributing input stream so there is
+             * nothing to mix and it is cheaper to find the input stream than
+             * to subtract from the sum. Since there are at most
+             * excludedInSampleCount + 1 input streams, the search is short.
              */
-            short[] inStreamSamples = inSamples[i];
+            short[] soleInSamples = toneSignal;
 
-            if (inStreamSamples != null)
+            if ((soleInSamples == null) && (contributingInSampleCount == 1))
             {
-                if (i != o)
+                for (short[] inStreamSamples : inSamples)
                 {
-                    inSamples[o] = inStreamSamples;
-                    inSamples[i] = null;
+                    if ((inStreamSamples != null)
+                            && !contains(
+                                    excludedInSamples,
+                                    excludedInSampleCount,
+                                    inStreamSamples))
+                    {
+                        soleInSamples = inStreamSamples;
+                        break;
+                    }
                 }
-                o++;
             }
+            outStream.setInSamples(
+                    null,
+                    null,
+                    soleInSamples,
+                    maxInSampleCount,
+                    inSampleDesc.getTimeStamp());
         }
+    }
 
-        outStream.setInSamples(
-                inSamples,
-                maxInSampleCount,
-                inSampleDesc.getTimeStamp());
+    /**
+     * Determines whether a specific set of audio samples is one of the first
+     * elements of a specific array of such sets.
+     *
+     * @param inSamples the array of sets of audio samples to search
+     * @param count the number of elements of <tt>inSamples</tt> to search
+     * @param inStreamSamples the set of audio samples to search for
+     * @return <tt>true</tt> if <tt>inStreamSamples</tt> is one of the first
+     * <tt>count</tt> elements of <tt>inSamples</tt>; otherwise,
+     * <tt>false</tt>
+     */
+    private static boolean contains(
+            short[][] inSamples,
+            int count,
+            short[] inStreamSamples)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (inSamples[i] == inStreamSamples)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Selects the {@link #MAX_SPEAKERS} loudest of the input streams which
+     * provided audio samples in a specific frame and drops the audio samples
+     * of the rest so that they are not mixed. The audio level of each input
+     * stream is calculated once per frame. An input stream which was selected
+     * in the previous frame is considered
+     * {@link #SPEAKER_SELECTION_HYSTERESIS} dB louder than it is.
+     *
+     * @param inSampleDesc the audio samples of the frame
+     * @param maxInSampleCount the maximum number of audio samples available
+     * in <tt>inSampleDesc</tt>
+     */
+    private void selectLoudestSpeakers(
+            InSampleDesc inSampleDesc,
+            int maxInSampleCount)
+    {
+        short[][] inSamples = inSampleDesc.inSamples;
+        InStreamDesc[] inStreams = inSampleDesc.inStreams;
+
+        for (int i = 0; i < inSamples.length; i++)
+        {
+            short[] inStreamSamples = inSamples[i];
+
+            inStreams[i].updateAudioLevel(
+                    (inStreamSamples == null)
+                        ? AudioLevelCalculator.MIN_AUDIO_LEVEL
+                        : AudioLevelCalculator.calculateAudioLevel(
+                                inStreamSamples,
+                                0,
+                                Math.min(
+                                        inStreamSamples.length,
+                                        maxInSampleCount)));
+        }
+
+        selectLoudestSpeakers(inSamples, inStreams, selectedInStreamIndices);
+
+        for (int i = 0; i < inSamples.length; i++)
+        {
+            if ((inSamples[i] != null) && !inStreams[i].isSpeakerSelected())
+            {
+                shortArrayCache.deallocateShortArray(inSamples[i]);
+                inSamples[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Marks as selected for mixing the (at most) <tt>selected.length</tt>
+     * loudest of the input streams which provided audio samples in a specific
+     * frame, judging by the audio levels of the input streams which have
+     * already been updated with the frame. An input stream which was
+     * selected in the previous frame is considered
+     * {@link #SPEAKER_SELECTION_HYSTERESIS} dB louder than it is.
+     *
+     * @param inSamples the audio samples of the frame, <tt>null</tt> for the
+     * input streams which did not provide any
+     * @param inStreams the input streams which provided <tt>inSamples</tt>
+     * @param selected the array into which the indices of the selected input
+     * streams are to be written ordered from the loudest to the quietest
+     * @return the number of selected input streams
+     */
+    static int selectLoudestSpeakers(
+            short[][] inSamples,
+            InStreamDesc[] inStreams,
+            int[] selected)
+    {
+        int selectedCount = 0;
+
+        for (int i = 0; i < inSamples.length; i++)
+        {
+            if (inSamples[i] == null)
+                continue;
+
+            // Insert i into selected which is ordered by score (the lower, the
+            // louder) and keep the selected.length with the lowest scores.
+            int score = getSpeakerScore(inStreams[i]);
+            int j = selectedCount;
+
+            while ((j > 0)
+                    && (score < getSpeakerScore(inStreams[selected[j - 1]])))
+            {
+                j--;
+            }
+            if (j < selected.length)
+            {
+                int length
+                    = Math.min(selectedCount, selected.length - 1) - j;
+
+                System.arraycopy(selected, j, selected, j + 1, length);
+                selected[j] = i;
+                if (selectedCount < selected.length)
+                    selectedCount++;
+            }
+        }
+
+        for (InStreamDesc inStreamDesc : inStreams)
+            inStreamDesc.setSpeakerSelected(false);
+        for (int j = 0; j < selectedCount; j++)
+            inStreams[selected[j]].setSpeakerSelected(true);
+        return selectedCount;
+    }
+
+    /**
+     * Gets the score of a specific input stream in the selection of the
+     * loudest speakers. The lower the score, the louder the speaker.
+     *
+     * @param inStreamDesc the input stream to get the score of
+     * @return the score of <tt>inStreamDesc</tt>
+     */
+    private static int getSpeakerScore(InStreamDesc inStreamDesc)
+    {
+        int score = inStreamDesc.getAudioLevel();
+
+        if (inStreamDesc.isSpeakerSelected())
+            score -= SPEAKER_SELECTION_HYSTERESIS;
+        return score;
     }
 
     /**
@@ -1187,6 +1424,12 @@ protected void transferData(Buffer buffer)
                 || (maxInSampleCount <= 0))
             return;
 
+        /*
+         * Sum the input samples up once for all output streams. Each output
+         * stream derives its mix from the sum.
+         */
+        inSampleDesc.sumInSamples(maxInSampleCount);
+
         AudioMixingPushBufferStream[] outStreams;
 
         synchronized (this.outStreams)
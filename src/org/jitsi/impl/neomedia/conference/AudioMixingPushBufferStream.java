@@ -45,32 +45,54 @@
         = Logger.getLogger(AudioMixingPushBufferStream.class);
 
     /**
-     * Gets the maximum possible value for an audio sample of a specific
-     * <tt>AudioFormat</tt>.
+     * The absolute value of a mixed audio sample above which
+     * {@link #limit(int)} starts to compress.
+     */
+    private static final int LIMITER_THRESHOLD = 3 * Short.MAX_VALUE / 4;
+
+    /**
+     * The range of absolute values of audio samples above
+     * {@link #LIMITER_THRESHOLD} into which {@link #limit(int)} compresses the
+     * excess of mixed audio samples over <tt>LIMITER_THRESHOLD</tt>.
+     */
+    private static final int LIMITER_HEADROOM
+        = Short.MAX_VALUE - LIMITER_THRESHOLD;
+
+    /**
+     * Limits a mixed (i.e. wide) audio sample to the range of 16-bit audio
+     * samples. Samples with absolute values up to {@link #LIMITER_THRESHOLD}
+     * are passed through and the excess of the rest is compressed smoothly
+     * into {@link #LIMITER_HEADROOM} so that loud mixes are softly clipped
+     * rather than wrapped around or hard clipped.
      *
-     * @param outFormat the <tt>AudioFormat</tt> of which to get the maximum
-     * possible value for an audio sample
-     * @return the maximum possible value for an audio sample of the specified
-     * <tt>AudioFormat</tt>
-     * @throws UnsupportedFormatException if the specified <tt>outFormat</tt>
-     * is not supported by the underlying implementation
+     * @param sample the mixed audio sample to limit
+     * @return the 16-bit audio sample which represents <tt>sample</tt>
      */
-    private static int getMaxOutSample(AudioFormat outFormat)
-        throws UnsupportedFormatException
+    static short limit(int sample)
     {
-        switch(outFormat.getSampleSizeInBits())
+        if (sample > LIMITER_THRESHOLD)
+        {
+            long excess = sample - LIMITER_THRESHOLD;
+
+            return
+                (short)
+                    (LIMITER_THRESHOLD
+                        + excess * LIMITER_HEADROOM
+                            / (excess + LIMITER_HEADROOM));
+        }
+        else if (sample < -LIMITER_THRESHOLD)
+        {
+            long excess = -LIMITER_THRESHOLD - (long) sample;
+
+            return
+                (short)
+                    -(LIMITER_THRESHOLD
+                        + excess * LIMITER_HEADROOM
+                            / (excess + LIMITER_HEADROOM));
+        }
+        else
         {
-        case 8:
-            return Byte.MAX_VALUE;
-        case 16:
-            return Short.MAX_VALUE;
-        case 32:
-            return Integer.MAX_VALUE;
-        case 24:
-        default:
-            throw new UnsupportedFormatException(
-                    "Format.getSampleSizeInBits()",
-                    outFormat);
+            return (short) sample;
         }
     }
 
@@ -95,33 +117,58 @@ private static int getMaxOutSample(AudioFormat outFormat)
     private final AudioMixingPushBufferDataSource dataSource;
 
     /**
-     * The collection of input audio samples still not mixed and read through
+     * The input audio samples which are to be added to
+     * {@link #inSampleSum} in the mix still not read through this
+     * <tt>AudioMixingPushBufferStream</tt>, or, if <tt>inSampleSum</tt> is
+     * <tt>null</tt>, the only input audio samples of the mix.
+     */
+    private short[] addedInSamples;
+
+    /**
+     * The sum of all input audio samples of the
+     * <tt>AudioMixerPushBufferStream</tt> still not mixed and read through
      * this <tt>AudioMixingPushBufferStream</tt>.
      */
-    private short[][] inSamples;
+    private int[] inSampleSum;
+
+    /**
+     * The wide audio samples of the mix computed by the last invocation of
+     * {@link #mix(int[], short[][], short[], int)}. Cached in order to reduce
+     * allocations and garbage collection.
+     */
+    private int[] mixSamples;
 
     /**
-     * The maximum number of per-stream audio samples available through
-     * <tt>inSamples</tt>.
+     * The maximum number of per-stream audio samples available through the
+     * input audio samples.
      */
     private int maxInSampleCount;
 
     /**
      * The audio samples output by the last invocation of
-     * {@link #mix(int[][], AudioFormat, int)}. Cached in order to reduce
+     * {@link #mix(int[], short[][], short[], int)}. Cached in order to reduce
      * allocations and garbage collection.
      */
     private short[] outSamples;
 
     /**
      * The <tt>Object</tt> which synchronizes the access to the data to be read
-     * from this <tt>PushBufferStream</tt> i.e. to {@link #inSamples},
+     * from this <tt>PushBufferStream</tt> i.e. to {@link #inSampleSum},
+     * {@link #subtractedInSamples}, {@link #addedInSamples},
      * {@link #maxInSampleCount} and {@link #timeStamp}.
      */
     private final Object readSyncRoot = new Object();
 
     /**
-     * The time stamp of {@link #inSamples} to be reported in the specified
+     * The input audio samples which are to be subtracted from
+     * {@link #inSampleSum} in the mix still not read through this
+     * <tt>AudioMixingPushBufferStream</tt> (e.g. the audio samples of the
+     * <tt>AudioMixingPushBufferDataSource</tt> which owns this instance).
+     */
+    private short[][] subtractedInSamples;
+
+    /**
+     * The time stamp of the input audio samples to be reported in the specified
      * <tt>Buffer</tt> when data is read from this instance.
      */
     private long timeStamp = Buffer.TIME_UNKNOWN;
@@ -154,6 +201,15 @@ private static int getMaxOutSample(AudioFormat outFormat)
         this.dataSource = dataSource;
     }
 
+    private int[] allocateMixSamples(int minSize)
+    {
+        int[] mixSamples = this.mixSamples;
+
+        if ((mixSamples == null) || (mixSamples.length < minSize))
+            this.mixSamples = mixSamples = new int[minSize];
+        return mixSamples;
+    }
+
     private short[] allocateOutSamples(int minSize)
     {
         short[] outSamples = this.outSamples;
@@ -235,24 +291,27 @@ public AudioFormat getFormat()
 
     /**
      * Mixes as in audio mixing a specified collection of audio sample sets and
-     * returns the resulting mix audio sample set in a specific
-     * <tt>AudioFormat</tt>.
+     * returns the resulting mix audio sample set. The mix is derived from the
+     * sum of all input audio sample sets by subtracting the sets which are not
+     * to be heard and adding the set which is to be heard but is not in the
+     * sum. The result is passed through a single limiting stage.
      *
-     * @param inSamples the collection of audio sample sets to be mixed into
-     * one audio sample set in the sense of audio mixing
-     * @param outFormat the <tt>AudioFormat</tt> in which the resulting mix
-     * audio sample set is to be produced. The <tt>format</tt> property of the
-     * specified <tt>outBuffer</tt> is expected to be set to the same value but
-     * it is provided as a method argument in order to avoid casting from
-     * <tt>Format</tt> to <tt>AudioFormat</tt>.
+     * @param inSampleSum the sum, sample by sample, of all input audio sample
+     * sets or <tt>null</tt> if <tt>addedInSamples</tt> is the only set of
+     * audio samples to be output
+     * @param subtractedInSamples the audio sample sets to be subtracted from
+     * <tt>inSampleSum</tt> or <tt>null</tt>
+     * @param addedInSamples the audio sample set to be added to
+     * <tt>inSampleSum</tt> or <tt>null</tt>
      * @param outSampleCount the size of the resulting mix audio sample set
      * to be produced
      * @return the resulting audio sample set of the audio mixing of the
      * specified input audio sample sets
      */
     private short[] mix(
-            short[][] inSamples,
-            AudioFormat outFormat,
+            int[] inSampleSum,
+            short[][] subtractedInSamples,
+            short[] addedInSamples,
             int outSampleCount)
     {
         short[] outSamples;
@@ -261,9 +320,9 @@ private short[] mix(
          * The trivial case of performing mixing the samples of a single stream.
          * Then there is nothing to mix and the input becomes the output.
          */
-        if ((inSamples.length == 1) || (inSamples[1] == null))
+        if (inSampleSum == null)
         {
-            short[] inStreamSamples = inSamples[0];
+            short[] inStreamSamples = addedInSamples;
             int inStreamSampleCount;
 
             if (inStreamSamples == null)
@@ -295,50 +354,76 @@ else if (inStreamSamples.length < outSampleCount)
         }
 
         outSamples = allocateOutSamples(outSampleCount);
-        Arrays.fill(outSamples, 0, outSampleCount, (short) 0);
+        mix(
+                inSampleSum,
+                subtractedInSamples,
+                addedInSamples,
+                allocateMixSamples(outSampleCount),
+                outSamples,
+                outSampleCount);
+        return outSamples;
+    }
 
-        float maxOutSample;
+    /**
+     * Derives a mix audio sample set from the sum of all input audio sample
+     * sets by subtracting the sets which are not to be heard (e.g. the own
+     * audio of the receiver of the mix) and adding the set which is to be
+     * heard but is not in the sum, and limits the result to 16-bit audio
+     * samples.
+     *
+     * @param inSampleSum the sum, sample by sample, of all input audio sample
+     * sets
+     * @param subtractedInSamples the audio sample sets to be subtracted from
+     * <tt>inSampleSum</tt> or <tt>null</tt>
+     * @param addedInSamples the audio sample set to be added to
+     * <tt>inSampleSum</tt> or <tt>null</tt>
+     * @param mixSamples the wide audio samples in which the mix is to be
+     * computed
+     * @param outSamples the audio samples into which the limited mix is to be
+     * written
+     * @param outSampleCount the number of audio samples of the mix
+     */
+    static void mix(
+            int[] inSampleSum,
+            short[][] subtractedInSamples,
+            short[] addedInSamples,
+            int[] mixSamples,
+            short[] outSamples,
+            int outSampleCount)
+    {
+        int inSampleSumCount = Math.min(inSampleSum.length, outSampleCount);
 
-        try
-        {
-            maxOutSample = getMaxOutSample(outFormat);
-        }
-        catch (UnsupportedFormatException ufex)
-        {
-            throw new UnsupportedOperationException(ufex);
-        }
+        System.arraycopy(inSampleSum, 0, mixSamples, 0, inSampleSumCount);
+        if (inSampleSumCount != outSampleCount)
+            Arrays.fill(mixSamples, inSampleSumCount, outSampleCount, 0);
 
-        for (short[] inStreamSamples : inSamples)
+        if (subtractedInSamples != null)
         {
-            if (inStreamSamples == null)
-                continue;
+            for (short[] inStreamSamples : subtractedInSamples)
+            {
+                int inStreamSampleCount
+                    = Math.min(inStreamSamples.length, outSampleCount);
 
+                for (int i = 0; i < inStreamSampleCount; i++)
+                    mixSamples[i] -= inStreamSamples[i];
+            }
+        }
+        if (addedInSamples != null)
+        {
             int inStreamSampleCount
-                = Math.min(inStreamSamples.length, outSampleCount);
-
-            if (inStreamSampleCount == 0)
-                continue;
+                = Math.min(addedInSamples.length, outSampleCount);
 
             for (int i = 0; i < inStreamSampleCount; i++)
-            {
-                int inStreamSample = inStreamSamples[i];
-                int outSample = outSamples[i];
-
-                outSamples[i]
-                    = (short)
-                        (inStreamSample
-                            + outSample
-                            - Math.round(
-                                    inStreamSample
-                                        * (outSample / maxOutSample)));
-            }
+                mixSamples[i] += addedInSamples[i];
         }
-        return outSamples;
+
+        for (int i = 0; i < outSampleCount; i++)
+            outSamples[i] = limit(mixSamples[i]);
     }
 
     /**
      * Implements {@link PushBufferStream#read(Buffer)}. If
-     * <tt>inSamples</tt> are available, mixes them and writes the mix to the
+     * input audio samples are available, mixes them and writes the mix to the
      * specified <tt>Buffer</tt> performing the necessary data type conversions.
      *
      * @param buffer the <tt>Buffer</tt> to receive the data read from this
@@ -349,35 +434,43 @@ else if (inStreamSamples.length < outSampleCount)
     public void read(Buffer buffer)
         throws IOException
     {
-        short[][] inSamples;
+        int[] inSampleSum;
+        short[][] subtractedInSamples;
+        short[] addedInSamples;
         int maxInSampleCount;
         long timeStamp;
 
         synchronized (readSyncRoot)
         {
-            inSamples = this.inSamples;
+            inSampleSum = this.inSampleSum;
+            subtractedInSamples = this.subtractedInSamples;
+            addedInSamples = this.addedInSamples;
             maxInSampleCount = this.maxInSampleCount;
             timeStamp = this.timeStamp;
 
-            this.inSamples = null;
+            this.inSampleSum = null;
+            this.subtractedInSamples = null;
+            this.addedInSamples = null;
             this.maxInSampleCount = 0;
             // For the purposes of debugging, we want to have the last known
             // value of the field timeStamp at all times. The reset of the
-            // values of the fields inSamples and/or maxInSampleCount should
-            // suffice.
+            // value of the field maxInSampleCount should suffice.
             // this.timeStamp = Buffer.TIME_UNKNOWN;
         }
 
-        if ((inSamples == null)
-                || (inSamples.length == 0)
-                || (maxInSampleCount <= 0))
+        if (maxInSampleCount <= 0)
         {
             buffer.setDiscard(true);
             return;
         }
 
         AudioFormat outFormat = getFormat();
-        short[] outSamples = mix(inSamples, outFormat, maxInSampleCount);
+        short[] outSamples
+            = mix(
+                    inSampleSum,
+                    subtractedInSamples,
+                    addedInSamples,
+                    maxInSampleCount);
         int outSampleCount = Math.min(maxInSampleCount, outSamples.length);
 
         if (Format.byteArray.equals(outFormat.getDataType()))
@@ -422,22 +515,34 @@ public void read(Buffer buffer)
     }
 
     /**
-     * Sets the collection of audio sample sets to be mixed in the sense of
-     * audio mixing by this stream when data is read from it. Triggers a push to
-     * the clients of this stream.
+     * Sets the audio sample sets to be mixed in the sense of audio mixing by
+     * this stream when data is read from it. Triggers a push to the clients of
+     * this stream.
      *
-     * @param inSamples the collection of audio sample sets to be mixed by
-     * this stream when data is read from it
+     * @param inSampleSum the sum, sample by sample, of all input audio sample
+     * sets of the <tt>AudioMixerPushBufferStream</tt> or <tt>null</tt> if
+     * <tt>addedInSamples</tt> is the only set of audio samples to be output
+     * @param subtractedInSamples the audio sample sets to be subtracted from
+     * <tt>inSampleSum</tt> (i.e. to not be heard in the mix) or <tt>null</tt>
+     * @param addedInSamples the audio sample set to be added to
+     * <tt>inSampleSum</tt> or <tt>null</tt>
      * @param maxInSampleCount the maximum number of per-stream audio samples
-     * available through <tt>inSamples</tt>
-     * @param timeStamp the time stamp of <tt>inSamples</tt> to be reported
-     * in the specified <tt>Buffer</tt> when data is read from this instance
+     * available through the specified audio sample sets
+     * @param timeStamp the time stamp of the audio samples to be reported in
+     * the specified <tt>Buffer</tt> when data is read from this instance
      */
-    void setInSamples(short[][] inSamples, int maxInSampleCount, long timeStamp)
+    void setInSamples(
+            int[] inSampleSum,
+            short[][] subtractedInSamples,
+            short[] addedInSamples,
+            int maxInSampleCount,
+            long timeStamp)
     {
         synchronized (readSyncRoot)
         {
-            this.inSamples = inSamples;
+            this.inSampleSum = inSampleSum;
+            this.subtractedInSamples = subtractedInSamples;
+            this.addedInSamples = addedInSamples;
             this.maxInSampleCount = maxInSampleCount;
             this.timeStamp = timeStamp;
         }
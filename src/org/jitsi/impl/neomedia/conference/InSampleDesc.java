@@ -16,9 +16,11 @@
 package org.jitsi.impl.neomedia.conference;
 
 import java.lang.ref.*;
+import java.util.*;
 
 import javax.media.*;
 import javax.media.format.*;
+import javax.media.protocol.*;
 
 /**
  * Describes a specific set of audio samples read from a specific set of
@@ -48,11 +50,40 @@
      */
     public final short[][] inSamples;
 
+    /**
+     * The number of non-<tt>null</tt> sample sets in {@link #inSamples} at
+     * the time of the last invocation of {@link #sumInSamples(int)}.
+     */
+    private int inSampleCount;
+
+    /**
+     * The sum of {@link #inSamples}, sample by sample, computed by the last
+     * invocation of {@link #sumInSamples(int)}. The elements past the samples
+     * which were summed up are zero.
+     */
+    private int[] inSampleSum;
+
     /**
      * The set of input streams from which {@link #inSamples} were read.
      */
     public final InStreamDesc[] inStreams;
 
+    /**
+     * The indices in {@link #inStreams} of the input streams of the
+     * <tt>DataSource</tt> which is the <tt>CaptureDevice</tt> of the
+     * <tt>AudioMixer</tt>, computed on demand.
+     */
+    private int[] captureDeviceInStreamIndices;
+
+    /**
+     * The indices in {@link #inStreams} of the input streams which are not to
+     * be mixed in the output of a specific
+     * <tt>AudioMixingPushBufferDataSource</tt>, computed on demand.
+     */
+    private final Map<AudioMixingPushBufferDataSource, int[]>
+        outDataSourceInStreamIndices
+            = new HashMap<AudioMixingPushBufferDataSource, int[]>();
+
     /**
      * The time stamp of <tt>inSamples</tt> to be reported in the
      * <tt>Buffer</tt>s of the <tt>AudioMixingPushBufferStream</tt>s when
@@ -100,6 +131,97 @@ public Buffer getBuffer()
         return buffer;
     }
 
+    /**
+     * Gets the indices in {@link #inStreams} of the input streams of a
+     * specific <tt>DataSource</tt> which is the <tt>CaptureDevice</tt> of the
+     * <tt>AudioMixer</tt>. Since {@link #inStreams} does not change, the
+     * indices are computed once.
+     *
+     * @param captureDevice the <tt>CaptureDevice</tt> of the
+     * <tt>AudioMixer</tt>
+     * @return the indices in {@link #inStreams} of the input streams of
+     * <tt>captureDevice</tt>
+     */
+    public int[] getCaptureDeviceInStreamIndices(DataSource captureDevice)
+    {
+        int[] indices = captureDeviceInStreamIndices;
+
+        if (indices == null)
+        {
+            int count = 0;
+
+            indices = new int[inStreams.length];
+            for (int i = 0; i < inStreams.length; i++)
+            {
+                if (inStreams[i].inDataSourceDesc.inDataSource
+                        == captureDevice)
+                    indices[count++] = i;
+            }
+            captureDeviceInStreamIndices
+                = indices
+                    = Arrays.copyOf(indices, count);
+        }
+        return indices;
+    }
+
+    /**
+     * Gets the number of non-<tt>null</tt> sample sets in {@link #inSamples}
+     * at the time of the last invocation of {@link #sumInSamples(int)}.
+     *
+     * @return the number of non-<tt>null</tt> sample sets in
+     * {@link #inSamples} which were summed up
+     */
+    public int getInSampleCount()
+    {
+        return inSampleCount;
+    }
+
+    /**
+     * Gets the sum of {@link #inSamples} computed by the last invocation of
+     * {@link #sumInSamples(int)}.
+     *
+     * @return the sum of {@link #inSamples}, sample by sample
+     */
+    public int[] getInSampleSum()
+    {
+        return inSampleSum;
+    }
+
+    /**
+     * Gets the indices in {@link #inStreams} of the input streams which are
+     * not to be mixed in the output of a specific
+     * <tt>AudioMixingPushBufferDataSource</tt>. Since {@link #inStreams} does
+     * not change, the indices are computed once per output
+     * <tt>DataSource</tt>.
+     *
+     * @param outDataSource the <tt>AudioMixingPushBufferDataSource</tt>
+     * @return the indices in {@link #inStreams} of the input streams which are
+     * not to be mixed in the output of <tt>outDataSource</tt>
+     */
+    public int[] getOutDataSourceInStreamIndices(
+            AudioMixingPushBufferDataSource outDataSource)
+    {
+        synchronized (outDataSourceInStreamIndices)
+        {
+            int[] indices = outDataSourceInStreamIndices.get(outDataSource);
+
+            if (indices == null)
+            {
+                int count = 0;
+
+                indices = new int[inStreams.length];
+                for (int i = 0; i < inStreams.length; i++)
+                {
+                    if (outDataSource.equals(inStreams[i].getOutDataSource()))
+                        indices[count++] = i;
+                }
+                indices = Arrays.copyOf(indices, count);
+                outDataSourceInStreamIndices.put(outDataSource, indices);
+            }
+            return indices;
+        }
+    }
+
     /**
      * Gets the time stamp of <tt>inSamples</tt> to be reported in the
      * <tt>Buffer</tt>s of the <tt>AudioMixingPushBufferStream</tt>s when
@@ -153,4 +275,42 @@ public void setTimeStamp(long timeStamp)
             throw new IllegalStateException("timeStamp");
         }
     }
+
+    /**
+     * Sums up {@link #inSamples}, sample by sample, into a set of wide
+     * (i.e. <tt>int</tt>) samples which does not overflow. The output of each
+     * <tt>AudioMixingPushBufferStream</tt> is then derived from the sum by
+     * subtracting the samples which it is not to hear, so the mixing costs
+     * time linear in the number of input streams rather than quadratic.
+     *
+     * @param sampleCount the maximum number of samples to sum up per input
+     * stream
+     * @return the sum of {@link #inSamples}, sample by sample
+     */
+    public int[] sumInSamples(int sampleCount)
+    {
+        int[] inSampleSum = this.inSampleSum;
+
+        if ((inSampleSum == null) || (inSampleSum.length < sampleCount))
+            this.inSampleSum = inSampleSum = new int[sampleCount];
+        else
+            Arrays.fill(inSampleSum, 0);
+
+        int inSampleCount = 0;
+
+        for (short[] inStreamSamples : inSamples)
+        {
+            if (inStreamSamples == null)
+                continue;
+
+            int inStreamSampleCount
+                = Math.min(inStreamSamples.length, sampleCount);
+
+            for (int i = 0; i < inStreamSampleCount; i++)
+                inSampleSum[i] += inStreamSamples[i];
+            inSampleCount++;
+        }
+        this.inSampleCount = inSampleCount;
+        return inSampleSum;
+    }
 }
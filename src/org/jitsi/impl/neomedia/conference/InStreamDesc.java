@@ -20,6 +20,8 @@
 import javax.media.*;
 import javax.media.protocol.*;
 
+import org.jitsi.impl.neomedia.audiolevel.*;
+
 /**
  * Describes additional information about a specific input audio
  * <tt>SourceStream</tt> of an <tt>AudioMixer</tt> so that the
@@ -35,6 +37,21 @@
  */
 class InStreamDesc
 {
+    /**
+     * The maximum number of dB by which {@link #audioLevel} falls per
+     * invocation of {@link #updateAudioLevel(byte)} (i.e. per frame) so that
+     * short pauses between words do not make a speaker lose its place among
+     * the loudest speakers.
+     */
+    static final int AUDIO_LEVEL_RELEASE = 1;
+
+    /**
+     * The audio level (in -dBov as defined by RFC 6465) of the audio samples
+     * read from {@link #inStream}. It rises immediately and falls at most by
+     * {@link #AUDIO_LEVEL_RELEASE} per frame.
+     */
+    private byte audioLevel = AudioLevelCalculator.MIN_AUDIO_LEVEL;
+
     /**
      * The <tt>Buffer</tt> into which media data is to be read from
      * {@link #inStream}.
@@ -53,6 +70,12 @@
      */
     private SourceStream inStream;
 
+    /**
+     * Whether the audio samples read from {@link #inStream} were selected for
+     * mixing as those of one of the loudest speakers in the last frame.
+     */
+    private boolean speakerSelected;
+
     /**
      * Initializes a new <tt>InStreamDesc</tt> instance which is to describe
      * additional information about a specific input audio <tt>SourceStream</tt>
@@ -74,6 +97,18 @@ public InStreamDesc(
         this.inDataSourceDesc = inDataSourceDesc;
     }
 
+    /**
+     * Gets the (smoothed) audio level of the audio samples read from the
+     * <tt>SourceStream</tt> described by this instance.
+     *
+     * @return the audio level (in -dBov as defined by RFC 6465) of the audio
+     * samples read from the <tt>SourceStream</tt> described by this instance
+     */
+    public byte getAudioLevel()
+    {
+        return audioLevel;
+    }
+
     /**
      * Gets the <tt>Buffer</tt> into which media data is to be read from the
      * <tt>SourceStream</tt> described by this instance.
@@ -151,4 +186,54 @@ public void setInStream(SourceStream inStream)
             setBuffer(null);
         }
     }
+
+    /**
+     * Determines whether the audio samples read from the
+     * <tt>SourceStream</tt> described by this instance were selected for
+     * mixing as those of one of the loudest speakers in the last frame.
+     *
+     * @return <tt>true</tt> if the audio samples read from the
+     * <tt>SourceStream</tt> described by this instance were selected for
+     * mixing in the last frame; otherwise, <tt>false</tt>
+     */
+    public boolean isSpeakerSelected()
+    {
+        return speakerSelected;
+    }
+
+    /**
+     * Sets whether the audio samples read from the <tt>SourceStream</tt>
+     * described by this instance were selected for mixing as those of one of
+     * the loudest speakers.
+     *
+     * @param speakerSelected <tt>true</tt> if the audio samples read from the
+     * <tt>SourceStream</tt> described by this instance were selected for
+     * mixing; otherwise, <tt>false</tt>
+     */
+    public void setSpeakerSelected(boolean speakerSelected)
+    {
+        this.speakerSelected = speakerSelected;
+    }
+
+    /**
+     * Updates the (smoothed) audio level of the audio samples read from the
+     * <tt>SourceStream</tt> described by this instance with the audio level of
+     * the audio samples of a frame.
+     *
+     * @param level the audio level (in -dBov as defined by RFC 6465) of the
+     * audio samples of a frame read from the <tt>SourceStream</tt> described
+     * by this instance
+     */
+    public void updateAudioLevel(byte level)
+    {
+        if (level <= audioLevel)
+        {
+            audioLevel = level;
+        }
+        else
+        {
+            audioLevel
+                = (byte) Math.min(level, audioLevel + AUDIO_LEVEL_RELEASE);
+        }
+    }
 }
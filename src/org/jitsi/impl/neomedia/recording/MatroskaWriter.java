@@ -0,0 +1,984 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes WebM (i.e. Matroska) files in Java. The frames are collected in a
+ * large buffer which is written to the file when it is full, optionally on
+ * another thread (while the frames are collected in a second buffer). A new
+ * cluster is started at each video keyframe (and at least every
+ * {@link #MAX_CLUSTER_DURATION} milliseconds), and the Cues index is
+ * collected as the clusters are started and written at the end of the file.
+ * Timecodes are in milliseconds.
+ */
+public class MatroskaWriter
+{
+    /**
+     * The Matroska codec ID of VP8.
+     */
+    public static final String CODEC_VP8 = "V_VP8";
+
+    /**
+     * The Matroska codec ID of VP9.
+     */
+    public static final String CODEC_VP9 = "V_VP9";
+
+    /**
+     * The Matroska codec ID of Opus.
+     */
+    public static final String CODEC_OPUS = "A_OPUS";
+
+    /**
+     * The default size in bytes of the buffer of a <tt>MatroskaWriter</tt>.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The largest duration in milliseconds of a cluster (the timecodes of
+     * its blocks are relative to it and are 16-bit).
+     */
+    private static final int MAX_CLUSTER_DURATION = 5000;
+
+    /**
+     * The size in bytes reserved at the start of the segment for the
+     * SeekHead, which is written when the file is closed.
+     */
+    private static final int SEEK_HEAD_SIZE = 96;
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final int EBML_VERSION = 0x4286;
+    private static final int EBML_READ_VERSION = 0x42F7;
+    private static final int EBML_MAX_ID_LENGTH = 0x42F2;
+    private static final int EBML_MAX_SIZE_LENGTH = 0x42F3;
+    private static final int DOC_TYPE = 0x4282;
+    private static final int DOC_TYPE_VERSION = 0x4287;
+    private static final int DOC_TYPE_READ_VERSION = 0x4285;
+    private static final int SEGMENT = 0x18538067;
+    private static final int SEEK_HEAD = 0x114D9B74;
+    private static final int SEEK = 0x4DBB;
+    private static final int SEEK_ID = 0x53AB;
+    private static final int SEEK_POSITION = 0x53AC;
+    private static final int VOID = 0xEC;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMECODE_SCALE = 0x2AD7B1;
+    private static final int MUXING_APP = 0x4D80;
+    private static final int WRITING_APP = 0x5741;
+    private static final int DURATION = 0x4489;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_UID = 0x73C5;
+    private static final int TRACK_TYPE = 0x83;
+    private static final int CODEC_ID = 0x86;
+    private static final int CODEC_PRIVATE = 0x63A2;
+    private static final int CODEC_DELAY = 0x56AA;
+    private static final int SEEK_PRE_ROLL = 0x56BB;
+    private static final int VIDEO = 0xE0;
+    private static final int PIXEL_WIDTH = 0xB0;
+    private static final int PIXEL_HEIGHT = 0xBA;
+    private static final int AUDIO = 0xE1;
+    private static final int SAMPLING_FREQUENCY = 0xB5;
+    private static final int CHANNELS = 0x9F;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMECODE = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+    private static final int CUES = 0x1C53BB6B;
+    private static final int CUE_POINT = 0xBB;
+    private static final int CUE_TIME = 0xB3;
+    private static final int CUE_TRACK_POSITIONS = 0xB7;
+    private static final int CUE_TRACK = 0xF7;
+    private static final int CUE_CLUSTER_POSITION = 0xF1;
+
+    /**
+     * The <tt>TrackType</tt> of video tracks.
+     */
+    private static final int TRACK_TYPE_VIDEO = 1;
+
+    /**
+     * The <tt>TrackType</tt> of audio tracks.
+     */
+    private static final int TRACK_TYPE_AUDIO = 2;
+
+    /**
+     * The <tt>ExecutorService</tt> which writes the buffers of the
+     * <tt>MatroskaWriter</tt>s with asynchronous flush.
+     */
+    private static final ExecutorService flushExecutor
+        = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, MatroskaWriter.class.getName());
+
+            t.setDaemon(true);
+            return t;
+        });
+
+    /**
+     * The file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Whether full buffers are written to {@link #channel} by
+     * {@link #flushExecutor}.
+     */
+    private final boolean asyncFlush;
+
+    /**
+     * The (direct) buffer into which the file is being written, so that
+     * the <tt>FileChannel</tt> does not copy it before writing.
+     */
+    private ByteBuffer buf;
+
+    /**
+     * The buffer which is being written to the file by
+     * {@link #flushExecutor} (or <tt>null</tt> if the flush is not
+     * asynchronous).
+     */
+    private ByteBuffer spare;
+
+    /**
+     * The asynchronous write of {@link #spare} or <tt>null</tt>.
+     */
+    private Future<?> pendingFlush;
+
+    /**
+     * The position in the file at which {@link #buf} starts.
+     */
+    private long bufPosition = 0;
+
+    /**
+     * The <tt>TrackEntry</tt> elements of the tracks added so far.
+     */
+    private final List<byte[]> trackEntries = new ArrayList<>();
+
+    /**
+     * The numbers of the video tracks.
+     */
+    private final BitSet videoTracks = new BitSet();
+
+    /**
+     * Whether the headers have been written (after which no tracks can be
+     * added).
+     */
+    private boolean headerWritten = false;
+
+    /**
+     * The position in the file of the data of the Segment element.
+     */
+    private long segmentPosition;
+
+    /**
+     * The position in the file of the Info element.
+     */
+    private long infoPosition;
+
+    /**
+     * The position in the file of the value of the Duration element.
+     */
+    private long durationPosition;
+
+    /**
+     * The position in the file of the Tracks element.
+     */
+    private long tracksPosition;
+
+    /**
+     * The position in the file of the current cluster or <tt>-1</tt>.
+     */
+    private long clusterPosition = -1;
+
+    /**
+     * The timecode of the current cluster.
+     */
+    private long clusterTimecode;
+
+    /**
+     * The largest timecode written.
+     */
+    private long maxTimecode = 0;
+
+    /**
+     * The times of the cue points.
+     */
+    private long[] cueTimes = new long[64];
+
+    /**
+     * The positions (relative to {@link #segmentPosition}) of the clusters
+     * of the cue points.
+     */
+    private long[] cuePositions = new long[64];
+
+    /**
+     * The tracks of the cue points.
+     */
+    private int[] cueTracks = new int[64];
+
+    /**
+     * The number of cue points.
+     */
+    private int cueCount = 0;
+
+    /**
+     * Whether {@link #close()} has been invoked.
+     */
+    private boolean closed = false;
+
+    /**
+     * Initializes a new <tt>MatroskaWriter</tt> which writes into a file
+     * with a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes and synchronous
+     * flush.
+     *
+     * @param filename the name of the file.
+     * @throws IOException if the file cannot be opened for writing.
+     */
+    public MatroskaWriter(String filename)
+        throws IOException
+    {
+        this(filename, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * Initializes a new <tt>MatroskaWriter</tt> which writes into a file.
+     *
+     * @param filename the name of the file.
+     * @param bufferSize the size in bytes of the buffer.
+     * @param asyncFlush whether the buffer is written to the file on another
+     * thread (in which case a second buffer is used meanwhile).
+     * @throws IOException if the file cannot be opened for writing.
+     */
+    public MatroskaWriter(String filename, int bufferSize, boolean asyncFlush)
+        throws IOException
+    {
+        channel
+            = FileChannel.open(
+                    Paths.get(filename),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        this.asyncFlush = asyncFlush;
+
+        bufferSize = Math.max(bufferSize, 4096);
+        buf = ByteBuffer.allocateDirect(bufferSize);
+        if (asyncFlush)
+            spare = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Adds a video track. Tracks must be added before the first frame is
+     * written.
+     *
+     * @param codecId the Matroska codec ID e.g. {@link #CODEC_VP8}.
+     * @param width the width of the video.
+     * @param height the height of the video.
+     * @return the number of the track.
+     */
+    public int addVideoTrack(String codecId, int width, int height)
+    {
+        int number = trackEntries.size() + 1;
+
+        checkAddTrack();
+        videoTracks.set(number);
+        trackEntries.add(
+                element(
+                    TRACK_ENTRY,
+                    uint(TRACK_NUMBER, number),
+                    uint(TRACK_UID, number),
+                    uint(TRACK_TYPE, TRACK_TYPE_VIDEO),
+                    string(CODEC_ID, codecId),
+                    element(
+                        VIDEO,
+                        uint(PIXEL_WIDTH, width),
+                        uint(PIXEL_HEIGHT, height))));
+        return number;
+    }
+
+    /**
+     * Adds an audio track. Tracks must be added before the first frame is
+     * written.
+     *
+     * @param codecId the Matroska codec ID e.g. {@link #CODEC_OPUS}.
+     * @param samplingFrequency the sampling frequency of the audio.
+     * @param channels the number of channels of the audio.
+     * @param codecPrivate the codec private data (e.g. the
+     * identification header of Opus) or <tt>null</tt>.
+     * @return the number of the track.
+     */
+    public int addAudioTrack(
+            String codecId,
+            double samplingFrequency,
+            int channels,
+            byte[] codecPrivate)
+    {
+        int number = trackEntries.size() + 1;
+        List<byte[]> children = new ArrayList<>();
+
+        checkAddTrack();
+        children.add(uint(TRACK_NUMBER, number));
+        children.add(uint(TRACK_UID, number));
+        children.add(uint(TRACK_TYPE, TRACK_TYPE_AUDIO));
+        children.add(string(CODEC_ID, codecId));
+        if (codecPrivate != null)
+            children.add(element(CODEC_PRIVATE, codecPrivate));
+        if (CODEC_OPUS.equals(codecId))
+        {
+            // As required by WebM for Opus (80 ms in nanoseconds).
+            children.add(uint(CODEC_DELAY, 0));
+            children.add(uint(SEEK_PRE_ROLL, 80000000));
+        }
+        children.add(
+                element(
+                    AUDIO,
+                    float64(SAMPLING_FREQUENCY, samplingFrequency),
+                    uint(CHANNELS, channels)));
+        trackEntries.add(
+                element(
+                    TRACK_ENTRY,
+                    children.toArray(new byte[children.size()][])));
+        return number;
+    }
+
+    /**
+     * Throws an <tt>IllegalStateException</tt> if no more tracks can be
+     * added.
+     */
+    private void checkAddTrack()
+    {
+        if (headerWritten || trackEntries.size() >= 126)
+            throw new IllegalStateException("Cannot add a track.");
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param track the number of the track of the frame.
+     * @param data the buffer which contains the frame.
+     * @param off the offset in <tt>data</tt> at which the frame starts.
+     * @param len the length of the frame.
+     * @param timecode the timecode of the frame in milliseconds.
+     * @param key whether the frame is a keyframe (audio frames always are).
+     * @param invisible whether the frame is not to be displayed.
+     * @throws IOException if writing to the file fails.
+     */
+    public void writeFrame(
+            int track,
+            byte[] data, int off, int len,
+            long timecode,
+            boolean key,
+            boolean invisible)
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("closed");
+        if (!headerWritten)
+            writeHeader();
+
+        boolean video = videoTracks.get(track);
+        long relativeTimecode = timecode - clusterTimecode;
+
+        if (clusterPosition == -1
+                || (video && key && relativeTimecode != 0)
+                || relativeTimecode > MAX_CLUSTER_DURATION
+                || relativeTimecode < Short.MIN_VALUE)
+        {
+            startCluster(timecode);
+            relativeTimecode = 0;
+            // Index the video keyframes or, without video, all clusters.
+            if ((video && key) || videoTracks.isEmpty())
+                addCuePoint(timecode, track);
+        }
+
+        int flags = key ? 0x80 : 0;
+
+        if (invisible)
+            flags |= 0x08;
+
+        // The track number, the relative timecode and the flags.
+        long size = 4 + len;
+
+        ensureRemaining(4 + 8 + 4);
+        putId(SIMPLE_BLOCK);
+        putSize(size);
+        buf.put((byte) (0x80 | track));
+        buf.putShort((short) relativeTimecode);
+        buf.put((byte) flags);
+        put(data, off, len);
+
+        if (maxTimecode < timecode)
+            maxTimecode = timecode;
+    }
+
+    /**
+     * Ends the current cluster (if any) and starts a new one.
+     *
+     * @param timecode the timecode of the new cluster.
+     */
+    private void startCluster(long timecode)
+        throws IOException
+    {
+        endCluster();
+
+        ensureRemaining(4 + 8 + 10);
+        clusterPosition = position();
+        clusterTimecode = timecode;
+        putId(CLUSTER);
+        putSize8(-1);
+        putUint(TIMECODE, timecode);
+    }
+
+    /**
+     * Writes the size of the current cluster (if any).
+     */
+    private void endCluster()
+        throws IOException
+    {
+        if (clusterPosition == -1)
+            return;
+
+        long dataPosition = clusterPosition + 4 + 8;
+        ByteBuffer size = ByteBuffer.allocate(8);
+
+        size.putLong(0, (position() - dataPosition) | (1L << 56));
+        patch(clusterPosition + 4, size);
+        clusterPosition = -1;
+    }
+
+    /**
+     * Adds a cue point for the current cluster.
+     */
+    private void addCuePoint(long timecode, int track)
+    {
+        if (cueCount == cueTimes.length)
+        {
+            int capacity = 2 * cueCount;
+
+            cueTimes = Arrays.copyOf(cueTimes, capacity);
+            cuePositions = Arrays.copyOf(cuePositions, capacity);
+            cueTracks = Arrays.copyOf(cueTracks, capacity);
+        }
+        cueTimes[cueCount] = timecode;
+        cuePositions[cueCount] = clusterPosition - segmentPosition;
+        cueTracks[cueCount] = track;
+        cueCount++;
+    }
+
+    /**
+     * Writes the EBML header, the start of the Segment and its Info and
+     * Tracks.
+     */
+    private void writeHeader()
+        throws IOException
+    {
+        if (trackEntries.isEmpty())
+            throw new IOException("No tracks.");
+        headerWritten = true;
+
+        put(
+            element(
+                EBML,
+                uint(EBML_VERSION, 1),
+                uint(EBML_READ_VERSION, 1),
+                uint(EBML_MAX_ID_LENGTH, 4),
+                uint(EBML_MAX_SIZE_LENGTH, 8),
+                string(DOC_TYPE, "webm"),
+                uint(DOC_TYPE_VERSION, 4),
+                uint(DOC_TYPE_READ_VERSION, 2)));
+
+        ensureRemaining(4 + 8);
+        putId(SEGMENT);
+        putSize8(-1);
+        segmentPosition = position();
+
+        // Reserve room for the SeekHead.
+        put(voidElement(SEEK_HEAD_SIZE));
+
+        byte[] info
+            = element(
+                    INFO,
+                    uint(TIMECODE_SCALE, 1000000),
+                    string(MUXING_APP, "libjitsi"),
+                    string(WRITING_APP, "libjitsi"),
+                    float64(DURATION, 0));
+
+        infoPosition = position();
+        // The Duration is the last child of the Info.
+        durationPosition = infoPosition + info.length - 8;
+        put(info);
+
+        tracksPosition = position();
+        put(element(TRACKS, trackEntries.toArray(new byte[0][])));
+    }
+
+    /**
+     * Writes the Cues, fills in the SeekHead and the sizes and closes the
+     * file.
+     *
+     * @throws IOException if writing to the file fails.
+     */
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try
+        {
+            if (headerWritten)
+            {
+                endCluster();
+
+                long cuesPosition = position();
+
+                writeCues();
+
+                long segmentSize = position() - segmentPosition;
+
+                flush();
+                awaitFlush();
+
+                ByteBuffer bb = ByteBuffer.allocate(8);
+
+                bb.putLong(0, segmentSize | (1L << 56));
+                patch(segmentPosition - 8, bb);
+
+                bb = ByteBuffer.allocate(8);
+                bb.putDouble(0, maxTimecode);
+                patch(durationPosition, bb);
+
+                patch(
+                    segmentPosition,
+                    ByteBuffer.wrap(
+                        seekHead(
+                            infoPosition - segmentPosition,
+                            tracksPosition - segmentPosition,
+                            cuesPosition - segmentPosition)));
+            }
+            else
+            {
+                flush();
+                awaitFlush();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the Cues element.
+     */
+    private void writeCues()
+        throws IOException
+    {
+        if (cueCount == 0)
+            return;
+
+        byte[][] cuePoints = new byte[cueCount][];
+
+        for (int i = 0; i < cueCount; i++)
+        {
+            cuePoints[i]
+                = element(
+                        CUE_POINT,
+                        uint(CUE_TIME, cueTimes[i]),
+                        element(
+                            CUE_TRACK_POSITIONS,
+                            uint(CUE_TRACK, cueTracks[i]),
+                            uint(CUE_CLUSTER_POSITION, cuePositions[i])));
+        }
+        put(element(CUES, cuePoints));
+    }
+
+    /**
+     * Builds the SeekHead (padded with a Void element to
+     * {@link #SEEK_HEAD_SIZE} bytes).
+     */
+    private byte[] seekHead(long info, long tracks, long cues)
+    {
+        List<byte[]> seeks = new ArrayList<>(3);
+
+        seeks.add(seek(INFO, info));
+        seeks.add(seek(TRACKS, tracks));
+        if (cueCount != 0)
+            seeks.add(seek(CUES, cues));
+
+        byte[] seekHead
+            = element(SEEK_HEAD, seeks.toArray(new byte[seeks.size()][]));
+        byte[] padded = new byte[SEEK_HEAD_SIZE];
+        byte[] padding = voidElement(SEEK_HEAD_SIZE - seekHead.length);
+
+        System.arraycopy(seekHead, 0, padded, 0, seekHead.length);
+        System.arraycopy(
+                padding, 0,
+                padded, seekHead.length,
+                padding.length);
+        return padded;
+    }
+
+    /**
+     * Builds a Seek element.
+     */
+    private static byte[] seek(int id, long position)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+
+        bb.putInt(id);
+        return
+            element(
+                SEEK,
+                element(SEEK_ID, bb.array()),
+                uint(SEEK_POSITION, position));
+    }
+
+    /**
+     * Gets the position in the file at which the next byte will be written.
+     */
+    private long position()
+    {
+        return bufPosition + buf.position();
+    }
+
+    /**
+     * Makes sure that {@link #buf} has room for a specific number of bytes,
+     * flushing it if necessary.
+     */
+    private void ensureRemaining(int bytes)
+        throws IOException
+    {
+        if (buf.remaining() < bytes)
+            flush();
+    }
+
+    /**
+     * Writes bytes into {@link #buf}, flushing it as necessary.
+     */
+    private void put(byte[] data, int off, int len)
+        throws IOException
+    {
+        while (len > 0)
+        {
+            if (!buf.hasRemaining())
+                flush();
+
+            int n = Math.min(len, buf.remaining());
+
+            buf.put(data, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void put(byte[] data)
+        throws IOException
+    {
+        put(data, 0, data.length);
+    }
+
+    /**
+     * Writes an element ID into {@link #buf}.
+     */
+    private void putId(int id)
+    {
+        putId(buf, id);
+    }
+
+    /**
+     * Writes an element ID into a <tt>ByteBuffer</tt>.
+     */
+    private static void putId(ByteBuffer bb, int id)
+    {
+        for (int i = idLength(id) - 1; i >= 0; i--)
+            bb.put((byte) (id >>> (8 * i)));
+    }
+
+    /**
+     * Writes an element size into {@link #buf} in as few bytes as possible.
+     */
+    private void putSize(long size)
+    {
+        putSize(buf, size);
+    }
+
+    /**
+     * Writes an element size into a <tt>ByteBuffer</tt> in as few bytes as
+     * possible.
+     */
+    private static void putSize(ByteBuffer bb, long size)
+    {
+        int length = sizeLength(size);
+
+        for (int i = length - 1; i >= 0; i--)
+        {
+            byte b = (byte) (size >>> (8 * i));
+
+            if (i == length - 1)
+                b |= (byte) (0x80 >>> (length - 1));
+            bb.put(b);
+        }
+    }
+
+    /**
+     * Writes an element size into {@link #buf} in 8 bytes. A negative size
+     * is written as unknown.
+     */
+    private void putSize8(long size)
+    {
+        buf.putLong(size < 0 ? 0x01FFFFFFFFFFFFFFL : (size | (1L << 56)));
+    }
+
+    /**
+     * Writes an unsigned integer element into {@link #buf}.
+     */
+    private void putUint(int id, long value)
+    {
+        int length = uintLength(value);
+
+        putId(id);
+        putSize(length);
+        for (int i = length - 1; i >= 0; i--)
+            buf.put((byte) (value >>> (8 * i)));
+    }
+
+    /**
+     * Writes {@link #buf} to the file.
+     */
+    private void flush()
+        throws IOException
+    {
+        if (buf.position() == 0)
+            return;
+
+        buf.flip();
+
+        long position = bufPosition;
+
+        bufPosition += buf.remaining();
+        if (asyncFlush)
+        {
+            awaitFlush();
+
+            ByteBuffer full = buf;
+
+            pendingFlush
+                = flushExecutor.submit(() -> {
+                    write(full, position);
+                    return null;
+                });
+            buf = spare;
+            spare = full;
+        }
+        else
+        {
+            write(buf, position);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Waits for the asynchronous write of {@link #spare} (if any).
+     */
+    private void awaitFlush()
+        throws IOException
+    {
+        if (pendingFlush == null)
+            return;
+
+        Future<?> pendingFlush = this.pendingFlush;
+
+        this.pendingFlush = null;
+
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    pendingFlush.get();
+                    break;
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+
+            throw (cause instanceof IOException)
+                ? (IOException) cause
+                : new IOException(cause);
+        }
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a buffer at a specific position in the file.
+     */
+    private void write(ByteBuffer bb, long position)
+        throws IOException
+    {
+        while (bb.hasRemaining())
+            position += channel.write(bb, position);
+    }
+
+    /**
+     * Overwrites bytes which have already been written (into the file or
+     * into {@link #buf}).
+     */
+    private void patch(long position, ByteBuffer bytes)
+        throws IOException
+    {
+        int len = bytes.remaining();
+        int inFile = (int) Math.max(0, Math.min(len, bufPosition - position));
+
+        if (inFile > 0)
+        {
+            ByteBuffer bb = bytes.duplicate();
+
+            bb.limit(bb.position() + inFile);
+            // The asynchronous write of the same bytes must not undo this.
+            awaitFlush();
+            write(bb, position);
+        }
+        for (int i = inFile; i < len; i++)
+        {
+            buf.put(
+                    (int) (position + i - bufPosition),
+                    bytes.get(bytes.position() + i));
+        }
+    }
+
+    /**
+     * Gets the number of bytes of an element ID.
+     */
+    private static int idLength(int id)
+    {
+        if ((id & 0xFF000000) != 0)
+            return 4;
+        else if ((id & 0xFF0000) != 0)
+            return 3;
+        else if ((id & 0xFF00) != 0)
+            return 2;
+        else
+            return 1;
+    }
+
+    /**
+     * Gets the smallest number of bytes in which an element size can be
+     * written.
+     */
+    private static int sizeLength(long size)
+    {
+        int length = 1;
+
+        // All ones is reserved (for unknown).
+        while (length < 8 && size >= (1L << (7 * length)) - 1)
+            length++;
+        return length;
+    }
+
+    /**
+     * Gets the smallest number of bytes in which an unsigned integer can be
+     * written.
+     */
+    private static int uintLength(long value)
+    {
+        int length = 1;
+
+        while (length < 8 && (value >>> (8 * length)) != 0)
+            length++;
+        return length;
+    }
+
+    /**
+     * Builds an element.
+     */
+    private static byte[] element(int id, byte[]... children)
+    {
+        int dataLength = 0;
+
+        for (byte[] child : children)
+            dataLength += child.length;
+
+        ByteBuffer bb
+            = ByteBuffer.allocate(
+                    idLength(id) + sizeLength(dataLength) + dataLength);
+
+        putId(bb, id);
+        putSize(bb, dataLength);
+        for (byte[] child : children)
+            bb.put(child);
+        return bb.array();
+    }
+
+    /**
+     * Builds an unsigned integer element.
+     */
+    private static byte[] uint(int id, long value)
+    {
+        byte[] data = new byte[uintLength(value)];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (value >>> (8 * (data.length - 1 - i)));
+        return element(id, data);
+    }
+
+    /**
+     * Builds an 8-byte float element.
+     */
+    private static byte[] float64(int id, double value)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(8);
+
+        bb.putDouble(value);
+        return element(id, bb.array());
+    }
+
+    /**
+     * Builds a string element.
+     */
+    private static byte[] string(int id, String value)
+    {
+        return element(id, value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Builds a Void element of a specific total size (at least 2 bytes).
+     */
+    private static byte[] voidElement(int size)
+    {
+        // The ID and a 1-byte size for up to 126 bytes of data.
+        byte[] data = new byte[size - 2];
+
+        return element(VOID, data);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * Writes Opus packets, as they are (i.e. without decoding them), into an Ogg
+ * file as specified by RFC 7845. The packets are collected into pages in
+ * memory, so a page is written to the file once per
+ * {@link #MAX_PAGE_SAMPLES}, rather than once per packet.
+ */
+public class OggOpusWriter
+    implements OpusPacketWriter
+{
+    /**
+     * The sampling rate at which Opus timestamps (and Ogg granule positions)
+     * are counted.
+     */
+    public static final int SAMPLE_RATE = 48000;
+
+    /**
+     * An Opus packet which decodes into 20 milliseconds of silence (a CELT
+     * fullband mono frame).
+     */
+    public static final byte[] SILENCE_FRAME
+        = { (byte) 0xf8, (byte) 0xff, (byte) 0xfe };
+
+    /**
+     * The number of samples (at {@link #SAMPLE_RATE}) in
+     * {@link #SILENCE_FRAME}.
+     */
+    public static final int SILENCE_FRAME_SAMPLES = SAMPLE_RATE / 50;
+
+    /**
+     * The largest duration in samples of the packets of a page, after which
+     * the page is written to the file.
+     */
+    private static final int MAX_PAGE_SAMPLES = SAMPLE_RATE;
+
+    /**
+     * The largest number of segments (i.e. lacing values) in a page.
+     */
+    private static final int MAX_SEGMENTS = 255;
+
+    /**
+     * The value of the header type field of the first page.
+     */
+    private static final int BOS = 0x02;
+
+    /**
+     * The value of the header type field of the last page.
+     */
+    private static final int EOS = 0x04;
+
+    /**
+     * The durations in samples of the SILK-only frames (10, 20, 40 and 60
+     * ms).
+     */
+    private static final int[] SILK_FRAME_SAMPLES = { 480, 960, 1920, 2880 };
+
+    /**
+     * The lookup table of the CRC-32 (polynomial <tt>0x04c11db7</tt>, without
+     * reflection) of Ogg pages.
+     */
+    private static final int[] CRC_TABLE = new int[256];
+
+    static
+    {
+        for (int i = 0; i < CRC_TABLE.length; i++)
+        {
+            int r = i << 24;
+
+            for (int j = 0; j < 8; j++)
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04c11db7 : r << 1;
+            CRC_TABLE[i] = r;
+        }
+    }
+
+    /**
+     * Gets the duration of an Opus packet as specified by RFC 6716, section
+     * 3.1.
+     *
+     * @param buf the buffer which contains the packet.
+     * @param off the offset in <tt>buf</tt> at which the packet starts.
+     * @param len the length of the packet.
+     * @return the duration of the packet in samples at {@link #SAMPLE_RATE}
+     * or <tt>-1</tt> if the packet is malformed.
+     */
+    public static int getSamples(byte[] buf, int off, int len)
+    {
+        if (len < 1)
+            return -1;
+
+        int toc = buf[off] & 0xff;
+        int config = toc >> 3;
+        int frameSamples;
+
+        if (config < 12)
+        {
+            // SILK-only: 10, 20, 40 or 60 ms.
+            frameSamples = SILK_FRAME_SAMPLES[config & 3];
+        }
+        else if (config < 16)
+        {
+            // Hybrid: 10 or 20 ms.
+            frameSamples = (SAMPLE_RATE / 100) << (config & 1);
+        }
+        else
+        {
+            // CELT-only: 2.5, 5, 10 or 20 ms.
+            frameSamples = (SAMPLE_RATE / 400) << (config & 3);
+        }
+
+        int frames;
+
+        switch (toc & 3)
+        {
+        case 0:
+            frames = 1;
+            break;
+        case 3:
+            if (len < 2)
+                return -1;
+            frames = buf[off + 1] & 0x3f;
+            break;
+        default:
+            frames = 2;
+            break;
+        }
+
+        int samples = frames * frameSamples;
+
+        // A packet is at most 120 ms long.
+        return (frames == 0 || samples > SAMPLE_RATE * 120 / 1000)
+            ? -1
+            : samples;
+    }
+
+    /**
+     * Creates an Opus identification header (<tt>OpusHead</tt>) as specified
+     * by RFC 7845, section 5.1.
+     *
+     * @param channels the number of channels of the stream.
+     * @return the identification header.
+     */
+    static byte[] createOpusHead(int channels)
+    {
+        byte[] head = new byte[19];
+
+        System.arraycopy(ascii("OpusHead"), 0, head, 0, 8);
+        head[8] = 1; // version
+        head[9] = (byte) channels;
+        // pre-skip (0): the stream did not start with an encoder's priming
+        writeLE(head, 12, SAMPLE_RATE, 4); // the input sample rate
+        // output gain (0) and channel mapping family (0)
+        return head;
+    }
+
+    /**
+     * The stream to which the pages are written.
+     */
+    private final OutputStream out;
+
+    /**
+     * The serial number of the logical bitstream.
+     */
+    private final int serial;
+
+    /**
+     * The sequence number of the next page.
+     */
+    private int pageSeq = 0;
+
+    /**
+     * The granule position (i.e. the number of samples) at the end of the
+     * last packet added.
+     */
+    private long granule = 0;
+
+    /**
+     * The data of the packets of the page which is being collected.
+     */
+    private final ByteArrayOutputStream pageData
+        = new ByteArrayOutputStream(8192);
+
+    /**
+     * The lacing values of the page which is being collected.
+     */
+    private final byte[] segments = new byte[MAX_SEGMENTS];
+
+    /**
+     * The number of lacing values in {@link #segments}.
+     */
+    private int segmentCount = 0;
+
+    /**
+     * The duration in samples of the packets in the page which is being
+     * collected.
+     */
+    private int pageSamples = 0;
+
+    /**
+     * The buffer into which a page header is written.
+     */
+    private final byte[] header = new byte[27 + MAX_SEGMENTS];
+
+    /**
+     * Whether {@link #close()} has been invoked.
+     */
+    private boolean closed = false;
+
+    /**
+     * Initializes a new <tt>OggOpusWriter</tt> which writes into a file and
+     * writes the identification and comment headers.
+     *
+     * @param filename the name of the file.
+     * @param channels the number of channels of the stream.
+     * @throws IOException if the file cannot be written.
+     */
+    public OggOpusWriter(String filename, int channels)
+        throws IOException
+    {
+        this(
+            new BufferedOutputStream(new FileOutputStream(filename), 65536),
+            channels);
+    }
+
+    /**
+     * Initializes a new <tt>OggOpusWriter</tt> which writes into a specific
+     * <tt>OutputStream</tt> and writes the identification and comment
+     * headers.
+     *
+     * @param out the <tt>OutputStream</tt>.
+     * @param channels the number of channels of the stream.
+     * @throws IOException if writing to <tt>out</tt> fails.
+     */
+    OggOpusWriter(OutputStream out, int channels)
+        throws IOException
+    {
+        this.out = out;
+        this.serial = (int) System.nanoTime();
+
+        byte[] head = createOpusHead(channels);
+
+        addPacket(head, 0, head.length, 0);
+        flushPage(BOS);
+
+        byte[] vendor = ascii("libjitsi");
+        byte[] tags = new byte[8 + 4 + vendor.length + 4];
+
+        System.arraycopy(ascii("OpusTags"), 0, tags, 0, 8);
+        writeLE(tags, 8, vendor.length, 4);
+        System.arraycopy(vendor, 0, tags, 12, vendor.length);
+        // user comment list length (0)
+        addPacket(tags, 0, tags.length, 0);
+        flushPage(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePacket(byte[] buf, int off, int len, int samples)
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("closed");
+
+        addPacket(buf, off, len, samples);
+        if (pageSamples >= MAX_PAGE_SAMPLES)
+            flushPage(0);
+    }
+
+    /**
+     * Gets the duration in samples of the packets added so far.
+     *
+     * @return the duration in samples of the packets added so far.
+     */
+    public long getGranulePosition()
+    {
+        return granule;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Writes the last page and closes the file.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        try
+        {
+            flushPage(EOS);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Adds a packet to the page which is being collected, writing the page
+     * first if the packet does not fit in it.
+     */
+    private void addPacket(byte[] buf, int off, int len, int samples)
+        throws IOException
+    {
+        int lacingValues = len / 255 + 1;
+
+        // Opus packets are far smaller than the largest page.
+        if (lacingValues > MAX_SEGMENTS)
+            throw new IOException("Packet too large: " + len);
+        if (segmentCount + lacingValues > MAX_SEGMENTS)
+            flushPage(0);
+
+        pageData.write(buf, off, len);
+        for (int i = 0; i < lacingValues - 1; i++)
+            segments[segmentCount++] = (byte) 255;
+        segments[segmentCount++] = (byte) (len % 255);
+
+        granule += samples;
+        pageSamples += samples;
+    }
+
+    /**
+     * Writes the page which is being collected (if any, or if it is the
+     * last one).
+     *
+     * @param type the header type flags of the page.
+     */
+    private void flushPage(int type)
+        throws IOException
+    {
+        if (segmentCount == 0 && (type & EOS) == 0)
+            return;
+
+        writePage(type);
+    }
+
+    /**
+     * Writes the collected {@link #segments} and {@link #pageData} as a
+     * page which ends at {@link #granule}.
+     */
+    private void writePage(int type)
+        throws IOException
+    {
+        byte[] data = pageData.toByteArray();
+
+        System.arraycopy(ascii("OggS"), 0, header, 0, 4);
+        header[4] = 0; // version
+        header[5] = (byte) type;
+        writeLE(header, 6, granule, 8);
+        writeLE(header, 14, serial, 4);
+        writeLE(header, 18, pageSeq++, 4);
+        writeLE(header, 22, 0, 4); // the CRC is computed with zeros
+        header[26] = (byte) segmentCount;
+        System.arraycopy(segments, 0, header, 27, segmentCount);
+
+        int headerLength = 27 + segmentCount;
+        int crc = crc(0, header, 0, headerLength);
+
+        crc = crc(crc, data, 0, data.length);
+        writeLE(header, 22, crc, 4);
+
+        out.write(header, 0, headerLength);
+        out.write(data);
+
+        pageData.reset();
+        segmentCount = 0;
+        pageSamples = 0;
+    }
+
+    /**
+     * Updates an Ogg CRC-32 with bytes.
+     */
+    private static int crc(int crc, byte[] buf, int off, int len)
+    {
+        for (int end = off + len; off < end; off++)
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ buf[off]) & 0xff];
+        return crc;
+    }
+
+    /**
+     * Writes a little-endian integer into a buffer.
+     */
+    private static void writeLE(byte[] buf, int off, long value, int bytes)
+    {
+        for (int i = 0; i < bytes; i++)
+            buf[off + i] = (byte) (value >>> (8 * i));
+    }
+
+    /**
+     * Encodes a <tt>String</tt> in US-ASCII.
+     */
+    private static byte[] ascii(String s)
+    {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
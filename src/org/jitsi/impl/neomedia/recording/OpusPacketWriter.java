@@ -0,0 +1,60 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import java.io.*;
+
+/**
+ * Writes Opus packets, as they are, into a file of a specific container
+ * format.
+ */
+interface OpusPacketWriter
+    extends Closeable
+{
+    /**
+     * Adds an Opus packet to the file.
+     *
+     * @param buf the buffer which contains the packet.
+     * @param off the offset in <tt>buf</tt> at which the packet starts.
+     * @param len the length of the packet.
+     * @param samples the duration of the packet in samples at 48 kHz.
+     * @throws IOException if writing to the file fails.
+     */
+    void writePacket(byte[] buf, int off, int len, int samples)
+        throws IOException;
+
+    /**
+     * Adds {@link OggOpusWriter#SILENCE_FRAME}s to the file.
+     *
+     * @param samples the duration in samples of the silence, which is
+     * rounded down to a multiple of
+     * {@link OggOpusWriter#SILENCE_FRAME_SAMPLES}.
+     * @throws IOException if writing to the file fails.
+     */
+    default void writeSilence(long samples)
+        throws IOException
+    {
+        for (; samples >= OggOpusWriter.SILENCE_FRAME_SAMPLES;
+                samples -= OggOpusWriter.SILENCE_FRAME_SAMPLES)
+        {
+            writePacket(
+                    OggOpusWriter.SILENCE_FRAME,
+                    0,
+                    OggOpusWriter.SILENCE_FRAME.length,
+                    OggOpusWriter.SILENCE_FRAME_SAMPLES);
+        }
+    }
+}
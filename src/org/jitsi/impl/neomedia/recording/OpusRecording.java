@@ -0,0 +1,389 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import java.io.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * Records the Opus RTP packets of one SSRC into Ogg (or WebM) files without
+ * decoding them. The packets are put back in order (within a small window),
+ * and gaps in the RTP timestamps (e.g. because of DTX or lost packets) are
+ * filled with Opus silence frames. As with <tt>SilenceEffect</tt>, a gap longer
+ * than {@link #MAX_SILENCE_SAMPLES} starts a new file instead.
+ */
+class OpusRecording
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>OpusRecording</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(OpusRecording.class);
+
+    /**
+     * The number of packets which are held in order to reorder them. Must be
+     * a power of 2.
+     */
+    private static final int REORDER_WINDOW = 8;
+
+    /**
+     * The largest difference between the sequence numbers of consecutive
+     * packets which is not taken as a restart of the stream.
+     */
+    private static final int MAX_SEQ_JUMP = 1000;
+
+    /**
+     * The largest gap in samples which is filled with silence.
+     */
+    private static final int MAX_SILENCE_SAMPLES
+        = 3 * OggOpusWriter.SAMPLE_RATE;
+
+    /**
+     * The SSRC of the recorded stream.
+     */
+    private final long ssrc;
+
+    /**
+     * The ID of the ssrc-audio-level RTP header extension in the recorded
+     * stream.
+     */
+    private final byte audioLevelExtId;
+
+    /**
+     * The names of the files are this prefix followed by (a number and)
+     * {@link #suffix}.
+     */
+    private final String prefix;
+
+    /**
+     * The suffix of the names of the files.
+     */
+    private final String suffix;
+
+    /**
+     * The instance notified when a file is started.
+     */
+    private final Listener listener;
+
+    /**
+     * Whether the files are WebM (rather than Ogg) files.
+     */
+    private final boolean webm;
+
+    /**
+     * The writer of the current file or <tt>null</tt>.
+     */
+    private OpusPacketWriter writer;
+
+    /**
+     * The RTP timestamp at which the next packet is expected to start.
+     */
+    private long nextTimestamp;
+
+    /**
+     * The sequence number of the next packet to be written or <tt>-1</tt>.
+     */
+    private int nextSeq = -1;
+
+    /**
+     * The packets which wait for the packets before them, indexed by their
+     * sequence numbers modulo {@link #REORDER_WINDOW}.
+     */
+    private final Slot[] window = new Slot[REORDER_WINDOW];
+
+    /**
+     * The time in milliseconds at which the last packet was added.
+     */
+    private volatile long lastPacketTime = System.currentTimeMillis();
+
+    /**
+     * Whether {@link #close()} has been invoked or writing has failed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Initializes a new <tt>OpusRecording</tt>.
+     *
+     * @param ssrc the SSRC of the stream to record.
+     * @param audioLevelExtId the ID of the ssrc-audio-level RTP header
+     * extension in the stream to record.
+     * @param prefix the prefix of the names of the files.
+     * @param suffix the suffix of the names of the files.
+     * @param webm whether to write WebM (rather than Ogg) files.
+     * @param listener the instance to notify when a file is started.
+     */
+    OpusRecording(
+            long ssrc,
+            byte audioLevelExtId,
+            String prefix,
+            String suffix,
+            boolean webm,
+            Listener listener)
+    {
+        this.ssrc = ssrc;
+        this.audioLevelExtId = audioLevelExtId;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.webm = webm;
+        this.listener = listener;
+
+        for (int i = 0; i < REORDER_WINDOW; i++)
+            window[i] = new Slot();
+    }
+
+    /**
+     * Adds an Opus RTP packet of the recorded stream.
+     *
+     * @param pkt the packet.
+     */
+    synchronized void addPacket(RawPacket pkt)
+    {
+        if (closed)
+            return;
+
+        lastPacketTime = System.currentTimeMillis();
+
+        int seq = pkt.getSequenceNumber();
+
+        if (nextSeq == -1)
+            nextSeq = seq;
+
+        int delta = RTPUtils.getSequenceNumberDelta(seq, nextSeq);
+
+        if (Math.abs(delta) > MAX_SEQ_JUMP)
+        {
+            // The sender has started over (e.g. with new sequence numbers).
+            for (int i = 0; i < REORDER_WINDOW; i++)
+                advance();
+            nextSeq = seq;
+            delta = 0;
+        }
+        else if (delta < 0)
+        {
+            // Too late (or a duplicate).
+            return;
+        }
+
+        // Make room by giving up on the oldest missing packets.
+        for (; delta >= REORDER_WINDOW; delta--)
+            advance();
+
+        Slot slot = window[seq & (REORDER_WINDOW - 1)];
+        int len = pkt.getPayloadLength(true);
+
+        if (slot.buf.length < len)
+            slot.buf = new byte[Math.max(len, 2 * slot.buf.length)];
+        System.arraycopy(
+                pkt.getBuffer(), pkt.getPayloadOffset(),
+                slot.buf, 0,
+                len);
+        slot.len = len;
+        slot.timestamp = pkt.getTimestamp();
+        slot.full = true;
+
+        while (window[nextSeq & (REORDER_WINDOW - 1)].full)
+            advance();
+    }
+
+    /**
+     * Writes the packet with sequence number {@link #nextSeq}, if it has
+     * been received, and moves on to the next one.
+     */
+    private void advance()
+    {
+        Slot slot = window[nextSeq & (REORDER_WINDOW - 1)];
+
+        if (slot.full)
+        {
+            slot.full = false;
+            write(slot);
+        }
+        nextSeq = (nextSeq + 1) & 0xffff;
+    }
+
+    /**
+     * Writes a packet into the current file, filling the gap before it with
+     * silence or starting a new file.
+     *
+     * @param slot the packet.
+     */
+    private void write(Slot slot)
+    {
+        int samples = OggOpusWriter.getSamples(slot.buf, 0, slot.len);
+
+        if (samples < 0 || closed)
+            return;
+
+        try
+        {
+            if (writer != null)
+            {
+                long gap
+                    = RTPUtils.rtpTimestampDiff(slot.timestamp, nextTimestamp);
+
+                if (Math.abs(gap) > MAX_SILENCE_SAMPLES)
+                {
+                    // A long pause or the sender has started over.
+                    logger.info(
+                            "More than the maximum of " + MAX_SILENCE_SAMPLES
+                                + " samples of silence need to be inserted"
+                                + " for SSRC=" + ssrc + ".");
+                    writer.close();
+                    writer = null;
+                }
+                else if (gap < 0)
+                {
+                    // Overlaps with what has been written already.
+                    return;
+                }
+                else
+                {
+                    writer.writeSilence(gap);
+                }
+            }
+            if (writer == null)
+            {
+                String filename
+                    = RecorderRtpImpl.getNextFilename(prefix, suffix);
+
+                if (filename == null)
+                    throw new IOException("No filename for " + prefix);
+
+                writer = createWriter(filename);
+                listener.recordingStarted(ssrc, slot.timestamp, filename);
+            }
+
+            writer.writePacket(slot.buf, 0, slot.len, samples);
+            nextTimestamp = (slot.timestamp + samples) & 0xffffffffL;
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Failed to record SSRC=" + ssrc + ": " + ioe);
+            closed = true;
+            closeWriter();
+        }
+    }
+
+    /**
+     * Creates the writer of a new file.
+     *
+     * @param filename the name of the file.
+     * @return the writer of the file named <tt>filename</tt>.
+     * @throws IOException if the file cannot be created.
+     */
+    OpusPacketWriter createWriter(String filename)
+        throws IOException
+    {
+        // WebRTC signals Opus as stereo, even when it sends mono.
+        return
+            webm
+                ? new WebmOpusWriter(filename, 2)
+                : new OggOpusWriter(filename, 2);
+    }
+
+    /**
+     * Gets the ID of the ssrc-audio-level RTP header extension in the
+     * recorded stream.
+     *
+     * @return the ID of the ssrc-audio-level RTP header extension in the
+     * recorded stream.
+     */
+    byte getAudioLevelExtId()
+    {
+        return audioLevelExtId;
+    }
+
+    /**
+     * Gets the time in milliseconds at which the last packet was added.
+     *
+     * @return the time in milliseconds at which the last packet was added.
+     */
+    long getLastPacketTime()
+    {
+        return lastPacketTime;
+    }
+
+    /**
+     * Writes the packets which wait for missing ones and closes the current
+     * file.
+     */
+    synchronized void close()
+    {
+        if (closed)
+            return;
+
+        if (nextSeq != -1)
+        {
+            for (int i = 0; i < REORDER_WINDOW; i++)
+                advance();
+        }
+        closed = true;
+        closeWriter();
+    }
+
+    /**
+     * Closes the current file, if any.
+     */
+    private void closeWriter()
+    {
+        if (writer != null)
+        {
+            try
+            {
+                writer.close();
+            }
+            catch (IOException ioe)
+            {
+                logger.error("Failed to close recording for SSRC=" + ssrc
+                                 + ": " + ioe);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * A packet which waits in {@link #window}.
+     */
+    private static class Slot
+    {
+        byte[] buf = new byte[256];
+
+        int len;
+
+        long timestamp;
+
+        boolean full;
+    }
+
+    /**
+     * Notified when an <tt>OpusRecording</tt> starts a file.
+     */
+    interface Listener
+    {
+        /**
+         * Notifies that a file has been started.
+         *
+         * @param ssrc the SSRC of the recorded stream.
+         * @param rtpTimestamp the RTP timestamp of the first packet of the
+         * file.
+         * @param filename the name of the file.
+         */
+        void recordingStarted(long ssrc, long rtpTimestamp, String filename);
+    }
+}
@@ -17,16 +17,28 @@
 
 import java.util.*;
 
+import org.jitsi.impl.neomedia.codec.video.vp8.*;
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.util.*;
 
 /**
  * A <tt>TransformEngine</tt> and <tt>PacketTransformer</tt> which implement
- * a fixed-size buffer. The class is specific to video recording. Buffered are
- * only VP8 RTP packets, and they are places in different buffers according
- * to their SSRC.
+ * a reorder (jitter) buffer for video recording. Buffered are only the RTP
+ * packets of the payload types added with {@link #addPayloadType(byte,
+ * String)}, and they are placed in different buffers according to their
+ * SSRC.
+ *
+ * A buffer is a ring indexed by RTP sequence number. It releases a frame as
+ * soon as all of its packets have been received, and gives up on missing
+ * packets once the oldest packet waiting for them has been held for
+ * {@link #maxDelay} milliseconds. The packets are copied into
+ * <tt>RawPacket</tt>s which are reused, so the packets returned by
+ * {@link #reverseTransform(RawPacket[])} are only valid until the next
+ * invocation.
  *
  * @author Boris Grozev
  */
@@ -35,64 +47,64 @@
                PacketTransformer
 {
     /**
-     * A <tt>Comparator</tt> implementation for RTP sequence numbers.
-     * Compares the sequence numbers <tt>a</tt> and <tt>b</tt>
-     * of <tt>pkt1</tt> and <tt>pkt2</tt>, taking into account the wrap at 2^16.
-     *
-     * IMPORTANT: This is a valid <tt>Comparator</tt> implementation only if
-     * used for subsets of [0, 2^16) which don't span more than 2^15 elements.
-     *
-     * E.g. it works for: [0, 2^15-1] and ([50000, 2^16) u [0, 10000])
-     * Doesn't work for: [0, 2^15] and ([0, 2^15-1] u {2^16-1}) and [0, 2^16)
+     * The parameter name for the packet buffer size i.e. the largest number
+     * of packets (rounded up to a power of 2) held for an SSRC.
      */
-    private static final Comparator<? super RawPacket> seqNumComparator
-            = new Comparator<RawPacket>() {
-        @Override
-        public int compare(RawPacket pkt1, RawPacket pkt2)
-        {
-            long a = pkt1.getSequenceNumber();
-            long b = pkt2.getSequenceNumber();
+    private static final String PACKET_BUFFER_SIZE_PNAME =
+            PacketBuffer.class.getCanonicalName() + ".SIZE";
 
-            if (a == b)
-                return 0;
-            else if (a > b)
-            {
-                if (a - b < 32768)
-                    return 1;
-                else
-                    return -1;
-            }
-            else //a < b
-            {
-                if (b - a < 32768)
-                    return -1;
-                else
-                    return 1;
-            }
-        }
-    };
+    /**
+     * The parameter name for the largest time in milliseconds for which a
+     * packet is held waiting for missing packets before it.
+     */
+    private static final String MAX_DELAY_PNAME =
+            PacketBuffer.class.getCanonicalName() + ".MAX_DELAY";
 
     /**
-     * The <tt>ConfigurationService</tt> used to load buffering configuration.
+     * The default value of {@link #PACKET_BUFFER_SIZE_PNAME}.
      */
-    private final static ConfigurationService cfg =
-            LibJitsi.getConfigurationService();
+    private static final int DEFAULT_SIZE = 300;
 
     /**
-     * The payload type for VP8.
-     * TODO: make this configurable.
+     * The default value of {@link #MAX_DELAY_PNAME}.
      */
-    private static int VP8_PAYLOAD_TYPE = 100;
+    private static final int DEFAULT_MAX_DELAY = 500;
 
     /**
-     * The parameter name for the packet buffer size
+     * The value of {@link #codecs} for payload types which are not buffered.
      */
-    private static final String PACKET_BUFFER_SIZE_PNAME =
-            PacketBuffer.class.getCanonicalName() + ".SIZE";
+    private static final int CODEC_NONE = 0;
+
+    /**
+     * The value of {@link #codecs} for VP8.
+     */
+    private static final int CODEC_VP8 = 1;
+
+    /**
+     * The value of {@link #codecs} for VP9.
+     */
+    private static final int CODEC_VP9 = 2;
+
+    /**
+     * The value of {@link #codecs} for H.264.
+     */
+    private static final int CODEC_H264 = 3;
+
+    /**
+     * The codecs of the buffered payload types, indexed by payload type.
+     */
+    private final int[] codecs = new int[128];
+
+    /**
+     * The number of slots of the ring of each <tt>Buffer</tt>.
+     */
+    private final int size;
+
     /**
-     * The size of the buffer for each SSRC.
+     * The largest time in milliseconds for which a packet is held waiting for
+     * missing packets before it.
      */
-    private static int SIZE = cfg.getInt(PACKET_BUFFER_SIZE_PNAME, 300);
+    private final long maxDelay;
 
     /**
      * The map of actual <tt>Buffer</tt> instances, one for each SSRC that this
@@ -100,6 +112,90 @@ else if (a > b)
      */
     private final Map<Long, Buffer> buffers = new HashMap<>();
 
+    /**
+     * The <tt>RawPacket</tt>s which are not in use and into which received
+     * packets are copied.
+     */
+    private final ArrayDeque<RawPacket> pool = new ArrayDeque<>();
+
+    /**
+     * The packets released by the current (or the last) invocation of
+     * {@link #reverseTransform(RawPacket[])}.
+     */
+    private RawPacket[] released = new RawPacket[16];
+
+    /**
+     * The number of packets in {@link #released}.
+     */
+    private int releasedCount = 0;
+
+    /**
+     * Initializes a new <tt>PacketBuffer</tt> which reads its size and its
+     * maximum delay from the <tt>ConfigurationService</tt>.
+     */
+    public PacketBuffer()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int size = DEFAULT_SIZE;
+        int maxDelay = DEFAULT_MAX_DELAY;
+
+        if (cfg != null)
+        {
+            size = cfg.getInt(PACKET_BUFFER_SIZE_PNAME, size);
+            maxDelay = cfg.getInt(MAX_DELAY_PNAME, maxDelay);
+        }
+
+        this.size = ringSize(size);
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Initializes a new <tt>PacketBuffer</tt> with a specific size and
+     * maximum delay.
+     *
+     * @param size the largest number of packets held for an SSRC.
+     * @param maxDelay the largest time in milliseconds for which a packet is
+     * held waiting for missing packets before it.
+     */
+    PacketBuffer(int size, long maxDelay)
+    {
+        this.size = ringSize(size);
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Rounds a number of packets up to a power of 2 (and at least 2).
+     */
+    private static int ringSize(int size)
+    {
+        return size <= 2 ? 2 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * Makes this <tt>PacketBuffer</tt> buffer the packets of a specific
+     * payload type.
+     *
+     * @param pt the payload type.
+     * @param encoding the encoding of the payload type, one of
+     * {@link Constants#VP8}, {@link Constants#VP9} and {@link Constants#H264}.
+     * Packets of other encodings are not buffered.
+     */
+    public void addPayloadType(byte pt, String encoding)
+    {
+        int codec;
+
+        if (Constants.VP8.equalsIgnoreCase(encoding))
+            codec = CODEC_VP8;
+        else if (Constants.VP9.equalsIgnoreCase(encoding))
+            codec = CODEC_VP9;
+        else if (Constants.H264.equalsIgnoreCase(encoding))
+            codec = CODEC_H264;
+        else
+            codec = CODEC_NONE;
+
+        codecs[pt & 0x7f] = codec;
+    }
+
     /**
      * Implements
      * {@link org.jitsi.impl.neomedia.transform.PacketTransformer#close()}.
@@ -114,15 +210,30 @@ public void close()
      * Implements
      * {@link PacketTransformer#reverseTransform(RawPacket[])}.
      *
-     * Replaces each packet in the input with a packet (or null) from the
-     * <tt>Buffer</tt> instance for the packet's SSRC.
+     * Takes the packets which are buffered out of the input and puts in their
+     * place the packets released by the <tt>Buffer</tt>s (growing the array
+     * if there is not enough room). Sweeps all <tt>Buffer</tt>s, so that the
+     * packets of an SSRC which has stopped sending are not held for longer
+     * than {@link #maxDelay} as long as any packets are received.
      *
      * @param pkts the transformed packets to be restored.
-     * @return
+     * @return the packets which are not buffered and the packets released by
+     * the <tt>Buffer</tt>s, in which <tt>null</tt>s are to be ignored.
      */
     @Override
-    public RawPacket[] reverseTransform(RawPacket[] pkts)
+    public synchronized RawPacket[] reverseTransform(RawPacket[] pkts)
     {
+        // The packets released last time have been consumed.
+        for (int i = 0; i < releasedCount; i++)
+        {
+            pool.push(released[i]);
+            released[i] = null;
+        }
+        releasedCount = 0;
+
+        long now = System.currentTimeMillis();
+        int free = 0;
+
         for (int i = 0; i<pkts.length; i++)
         {
             RawPacket pkt = pkts[i];
@@ -133,12 +244,33 @@ public RawPacket[] reverseTransform(RawPacket[] pkts)
                 pkts[i] = null;
             pkt = pkts[i];
 
-            if (willBuffer(pkt))
+            int codec = getCodec(pkt);
+
+            if (codec != CODEC_NONE)
             {
                 Buffer buffer = getBuffer(pkt.getSSRCAsLong());
-                pkts[i] = buffer.insert(pkt);
+
+                buffer.insert(pkt, codec, now);
+                pkts[i] = null;
+            }
+            if (pkts[i] == null)
+                free++;
+        }
+
+        synchronized (buffers)
+        {
+            for (Buffer buffer : buffers.values())
+            {
+                buffer.sweep(now);
             }
+        }
 
+        if (releasedCount > free)
+            pkts = Arrays.copyOf(pkts, pkts.length + releasedCount - free);
+        for (int i = 0, j = 0; j < releasedCount; i++)
+        {
+            if (pkts[i] == null)
+                pkts[i] = released[j++];
         }
         return pkts;
     }
@@ -171,15 +303,17 @@ public PacketTransformer getRTCPTransformer()
     }
 
     /**
-     * Checks whether a particular <tt>RawPacket</tt> will be buffered or not
-     * by this instance. Currently we only buffer VP8 packets, recognized by
-     * their payload type number.
+     * Gets the codec of a particular <tt>RawPacket</tt> if it will be
+     * buffered by this instance. The packets are recognized by their payload
+     * type number.
+     *
      * @param pkt the packet for which to check.
-     * @return
+     * @return the codec of <tt>pkt</tt> or {@link #CODEC_NONE} if
+     * <tt>pkt</tt> will not be buffered.
      */
-    private boolean willBuffer(RawPacket pkt)
+    private int getCodec(RawPacket pkt)
     {
-        return (pkt != null && pkt.getPayloadType() == VP8_PAYLOAD_TYPE);
+        return pkt == null ? CODEC_NONE : codecs[pkt.getPayloadType() & 0x7f];
     }
 
     /**
@@ -188,7 +322,12 @@ private boolean willBuffer(RawPacket pkt)
      */
     void disable(long ssrc)
     {
-        getBuffer(ssrc).disabled = true;
+        Buffer buffer = getBuffer(ssrc);
+
+        synchronized (buffer)
+        {
+            buffer.disabled = true;
+        }
     }
 
     /**
@@ -218,7 +357,7 @@ private Buffer getBuffer(long ssrc)
             Buffer buffer = buffers.get(ssrc);
             if (buffer == null)
             {
-                buffer = new Buffer(SIZE, ssrc);
+                buffer = new Buffer(size);
                 buffers.put(ssrc, buffer);
             }
             return buffer;
@@ -248,87 +387,341 @@ RawPacket[] emptyBuffer(long ssrc)
     }
 
     /**
-     * Represents a buffer for <tt>RawPacket</tt>s.
+     * Adds a packet to {@link #released}.
+     *
+     * @param pkt the packet to add.
+     */
+    private void release(RawPacket pkt)
+    {
+        if (releasedCount == released.length)
+            released = Arrays.copyOf(released, 2 * releasedCount);
+        released[releasedCount++] = pkt;
+    }
+
+    /**
+     * Copies a packet into a <tt>RawPacket</tt> from {@link #pool}.
+     *
+     * @param pkt the packet to copy.
+     * @return the copy of <tt>pkt</tt>.
      */
-    private static class Buffer
+    private RawPacket copy(RawPacket pkt)
     {
+        RawPacket copy = pool.poll();
+
+        if (copy == null)
+            copy = new RawPacket();
+
+        int len = pkt.getLength();
+        byte[] buf = copy.getBuffer();
+
+        if (buf == null || buf.length < len)
+        {
+            buf = new byte[Math.max(len, 1500)];
+            copy.setBuffer(buf);
+        }
+        System.arraycopy(pkt.getBuffer(), pkt.getOffset(), buf, 0, len);
+        copy.setOffset(0);
+        copy.setLength(len);
+        return copy;
+    }
+
+    /**
+     * Checks whether a packet starts a frame.
+     *
+     * @param pkt the packet.
+     * @param codec the codec of <tt>pkt</tt>.
+     * @return <tt>true</tt> if <tt>pkt</tt> starts a frame.
+     */
+    private static boolean isStartOfFrame(RawPacket pkt, int codec)
+    {
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getPayloadOffset();
+        int len = pkt.getPayloadLength();
+
+        if (len <= 0)
+            return false;
+
+        switch (codec)
+        {
+        case CODEC_VP8:
+            return DePacketizer.VP8PayloadDescriptor.isStartOfFrame(buf, off);
+        case CODEC_VP9:
+            // The start of the first (spatial) layer frame of a picture.
+            return org.jitsi.impl
+                    .neomedia.codec.video.vp9.DePacketizer.VP9PayloadDescriptor
+                    .isStartOfFrame(buf, off, len)
+                && org.jitsi.impl
+                    .neomedia.codec.video.vp9.DePacketizer.VP9PayloadDescriptor
+                    .getSpatialLayerIndex(buf, off, len) <= 0;
+        case CODEC_H264:
+            // The start of a fragmented NAL unit or a whole one (or more).
+            int nalType = buf[off] & 0x1f;
+
+            return nalType != 28 /* FU-A */
+                || (len > 1 && (buf[off + 1] & 0x80) != 0);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Represents a buffer for the <tt>RawPacket</tt>s of one SSRC.
+     */
+    private class Buffer
+    {
+        /**
+         * The packets held by this <tt>Buffer</tt> (or <tt>null</tt>s),
+         * indexed by their sequence numbers modulo the length of the array.
+         */
+        private final RawPacket[] ring;
+
+        /**
+         * The times in milliseconds at which the packets in {@link #ring}
+         * were received.
+         */
+        private final long[] arrivals;
+
+        /**
+         * The sequence number of the first packet which has not been released
+         * (or given up on), or <tt>-1</tt> before the first packet.
+         */
+        private int head = -1;
+
         /**
-         * The actual contents of this <tt>Buffer</tt>.
+         * The number of packets in {@link #ring}.
          */
-        private final SortedSet<RawPacket> buffer;
+        private int count = 0;
 
         /**
-         * The maximum capacity of this <tt>Buffer</tt>.
+         * Whether the last packet released (or given up on) ended a frame,
+         * i.e. the packet at {@link #head} starts one.
          */
-        private final int capacity;
+        private boolean frameBoundary = false;
 
         /**
-         * The SSRC that this <tt>Buffer</tt> is associated with.
+         * The codec of the packets.
          */
-        private long ssrc;
+        private int codec = CODEC_NONE;
 
         /**
          * Whether this buffer is disabled or not. If disabled, it will drop
-         * incoming packets, and output 'null'.
+         * incoming packets.
          */
         private boolean disabled = false;
 
         /**
-         * Constructs a <tt>Buffer</tt> with the given capacity and SSRC.
-         * @param capacity the capacity.
-         * @param ssrc the SSRC.
+         * Constructs a <tt>Buffer</tt> with the given capacity.
+         * @param capacity the capacity, a power of 2.
          */
-        Buffer(int capacity, long ssrc)
+        Buffer(int capacity)
         {
-            buffer = new TreeSet<RawPacket>(seqNumComparator);
-            this.capacity = capacity;
-            this.ssrc = ssrc;
+            ring = new RawPacket[capacity];
+            arrivals = new long[capacity];
         }
 
         /**
-         * Inserts a specific <tt>RawPacket</tt> in this <tt>Buffer</tt>. If,
-         * after the insertion, the number of elements stored in the buffer
-         * is more than <tt>this.capacity</tt>, removes from the buffer and
-         * returns the 'first' packet in the buffer. Otherwise, return null.
+         * Inserts a copy of a specific <tt>RawPacket</tt> in this
+         * <tt>Buffer</tt> and releases (into {@link #released}) the frames
+         * which are complete and the packets which have been held for too
+         * long.
          *
          * @param pkt the packet to insert.
-         * @return Either the 'first' packet in the buffer, or null, according
-         * to whether the buffer capacity has been reached after the insertion
-         * of <tt>pkt</tt>.
+         * @param codec the codec of <tt>pkt</tt>.
+         * @param now the current time in milliseconds.
          */
-        RawPacket insert(RawPacket pkt)
+        synchronized void insert(RawPacket pkt, int codec, long now)
         {
             if (disabled)
-                return null;
+                return;
+
+            this.codec = codec;
+
+            int seq = pkt.getSequenceNumber();
+
+            if (head == -1)
+                head = seq;
+
+            int delta = RTPUtils.getSequenceNumberDelta(seq, head);
+
+            if (delta < -ring.length || delta >= 2 * ring.length)
+            {
+                // The sender has started over (e.g. with new sequence
+                // numbers).
+                while (count != 0)
+                    releaseHead();
+                head = seq;
+                frameBoundary = false;
+                delta = 0;
+            }
+            else if (delta < 0)
+            {
+                // Too late (or a duplicate).
+                return;
+            }
+
+            // Make room by giving up on the oldest missing packets.
+            for (; delta >= ring.length; delta--)
+                releaseHead();
 
-            RawPacket ret = null;
-            synchronized (buffer)
+            int index = seq & (ring.length - 1);
+
+            if (ring[index] != null)
             {
-                buffer.add(pkt);
-                if (buffer.size() > capacity)
+                // A duplicate.
+                return;
+            }
+            ring[index] = copy(pkt);
+            arrivals[index] = now;
+            count++;
+
+            releaseFrames(now);
+        }
+
+        /**
+         * Releases (into {@link #released}) the packets which have been held
+         * for too long (and the frames which have become complete since).
+         *
+         * @param now the current time in milliseconds.
+         */
+        synchronized void sweep(long now)
+        {
+            if (count != 0)
+                releaseFrames(now);
+        }
+
+        /**
+         * Releases the frames at the head of this <tt>Buffer</tt> which are
+         * complete, and gives up on the missing packets before the packets
+         * which have been held for longer than {@link #maxDelay}.
+         *
+         * @param now the current time in milliseconds.
+         */
+        private void releaseFrames(long now)
+        {
+            int mask = ring.length - 1;
+
+            while (count != 0)
+            {
+                RawPacket first = ring[head & mask];
+
+                if (first != null)
                 {
-                    ret = buffer.first();
-                    buffer.remove(ret);
+                    if (!frameBoundary && !isStartOfFrame(first, codec))
+                    {
+                        // The rest of a frame the start of which is missing.
+                        releaseHead();
+                        continue;
+                    }
+
+                    int frameLength = getFrameLength();
+
+                    if (frameLength > 0)
+                    {
+                        for (int i = 0; i < frameLength; i++)
+                            releaseHead();
+                        continue;
+                    }
                 }
+
+                // Wait for the missing packets unless the oldest packet has
+                // been held for too long.
+                if (now - getOldestArrival() > maxDelay)
+                    releaseHead();
+                else
+                    break;
             }
+        }
 
-            return ret;
+        /**
+         * Gets the number of packets of the frame which starts at
+         * {@link #head}.
+         *
+         * @return the number of packets of the frame which starts at
+         * {@link #head} or <tt>-1</tt> if any of them is missing.
+         */
+        private int getFrameLength()
+        {
+            int mask = ring.length - 1;
+
+            for (int i = 0; i < ring.length; i++)
+            {
+                RawPacket pkt = ring[(head + i) & mask];
+
+                if (pkt == null)
+                    return -1;
+                if (pkt.isPacketMarked())
+                    return i + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Gets the time at which the first packet after {@link #head} was
+         * received (which is close enough to the oldest one).
+         *
+         * @return the time in milliseconds at which the first packet after
+         * {@link #head} was received.
+         */
+        private long getOldestArrival()
+        {
+            int mask = ring.length - 1;
+
+            for (int i = 0; i < ring.length; i++)
+            {
+                int index = (head + i) & mask;
+
+                if (ring[index] != null)
+                    return arrivals[index];
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Releases the packet at {@link #head}, if it has been received, and
+         * moves on to the next one.
+         */
+        private void releaseHead()
+        {
+            int index = head & (ring.length - 1);
+            RawPacket pkt = ring[index];
+
+            if (pkt != null)
+            {
+                ring[index] = null;
+                count--;
+                release(pkt);
+                frameBoundary = pkt.isPacketMarked();
+            }
+            else
+            {
+                frameBoundary = false;
+            }
+            head = (head + 1) & 0xffff;
         }
 
         /**
          * Empties this <tt>Buffer</tt>, returning all its contents.
          * @return the contents of this <tt>Buffer</tt>.
          */
-        RawPacket[] empty()
+        synchronized RawPacket[] empty()
         {
-            synchronized (buffer)
+            RawPacket[] ret = new RawPacket[count];
+            int mask = ring.length - 1;
+
+            for (int i = 0, j = 0; j < ret.length; i++)
             {
-                RawPacket[] ret = buffer.toArray(new RawPacket[buffer.size()]);
-                buffer.clear();
+                int index = (head + i) & mask;
 
-                return ret;
+                if (ring[index] != null)
+                {
+                    ret[j++] = ring[index];
+                    ring[index] = null;
+                }
             }
-
+            count = 0;
+            head = -1;
+            frameBoundary = false;
+            return ret;
         }
     }
 }
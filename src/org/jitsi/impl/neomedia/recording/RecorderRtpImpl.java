@@ -109,6 +109,18 @@
     private static final int FMJ_AUDIO_JITTER_BUFFER_MIN_SIZE =
             cfg.getInt(FMJ_AUDIO_JITTER_BUFFER_MIN_SIZE_PNAME, 16);
 
+    /**
+     * The name of the property which sets the ID of the ssrc-audio-level RTP
+     * header extension which is assumed for the Opus streams recorded without
+     * transcoding when the ID cannot be learned from the stream which
+     * receives them.
+     */
+    private static final String AUDIO_LEVEL_EXT_ID_PNAME =
+            RecorderRtpImpl.class.getCanonicalName() + ".AUDIO_LEVEL_EXT_ID";
+
+    private static final byte AUDIO_LEVEL_EXT_ID =
+            (byte) cfg.getInt(AUDIO_LEVEL_EXT_ID_PNAME, 1);
+
     /**
      * The name of the property which controls whether the recorder should
      * perform active speaker detection.
@@ -118,7 +130,9 @@
 
     /**
      * The name of the property which sets a custom output audio codec.
-     * Currently only WAV is supported
+     * Currently WAV and Opus are supported. Opus is recorded as it is received
+     * (i.e. without being decoded and encoded again) into Ogg files or, with
+     * <tt>opus-webm</tt>, into WebM files.
      */
     private static String AUDIO_CODEC_PNAME =
             RecorderRtpImpl.class.getCanonicalName() + ".AUDIO_CODEC";
@@ -139,6 +153,24 @@
      */
     private static final String VIDEO_FILENAME_SUFFIX = ".webm";
 
+    /**
+     * The suffix for the names of the files of Opus recorded without
+     * transcoding.
+     */
+    private static final String OPUS_FILENAME_SUFFIX = ".opus";
+
+    /**
+     * The suffix for the names of the WebM files of Opus recorded without
+     * transcoding.
+     */
+    private static final String OPUS_WEBM_FILENAME_SUFFIX = ".webm";
+
+    /**
+     * The time in milliseconds without packets after which the recording of
+     * an Opus stream recorded without transcoding is stopped.
+     */
+    private static final long OPUS_RECORDING_TIMEOUT = 10000;
+
     static
     {
         Registry.set(
@@ -207,6 +239,30 @@
      */
     private final boolean performActiveSpeakerDetection;
 
+    /**
+     * Whether Opus is recorded as it is received (rather than decoded and
+     * encoded again by a <tt>Processor</tt>).
+     */
+    private final boolean opusPassthrough;
+
+    /**
+     * Whether Opus recorded as it is received is written into WebM (rather
+     * than Ogg) files.
+     */
+    private final boolean opusWebm;
+
+    /**
+     * The recordings of the Opus streams recorded without transcoding by
+     * SSRC.
+     */
+    private final Map<Long, OpusRecording> opusRecordings = new HashMap<>();
+
+    /**
+     * The time in milliseconds at which {@link #opusRecordings} were last
+     * checked for timeouts.
+     */
+    private long lastOpusTimeoutCheck = 0;
+
     StreamRTPManager streamRTPManager;
 
     private SynchronizerImpl synchronizer;
@@ -224,6 +280,8 @@ public RecorderRtpImpl(RTPTranslator translator)
         this.translator = (RTPTranslatorImpl) translator;
 
         boolean performActiveSpeakerDetection = false;
+        boolean opusPassthrough = false;
+        boolean opusWebm = false;
 
         if (cfg != null)
         {
@@ -239,8 +297,19 @@ public RecorderRtpImpl(RTPTranslator translator)
                 AUDIO_CONTENT_DESCRIPTOR
                         = new ContentDescriptor(FileTypeDescriptor.WAVE);
             }
+            else if ("opus".equalsIgnoreCase(audioCodec))
+            {
+                opusPassthrough = true;
+            }
+            else if ("opus-webm".equalsIgnoreCase(audioCodec))
+            {
+                opusPassthrough = true;
+                opusWebm = true;
+            }
         }
         this.performActiveSpeakerDetection = performActiveSpeakerDetection;
+        this.opusPassthrough = opusPassthrough;
+        this.opusWebm = opusWebm;
     }
 
     /**
@@ -407,6 +476,15 @@ public void stop()
         for(ReceiveStreamDesc r : streamsToRemove)
             removeReceiveStream(r, false);
 
+        List<OpusRecording> opusRecordingsToClose;
+        synchronized (opusRecordings)
+        {
+            opusRecordingsToClose = new ArrayList<>(opusRecordings.values());
+            opusRecordings.clear();
+        }
+        for (OpusRecording r : opusRecordingsToClose)
+            r.close();
+
         rtpConnector.rtcpPacketTransformer.close();
         rtpConnector.rtpPacketTransformer.close();
         rtpManager.dispose();
@@ -994,12 +1072,29 @@ private void audioRecordingStarted(long ssrc, long timestamp)
         if (desc == null)
             return;
 
+        audioRecordingStarted(ssrc, timestamp, desc.filename);
+    }
+
+    /**
+     * Fires a <tt>RECORDING_STARTED</tt> event for an audio file. Its instant
+     * is determined from <tt>timestamp</tt> by the <tt>Synchronizer</tt>, so
+     * that it can be aligned with the other recorded streams.
+     *
+     * @param ssrc the SSRC of the recorded stream.
+     * @param timestamp the RTP timestamp at which the file starts.
+     * @param filename the name of the file.
+     */
+    private void audioRecordingStarted(
+            long ssrc,
+            long timestamp,
+            String filename)
+    {
         RecorderEvent event = new RecorderEvent();
         event.setType(RecorderEvent.Type.RECORDING_STARTED);
         event.setMediaType(MediaType.AUDIO);
         event.setSsrc(ssrc);
         event.setRtpTimestamp(timestamp);
-        event.setFilename(desc.filename);
+        event.setFilename(filename);
 
         if (eventHandler != null)
             eventHandler.handleEvent(event);
@@ -1037,7 +1132,7 @@ private boolean requestFIR(WebmDataSink dataSink)
      * @param suffix
      * @return
      */
-    private String getNextFilename(String prefix, String suffix)
+    static String getNextFilename(String prefix, String suffix)
     {
         if (!new File(prefix + suffix).exists())
             return prefix + suffix;
@@ -1163,9 +1258,20 @@ public void activeSpeakerChanged(long ssrc)
         }
     }
 
-    private void handleRtpPacket(RawPacket pkt)
+    private RawPacket handleRtpPacket(RawPacket pkt)
     {
-        if (pkt != null && pkt.getPayloadType() == vp8PayloadType)
+        if (pkt == null)
+            return null;
+
+        byte pt = pkt.getPayloadType();
+
+        if (pt == opusPayloadType && opusPassthrough)
+        {
+            recordOpus(pkt);
+            // Opus is recorded without FMJ, so that it is not decoded.
+            return null;
+        }
+        else if (pt == vp8PayloadType)
         {
             long ssrc = pkt.getSSRCAsLong();
             if (!activeVideoSsrcs.contains(ssrc))
@@ -1180,12 +1286,155 @@ private void handleRtpPacket(RawPacket pkt)
                 }
             }
         }
+        return pkt;
+    }
+
+    /**
+     * Records an Opus RTP packet without transcoding it.
+     *
+     * @param pkt the packet.
+     */
+    private void recordOpus(RawPacket pkt)
+    {
+        long ssrc = pkt.getSSRCAsLong();
+        OpusRecording recording;
+
+        synchronized (opusRecordings)
+        {
+            recording = opusRecordings.get(ssrc);
+            if (recording == null)
+            {
+                if (!started)
+                    return;
+
+                if (logger.isInfoEnabled())
+                    logger.info("Recording Opus without transcoding, ssrc="
+                                    + ssrc);
+                getSynchronizer().setRtpClockRate(
+                        ssrc,
+                        OggOpusWriter.SAMPLE_RATE);
+                recording
+                    = new OpusRecording(
+                            ssrc,
+                            getAudioLevelExtId(ssrc),
+                            path + "/" + ssrc,
+                            opusWebm
+                                ? OPUS_WEBM_FILENAME_SUFFIX
+                                : OPUS_FILENAME_SUFFIX,
+                            opusWebm,
+                            this::audioRecordingStarted);
+                opusRecordings.put(ssrc, recording);
+            }
+        }
+        recording.addPacket(pkt);
+
+        // Without decoding, the audio levels come from the RTP header
+        // extension.
+        if (activeSpeakerDetector != null)
+        {
+            byte level
+                = pkt.extractSsrcAudioLevel(recording.getAudioLevelExtId());
+
+            if (level >= 0)
+                activeSpeakerDetector.levelChanged(ssrc, level);
+        }
+    }
+
+    /**
+     * Gets the ID of the ssrc-audio-level RTP header extension in a specific
+     * stream from the <tt>MediaStream</tt> of {@link #translator} which
+     * receives it or {@link #AUDIO_LEVEL_EXT_ID} if it is not known.
+     *
+     * @param ssrc the SSRC of the stream.
+     * @return the ID of the ssrc-audio-level RTP header extension in the
+     * stream with SSRC <tt>ssrc</tt>.
+     */
+    private byte getAudioLevelExtId(long ssrc)
+    {
+        StreamRTPManager streamRTPManager
+            = translator.findStreamRTPManagerByReceiveSSRC((int) ssrc);
+        MediaStream stream
+            = (streamRTPManager == null)
+                ? null
+                : streamRTPManager.getMediaStream();
+
+        if (stream != null)
+        {
+            for (Map.Entry<Byte, RTPExtension> e
+                    : stream.getActiveRTPExtensions().entrySet())
+            {
+                if (RTPExtension.SSRC_AUDIO_LEVEL_URN.equals(
+                        e.getValue().getURI().toString()))
+                {
+                    return e.getKey();
+                }
+            }
+        }
+        return AUDIO_LEVEL_EXT_ID;
+    }
+
+    /**
+     * Stops the recording of an Opus stream recorded without transcoding.
+     *
+     * @param ssrc the SSRC of the stream.
+     */
+    private void removeOpusRecording(long ssrc)
+    {
+        OpusRecording recording;
+
+        synchronized (opusRecordings)
+        {
+            recording = opusRecordings.remove(ssrc);
+        }
+        if (recording != null)
+            recording.close();
+    }
+
+    /**
+     * Stops the recordings of the Opus streams recorded without transcoding
+     * which have not received packets for {@link #OPUS_RECORDING_TIMEOUT}.
+     * FMJ does not see these streams and does not time them out.
+     */
+    private void expireOpusRecordings()
+    {
+        long now = System.currentTimeMillis();
+        List<OpusRecording> expired = null;
+
+        synchronized (opusRecordings)
+        {
+            if (now - lastOpusTimeoutCheck < 1000)
+                return;
+            lastOpusTimeoutCheck = now;
+
+            for (Iterator<OpusRecording> i
+                        = opusRecordings.values().iterator();
+                    i.hasNext();)
+            {
+                OpusRecording recording = i.next();
+
+                if (now - recording.getLastPacketTime()
+                        > OPUS_RECORDING_TIMEOUT)
+                {
+                    i.remove();
+                    if (expired == null)
+                        expired = new ArrayList<>();
+                    expired.add(recording);
+                }
+            }
+        }
+        if (expired != null)
+        {
+            for (OpusRecording recording : expired)
+                recording.close();
+        }
     }
 
     private void handleRtcpPacket(RawPacket pkt)
     {
         getSynchronizer().addRTCPPacket(pkt);
         eventHandler.nudge();
+        if (opusPassthrough)
+            expireOpusRecordings();
     }
 
     public SynchronizerImpl getSynchronizer()
@@ -1268,6 +1517,7 @@ private void emptyPacketBuffer(long ssrc)
         private RTPConnectorImpl(byte redPT, byte ulpfecPT)
         {
             packetBuffer = new PacketBuffer();
+            packetBuffer.addPayloadType(vp8PayloadType, Constants.VP8);
             // The chain of transformers will be applied in reverse order for
             // incoming packets.
             TransformEngine transformEngine
@@ -1395,6 +1645,13 @@ public void setSendBufferSize(int arg0) throws IOException
             boolean isControlStream;
             private RawPacket[] rawPacketArray = new RawPacket[1];
 
+            /**
+             * The packet into which written data is copied. It is not taken
+             * from {@link #rawPacketArray} because the packets which the
+             * <tt>PacketBuffer</tt> releases remain its own.
+             */
+            private final RawPacket inputPacket = new RawPacket();
+
             public OutputDataStreamImpl(boolean isControlStream)
             {
                 this.isControlStream = isControlStream;
@@ -1412,9 +1669,7 @@ public synchronized int write(byte[] buffer,
                              int length,
                              boolean transform)
             {
-                RawPacket pkt = rawPacketArray[0];
-                if (pkt == null)
-                    pkt = new RawPacket();
+                RawPacket pkt = inputPacket;
                 rawPacketArray[0] = pkt;
 
                 byte[] pktBuf = pkt.getBuffer();
@@ -1463,9 +1718,7 @@ public synchronized int write(byte[] buffer,
                 {
                     RawPacket packet = rawPacketArray[i];
 
-                    //keep the first element for reuse
-                    if (i != 0)
-                        rawPacketArray[i] = null;
+                    rawPacketArray[i] = null;
 
                     if (packet != null)
                     {
@@ -1655,8 +1908,7 @@ public void setTransferHandler(
                         @Override
                         public RawPacket reverseTransform(RawPacket pkt)
                         {
-                            RecorderRtpImpl.this.handleRtpPacket(pkt);
-                            return pkt;
+                            return RecorderRtpImpl.this.handleRtpPacket(pkt);
                         }
 
                         @Override
@@ -1685,6 +1937,8 @@ public RawPacket reverseTransform(RawPacket pkt)
                         ReceiveStreamDesc receiveStream = findReceiveStream(ssrc);
                         if (receiveStream != null)
                             removeReceiveStream(receiveStream, false);
+                        if (opusPassthrough)
+                            removeOpusRecording(ssrc);
                     }
                     else if (pkt != null && pkt.getRTCPPacketType() == 201)
                     {
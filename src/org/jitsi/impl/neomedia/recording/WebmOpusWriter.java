@@ -0,0 +1,84 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import java.io.*;
+
+/**
+ * Writes Opus packets, as they are, into a WebM file with a single audio
+ * track.
+ */
+class WebmOpusWriter
+    implements OpusPacketWriter
+{
+    /**
+     * The <tt>MatroskaWriter</tt> which writes the file.
+     */
+    private final MatroskaWriter writer;
+
+    /**
+     * The number of the audio track.
+     */
+    private final int track;
+
+    /**
+     * The number of samples written so far i.e. the time at which the next
+     * packet starts.
+     */
+    private long samples = 0;
+
+    /**
+     * Initializes a new <tt>WebmOpusWriter</tt> which writes into a file.
+     *
+     * @param filename the name of the file.
+     * @param channels the number of channels of the stream.
+     * @throws IOException if the file cannot be written.
+     */
+    WebmOpusWriter(String filename, int channels)
+        throws IOException
+    {
+        writer = new MatroskaWriter(filename);
+        track
+            = writer.addAudioTrack(
+                    MatroskaWriter.CODEC_OPUS,
+                    OggOpusWriter.SAMPLE_RATE,
+                    channels,
+                    OggOpusWriter.createOpusHead(channels));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePacket(byte[] buf, int off, int len, int samples)
+        throws IOException
+    {
+        long timecode = this.samples * 1000 / OggOpusWriter.SAMPLE_RATE;
+
+        writer.writeFrame(track, buf, off, len, timecode, true, false);
+        this.samples += samples;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        writer.close();
+    }
+}
@@ -16,14 +16,36 @@
 package org.jitsi.impl.neomedia.recording;
 
 import java.io.*;
-import org.jitsi.utils.*;
 
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * Writes VP8 frames into a WebM file. Implemented on top of
+ * {@link MatroskaWriter} i.e. without native code.
+ */
 public class WebmWriter
 {
-    static
-    {
-        JNIUtils.loadLibrary("jnvpx", WebmWriter.class);
-    }
+    /**
+     * The <tt>Logger</tt> used by the <tt>WebmWriter</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(WebmWriter.class);
+
+    /**
+     * The name of the property which specifies the size in bytes of the
+     * buffer into which the file is written.
+     */
+    public static final String BUFFER_SIZE_PNAME
+        = WebmWriter.class.getName() + ".BUFFER_SIZE";
+
+    /**
+     * The name of the property which specifies whether the buffer is written
+     * to the file on another thread.
+     */
+    public static final String ASYNC_FLUSH_PNAME
+        = WebmWriter.class.getName() + ".ASYNC_FLUSH";
 
     /**
      * Constant corresponding to <tt>VPX_FRAME_IS_KEY</tt> from libvpx's
@@ -37,50 +59,75 @@
      */
     public static int FLAG_FRAME_IS_INVISIBLE = 0x04;
 
-    private long glob;
-
-    private native long allocCfg();
-
     /**
-     * Free-s <tt>glob</tt> and closes the file opened for writing.
-     * @param glob
+     * The <tt>MatroskaWriter</tt> which writes the file.
      */
-    private native void freeCfg(long glob);
+    private final MatroskaWriter writer;
 
-    private native boolean openFile(long glob, String fileName);
-    private native void writeWebmFileHeader(long glob, int width, int height);
-    public void writeWebmFileHeader(int width, int height)
-    {
-        writeWebmFileHeader(glob, width, height);
-    }
-    private native void writeWebmBlock(long glob, FrameDescriptor fd);
-    private native void writeWebmFileFooter(long glob, long hash);
+    /**
+     * The number of the video track or <tt>-1</tt> if the header has not
+     * been written yet.
+     */
+    private int track = -1;
 
     public WebmWriter(String filename)
             throws IOException
     {
-        glob = allocCfg();
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int bufferSize = MatroskaWriter.DEFAULT_BUFFER_SIZE;
+        boolean asyncFlush = false;
 
-        if (glob == 0)
+        if (cfg != null)
         {
-            throw new IOException("allocCfg() failed");
+            bufferSize = cfg.getInt(BUFFER_SIZE_PNAME, bufferSize);
+            asyncFlush = cfg.getBoolean(ASYNC_FLUSH_PNAME, asyncFlush);
         }
 
-        if (openFile(glob, filename))
+        writer = new MatroskaWriter(filename, bufferSize, asyncFlush);
+    }
+
+    public void writeWebmFileHeader(int width, int height)
+    {
+        if (track == -1)
         {
-            throw new IOException("Can not open " + filename + " for writing");
+            track
+                = writer.addVideoTrack(
+                        MatroskaWriter.CODEC_VP8,
+                        width,
+                        height);
         }
     }
 
     public void close()
     {
-        writeWebmFileFooter(glob, 0);
-        freeCfg(glob); //also closes the file
+        try
+        {
+            writer.close();
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Failed to close a WebM file: " + ioe);
+        }
     }
 
     public void writeFrame(FrameDescriptor fd)
     {
-        writeWebmBlock(glob, fd);
+        if (track == -1)
+            return;
+
+        try
+        {
+            writer.writeFrame(
+                    track,
+                    fd.buffer, fd.offset, (int) fd.length,
+                    fd.pts,
+                    (fd.flags & FLAG_FRAME_IS_KEY) != 0,
+                    (fd.flags & FLAG_FRAME_IS_INVISIBLE) != 0);
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Failed to write a frame to a WebM file: " + ioe);
+        }
     }
 
     public static class FrameDescriptor
@@ -208,6 +208,20 @@ public NACKPacket(long senderSSRC, long sourceSSRC,
         this.lostPackets = sorted;
     }
 
+    /**
+     * Initializes a new <tt>NACKPacket</tt> instance with specific "packet
+     * sender SSRC" and "media source SSRC" values and a specific FCI.
+     * @param senderSSRC the value to use for the "packet sender SSRC" field.
+     * @param sourceSSRC the value to use for the "media source SSRC" field.
+     * @param fci the FCI (i.e. the PID and BLP entries) of the packet.
+     */
+    public NACKPacket(long senderSSRC, long sourceSSRC, byte[] fci)
+    {
+        super(FMT, RTPFB, senderSSRC, sourceSSRC);
+
+        this.fci = fci;
+    }
+
     /**
      * @return the set of sequence numbers reported lost in this NACK packet.
      */
@@ -160,6 +160,37 @@ public static PacketMap getPacketsFromFci(ByteArrayBuffer fciBuffer)
      */
     static PacketMap getPacketsFromFci(
         ByteArrayBuffer fciBuffer, boolean includeNotReceived)
+    {
+        PacketMap packets = new PacketMap();
+
+        return
+            readPacketsFromFci(fciBuffer, includeNotReceived, packets::put)
+                ? packets : null;
+    }
+
+    /**
+     * Reads the packets represented in the FCI portion of an RTCP
+     * transport-cc feedback packet and hands them to a
+     * {@link PacketConsumer} in the order of their sequence numbers, without
+     * creating any objects.
+     *
+     * Warning: the timestamps are represented in the 250µs format used by the
+     * on-the-wire format, and don't represent local time.
+     *
+     * @param fciBuffer the buffer which contains the FCI portion of the RTCP
+     * feedback packet.
+     * @param includeNotReceived whether the packets described in the feedback
+     * packet as lost are to be handed to {@code consumer} (with a timestamp of
+     * -1). See {@link #getPacketsFromFci(ByteArrayBuffer, boolean)}.
+     * @param consumer the {@link PacketConsumer} to hand the packets to.
+     * @return {@code true} if the FCI was parsed successfully, or
+     * {@code false} if it is malformed (in which case some packets may have
+     * been handed to {@code consumer} already).
+     */
+    public static boolean readPacketsFromFci(
+        ByteArrayBuffer fciBuffer,
+        boolean includeNotReceived,
+        PacketConsumer consumer)
     {
         int fciLen = -1;
         if (fciBuffer == null
@@ -167,7 +198,7 @@ static PacketMap getPacketsFromFci(
         {
             logger.warn(
                 PARSE_ERROR + "buffer is null or length too small: " + fciLen);
-            return null;
+            return false;
         }
 
         byte[] fciBuf = fciBuffer.getBuffer();
@@ -190,7 +221,7 @@ static PacketMap getPacketsFromFci(
             if (currentPscOff + CHUNK_SIZE_BYTES > fciOff + fciLen)
             {
                 logger.warn(PARSE_ERROR + "reached the end while reading chunks");
-                return null;
+                return false;
             }
 
             int packetsInChunk = getPacketCount(fciBuf, currentPscOff);
@@ -207,7 +238,6 @@ static PacketMap getPacketsFromFci(
         // Reset to the start of the chunks list.
         currentPscOff = fciOff + PACKET_STATUS_CHUNK_OFFSET;
         packetsRemaining = packetStatusCount;
-        PacketMap packets = new PacketMap();
         while (packetsRemaining > 0 && currentPscOff < deltaOff)
         {
             // packetsRemaining is based on the "packet status count" field,
@@ -229,12 +259,12 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                 {
                     for (int i = 0; i < packetsInChunk; i++)
                     {
-                        int seq = (currentSeq + i) % 0xffff;
-                        logPacket(seq, NEGATIVE_ONE, -1, SYMBOL_NOT_RECEIVED);
-                        packets.put(seq, NEGATIVE_ONE);
+                        int seq = (currentSeq + i) & 0xffff;
+                        logPacket(seq, -1, -1, SYMBOL_NOT_RECEIVED);
+                        consumer.accept(seq, -1);
                     }
                 }
-                currentSeq = (currentSeq + packetsInChunk) % 0xffff;
+                currentSeq = (currentSeq + packetsInChunk) & 0xffff;
             }
             else
             {
@@ -254,7 +284,7 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                                 PARSE_ERROR
                                     + "reached the end while reading delta.");
 
-                            return null;
+                            return false;
                         }
                         delta = fciBuf[currentDeltaOff++] & 0xff;
                         break;
@@ -266,7 +296,7 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                             logger.warn(PARSE_ERROR
                                             + "reached the end while reading " +
                                             "long delta.");
-                            return null;
+                            return false;
                         }
                         delta = RTPUtils.readInt16AsInt(fciBuf, currentDeltaOff);
                         currentDeltaOff += 2;
@@ -276,7 +306,7 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                         break;
                     default:
                         logger.warn(PARSE_ERROR + " invalid symbol: " + symbol);
-                        return null;
+                        return false;
                     }
 
                     if (delta == -1)
@@ -288,8 +318,8 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                         // marked as not received.
                         if (includeNotReceived)
                         {
-                            logPacket(currentSeq, NEGATIVE_ONE, delta, symbol);
-                            packets.put(currentSeq, NEGATIVE_ONE);
+                            logPacket(currentSeq, -1, delta, symbol);
+                            consumer.accept(currentSeq, -1);
                         }
                     }
                     else
@@ -301,7 +331,7 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                         // negative).
                         referenceTime += delta;
                         logPacket(currentSeq, referenceTime, delta, symbol);
-                        packets.put(currentSeq, referenceTime);
+                        consumer.accept(currentSeq, referenceTime);
                     }
 
                     currentSeq = (currentSeq + 1) & 0xffff;
@@ -320,7 +350,7 @@ && readSymbol(fciBuf, currentPscOff, chunkType, 0) == SYMBOL_NOT_RECEIVED)
                     + " packets. Ill-formatted RTCP packet?");
         }
 
-        return packets;
+        return true;
     }
 
     /**
@@ -475,19 +505,19 @@ else if (chunkType == CHUNK_TYPE_RLE)
     /**
      * The symbol which indicates that a packet was not received.
      */
-    private static final int SYMBOL_NOT_RECEIVED = 0;
+    static final int SYMBOL_NOT_RECEIVED = 0;
 
     /**
      * The symbol which indicates that a packet was received with a small delta
      * (represented in a 1-byte field).
      */
-    private static final int SYMBOL_SMALL_DELTA = 1;
+    static final int SYMBOL_SMALL_DELTA = 1;
 
     /**
      * The symbol which indicates that a packet was received with a large or
      * negative delta (represented in a 2-byte field).
      */
-    private static final int SYMBOL_LARGE_DELTA = 2;
+    static final int SYMBOL_LARGE_DELTA = 2;
 
     /**
      * The value of the {@code T} bit of a Packet Status Chunk, which
@@ -513,11 +543,6 @@ else if (chunkType == CHUNK_TYPE_RLE)
      */
     private static final int SYMBOL_TYPE_LONG = 1;
 
-    /**
-     * A static object defined here in the hope that it will reduce boxing.
-     */
-    private static final Long NEGATIVE_ONE = -1L;
-
     /**
      * The minimum length of the FCI field of a valid transport-cc RTCP
      * feedback message. 8 bytes for the fixed fields + 2 bytes for one
@@ -528,13 +553,13 @@ else if (chunkType == CHUNK_TYPE_RLE)
     /**
      * The size in bytes of a packet status chunk.
      */
-    private static final int CHUNK_SIZE_BYTES = 2;
+    static final int CHUNK_SIZE_BYTES = 2;
 
     /**
      * The offset of the first packet status chunk relative to the start of the
      * FCI.
      */
-    private static final int PACKET_STATUS_CHUNK_OFFSET = 8;
+    static final int PACKET_STATUS_CHUNK_OFFSET = 8;
 
     /**
      * An error message to use when parsing failed.
@@ -576,8 +601,9 @@ public RTCPTCCPacket(RTCPCompoundPacket base)
      * millisecond increments, which is different than the output map produced
      * after parsing a packet!
      *
-     * Note: this implementation is not optimized and might not always use
-     * the minimal possible number of bytes to describe a given set of packets.
+     * Note: this constructor copies the packets into a {@link TCCPacketRing}
+     * and writes them with a new {@link TCCFciWriter}. Code which sends
+     * feedback repeatedly should keep its own instances of these instead.
      */
     public RTCPTCCPacket(
             long senderSSRC, long sourceSSRC, PacketMap packets,
@@ -585,10 +611,9 @@ public RTCPTCCPacket(
     {
         super(FMT, RTPFB, senderSSRC, sourceSSRC);
 
-        Map.Entry<Integer, Long> first = packets.firstEntry();
-        int firstSeq = first.getKey();
-        Map.Entry<Integer, Long> last = packets.lastEntry();
-        int packetCount = 1 + RTPUtils.subtractNumber(last.getKey(), firstSeq);
+        int firstSeq = packets.firstKey();
+        int packetCount
+            = 1 + RTPUtils.subtractNumber(packets.lastKey(), firstSeq);
 
         if (packetCount > MAX_PACKET_COUNT)
         {
@@ -596,158 +621,20 @@ public RTCPTCCPacket(
                 new IllegalArgumentException("Too many packets: " + packetCount);
         }
 
-        // Temporary buffer to store the fixed fields (8 bytes) and the list of
-        // packet status chunks (see the format above). The buffer may be longer
-        // than needed. We pack 7 packets in a chunk, and a chunk is 2 bytes.
-        byte[] buf = packetCount % 7 == 0
-            ? new byte[(packetCount / 7) * 2 + 8]
-            : new byte[(packetCount / 7 + 1) * 2 + 8];
-        // Temporary buffer to store the list of deltas (see the format above).
-        // We allocated for the worst case (2 bytes per packet), which may
-        // be longer than needed.
-        byte[] deltas = new byte[packetCount * 2];
-        int deltaOff = 0;
-        int off = 0;
-
-        long referenceTime = first.getValue();
-        referenceTime -= referenceTime % 64;
-
-        // Set the 'base sequence number' field
-        off += RTPUtils.writeShort(buf, off, (short) (int) first.getKey());
-
-        // Set the 'packet status count' field
-        off += RTPUtils.writeShort(buf, off, (short) packetCount);
-
-        // Set the 'reference time' field
-        off += RTPUtils.writeUint24(
-                buf, off, (int) ((referenceTime >> 6) & 0xffffff));
-
-        // Set the 'fb pkt count' field. TODO increment
-        buf[off++] = fbPacketCount;
-
-        // Add the packet status chunks. In this first impl we'll just use
-        // status vector chunks (T=1) with two-bit symbols (S=1) as this is
-        // most straightforward to implement.
-        // TODO: optimize for size
-        long nextReferenceTime = referenceTime;
-        off--; // we'll take care of this inside the loop.
-        for (int seqDelta = 0; seqDelta < packetCount; seqDelta++)
+        TCCPacketRing ring = new TCCPacketRing(MAX_PACKET_COUNT, false);
+        for (Map.Entry<Integer, Long> entry : packets.entrySet())
         {
-            // A status vector chunk with two-bit symbols contains 7 packet
-            // symbols
-            if (seqDelta % 7 == 0)
-            {
-                off++;
-                buf[off] = (byte) 0xc0; //T=1, S=1
-            }
-            else if (seqDelta % 7 == 3)
-            {
-                off++;
-                // Clear previous contents.
-                buf[off] = 0;
-            }
-
-            int symbol;
-
-            int seq = (firstSeq + seqDelta) & 0xffff;
-            Long ts = packets.get(seq);
-            if (ts == null || ts < 0)
-            {
-                symbol = SYMBOL_NOT_RECEIVED;
-            }
-            else
-            {
-                long tsDelta = ts - nextReferenceTime;
-                if (tsDelta >= 0 && tsDelta <= 63)
-                {
-                    symbol = SYMBOL_SMALL_DELTA;
-
-                    // The small delta is an 8-bit unsigned with a resolution of
-                    // 250µs. Our deltas are all in milliseconds (hence << 2).
-                    deltas[deltaOff++] = (byte) ((tsDelta << 2) & 0xff);
-                    if (logger.isTraceEnabled())
-                    {
-                        logger.trace(diagnosticContext
-                                .makeTimeSeriesPoint("small_delta")
-                                .addField("seq", seq)
-                                .addField("arrival_time_ms", ts)
-                                .addField("ref_time_ms", nextReferenceTime)
-                                .addField("delta", tsDelta));
-                    }
-                }
-                else if (tsDelta < 8191 && tsDelta > -8192)
-                {
-                    symbol = SYMBOL_LARGE_DELTA;
-
-                    // The large or negative delta is a 16-bit signed integer
-                    // with a resolution of 250µs (hence << 2).
-                    short d = (short) (tsDelta << 2);
-                    deltas[deltaOff++] = (byte) ((d >> 8) & 0xff);
-                    deltas[deltaOff++] = (byte) ((d) & 0xff);
-                    if (logger.isTraceEnabled())
-                    {
-                        logger.trace(diagnosticContext
-                                .makeTimeSeriesPoint("large_delta")
-                                .addField("seq", seq)
-                                .addField("arrival_time_ms", ts)
-                                .addField("ref_time_ms", nextReferenceTime)
-                                .addField("delta", tsDelta));
-                    }
-                }
-                else
-                {
-                    // The RTCP packet format does not support deltas bigger
-                    // than what we handle above. As per the draft, if we want
-                    // send feedback with such deltas, we should split it up
-                    // into multiple RTCP packets. We can't do that here in the
-                    // constructor.
-                    throw new IllegalArgumentException(
-                            "Delta too big, needs new reference.");
-                }
-
-                // If the packet was received, the next delta will be relative
-                // to its time. Otherwise, we'll just the previous reference.
-                nextReferenceTime = ts;
-            }
-
-            // Depending on the index of our packet, we have to offset its
-            // symbol (we've already set 'off' to point to the correct byte).
-            //  0 1 2 3 4 5 6 7          8 9 0 1 2 3 4 5
-            //  S T <0> <1> <2>          <3> <4> <5> <6>
-            int symbolShift;
-            switch (seqDelta % 7)
+            long ts = entry.getValue();
+            if (ts >= 0)
             {
-            case 0:
-            case 4:
-                symbolShift = 4;
-                break;
-            case 1:
-            case 5:
-                symbolShift = 2;
-                break;
-            case 2:
-            case 6:
-                symbolShift = 0;
-                break;
-            case 3:
-            default:
-                symbolShift = 6;
+                ring.put(entry.getKey(), ts);
             }
-
-            symbol <<= symbolShift;
-            buf[off] |= symbol;
         }
 
-        off++;
-        if (packetCount % 7 > 0 && packetCount % 7 <= 3)
-        {
-            // the last chunk was not complete
-            buf[off++] = 0;
-        }
+        TCCFciWriter writer = new TCCFciWriter(diagnosticContext);
+        int fciLength = writer.writeFci(ring, fbPacketCount, 0);
 
-        fci = new byte[off + deltaOff];
-        System.arraycopy(buf, 0, fci, 0, off);
-        System.arraycopy(deltas, 0, fci, off, deltaOff);
+        fci = Arrays.copyOf(writer.getBuffer(), fciLength);
     }
 
     /**
@@ -770,6 +657,26 @@ synchronized public PacketMap getPackets()
         return packets;
     }
 
+    /**
+     * Reads the packets represented by this {@link RTCPTCCPacket} and hands
+     * them to a {@link PacketConsumer} without creating any objects. Packets
+     * described as lost are not included.
+     *
+     * Warning: the timestamps are represented in the 250µs format used by the
+     * on-the-wire format, and don't represent local time.
+     *
+     * @param consumer the {@link PacketConsumer} to hand the packets to.
+     * @return {@code true} if the packet was parsed successfully.
+     */
+    public boolean readPackets(PacketConsumer consumer)
+    {
+        return
+            readPacketsFromFci(
+                    new ByteArrayBufferImpl(fci, 0, fci.length),
+                    false,
+                    consumer);
+    }
+
     /**
      * @return the value of the "fb packet count" field of this packet, or -1.
      */
@@ -802,6 +709,23 @@ private static void logPacket(
         }
     }
 
+    /**
+     * Receives the packets described by an RTCP transport-cc feedback packet
+     * one at a time, without boxing.
+     */
+    public interface PacketConsumer
+    {
+        /**
+         * Receives a packet described by an RTCP transport-cc feedback packet.
+         *
+         * @param seq the transport-wide sequence number of the packet.
+         * @param timestamp the reception timestamp of the packet in the 250µs
+         * format used by the on-the-wire format, or -1 if the packet was
+         * reported as not received.
+         */
+        void accept(int seq, long timestamp);
+    }
+
     /**
      * An ordered collection which maps sequence numbers to timestamps, the
      * order is by the sequence number.
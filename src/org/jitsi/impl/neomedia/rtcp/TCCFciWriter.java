@@ -0,0 +1,474 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtcp;
+
+import org.jitsi.util.*;
+import org.jitsi.utils.logging.*;
+
+import static org.jitsi.impl.neomedia.rtcp.RTCPTCCPacket.*;
+
+/**
+ * Writes RTCP transport-cc feedback packets (see {@link RTCPTCCPacket})
+ * describing the packets in a {@link TCCPacketRing} into a reusable buffer.
+ *
+ * The packet status chunks are emitted as the packets are visited: a chunk
+ * is kept open while the next symbol fits in it and it is written as a run
+ * length chunk if all of its symbols are the same, as a status vector chunk
+ * with 1-bit symbols if it has 14 symbols none of which is a large delta,
+ * or as a status vector chunk with 2-bit symbols otherwise (webrtc.org
+ * transport_feedback.cc). The receive deltas are written as they are
+ * computed after the room reserved for the chunks and moved right behind
+ * the last chunk at the end.
+ *
+ * Instances are not thread-safe.
+ */
+public class TCCFciWriter
+{
+    /**
+     * The {@link Logger} used by the {@link TCCFciWriter} class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(TCCFciWriter.class);
+
+    /**
+     * The length in bytes of the fixed fields of an RTCP feedback packet.
+     */
+    private static final int RTCP_HEADER_LENGTH = 12;
+
+    /**
+     * The maximum number of symbols in a status vector chunk.
+     */
+    private static final int MAX_VECTOR_CAPACITY = 14;
+
+    /**
+     * The maximum number of 2-bit symbols in a status vector chunk.
+     */
+    private static final int MAX_TWO_BIT_CAPACITY = 7;
+
+    /**
+     * The maximum run length of a run length chunk.
+     */
+    private static final int MAX_RUN_LENGTH = 0x1fff;
+
+    /**
+     * The {@link DiagnosticContext} to use to print diagnostic information.
+     */
+    private final DiagnosticContext diagnosticContext;
+
+    /**
+     * The buffer into which packets are written.
+     */
+    private byte[] buf;
+
+    /**
+     * The offset in {@link #buf} at which the next chunk is to be written.
+     */
+    private int chunkOff;
+
+    /**
+     * The symbols of the open chunk, two bits per symbol with the first
+     * symbol in the least significant bits. Holds at most
+     * {@link #MAX_VECTOR_CAPACITY} symbols (a longer chunk is a run of the
+     * first symbol).
+     */
+    private int chunkSymbols;
+
+    /**
+     * The number of symbols in the open chunk.
+     */
+    private int chunkSize;
+
+    /**
+     * Whether all symbols in the open chunk are the same.
+     */
+    private boolean allSame;
+
+    /**
+     * Whether the open chunk has a large delta symbol.
+     */
+    private boolean hasLargeDelta;
+
+    /**
+     * Initializes a new <tt>TCCFciWriter</tt> instance.
+     *
+     * @param diagnosticContext the {@link DiagnosticContext} to use to print
+     * diagnostic information.
+     */
+    public TCCFciWriter(DiagnosticContext diagnosticContext)
+    {
+        this.diagnosticContext = diagnosticContext;
+        buf = new byte[getMaxLength(MAX_PACKET_COUNT)];
+    }
+
+    /**
+     * Gets the maximum length of an RTCP transport-cc feedback packet which
+     * describes a specific number of packets.
+     *
+     * @param packetCount the number of packets (including missing packets).
+     * @return the maximum length of an RTCP transport-cc feedback packet which
+     * describes <tt>packetCount</tt> packets.
+     */
+    private static int getMaxLength(int packetCount)
+    {
+        return RTCP_HEADER_LENGTH
+            + PACKET_STATUS_CHUNK_OFFSET
+            + getMaxChunksLength(packetCount)
+            + 2 * packetCount /* large deltas */
+            + 3 /* padding */;
+    }
+
+    /**
+     * Gets the maximum length of the packet status chunks which describe a
+     * specific number of packets. Every chunk but the last describes at least
+     * {@link #MAX_TWO_BIT_CAPACITY} packets.
+     *
+     * @param packetCount the number of packets (including missing packets).
+     * @return the maximum length of the packet status chunks which describe
+     * <tt>packetCount</tt> packets.
+     */
+    private static int getMaxChunksLength(int packetCount)
+    {
+        return
+            (packetCount + MAX_TWO_BIT_CAPACITY - 1) / MAX_TWO_BIT_CAPACITY
+                * CHUNK_SIZE_BYTES;
+    }
+
+    /**
+     * Gets the buffer into which this instance writes. Its contents are valid
+     * until the next write.
+     *
+     * @return the buffer into which this instance writes.
+     */
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /**
+     * Writes a complete RTCP transport-cc feedback packet (padded to a 32-bit
+     * boundary) at the beginning of {@link #getBuffer()}.
+     *
+     * @param senderSSRC the value to use for the "packet sender SSRC" field.
+     * @param sourceSSRC the value to use for the "media source SSRC" field.
+     * @param packets the packets to describe. The timestamps are expected to
+     * be in milliseconds.
+     * @param fbPacketCount the value to use for the "fb pkt count" field.
+     * @return the length in bytes of the packet.
+     * @throws IllegalArgumentException if <tt>packets</tt> is empty, describes
+     * more than {@link RTCPTCCPacket#MAX_PACKET_COUNT} packets or contains a
+     * delta which is too big to be expressed in a single packet.
+     */
+    public int writeRtcp(
+            long senderSSRC,
+            long sourceSSRC,
+            TCCPacketRing packets,
+            int fbPacketCount)
+    {
+        int fciLength = writeFci(packets, fbPacketCount, RTCP_HEADER_LENGTH);
+        int length = RTCP_HEADER_LENGTH + fciLength;
+
+        // Pad to a word.
+        while (length % 4 != 0)
+        {
+            buf[length++] = 0;
+        }
+
+        buf[0] = (byte) (0x80 /* version */ | FMT);
+        buf[1] = (byte) RTCPFBPacket.RTPFB;
+        RTPUtils.writeShort(buf, 2, (short) (length / 4 - 1));
+        RTPUtils.writeInt(buf, 4, (int) senderSSRC);
+        RTPUtils.writeInt(buf, 8, (int) sourceSSRC);
+        return length;
+    }
+
+    /**
+     * Writes the FCI of an RTCP transport-cc feedback packet into
+     * {@link #getBuffer()}.
+     *
+     * @param packets the packets to describe. The timestamps are expected to
+     * be in milliseconds.
+     * @param fbPacketCount the value to use for the "fb pkt count" field.
+     * @param off the offset in {@link #getBuffer()} at which to write.
+     * @return the length in bytes of the FCI (without padding).
+     * @throws IllegalArgumentException if <tt>packets</tt> is empty, describes
+     * more than {@link RTCPTCCPacket#MAX_PACKET_COUNT} packets or contains a
+     * delta which is too big to be expressed in a single packet.
+     */
+    int writeFci(TCCPacketRing packets, int fbPacketCount, int off)
+    {
+        int packetCount = packets.getPacketCount();
+
+        if (packetCount == 0)
+        {
+            throw new IllegalArgumentException("No packets");
+        }
+        if (packetCount > MAX_PACKET_COUNT)
+        {
+            throw
+                new IllegalArgumentException("Too many packets: " + packetCount);
+        }
+
+        int firstSeq = packets.getFirstSeq();
+        long referenceTime = packets.getTime(firstSeq);
+        referenceTime -= referenceTime % 64;
+
+        // The fixed fields.
+        RTPUtils.writeShort(buf, off, (short) firstSeq);
+        RTPUtils.writeShort(buf, off + 2, (short) packetCount);
+        RTPUtils.writeUint24(
+                buf, off + 4, (int) ((referenceTime >> 6) & 0xffffff));
+        buf[off + 7] = (byte) fbPacketCount;
+
+        // The chunks are written from chunkOff on and the deltas after the
+        // room reserved for the chunks.
+        chunkOff = off + PACKET_STATUS_CHUNK_OFFSET;
+        chunkSize = 0;
+
+        int deltaStart = chunkOff + getMaxChunksLength(packetCount);
+        int deltaOff = deltaStart;
+        long nextReferenceTime = referenceTime;
+
+        for (int seqDelta = 0; seqDelta < packetCount; seqDelta++)
+        {
+            int seq = (firstSeq + seqDelta) & 0xffff;
+            long ts = packets.getTime(seq);
+            int symbol;
+
+            if (ts < 0)
+            {
+                symbol = SYMBOL_NOT_RECEIVED;
+            }
+            else
+            {
+                long tsDelta = ts - nextReferenceTime;
+                if (tsDelta >= 0 && tsDelta <= 63)
+                {
+                    symbol = SYMBOL_SMALL_DELTA;
+
+                    // The small delta is an 8-bit unsigned with a resolution of
+                    // 250µs. Our deltas are all in milliseconds (hence << 2).
+                    buf[deltaOff++] = (byte) ((tsDelta << 2) & 0xff);
+                }
+                else if (tsDelta < 8191 && tsDelta > -8192)
+                {
+                    symbol = SYMBOL_LARGE_DELTA;
+
+                    // The large or negative delta is a 16-bit signed integer
+                    // with a resolution of 250µs (hence << 2).
+                    deltaOff
+                        += RTPUtils.writeShort(
+                                buf, deltaOff, (short) (tsDelta << 2));
+                }
+                else
+                {
+                    // The RTCP packet format does not support deltas bigger
+                    // than what we handle above. As per the draft, if we want
+                    // send feedback with such deltas, we should split it up
+                    // into multiple RTCP packets.
+                    throw new IllegalArgumentException(
+                            "Delta too big, needs new reference.");
+                }
+
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace(diagnosticContext
+                            .makeTimeSeriesPoint(
+                                symbol == SYMBOL_SMALL_DELTA
+                                    ? "small_delta" : "large_delta")
+                            .addField("seq", seq)
+                            .addField("arrival_time_ms", ts)
+                            .addField("ref_time_ms", nextReferenceTime)
+                            .addField("delta", tsDelta));
+                }
+
+                // If the packet was received, the next delta will be relative
+                // to its time. Otherwise, we'll just the previous reference.
+                nextReferenceTime = ts;
+            }
+
+            addSymbol(symbol);
+        }
+        emitLastChunk();
+
+        // Move the deltas right behind the last chunk.
+        int deltaLength = deltaOff - deltaStart;
+
+        if (chunkOff != deltaStart)
+        {
+            System.arraycopy(buf, deltaStart, buf, chunkOff, deltaLength);
+        }
+        return chunkOff + deltaLength - off;
+    }
+
+    /**
+     * Adds a symbol to the open chunk, emitting the chunk first if the symbol
+     * does not fit in it.
+     *
+     * @param symbol the symbol to add.
+     */
+    private void addSymbol(int symbol)
+    {
+        if (!canAddSymbol(symbol))
+        {
+            emitChunk();
+        }
+        if (chunkSize == 0)
+        {
+            chunkSymbols = 0;
+            allSame = true;
+            hasLargeDelta = false;
+        }
+        else if (symbol != (chunkSymbols & 0x03))
+        {
+            allSame = false;
+        }
+        if (chunkSize < MAX_VECTOR_CAPACITY)
+        {
+            chunkSymbols |= symbol << (2 * chunkSize);
+        }
+        hasLargeDelta |= symbol == SYMBOL_LARGE_DELTA;
+        chunkSize++;
+    }
+
+    /**
+     * Checks whether a symbol fits in the open chunk.
+     *
+     * @param symbol the symbol to check.
+     * @return <tt>true</tt> if <tt>symbol</tt> fits in the open chunk.
+     */
+    private boolean canAddSymbol(int symbol)
+    {
+        if (chunkSize < MAX_TWO_BIT_CAPACITY)
+            return true;
+        if (chunkSize < MAX_VECTOR_CAPACITY
+                && !hasLargeDelta
+                && symbol != SYMBOL_LARGE_DELTA)
+        {
+            return true;
+        }
+        return
+            chunkSize < MAX_RUN_LENGTH
+                && allSame
+                && (chunkSymbols & 0x03) == symbol;
+    }
+
+    /**
+     * Emits the open chunk because the next symbol does not fit in it. Emits
+     * only the first {@link #MAX_TWO_BIT_CAPACITY} symbols if the chunk is
+     * neither a run nor a full 1-bit status vector, and keeps the remaining
+     * symbols open.
+     */
+    private void emitChunk()
+    {
+        if (allSame)
+        {
+            writeRunLengthChunk();
+            chunkSize = 0;
+        }
+        else if (chunkSize == MAX_VECTOR_CAPACITY)
+        {
+            writeOneBitVectorChunk();
+            chunkSize = 0;
+        }
+        else
+        {
+            writeTwoBitVectorChunk(MAX_TWO_BIT_CAPACITY);
+
+            // Keep the remaining symbols.
+            chunkSymbols >>>= 2 * MAX_TWO_BIT_CAPACITY;
+            chunkSize -= MAX_TWO_BIT_CAPACITY;
+            allSame = true;
+            hasLargeDelta = false;
+            for (int i = 0; i < chunkSize; i++)
+            {
+                int symbol = (chunkSymbols >>> (2 * i)) & 0x03;
+
+                allSame &= symbol == (chunkSymbols & 0x03);
+                hasLargeDelta |= symbol == SYMBOL_LARGE_DELTA;
+            }
+        }
+    }
+
+    /**
+     * Emits the open chunk (if any) as the last chunk.
+     */
+    private void emitLastChunk()
+    {
+        if (chunkSize == 0)
+            return;
+
+        if (allSame)
+            writeRunLengthChunk();
+        else if (chunkSize <= MAX_TWO_BIT_CAPACITY)
+            writeTwoBitVectorChunk(chunkSize);
+        else
+            writeOneBitVectorChunk();
+        chunkSize = 0;
+    }
+
+    /**
+     * Writes the open chunk as a run length chunk.
+     */
+    private void writeRunLengthChunk()
+    {
+        //  0                   1
+        //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        // |T| S |       Run Length        |
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        int chunk = ((chunkSymbols & 0x03) << 13) | chunkSize;
+
+        chunkOff += RTPUtils.writeShort(buf, chunkOff, (short) chunk);
+    }
+
+    /**
+     * Writes the open chunk as a status vector chunk with 1-bit symbols.
+     */
+    private void writeOneBitVectorChunk()
+    {
+        // Note that webrtc.org (and the parser) use 1 for received (i.e. the
+        // small delta symbol) and 0 for not received.
+        int chunk = 0x8000;
+
+        for (int i = 0; i < chunkSize; i++)
+        {
+            chunk |= ((chunkSymbols >>> (2 * i)) & 0x01) << (13 - i);
+        }
+        chunkOff += RTPUtils.writeShort(buf, chunkOff, (short) chunk);
+    }
+
+    /**
+     * Writes the first symbols of the open chunk as a status vector chunk
+     * with 2-bit symbols.
+     *
+     * @param count the number of symbols to write.
+     */
+    private void writeTwoBitVectorChunk(int count)
+    {
+        //  0                   1
+        //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        // |T|S| s0| s1| s2| s3| s4| s5| s6|
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        int chunk = 0xc000;
+
+        for (int i = 0; i < count; i++)
+        {
+            chunk |= ((chunkSymbols >>> (2 * i)) & 0x03) << (12 - 2 * i);
+        }
+        chunkOff += RTPUtils.writeShort(buf, chunkOff, (short) chunk);
+    }
+}
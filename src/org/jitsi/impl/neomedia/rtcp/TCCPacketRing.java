@@ -0,0 +1,357 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtcp;
+
+import org.jitsi.util.*;
+
+import java.util.*;
+
+/**
+ * Maps a window of transport-wide sequence numbers to timestamps (and
+ * optionally packet lengths) without boxing. The entries are kept in
+ * primitive arrays indexed by the sequence number modulo their length, so
+ * that a lookup is a single array access.
+ *
+ * The window spans from {@link #getFirstSeq()} to {@link #getLastSeq()} and
+ * never covers more than {@code capacity} sequence numbers: adding a sequence
+ * number which is too new drops the oldest entries, and one which is too old
+ * is ignored. The slots outside of the window are always empty.
+ *
+ * Instances are not thread-safe.
+ */
+public class TCCPacketRing
+{
+    /**
+     * The value of a slot of {@link #times} which holds no packet.
+     */
+    private static final long EMPTY = -1;
+
+    /**
+     * The maximum number of sequence numbers in the window.
+     */
+    private final int capacity;
+
+    /**
+     * The mask to apply to a sequence number to get its slot.
+     */
+    private final int mask;
+
+    /**
+     * The timestamps of the packets (or {@link #EMPTY}).
+     */
+    private final long[] times;
+
+    /**
+     * The lengths of the packets, or <tt>null</tt> if this instance does not
+     * keep lengths.
+     */
+    private final int[] lengths;
+
+    /**
+     * The first sequence number in the window (if {@link #span} is positive).
+     */
+    private int firstSeq = 0;
+
+    /**
+     * The number of sequence numbers in the window (including the ones with
+     * no packet).
+     */
+    private int span = 0;
+
+    /**
+     * The number of packets in the window.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes a new <tt>TCCPacketRing</tt> instance.
+     *
+     * @param capacity the maximum number of sequence numbers in the window.
+     * @param keepLengths whether the new instance is to keep the lengths of
+     * the packets.
+     */
+    public TCCPacketRing(int capacity, boolean keepLengths)
+    {
+        if (capacity < 1 || capacity > 1 << 15)
+            throw new IllegalArgumentException("capacity " + capacity);
+
+        this.capacity = capacity;
+
+        int length = Integer.highestOneBit(capacity);
+
+        if (length < capacity)
+            length <<= 1;
+        mask = length - 1;
+        times = new long[length];
+        Arrays.fill(times, EMPTY);
+        lengths = keepLengths ? new int[length] : null;
+    }
+
+    /**
+     * Adds a packet.
+     *
+     * @param seq the transport-wide sequence number of the packet.
+     * @param time the (non-negative) timestamp of the packet.
+     * @return <tt>true</tt> if the packet was added, or <tt>false</tt> if its
+     * sequence number is too old to fit in the window.
+     */
+    public boolean put(int seq, long time)
+    {
+        return put(seq, time, 0);
+    }
+
+    /**
+     * Adds a packet.
+     *
+     * @param seq the transport-wide sequence number of the packet.
+     * @param time the (non-negative) timestamp of the packet.
+     * @param length the length of the packet.
+     * @return <tt>true</tt> if the packet was added, or <tt>false</tt> if its
+     * sequence number is too old to fit in the window.
+     */
+    public boolean put(int seq, long time, int length)
+    {
+        seq &= 0xffff;
+        if (span == 0)
+        {
+            firstSeq = seq;
+            span = 1;
+        }
+        else
+        {
+            int delta = RTPUtils.getSequenceNumberDelta(seq, firstSeq);
+
+            if (delta >= span)
+            {
+                // Newer than the window. Drop the oldest entries if needed.
+                int drop = delta + 1 - capacity;
+
+                if (drop >= span)
+                {
+                    clear();
+                    firstSeq = seq;
+                    span = 1;
+                }
+                else
+                {
+                    if (drop > 0)
+                        advance(drop);
+                    span = RTPUtils.getSequenceNumberDelta(seq, firstSeq) + 1;
+                }
+            }
+            else if (delta < 0)
+            {
+                // Older than the window.
+                if (span - delta > capacity)
+                    return false;
+
+                firstSeq = seq;
+                span -= delta;
+            }
+        }
+
+        int slot = seq & mask;
+
+        if (times[slot] == EMPTY)
+            size++;
+        times[slot] = time;
+        if (lengths != null)
+            lengths[slot] = length;
+        return true;
+    }
+
+    /**
+     * Moves the start of the window forward, emptying the slots which leave
+     * the window, and then past any empty slots.
+     *
+     * @param count the number of sequence numbers to move the start of the
+     * window by.
+     */
+    private void advance(int count)
+    {
+        for (int i = 0; i < count && span > 0; i++)
+        {
+            int slot = firstSeq & mask;
+
+            if (times[slot] != EMPTY)
+            {
+                times[slot] = EMPTY;
+                size--;
+            }
+            firstSeq = (firstSeq + 1) & 0xffff;
+            span--;
+        }
+        while (span > 0 && times[firstSeq & mask] == EMPTY)
+        {
+            firstSeq = (firstSeq + 1) & 0xffff;
+            span--;
+        }
+    }
+
+    /**
+     * Gets the slot of a sequence number if it is in the window.
+     *
+     * @param seq the sequence number.
+     * @return the slot of <tt>seq</tt> or <tt>-1</tt> if <tt>seq</tt> is not
+     * in the window.
+     */
+    private int slotOf(int seq)
+    {
+        if (span == 0)
+            return -1;
+
+        int delta = RTPUtils.getSequenceNumberDelta(seq & 0xffff, firstSeq);
+
+        return delta < 0 || delta >= span ? -1 : seq & mask;
+    }
+
+    /**
+     * Gets the timestamp of a packet.
+     *
+     * @param seq the transport-wide sequence number of the packet.
+     * @return the timestamp of the packet with sequence number <tt>seq</tt>,
+     * or <tt>-1</tt> if there is no such packet.
+     */
+    public long getTime(int seq)
+    {
+        int slot = slotOf(seq);
+
+        return slot == -1 ? EMPTY : times[slot];
+    }
+
+    /**
+     * Gets the length of a packet.
+     *
+     * @param seq the transport-wide sequence number of the packet.
+     * @return the length of the packet with sequence number <tt>seq</tt>, or
+     * <tt>-1</tt> if there is no such packet or this instance does not keep
+     * lengths.
+     */
+    public int getLength(int seq)
+    {
+        int slot = slotOf(seq);
+
+        return slot == -1 || lengths == null || times[slot] == EMPTY
+            ? -1 : lengths[slot];
+    }
+
+    /**
+     * Removes a packet.
+     *
+     * @param seq the transport-wide sequence number of the packet.
+     * @return the timestamp of the removed packet, or <tt>-1</tt> if there
+     * was no packet with sequence number <tt>seq</tt>.
+     */
+    public long remove(int seq)
+    {
+        int slot = slotOf(seq);
+
+        if (slot == -1)
+            return EMPTY;
+
+        long time = times[slot];
+
+        if (time != EMPTY)
+        {
+            times[slot] = EMPTY;
+            size--;
+            if (size == 0)
+            {
+                span = 0;
+            }
+            else if (slot == (firstSeq & mask))
+            {
+                advance(0);
+            }
+            else
+            {
+                // Shrink the end of the window past any empty slots.
+                while (times[(firstSeq + span - 1) & mask] == EMPTY)
+                {
+                    span--;
+                }
+            }
+        }
+        return time;
+    }
+
+    /**
+     * Removes all packets.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < span; i++)
+        {
+            times[(firstSeq + i) & mask] = EMPTY;
+        }
+        span = 0;
+        size = 0;
+    }
+
+    /**
+     * Gets the first sequence number in the window. Undefined if this
+     * instance is empty.
+     *
+     * @return the first sequence number in the window.
+     */
+    public int getFirstSeq()
+    {
+        return firstSeq;
+    }
+
+    /**
+     * Gets the last sequence number in the window. Undefined if this instance
+     * is empty.
+     *
+     * @return the last sequence number in the window.
+     */
+    public int getLastSeq()
+    {
+        return (firstSeq + span - 1) & 0xffff;
+    }
+
+    /**
+     * Gets the number of sequence numbers in the window, including the ones
+     * without a packet (i.e. the number of packets which a feedback packet
+     * describing this instance would report on).
+     *
+     * @return the number of sequence numbers in the window.
+     */
+    public int getPacketCount()
+    {
+        return span;
+    }
+
+    /**
+     * Gets the number of packets in this instance.
+     *
+     * @return the number of packets in this instance.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Checks whether this instance holds no packets.
+     *
+     * @return <tt>true</tt> if this instance holds no packets.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+}
@@ -19,12 +19,13 @@
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
 import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.logging.*;
 
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /**
  * An simple interface which allows a packet to be retrieved from a
@@ -56,7 +57,9 @@
         = "org.jitsi.impl.neomedia.transform.CachingTransformer.CACHE_SIZE_STREAMS";
 
     /**
-     * Configuration property number of packets to cache.
+     * Configuration property number of packets to cache (per SSRC). The
+     * packets are kept in a ring the length of which is the next power of
+     * two, but no more than this number of the most recent packets are kept.
      */
     public final static String NACK_CACHE_SIZE_PACKETS
         = "org.jitsi.impl.neomedia.transform.CachingTransformer.CACHE_SIZE_PACKETS";
@@ -84,61 +87,56 @@
      * The maximum number of packets cached for each SSRC. A 1080p stream maxes
      * out at around 500 packets per second (pps). Assuming an RTT of 500ms, a
      * 250packets/500ms packet cache is just enough. In order to be on the safe
-     * side, we use the double as defaults.
+     * side, we use the double as defaults. Packets which are this many
+     * packets older than the newest one are evicted even though
+     * {@link #CAPACITY} may be larger.
      */
     private static int MAX_SIZE_PACKETS
         = cfg.getInt(NACK_CACHE_SIZE_PACKETS, 500);
 
     /**
-     * The size of {@link #pool} and {@link #containersPool}.
+     * The number of slots in the ring of each {@link Cache}: the smallest
+     * power of two which is not less than {@link #MAX_SIZE_PACKETS}. The
+     * slots beyond {@link #MAX_SIZE_PACKETS} only make the mapping of
+     * sequence numbers to slots a mask; they never hold more packets.
      */
-    private static int POOL_SIZE = 100;
+    private static final int CAPACITY
+        = Integer.highestOneBit(Math.max(1, MAX_SIZE_PACKETS - 1)) << 1;
 
     /**
-     * The amount of time, after which the cache for an SSRC will be cleared,
-     * unless new packets have been inserted.
-     */
-    private static int SSRC_TIMEOUT_MILLIS = SIZE_MILLIS + 50;
-
-    /**
-     * The pool of <tt>RawPacket</tt>s which we use to avoid allocation and GC.
+     * The mask which maps an extended sequence number to a slot in the ring
+     * of a {@link Cache}.
      */
-    private final Queue<RawPacket> pool
-        = new LinkedBlockingQueue<>(POOL_SIZE);
+    private static final int MASK = CAPACITY - 1;
 
     /**
-     * A cache of unused {@link Container} instances.
-     */
-    private final Queue<Container> containersPool
-        = new LinkedBlockingQueue<>(POOL_SIZE);
-
-    /**
-     * An object used to synchronize access to {@link #sizeInBytes},
-     * {@link #maxSizeInBytes}, {@link #sizeInPackets} and
-     * {@link #maxSizeInPackets}.
+     * The amount of time, after which the cache for an SSRC will be cleared,
+     * unless new packets have been inserted.
      */
-    private final Object sizesSyncRoot = new Object();
+    private static int SSRC_TIMEOUT_MILLIS = SIZE_MILLIS + 50;
 
     /**
      * The current size in bytes of the cache (for all SSRCs combined).
      */
-    private int sizeInBytes = 0;
+    private final AtomicInteger sizeInBytes = new AtomicInteger();
 
     /**
      * The maximum reached size in bytes of the cache (for all SSRCs combined).
      */
-    private int maxSizeInBytes = 0;
+    private final MonotonicAtomicLong maxSizeInBytes
+        = new MonotonicAtomicLong();
 
     /**
      * The current number of packets in the cache (for all SSRCs combined).
      */
-    private int sizeInPackets = 0;
+    private final AtomicInteger sizeInPackets = new AtomicInteger();
 
     /**
      * The maximum reached number of packets in the cache (for all SSRCs
      * combined).
      */
-    private int maxSizeInPackets = 0;
+    private final MonotonicAtomicLong maxSizeInPackets
+        = new MonotonicAtomicLong();
 
     /**
      * Counts the number of requests (calls to {@link #get(long, int)}) which
@@ -158,9 +156,10 @@
     private AtomicInteger totalPacketsAdded = new AtomicInteger(0);
 
     /**
-     * Contains a <tt>Cache</tt> instance for each SSRC.
+     * Contains a <tt>Cache</tt> instance for each SSRC. Lookups do not lock
+     * and do not box the SSRC.
      */
-    private final Map<Long, Cache> caches = new HashMap<>();
+    private final CopyOnWriteIntMap<Cache> caches = new CopyOnWriteIntMap<>();
 
     /**
      * The age in milliseconds of the oldest packet retrieved from any of the
@@ -202,18 +201,13 @@ public void close()
                     + ",oldest_hit_ms=" + oldestHit);
         }
 
-        synchronized (caches)
-        {
-            caches.clear();
-        }
-        pool.clear();
-        containersPool.clear();
+        caches.clear();
     }
 
     /**
-     * Gets the packet, encapsulated in a {@link Container} with the given SSRC
-     * and RTP sequence number from the cache. If no such packet is found,
-     * returns <tt>null</tt>.
+     * Gets a copy of the packet, encapsulated in a {@link Container} with the
+     * given SSRC and RTP sequence number from the cache. If no such packet is
+     * found, returns <tt>null</tt>.
      * @param ssrc The SSRC of the packet.
      * @param seq the RTP sequence number of the packet.
      * @return the packet, encapsulated in a {@link Container} with the given
@@ -222,7 +216,7 @@ public void close()
      */
     public Container getContainer(long ssrc, int seq)
     {
-        Cache cache = getCache(ssrc & 0xffff_ffffL, false);
+        Cache cache = getCache(ssrc, false);
 
         Container container = cache != null ? cache.get(seq) : null;
 
@@ -267,25 +261,26 @@ public RawPacket get(long ssrc, int seq)
      */
     private Cache getCache(long ssrc, boolean create)
     {
-        synchronized (caches)
+        int key = (int) ssrc;
+
+        if (!create)
         {
-            Cache cache = caches.get(ssrc);
-            if (cache == null && create)
+            return caches.get(key);
+        }
+
+        return caches.computeIfAbsent(key, k -> {
+            if (caches.size() < MAX_SSRC_COUNT)
             {
-                if (caches.size() < MAX_SSRC_COUNT)
-                {
-                    cache = new Cache();
-                    caches.put(ssrc, cache);
-                }
-                else
-                {
-                    logger.warn("Not creating a new cache for SSRC " + ssrc
-                        + ": too many SSRCs already cached.");
-                }
+                return new Cache(k);
             }
-
-            return cache;
-        }
+            else
+            {
+                logger.warn("Not creating a new cache for SSRC "
+                    + (ssrc & 0xffff_ffffL)
+                    + ": too many SSRCs already cached.");
+                return null;
+            }
+        });
     }
 
     /**
@@ -308,40 +303,28 @@ public void cachePacket(RawPacket pkt)
         }
     }
 
-
-
     /**
-     * Gets an unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
-     * buffer space.
-     * @param len the minimum available length
-     * @return An unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
-     * buffer space.
+     * Updates the (global) size counters of this instance.
+     *
+     * @param packetsDelta the change in the number of cached packets.
+     * @param bytesDelta the change in the number of cached bytes.
      */
-    private RawPacket getFreePacket(int len)
+    private void updateSizes(int packetsDelta, int bytesDelta)
     {
-        RawPacket pkt = pool.poll();
-        if (pkt == null)
-            pkt = new RawPacket(new byte[len], 0, 0);
-
-        if (pkt.getBuffer() == null || pkt.getBuffer().length < len)
-            pkt.setBuffer(new byte[len]);
-        pkt.setOffset(0);
-        pkt.setLength(0);
-
-        return pkt;
-    }
+        if (packetsDelta != 0)
+        {
+            int packets = sizeInPackets.addAndGet(packetsDelta);
 
-    /**
-     * @return  an unused {@link Container} instance.
-     */
-    private Container getFreeContainer()
-    {
-        Container container = containersPool.poll();
-        if (container == null)
+            if (packetsDelta > 0)
+                maxSizeInPackets.increase(packets);
+        }
+        if (bytesDelta != 0)
         {
-            container = new Container();
+            int bytes = sizeInBytes.addAndGet(bytesDelta);
+
+            if (bytesDelta > 0)
+                maxSizeInBytes.increase(bytes);
         }
-        return container;
     }
 
     /**
@@ -350,49 +333,23 @@ private Container getFreeContainer()
      */
     public void clean(long now)
     {
-        synchronized (caches)
+        if (logger.isDebugEnabled())
         {
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Cleaning CachingTransformer " + hashCode());
-            }
-
-            Iterator<Map.Entry<Long,Cache>> iter
-                = caches.entrySet().iterator();
-            while (iter.hasNext())
-            {
-                Map.Entry<Long,Cache> entry = iter.next();
-                Cache cache = entry.getValue();
-                if (cache.lastInsertTime + SSRC_TIMEOUT_MILLIS < now)
-                {
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("Removing cache for SSRC " + entry
-                            .getKey());
-                    }
-                    cache.empty();
-                    iter.remove();
-                }
-            }
+            logger.debug("Cleaning CachingTransformer " + hashCode());
         }
-    }
 
-    /**
-     * Returns a {@link Container} and its {@link RawPacket} to the list of
-     * free containers (and packets).
-     * @param container the container to return.
-     */
-    private void returnContainer(Container container)
-    {
-        if (container != null)
+        for (Cache cache : caches.values())
         {
-            if (container.pkt != null)
+            if (cache.lastInsertTime + SSRC_TIMEOUT_MILLIS < now)
             {
-                pool.offer(container.pkt);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Removing cache for SSRC "
+                        + (cache.ssrc & 0xffff_ffffL));
+                }
+                caches.remove(cache.ssrc);
+                cache.empty();
             }
-
-            container.pkt = null;
-            containersPool.offer(container);
         }
     }
 
@@ -403,13 +360,13 @@ private void returnContainer(Container container)
      *
      * @param ssrc the SSRC whose most recent packets to retrieve.
      * @param bytes the maximum total size of the packets to retrieve.
-     * @return the set of the most recent packets to retrieve, not exceeding the
-     * number of bytes specified as an argument, or null if there are no packets
-     * in the cache
+     * @return the set of (copies of) the most recent packets to retrieve, not
+     * exceeding the number of bytes specified as an argument, or null if there
+     * are no packets in the cache
      */
     public Set<Container> getMany(long ssrc, int bytes)
     {
-        Cache cache = getCache(ssrc & 0xffffffffL, false);
+        Cache cache = getCache(ssrc, false);
         return cache == null ? null : cache.getMany(bytes);
     }
 
@@ -426,122 +383,223 @@ public void updateTimestamp(long ssrc, int seq, long ts)
         Cache cache = getCache(ssrc, false);
         if (cache != null)
         {
-            synchronized (cache)
-            {
-                Container container = cache.doGet(seq);
-                if (container != null)
-                {
-                    container.timeAdded = ts;
-                }
-            }
+            cache.updateTimestamp(seq, ts);
         }
     }
 
     /**
-     * Implements a cache for the packets of a specific SSRC.
+     * Implements a cache for the packets of a specific SSRC. The packets are
+     * stored in a ring of {@link #CAPACITY} slots indexed by their extended
+     * sequence number, of which at most {@link #MAX_SIZE_PACKETS} (the most
+     * recent ones) are in use. Each slot keeps its buffer when the ring wraps around,
+     * so inserting a packet does not allocate once the ring is warm.
+     *
+     * Modifications are serialized by the write lock of {@link #lock} (there is
+     * normally a single writer, the thread which sends the stream, so the lock
+     * is uncontended). Readers do not lock: they use optimistic reads and
+     * only fall back to the read lock if a concurrent write invalidated what
+     * they read.
      */
     private class Cache
     {
         /**
-         * The underlying container. It maps a packet index (based on its RTP
-         * sequence number, in the same way as used in SRTP (RFC3711)) to the
-         * <tt>RawPacket</tt> with the packet contents.
+         * The SSRC of the packets cached by this instance.
+         */
+        private final int ssrc;
+
+        /**
+         * The lock which serializes modifications of this instance and allows
+         * readers to detect concurrent modifications.
          */
-        private TreeMap<Integer, Container> cache = new TreeMap<>();
+        private final StampedLock lock = new StampedLock();
+
+        /**
+         * The buffers of the slots of the ring. A buffer is allocated the
+         * first time its slot is used and is reused afterwards (reallocated
+         * only if a longer packet has to be stored in it).
+         */
+        private final byte[][] buffers = new byte[CAPACITY][];
+
+        /**
+         * The lengths of the packets in the slots of the ring.
+         */
+        private final int[] lengths = new int[CAPACITY];
+
+        /**
+         * The extended sequence numbers of the packets in the slots of the
+         * ring or <tt>-1</tt> for empty slots.
+         */
+        private final long[] indices = new long[CAPACITY];
+
+        /**
+         * The times (in milliseconds since the epoch) that the packets in the
+         * slots of the ring were added (or retransmitted).
+         */
+        private final long[] timesAdded = new long[CAPACITY];
+
+        /**
+         * The highest extended sequence number inserted into this instance or
+         * <tt>-1</tt> if none has been inserted yet.
+         */
+        private volatile long highestIndex = -1;
+
+        /**
+         * The extended sequence number from which {@link #evict(long)} starts
+         * looking for packets to evict.
+         */
+        private long oldestIndex = 0;
+
+        /**
+         * The number of packets in the ring.
+         */
+        private int size = 0;
 
         /**
          * Last system time of insertion of a packet in this cache.
          */
-        private long lastInsertTime = -1;
+        private volatile long lastInsertTime = -1;
 
         /**
-         * A Roll Over Counter (as in by RFC3711).
+         * Initializes a new <tt>Cache</tt> instance.
+         *
+         * @param ssrc the SSRC of the packets to be cached by the new
+         * instance.
          */
-        private int ROC = 0;
+        private Cache(int ssrc)
+        {
+            this.ssrc = ssrc;
+            Arrays.fill(indices, -1);
+        }
 
         /**
-         * The highest received sequence number (as in RFC3711).
+         * Calculates the extended sequence number of an RTP sequence number
+         * as the one closest to a specific extended sequence number.
+         *
+         * @param seq the RTP sequence number.
+         * @param highestIndex the reference extended sequence number.
+         * @return the extended sequence number of <tt>seq</tt>, which is
+         * negative if <tt>seq</tt> precedes the first packet of the stream.
          */
-        private int s_l = -1;
+        private long calculateIndex(int seq, long highestIndex)
+        {
+            if (highestIndex < 0)
+                return seq;
+
+            return
+                highestIndex
+                    + RTPUtils.getSequenceNumberDelta(
+                            seq,
+                            (int) (highestIndex & 0xffff));
+        }
 
         /**
          * Inserts a packet into this <tt>Cache</tt>.
          * @param pkt the packet to insert.
          */
-        private synchronized void insert(RawPacket pkt)
+        private void insert(RawPacket pkt)
         {
             int len = pkt.getLength();
-            RawPacket cachePacket = getFreePacket(len);
-            System.arraycopy(pkt.getBuffer(), pkt.getOffset(),
-                cachePacket.getBuffer(), 0,
-                len);
-            cachePacket.setLength(len);
-
-            int index = calculateIndex(pkt.getSequenceNumber());
-            Container container = getFreeContainer();
-            container.pkt = cachePacket;
-            container.timeAdded = System.currentTimeMillis();
-
-            // If the packet is already in the cache, we want to update the
-            // timeAdded field for retransmission purposes. This is implemented
-            // by simply replacing the old packet.
-            Container oldContainer = cache.put(index, container);
-
-            synchronized (sizesSyncRoot)
+            long now = System.currentTimeMillis();
+
+            long stamp = lock.writeLock();
+            try
             {
-                sizeInPackets++;
-                sizeInBytes += len;
-                if (oldContainer != null)
+                int packetsDelta = 0;
+                int bytesDelta = 0;
+                long highestIndex = this.highestIndex;
+                long index
+                    = calculateIndex(pkt.getSequenceNumber(), highestIndex);
+
+                if (index < 0 || index <= highestIndex - MAX_SIZE_PACKETS)
                 {
-                    sizeInPackets--;
-                    sizeInBytes -= oldContainer.pkt.getLength();
+                    // The packet is too old to be kept in the ring.
+                    return;
                 }
 
-                if (sizeInPackets > maxSizeInPackets)
-                    maxSizeInPackets = sizeInPackets;
-                if (sizeInBytes > maxSizeInBytes)
-                    maxSizeInBytes = sizeInBytes;
+                int slot = (int) index & MASK;
+
+                // If the packet is already in the cache, we want to update the
+                // timeAdded field for retransmission purposes. This is
+                // implemented by simply replacing the old packet.
+                if (indices[slot] != -1)
+                {
+                    packetsDelta--;
+                    bytesDelta -= lengths[slot];
+                }
+
+                byte[] buffer = buffers[slot];
+
+                if (buffer == null || buffer.length < len)
+                    buffers[slot] = buffer = new byte[len];
+                System.arraycopy(
+                        pkt.getBuffer(), pkt.getOffset(),
+                        buffer, 0,
+                        len);
+                lengths[slot] = len;
+                indices[slot] = index;
+                timesAdded[slot] = now;
+                packetsDelta++;
+                bytesDelta += len;
+
+                if (index > highestIndex)
+                    this.highestIndex = highestIndex = index;
+                if (size == 0 || index < oldestIndex)
+                    oldestIndex = index;
+                size += packetsDelta;
+                updateSizes(packetsDelta, bytesDelta);
+
+                evict(now - SIZE_MILLIS);
+            }
+            finally
+            {
+                lock.unlockWrite(stamp);
             }
 
-            returnContainer(oldContainer);
-            lastInsertTime = System.currentTimeMillis();
-            clean();
+            lastInsertTime = now;
         }
 
-
         /**
-         * Calculates the index of an RTP packet based on its RTP sequence
-         * number and updates the <tt>s_l</tt> and <tt>ROC</tt> fields. Based
-         * on the procedure outlined in RFC3711
-         * @param seq the RTP sequence number of the RTP packet.
-         * @return the index of the RTP sequence number with sequence number
-         * <tt>seq</tt>.
+         * Drops the oldest packets from the ring until it only contains
+         * packets at most {@link #SIZE_MILLIS} milliseconds older than the
+         * newest packet and at most {@link #MAX_SIZE_PACKETS} packets, and
+         * drops the packets which have been left behind by the ring (i.e.
+         * whose slots have not been reused because of losses).
+         * Must be invoked with the write lock held.
+         *
+         * @param cleanBefore the time before which packets are to be dropped.
          */
-        private int calculateIndex(int seq)
+        private void evict(long cleanBefore)
         {
-            if (s_l == -1)
-            {
-                s_l = seq;
-                return seq;
-            }
-
-            int v = ROC;
-            if (s_l < 0x8000)
-                if (seq - s_l > 0x8000)
-                    v = (int) ((ROC - 1) & 0xffff_ffffL);
-                else if (s_l - 0x1_0000 > seq)
-                    v = (int) ((ROC + 1) & 0xffff_ffffL );
+            long highestIndex = this.highestIndex;
+            long minIndex = highestIndex - MAX_SIZE_PACKETS + 1;
+            long i = Math.max(oldestIndex, minIndex - CAPACITY);
+            int removedPackets = 0;
+            int removedBytes = 0;
 
-            if (v == ROC && seq > s_l)
-                s_l = seq;
-            else if (v == ((ROC + 1) & 0xffff_ffffL))
+            for (; i <= highestIndex; i++)
             {
-                s_l = seq;
-                ROC = v;
-            }
+                int slot = (int) i & MASK;
+
+                if (indices[slot] != i)
+                    continue;
 
+                if (i >= minIndex
+                        && (timesAdded[slot] < 0
+                            || timesAdded[slot] > cleanBefore))
+                {
+                    // We reached a packet with a timestamp after
+                    // 'cleanBefore'. The rest of the packets are even more
+                    // recent.
+                    break;
+                }
 
-            return seq + v * 0x1_0000;
+                indices[slot] = -1;
+                removedPackets++;
+                removedBytes += lengths[slot];
+            }
+            oldestIndex = i;
+            size -= removedPackets;
+            updateSizes(-removedPackets, -removedBytes);
         }
 
         /**
@@ -553,149 +611,187 @@ else if (v == ((ROC + 1) & 0xffff_ffffL))
          * from the cache, or {@code null} if the cache does not contain a
          * packet with this sequence number.
          */
-        private synchronized Container get(int seq)
+        private Container get(int seq)
         {
-            Container container = doGet(seq);
+            long stamp = lock.tryOptimisticRead();
 
-            return
-                container == null
-                    ? null
-                    : new Container(
-                    new RawPacket(container.pkt.getBuffer().clone(),
-                        container.pkt.getOffset(),
-                        container.pkt.getLength()),
-                    container.timeAdded);
+            if (stamp != 0)
+            {
+                Container container = doGet(seq);
+
+                if (lock.validate(stamp))
+                    return container;
+            }
+
+            // A concurrent insertion may have modified the slot while we were
+            // copying it.
+            stamp = lock.readLock();
+            try
+            {
+                return doGet(seq);
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
         }
 
         /**
-         * Returns the RTP packet with sequence number {@code seq}
-         * from the cache, or {@code null} if the cache does not contain a
-         * packet with this sequence number.
+         * Copies the RTP packet with sequence number {@code seq} from the
+         * ring. The result must be validated by the caller unless it holds a
+         * lock.
          * @param seq the RTP sequence number of the packet to get.
-         * @return the RTP packet with sequence number {@code seq}
-         * from the cache, or {@code null} if the cache does not contain a
-         * packet with this sequence number.
+         * @return a copy of the RTP packet with sequence number {@code seq}
+         * or {@code null} if the ring does not contain it.
          */
-        private synchronized Container doGet(int seq)
+        private Container doGet(int seq)
         {
             // Since sequence numbers wrap at 2^16, we can't know with absolute
             // certainty which packet the request refers to. We assume that it
-            // is for the latest packet (i.e. the one with the highest index).
-            Container container = cache.get(seq + ROC * 0x1_0000);
+            // is for the one closest to the latest packet.
+            long highestIndex = this.highestIndex;
+            long index = calculateIndex(seq, highestIndex);
 
-            // Maybe the ROC was just bumped recently.
-            if (container == null && ROC > 0)
-                container = cache.get(seq + (ROC-1) * 0x1_0000);
+            // A packet left behind by the ring (e.g. after a jump in the
+            // sequence numbers) may still occupy its slot.
+            if (index < 0 || index <= highestIndex - MAX_SIZE_PACKETS)
+                return null;
+
+            int slot = (int) index & MASK;
+
+            if (indices[slot] != index)
+                return null;
+
+            byte[] buffer = buffers[slot];
+            int len = lengths[slot];
+            long timeAdded = timesAdded[slot];
 
-            // Since the cache only stores <tt>SIZE_MILLIS</tt> milliseconds of
-            // packets, we assume that it doesn't contain packets spanning
-            // more than one ROC.
-            return container;
+            if (buffer == null || len < 0 || len > buffer.length)
+            {
+                // Inconsistent (i.e. concurrently modified) state which will
+                // fail the validation.
+                return null;
+            }
+
+            byte[] copy = new byte[len];
+
+            System.arraycopy(buffer, 0, copy, 0, len);
+            return new Container(new RawPacket(copy, 0, len), timeAdded);
         }
 
         /**
-         * Drops the oldest packets from the cache until:
-         * 1. The cache contains at most {@link #MAX_SIZE_PACKETS} packets, and
-         * 2. The cache only contains packets at most {@link #SIZE_MILLIS}
-         * milliseconds older than the newest packet in the cache.
+         * Sets the time that the packet with a specific RTP sequence number
+         * was added to the cache.
+         *
+         * @param seq the RTP sequence number of the packet.
+         * @param ts the time to set.
          */
-        private synchronized void clean()
+        private void updateTimestamp(int seq, long ts)
         {
-            int size = cache.size();
-            if (size <= 0)
-                return;
-
-            long cleanBefore = System.currentTimeMillis() - SIZE_MILLIS;
-
-            Iterator<Map.Entry<Integer,Container>> iter
-                = cache.entrySet().iterator();
-            int removedPackets = 0;
-            int removedBytes = 0;
-            while (iter.hasNext())
+            long stamp = lock.writeLock();
+            try
             {
-                Container container = iter.next().getValue();
-                RawPacket pkt = container.pkt;
+                long index = calculateIndex(seq, highestIndex);
 
-                if (size > MAX_SIZE_PACKETS)
-                {
-                    // Remove until we go under the max size, regardless of the
-                    // timestamps.
-                    size--;
-                }
-                else if (container.timeAdded >= 0 &&
-                         container.timeAdded > cleanBefore)
+                if (index >= 0)
                 {
-                    // We reached a packet with a timestamp after 'cleanBefore'.
-                    // The rest of the packets are even more recent.
-                    break;
-                }
+                    int slot = (int) index & MASK;
 
-                iter.remove();
-                removedBytes += pkt.getLength();
-                removedPackets++;
-                returnContainer(container);
+                    if (indices[slot] == index)
+                        timesAdded[slot] = ts;
+                }
             }
-
-            synchronized (sizesSyncRoot)
+            finally
             {
-                sizeInBytes -= removedBytes;
-                sizeInPackets -= removedPackets;
+                lock.unlockWrite(stamp);
             }
-
         }
 
-        synchronized private void empty()
+        /**
+         * Drops all packets from this cache.
+         */
+        private void empty()
         {
+            int removedPackets = 0;
             int removedBytes = 0;
-            for (Container container : cache.values())
+
+            long stamp = lock.writeLock();
+            try
             {
-                removedBytes += container.pkt.getBuffer().length;
-                returnContainer(container);
+                for (int slot = 0; slot < CAPACITY; slot++)
+                {
+                    if (indices[slot] != -1)
+                    {
+                        indices[slot] = -1;
+                        removedPackets++;
+                        removedBytes += lengths[slot];
+                    }
+                    buffers[slot] = null;
+                }
+                size = 0;
             }
-
-            synchronized (sizesSyncRoot)
+            finally
             {
-                sizeInPackets -= cache.size();
-                sizeInBytes -= removedBytes;
+                lock.unlockWrite(stamp);
             }
 
-            cache.clear();
+            updateSizes(-removedPackets, -removedBytes);
         }
 
         /**
-         * Gets the most recent packets from this cache, not exceeding the
-         * number of bytes specified as an argument.
+         * Gets (copies of) the most recent packets from this cache, not
+         * exceeding the number of bytes specified as an argument.
          *
          * @param bytes the maximum number of bytes to retrieve.
          * @return the set of the most recent packets to retrieve, not exceeding
          * the number of bytes specified as an argument, or null if there are
          * no packets in the cache.
          */
-        public synchronized Set<Container> getMany(int bytes)
+        private Set<Container> getMany(int bytes)
         {
-            if (cache.isEmpty() || bytes < 1)
+            if (bytes < 1)
             {
                 return null;
             }
 
-            // XXX(gp) This is effectively Copy-on-Read and is inefficient. We
-            // should implement a Copy-on-Write method or something else that is
-            // more efficient than this..
-            Set<Container> set = new HashSet<>();
-
-            Iterator<Map.Entry<Integer, Container>> it
-                = cache.descendingMap().entrySet().iterator();
-            while (it.hasNext() && bytes > 0)
+            long stamp = lock.readLock();
+            try
             {
-                Container container = it.next().getValue();
-                if (container != null && container.pkt != null)
+                if (size == 0)
                 {
-                    set.add(container);
-                    bytes -= container.pkt.getLength();
+                    return null;
                 }
-            }
 
-            return set;
+                Set<Container> set = new LinkedHashSet<>();
+                long highestIndex = this.highestIndex;
+
+                for (long i = highestIndex;
+                        i > highestIndex - MAX_SIZE_PACKETS
+                            && i >= 0
+                            && bytes > 0;
+                        i--)
+                {
+                    int slot = (int) i & MASK;
+
+                    if (indices[slot] == i)
+                    {
+                        int len = lengths[slot];
+                        byte[] copy = Arrays.copyOf(buffers[slot], len);
+
+                        set.add(
+                            new Container(
+                                new RawPacket(copy, 0, len),
+                                timesAdded[slot]));
+                        bytes -= len;
+                    }
+                }
+
+                return set;
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
         }
     }
 
@@ -20,6 +20,8 @@
 import org.jitsi.impl.neomedia.rtp.remotebitrateestimator.*;
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.utils.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.rtp.*;
 import org.jetbrains.annotations.*;
@@ -46,12 +48,36 @@
                CallStatsObserver
 {
     /**
-     * The maximum number of received packets and their timestamps to save.
+     * The name of the property which determines whether the transport-cc
+     * feedback is to be fed into the send-side
+     * {@link DelayBasedBandwidthEstimator} (the estimate of which is passed to
+     * {@link BandwidthEstimator#updateDelayBasedEstimate(long)}) instead of
+     * into a {@link RemoteBitrateEstimatorAbsSendTime} (the estimate of which
+     * is treated like a REMB).
      */
-    private static final int MAX_INCOMING_PACKETS_HISTORY = 200;
+    public static final String SEND_SIDE_BWE_PNAME
+        = TransportCCEngine.class.getName() + ".SEND_SIDE_BWE";
 
     /**
-     * The maximum number of received packets and their timestamps to save.
+     * Whether the transport-cc feedback is to be fed into the send-side
+     * {@link DelayBasedBandwidthEstimator}.
+     */
+    private static final boolean SEND_SIDE_BWE
+        = ConfigUtils.getBoolean(
+                LibJitsi.getConfigurationService(),
+                SEND_SIDE_BWE_PNAME,
+                false);
+
+    /**
+     * The maximum number of received packets and their timestamps to save
+     * (i.e. the maximum range of transport-wide sequence numbers).
+     */
+    private static final int MAX_INCOMING_PACKETS_HISTORY
+        = RTCPTCCPacket.MAX_PACKET_COUNT;
+
+    /**
+     * The maximum number of sent packets and their timestamps to save
+     * (i.e. the maximum range of transport-wide sequence numbers).
      *
      * XXX this is an uninformed value.
      */
@@ -115,7 +141,15 @@
      * Incoming transport-wide sequence numbers mapped to the timestamp of their
      * reception (in milliseconds since the epoch).
      */
-    private RTCPTCCPacket.PacketMap incomingPackets;
+    private final TCCPacketRing incomingPackets
+        = new TCCPacketRing(MAX_INCOMING_PACKETS_HISTORY, false);
+
+    /**
+     * Writes the feedback about {@link #incomingPackets}. Reused for every
+     * feedback packet and accessed while synchronized on
+     * {@link #incomingPacketsSyncRoot}.
+     */
+    private final TCCFciWriter fciWriter;
 
     /**
      * Used to synchronize access to {@link #incomingPackets}.
@@ -123,10 +157,16 @@
     private final Object incomingPacketsSyncRoot = new Object();
 
     /**
-     * Used to synchronize access to {@link #sentPacketDetails}.
+     * Used to synchronize access to {@link #sentPackets}.
      */
     private final Object sentPacketsSyncRoot = new Object();
 
+    /**
+     * Hands the packets acknowledged by a received RTCP transport-cc feedback
+     * packet to the bitrate estimator.
+     */
+    private final FeedbackProcessor feedbackProcessor = new FeedbackProcessor();
+
     /**
      * The {@link DiagnosticContext} to be used by this instance when printing
      * diagnostic information.
@@ -158,17 +198,23 @@
     private long localReferenceTimeMs = -1;
 
     /**
-     * Holds a key value pair of the packet sequence number and an object made
-     * up of the packet send time and the packet size.
+     * Outgoing transport-wide sequence numbers mapped to the time they were
+     * sent (in milliseconds since the epoch) and the length of the packet.
      */
-    private Map<Integer, PacketDetail> sentPacketDetails
-            = new LRUCache<>(MAX_OUTGOING_PACKETS_HISTORY);
+    private final TCCPacketRing sentPackets
+        = new TCCPacketRing(MAX_OUTGOING_PACKETS_HISTORY, true);
 
     /**
      * Used for estimating the bitrate from RTCP TCC feedback packets
      */
     private final RemoteBitrateEstimatorAbsSendTime bitrateEstimatorAbsSendTime;
 
+    /**
+     * Used for estimating the bitrate from RTCP TCC feedback packets if
+     * {@link #SEND_SIDE_BWE} is enabled, otherwise <tt>null</tt>.
+     */
+    private final DelayBasedBandwidthEstimator delayBasedEstimator;
+
     /**
      * Ctor.
      *
@@ -177,8 +223,13 @@
     public TransportCCEngine(@NotNull DiagnosticContext diagnosticContext)
     {
         this.diagnosticContext = diagnosticContext;
+        fciWriter = new TCCFciWriter(diagnosticContext);
         bitrateEstimatorAbsSendTime
             = new RemoteBitrateEstimatorAbsSendTime(this, diagnosticContext);
+        delayBasedEstimator
+            = SEND_SIDE_BWE
+                ? new DelayBasedBandwidthEstimator(diagnosticContext)
+                : null;
     }
 
     /**
@@ -193,28 +244,18 @@ private void packetReceived(int seq, int pt, boolean marked)
         long now = System.currentTimeMillis();
         synchronized (incomingPacketsSyncRoot)
         {
-            if (incomingPackets == null)
+            if (incomingPackets.isEmpty())
             {
-                incomingPackets = new RTCPTCCPacket.PacketMap();
+                firstIncomingTs = now;
             }
-            if (incomingPackets.size() >= MAX_INCOMING_PACKETS_HISTORY)
+            else if (RTPUtils.getSequenceNumberDelta(
+                        seq, incomingPackets.getFirstSeq())
+                    >= MAX_INCOMING_PACKETS_HISTORY)
             {
-                Iterator<Map.Entry<Integer, Long>> iter
-                    = incomingPackets.entrySet().iterator();
-                if (iter.hasNext())
-                {
-                    iter.next();
-                    iter.remove();
-                }
-
                 // This shouldn't happen, because we will send feedback often.
-                logger.info("Reached max size, removing an entry.");
+                logger.info("Reached max size, removing the oldest entries.");
             }
 
-            if (incomingPackets.isEmpty())
-            {
-                firstIncomingTs = now;
-            }
             incomingPackets.put(seq, now);
         }
 
@@ -274,26 +315,22 @@ private long getSourceSSRC()
      */
     private void maybeSendRtcp(boolean marked, long now)
     {
-        RTCPTCCPacket.PacketMap packets = null;
-        long delta;
+        byte[] rtcp = null;
 
         synchronized (incomingPacketsSyncRoot)
         {
-            if (incomingPackets == null || incomingPackets.isEmpty())
+            if (incomingPackets.isEmpty())
             {
                 // No packets with unsent feedback.
                 return;
             }
 
-            delta = firstIncomingTs == -1 ? 0 : (now - firstIncomingTs);
+            long delta = firstIncomingTs == -1 ? 0 : (now - firstIncomingTs);
 
             // The number of packets represented in incomingPackets (including
             // the missing ones), i.e. the number of entries that the RTCP TCC
             // packet would include.
-            int packetCount
-                = 1 + RTPUtils.subtractNumber(
-                    incomingPackets.lastKey(),
-                    incomingPackets.firstKey());
+            int packetCount = incomingPackets.getPacketCount();
 
             // This condition controls when we send feedback:
             // 1. If 100ms have passed,
@@ -302,18 +339,26 @@ private void maybeSendRtcp(boolean marked, long now)
             // 4. We are approaching the maximum number of packets we can
             // report on in one RTCP packet.
             // The exact values and logic here are to be improved.
-            if (delta > 100
+            if (!(delta > 100
                 || (delta > 20 && marked)
                 || incomingPackets.size() > 100
-                || packetCount >= RTCPTCCPacket.MAX_PACKET_COUNT - 20)
+                || packetCount >= RTCPTCCPacket.MAX_PACKET_COUNT - 20))
             {
-                packets = incomingPackets;
-                incomingPackets = null;
+                return;
+            }
+
+            try
+            {
+                rtcp = writeRtcp();
+            }
+            finally
+            {
+                incomingPackets.clear();
                 firstIncomingTs = -1;
             }
         }
 
-        if (packets != null)
+        if (rtcp != null)
         {
             MediaStream stream = getMediaStream();
             if (stream == null)
@@ -324,57 +369,82 @@ private void maybeSendRtcp(boolean marked, long now)
 
             try
             {
-                long senderSSRC
-                    = anyVideoMediaStream.getStreamRTPManager().getLocalSSRC();
-                if (senderSSRC == -1)
-                {
-                    logger.warn("No sender SSRC, can't send RTCP.");
-                    return;
-                }
-
-
-                long sourceSSRC = getSourceSSRC();
-                if (sourceSSRC == -1)
-                {
-                    logger.warn("No source SSRC, can't send RTCP.");
-                    return;
-                }
-                RTCPTCCPacket rtcpPacket
-                    = new RTCPTCCPacket(
-                        senderSSRC, sourceSSRC,
-                        packets,
-                        (byte) (outgoingFbPacketCount.getAndIncrement() & 0xff),
-                        diagnosticContext);
-
                 // Inject the TCC packet *after* this engine. We don't want
-                // RTCP termination -which runs before this engine in the 
+                // RTCP termination -which runs before this engine in the
                 // egress- to drop the packet we just sent.
                 stream.injectPacket(
-                        rtcpPacket.toRawPacket(), false /* rtcp */, egressEngine);
-            }
-            catch (IllegalArgumentException iae)
-            {
-                // This comes from the RTCPTCCPacket constructor when the
-                // list of packets contains a delta which cannot be expressed
-                // in a single packet (more than 8192 milliseconds), or the
-                // number of packets to report (including the ones lost) is
-                // too big for one RTCP TCC packet. In this case we would have
-                // to split the feedback in two or more RTCP TCC packets.
-                // We currently don't do this, because it only happens if the
-                // receiver stops sending packets for over 8s or there is a
-                // significant gap in the received sequence numbers. In this
-                // case we will fail to send one feedback message.
-                logger.warn(
-                        "Not sending transport-cc feedback, delta or packet" +
-                            "count too big.");
+                        new RawPacket(rtcp, 0, rtcp.length),
+                        false /* rtcp */,
+                        egressEngine);
             }
-            catch (IOException | TransmissionFailedException e)
+            catch (TransmissionFailedException e)
             {
                 logger.error("Failed to send transport feedback RTCP: ", e);
             }
         }
     }
 
+    /**
+     * Writes an RTCP transport-cc feedback packet which describes
+     * {@link #incomingPackets}. Should be called while synchronized on
+     * {@link #incomingPacketsSyncRoot}.
+     *
+     * @return the bytes of the RTCP packet, or {@code null} if it could not be
+     * written.
+     */
+    private byte[] writeRtcp()
+    {
+        VideoMediaStream videoStream = anyVideoMediaStream;
+        if (videoStream == null)
+        {
+            logger.warn("No media stream, can't send RTCP.");
+            return null;
+        }
+
+        long senderSSRC = videoStream.getStreamRTPManager().getLocalSSRC();
+        if (senderSSRC == -1)
+        {
+            logger.warn("No sender SSRC, can't send RTCP.");
+            return null;
+        }
+
+        long sourceSSRC = getSourceSSRC();
+        if (sourceSSRC == -1)
+        {
+            logger.warn("No source SSRC, can't send RTCP.");
+            return null;
+        }
+
+        int length;
+        try
+        {
+            length
+                = fciWriter.writeRtcp(
+                        senderSSRC, sourceSSRC,
+                        incomingPackets,
+                        outgoingFbPacketCount.getAndIncrement() & 0xff);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            // This comes from the writer when the list of packets contains a
+            // delta which cannot be expressed in a single packet (more than
+            // 8192 milliseconds), or the number of packets to report
+            // (including the ones lost) is too big for one RTCP TCC packet.
+            // In this case we would have to split the feedback in two or more
+            // RTCP TCC packets. We currently don't do this, because it only
+            // happens if the receiver stops sending packets for over 8s or
+            // there is a significant gap in the received sequence numbers. In
+            // this case we will fail to send one feedback message.
+            logger.warn(
+                    "Not sending transport-cc feedback, delta or packet" +
+                        "count too big.");
+            return null;
+        }
+
+        // The buffer of the writer is reused, so give the packet its own.
+        return Arrays.copyOf(fciWriter.getBuffer(), length);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -382,6 +452,10 @@ private void maybeSendRtcp(boolean marked, long now)
     public void onRttUpdate(long avgRttMs, long maxRttMs)
     {
         bitrateEstimatorAbsSendTime.onRttUpdate(avgRttMs, maxRttMs);
+        if (delayBasedEstimator != null)
+        {
+            delayBasedEstimator.onRttUpdate(avgRttMs);
+        }
     }
 
     /**
@@ -404,17 +478,31 @@ public void setExtensionID(int id)
     @Override
     public void onReceiveBitrateChanged(Collection<Long> ssrcs, long bitrate)
     {
-        VideoMediaStream videoStream;
+        BandwidthEstimator bandwidthEstimator = getBandwidthEstimator();
+        if (bandwidthEstimator != null)
+        {
+            bandwidthEstimator.updateReceiverEstimate(bitrate);
+        }
+    }
+
+    /**
+     * Gets the {@link BandwidthEstimator} of the first {@link VideoMediaStream}
+     * which uses this instance.
+     *
+     * @return the {@link BandwidthEstimator} of the first
+     * {@link VideoMediaStream} which uses this instance, or <tt>null</tt>.
+     */
+    private BandwidthEstimator getBandwidthEstimator()
+    {
         for (MediaStream stream : mediaStreams)
         {
             if (stream instanceof VideoMediaStream)
             {
-                videoStream = (VideoMediaStream) stream;
-                videoStream.getOrCreateBandwidthEstimator()
-                    .updateReceiverEstimate(bitrate);
-                break;
+                return ((VideoMediaStream) stream)
+                    .getOrCreateBandwidthEstimator();
             }
         }
+        return null;
     }
 
     /**
@@ -425,71 +513,44 @@ public void onReceiveBitrateChanged(Collection<Long> ssrcs, long bitrate)
     @Override
     public void tccReceived(RTCPTCCPacket tccPacket)
     {
-        RTCPTCCPacket.PacketMap packetMap = tccPacket.getPackets();
-        long previousArrivalTimeMs = -1;
-        for (Map.Entry<Integer, Long> entry : packetMap.entrySet())
+        if (delayBasedEstimator != null)
         {
-            long arrivalTime250Us = entry.getValue();
-            if (arrivalTime250Us == -1)
+            // The estimator expects the packets of one feedback packet to be
+            // fed without interruption.
+            long bitrate;
+            synchronized (delayBasedEstimator)
             {
-                continue;
+                processFeedback(tccPacket);
+                bitrate = delayBasedEstimator.feedbackProcessed(
+                        System.currentTimeMillis());
             }
 
-            if (remoteReferenceTimeMs == -1)
+            if (bitrate > 0)
             {
-                remoteReferenceTimeMs = RTCPTCCPacket.getReferenceTime250us(
-                        new ByteArrayBufferImpl(
-                            tccPacket.fci, 0, tccPacket.fci.length)) / 4;
-
-                localReferenceTimeMs = System.currentTimeMillis();
-            }
-
-            PacketDetail packetDetail;
-            synchronized (sentPacketsSyncRoot)
-            {
-                packetDetail = sentPacketDetails.remove(entry.getKey());
-            }
-
-            if (packetDetail == null)
-            {
-                continue;
-            }
-
-            long arrivalTimeMs = arrivalTime250Us / 4
-                - remoteReferenceTimeMs + localReferenceTimeMs;
-
-            if (timeSeriesLogger.isTraceEnabled())
-            {
-                if (previousArrivalTimeMs != -1)
-                {
-                    long diff_ms = arrivalTimeMs - previousArrivalTimeMs;
-                    timeSeriesLogger.trace(diagnosticContext
-                            .makeTimeSeriesPoint("ingress_tcc_ack")
-                            .addField("seq", entry.getKey())
-                            .addField("arrival_time_ms", arrivalTimeMs)
-                            .addField("diff_ms", diff_ms));
-                }
-                else
+                BandwidthEstimator bandwidthEstimator = getBandwidthEstimator();
+                if (bandwidthEstimator != null)
                 {
-                    timeSeriesLogger.trace(diagnosticContext
-                            .makeTimeSeriesPoint("ingress_tcc_ack")
-                            .addField("seq", entry.getKey())
-                            .addField("arrival_time_ms", arrivalTimeMs));
+                    bandwidthEstimator.updateDelayBasedEstimate(bitrate);
                 }
             }
-
-            previousArrivalTimeMs = arrivalTimeMs;
-            long sendTime24bits = RemoteBitrateEstimatorAbsSendTime
-                .convertMsTo24Bits(packetDetail.packetSendTimeMs);
-
-            bitrateEstimatorAbsSendTime.incomingPacketInfo(
-                arrivalTimeMs,
-                sendTime24bits,
-                packetDetail.packetLength,
-                tccPacket.getSourceSSRC());
+        }
+        else
+        {
+            processFeedback(tccPacket);
         }
     }
 
+    /**
+     * Feeds the acknowledged packets of an RTCP transport-cc feedback packet
+     * into the bitrate estimator of this instance.
+     *
+     * @param tccPacket the received TCC packet.
+     */
+    private void processFeedback(RTCPTCCPacket tccPacket)
+    {
+        feedbackProcessor.process(tccPacket);
+    }
+
     /**
      * Gets the engine which handles outgoing RTP packets for this instance.
      */
@@ -567,20 +628,116 @@ private MediaStream getMediaStream()
     }
 
     /**
-     * {@link PacketDetail} is an object that holds the
-     * length(size) of the packet in {@link #packetLength}
-     * and the time stamps of the outgoing packet
-     * in {@link #packetSendTimeMs}
+     * Hands the packets acknowledged by an RTCP transport-cc feedback packet
+     * to the bitrate estimator, as they are parsed (i.e. without building a
+     * map of the packets).
      */
-    private class PacketDetail
+    private class FeedbackProcessor
+        implements RTCPTCCPacket.PacketConsumer
     {
-        int packetLength;
-        long packetSendTimeMs;
+        /**
+         * The feedback packet being processed.
+         */
+        private RTCPTCCPacket tccPacket;
+
+        /**
+         * The arrival time of the previous acknowledged packet of
+         * {@link #tccPacket}, or -1.
+         */
+        private long previousArrivalTimeMs;
 
-        PacketDetail(int length, long time)
+        /**
+         * Handles an incoming RTCP transport-cc feedback packet.
+         *
+         * @param tccPacket the received TCC packet.
+         */
+        synchronized void process(RTCPTCCPacket tccPacket)
         {
-            packetLength = length;
-            packetSendTimeMs = time;
+            this.tccPacket = tccPacket;
+            previousArrivalTimeMs = -1;
+            try
+            {
+                tccPacket.readPackets(this);
+            }
+            finally
+            {
+                this.tccPacket = null;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void accept(int seq, long arrivalTime250Us)
+        {
+            if (arrivalTime250Us == -1)
+            {
+                return;
+            }
+
+            if (remoteReferenceTimeMs == -1)
+            {
+                remoteReferenceTimeMs = RTCPTCCPacket.getReferenceTime250us(
+                        new ByteArrayBufferImpl(
+                            tccPacket.fci, 0, tccPacket.fci.length)) / 4;
+
+                localReferenceTimeMs = System.currentTimeMillis();
+            }
+
+            long sendTimeMs;
+            int length;
+            synchronized (sentPacketsSyncRoot)
+            {
+                length = sentPackets.getLength(seq);
+                sendTimeMs = sentPackets.remove(seq);
+            }
+
+            if (sendTimeMs == -1)
+            {
+                return;
+            }
+
+            long arrivalTimeMs = arrivalTime250Us / 4
+                - remoteReferenceTimeMs + localReferenceTimeMs;
+
+            if (timeSeriesLogger.isTraceEnabled())
+            {
+                if (previousArrivalTimeMs != -1)
+                {
+                    long diff_ms = arrivalTimeMs - previousArrivalTimeMs;
+                    timeSeriesLogger.trace(diagnosticContext
+                            .makeTimeSeriesPoint("ingress_tcc_ack")
+                            .addField("seq", seq)
+                            .addField("arrival_time_ms", arrivalTimeMs)
+                            .addField("diff_ms", diff_ms));
+                }
+                else
+                {
+                    timeSeriesLogger.trace(diagnosticContext
+                            .makeTimeSeriesPoint("ingress_tcc_ack")
+                            .addField("seq", seq)
+                            .addField("arrival_time_ms", arrivalTimeMs));
+                }
+            }
+
+            previousArrivalTimeMs = arrivalTimeMs;
+
+            if (delayBasedEstimator != null)
+            {
+                delayBasedEstimator.incomingPacketFeedback(
+                    sendTimeMs, arrivalTimeMs, length);
+                return;
+            }
+
+            long sendTime24bits = RemoteBitrateEstimatorAbsSendTime
+                .convertMsTo24Bits(sendTimeMs);
+
+            bitrateEstimatorAbsSendTime.incomingPacketInfo(
+                arrivalTimeMs,
+                sendTime24bits,
+                length,
+                tccPacket.getSourceSSRC());
         }
     }
 
@@ -633,11 +790,15 @@ public RawPacket transform(RawPacket pkt)
                             .addField("tcc_seq", seq));
                 }
 
+                long now = System.currentTimeMillis();
                 synchronized (sentPacketsSyncRoot)
                 {
-                    sentPacketDetails.put(seq, new PacketDetail(
-                                pkt.getLength(),
-                                System.currentTimeMillis()));
+                    sentPackets.put(seq, now, pkt.getLength());
+                }
+
+                if (delayBasedEstimator != null)
+                {
+                    delayBasedEstimator.packetSent(pkt.getLength(), now);
                 }
             }
             return pkt;
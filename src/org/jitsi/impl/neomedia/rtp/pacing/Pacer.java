@@ -0,0 +1,264 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.pacing;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Paces the packets of a stream: keeps them in one queue per
+ * {@link PacketPriority} and releases them, highest priority first, at the
+ * rate of a {@link TokenBucket}. Audio packets are released immediately but
+ * consume the budget of the bucket.
+ *
+ * A <tt>Pacer</tt> does not own a thread or a timer. Its owner polls it and,
+ * when {@link #poll(long)} returns <tt>null</tt> although the pacer is not
+ * empty, waits for {@link #getDelayNanos(long)} (e.g. by scheduling a timer
+ * on a shared I/O thread). The queues are to be accessed by a single thread at
+ * a time; {@link #setBitrate(long)} and {@link #takePaddingBudget()} may be
+ * invoked from any thread.
+ *
+ * @param <T> the type of the packets.
+ */
+public class Pacer<T>
+{
+    /**
+     * The priorities in decreasing order.
+     */
+    private static final PacketPriority[] PRIORITIES = PacketPriority.values();
+
+    /**
+     * The queues of packets, indexed by {@link PacketPriority#ordinal()}.
+     */
+    private final ArrayDeque<T>[] queues;
+
+    /**
+     * The maximum number of packets in all {@link #queues}.
+     */
+    private final int capacity;
+
+    /**
+     * The function which gets the length in bytes of a packet.
+     */
+    private final ToIntFunction<T> lengthFunction;
+
+    /**
+     * The token bucket which limits the rate at which packets are released.
+     */
+    private final TokenBucket bucket;
+
+    /**
+     * The number of packets in all {@link #queues}.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes a new <tt>Pacer</tt> instance.
+     *
+     * @param capacity the maximum number of packets to be queued.
+     * @param lengthFunction the function which gets the length in bytes of a
+     * packet.
+     * @param burstNanos the maximum burst in nanoseconds (at the current
+     * bitrate).
+     * @param paddingWindowNanos the maximum duration in nanoseconds (at the
+     * current bitrate) of the unused budget which is accumulated as padding
+     * budget.
+     */
+    @SuppressWarnings("unchecked")
+    public Pacer(
+            int capacity,
+            ToIntFunction<T> lengthFunction,
+            long burstNanos,
+            long paddingWindowNanos)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity " + capacity);
+
+        this.capacity = capacity;
+        this.lengthFunction = Objects.requireNonNull(lengthFunction);
+        bucket = new TokenBucket(burstNanos, paddingWindowNanos);
+
+        queues = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < queues.length; i++)
+        {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Sets the rate at which this pacer releases packets.
+     *
+     * @param bitrate the rate in bits per second. A value less than
+     * <tt>1</tt> disables pacing: packets are released as soon as they are
+     * queued (in the order of their priorities).
+     */
+    public void setBitrate(long bitrate)
+    {
+        bucket.setBitrate(bitrate, System.nanoTime());
+    }
+
+    /**
+     * Gets the rate at which this pacer releases packets.
+     *
+     * @return the rate in bits per second, or a value less than <tt>1</tt> if
+     * pacing is disabled.
+     */
+    public long getBitrate()
+    {
+        return bucket.getBitrate();
+    }
+
+    /**
+     * Queues a packet. If this pacer is full, drops the oldest packet of the
+     * lowest priority which is not higher than the priority of the new
+     * packet, or the new packet itself if all queued packets have higher
+     * priorities.
+     *
+     * @param pkt the packet to queue.
+     * @param priority the priority of <tt>pkt</tt>.
+     * @return the dropped packet or <tt>null</tt> if no packet was dropped.
+     */
+    public T offer(T pkt, PacketPriority priority)
+    {
+        T dropped = null;
+
+        if (size >= capacity)
+        {
+            for (int i = queues.length - 1; i >= priority.ordinal(); i--)
+            {
+                if (!queues[i].isEmpty())
+                {
+                    dropped = queues[i].poll();
+                    size--;
+                    break;
+                }
+            }
+            if (dropped == null)
+                return pkt;
+        }
+
+        queues[priority.ordinal()].add(pkt);
+        size++;
+        return dropped;
+    }
+
+    /**
+     * Removes the next packet which is allowed to be sent at a specific time.
+     *
+     * @param nowNanos the current time (as returned by
+     * {@link System#nanoTime()}).
+     * @return the packet with the highest priority which is allowed to be
+     * sent at <tt>nowNanos</tt>, or <tt>null</tt> if there is no such packet.
+     */
+    public T poll(long nowNanos)
+    {
+        if (size == 0)
+            return null;
+
+        ArrayDeque<T> queue = queues[PacketPriority.AUDIO.ordinal()];
+
+        if (queue.isEmpty())
+        {
+            if (bucket.getDelayNanos(nowNanos) > 0)
+                return null;
+
+            for (int i = 1; i < queues.length; i++)
+            {
+                if (!queues[i].isEmpty())
+                {
+                    queue = queues[i];
+                    break;
+                }
+            }
+        }
+
+        T pkt = queue.poll();
+
+        size--;
+        bucket.consume(lengthFunction.applyAsInt(pkt), nowNanos);
+        return pkt;
+    }
+
+    /**
+     * Gets the time until this pacer allows the next packet to be sent.
+     *
+     * @param nowNanos the current time (as returned by
+     * {@link System#nanoTime()}).
+     * @return the number of nanoseconds until the next packet may be sent,
+     * <tt>0</tt> if it may be sent now, or <tt>-1</tt> if this pacer is empty.
+     */
+    public long getDelayNanos(long nowNanos)
+    {
+        if (size == 0)
+            return -1;
+        if (!queues[PacketPriority.AUDIO.ordinal()].isEmpty())
+            return 0;
+
+        return bucket.getDelayNanos(nowNanos);
+    }
+
+    /**
+     * Gets and resets the number of bytes which this pacer could have sent at
+     * its current bitrate but did not because it had nothing to send. Meant to
+     * be filled with padding in order to probe for more bandwidth.
+     *
+     * @return the number of bytes of padding which may be sent.
+     */
+    public int takePaddingBudget()
+    {
+        return bucket.takePaddingBudget(System.nanoTime());
+    }
+
+    /**
+     * Checks whether this pacer has no queued packets.
+     *
+     * @return <tt>true</tt> if this pacer has no queued packets.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Gets the number of queued packets.
+     *
+     * @return the number of queued packets.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Removes all queued packets.
+     *
+     * @param consumer the <tt>Consumer</tt> to hand the removed packets to
+     * (e.g. in order to recycle them).
+     */
+    public void clear(Consumer<T> consumer)
+    {
+        for (ArrayDeque<T> queue : queues)
+        {
+            T pkt;
+
+            while ((pkt = queue.poll()) != null)
+            {
+                consumer.accept(pkt);
+            }
+        }
+        size = 0;
+    }
+}
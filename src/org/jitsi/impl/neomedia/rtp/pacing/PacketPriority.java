@@ -0,0 +1,44 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.pacing;
+
+/**
+ * The priorities with which a {@link Pacer} sends the packets of a stream, in
+ * decreasing order.
+ */
+public enum PacketPriority
+{
+    /**
+     * Audio packets. They are never delayed by a {@link Pacer} (but they do
+     * consume its budget).
+     */
+    AUDIO,
+
+    /**
+     * Retransmissions of lost packets (e.g. in response to NACKs).
+     */
+    RETRANSMISSION,
+
+    /**
+     * Video (and any other media which is not audio) packets.
+     */
+    VIDEO,
+
+    /**
+     * Padding, i.e. packets which are sent only to probe for more bandwidth.
+     */
+    PADDING
+}
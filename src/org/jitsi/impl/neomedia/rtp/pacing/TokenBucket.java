@@ -0,0 +1,221 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.pacing;
+
+/**
+ * A token bucket which is filled at a (changing) bitrate. Tokens are measured
+ * in bytes. The bucket may go into debt: a packet may be sent as soon as the
+ * bucket is not in debt, even if it is larger than the available tokens, and
+ * the next one has to wait until the debt has been paid off. This keeps
+ * packets whole without requiring the bucket to be larger than a packet.
+ *
+ * The tokens which are lost because the bucket is full are accounted as the
+ * padding budget, i.e. the number of bytes which could have been sent at the
+ * configured bitrate but were not.
+ *
+ * Instances are thread-safe.
+ */
+public class TokenBucket
+{
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    /**
+     * The maximum duration in nanoseconds (at the current bitrate) of the
+     * tokens in the bucket, i.e. the maximum burst.
+     */
+    private final long burstNanos;
+
+    /**
+     * The maximum duration in nanoseconds (at the current bitrate) of the
+     * unused tokens which are accumulated as padding budget.
+     */
+    private final long paddingWindowNanos;
+
+    /**
+     * The rate in bits per second at which the bucket is filled. A value less
+     * than <tt>1</tt> disables this bucket (i.e. it does not limit the rate).
+     */
+    private long bitrate = -1;
+
+    /**
+     * The number of bytes in the bucket. Negative when the bucket is in debt.
+     */
+    private double tokens = 0;
+
+    /**
+     * The number of bytes which overflowed the bucket since the padding budget
+     * was last taken.
+     */
+    private double paddingBudget = 0;
+
+    /**
+     * The time (as returned by {@link System#nanoTime()}) at which the bucket
+     * was last filled.
+     */
+    private long lastRefillNanos;
+
+    /**
+     * Initializes a new <tt>TokenBucket</tt> instance.
+     *
+     * @param burstNanos the maximum duration in nanoseconds (at the current
+     * bitrate) of the tokens in the bucket.
+     * @param paddingWindowNanos the maximum duration in nanoseconds (at the
+     * current bitrate) of the unused tokens which are accumulated as padding
+     * budget.
+     */
+    public TokenBucket(long burstNanos, long paddingWindowNanos)
+    {
+        if (burstNanos < 1)
+            throw new IllegalArgumentException("burstNanos " + burstNanos);
+
+        this.burstNanos = burstNanos;
+        this.paddingWindowNanos = Math.max(0, paddingWindowNanos);
+    }
+
+    /**
+     * Sets the rate at which this bucket is filled.
+     *
+     * @param bitrate the rate in bits per second. A value less than
+     * <tt>1</tt> disables this bucket.
+     * @param nowNanos the current time (as returned by
+     * {@link System#nanoTime()}).
+     */
+    public synchronized void setBitrate(long bitrate, long nowNanos)
+    {
+        // Account for the elapsed time at the old rate.
+        refill(nowNanos);
+        if (this.bitrate < 1)
+        {
+            tokens = 0;
+            paddingBudget = 0;
+            lastRefillNanos = nowNanos;
+        }
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Gets the rate at which this bucket is filled.
+     *
+     * @return the rate in bits per second or a value less than <tt>1</tt> if
+     * this bucket is disabled.
+     */
+    public synchronized long getBitrate()
+    {
+        return bitrate;
+    }
+
+    /**
+     * Fills this bucket for the time which has elapsed since it was last
+     * filled.
+     *
+     * @param nowNanos the current time.
+     */
+    private void refill(long nowNanos)
+    {
+        long elapsedNanos = nowNanos - lastRefillNanos;
+
+        if (bitrate < 1 || elapsedNanos <= 0)
+            return;
+
+        lastRefillNanos = nowNanos;
+        tokens += bytes(elapsedNanos);
+
+        double capacity = bytes(burstNanos);
+
+        if (tokens > capacity)
+        {
+            paddingBudget
+                = Math.min(
+                        paddingBudget + tokens - capacity,
+                        bytes(paddingWindowNanos));
+            tokens = capacity;
+        }
+    }
+
+    /**
+     * Gets the number of bytes which the current bitrate allows to be sent in
+     * a specific amount of time.
+     *
+     * @param nanos the amount of time in nanoseconds.
+     * @return the number of bytes which the current bitrate allows to be sent
+     * in <tt>nanos</tt> nanoseconds.
+     */
+    private double bytes(long nanos)
+    {
+        return bitrate * (nanos / NANOS_PER_SECOND) / 8;
+    }
+
+    /**
+     * Removes tokens from this bucket (possibly putting it into debt).
+     *
+     * @param bytes the number of bytes which have been sent.
+     * @param nowNanos the current time.
+     */
+    public synchronized void consume(int bytes, long nowNanos)
+    {
+        if (bitrate < 1)
+            return;
+
+        refill(nowNanos);
+        tokens -= bytes;
+    }
+
+    /**
+     * Gets the time until this bucket allows another packet to be sent.
+     *
+     * @param nowNanos the current time.
+     * @return the number of nanoseconds until this bucket allows another
+     * packet to be sent, or <tt>0</tt> if it allows one to be sent now.
+     */
+    public synchronized long getDelayNanos(long nowNanos)
+    {
+        if (bitrate < 1)
+            return 0;
+
+        refill(nowNanos);
+        if (tokens >= 0)
+            return 0;
+
+        long delayNanos
+            = (long) Math.ceil(-tokens * 8 * NANOS_PER_SECOND / bitrate);
+
+        return Math.max(1, delayNanos);
+    }
+
+    /**
+     * Gets and resets the number of bytes which could have been sent at the
+     * current bitrate but were not.
+     *
+     * @param nowNanos the current time.
+     * @return the number of bytes which could have been sent at the current
+     * bitrate since the last call, limited to the padding window.
+     */
+    public synchronized int takePaddingBudget(long nowNanos)
+    {
+        if (bitrate < 1)
+            return 0;
+
+        refill(nowNanos);
+
+        int budget = (int) paddingBudget;
+
+        paddingBudget -= budget;
+        return budget;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.remotebitrateestimator;
+
+/**
+ * Estimates the rate at which the remote endpoint receives our packets from
+ * the acknowledgments in the transport-cc feedback. The rate is measured over
+ * fixed windows of arrival time and the samples are combined with a Bayesian
+ * filter, so that samples which differ a lot from the current estimate have
+ * less influence.
+ *
+ * webrtc/modules/congestion_controller/acknowledged_bitrate_estimator.cc
+ * webrtc/modules/congestion_controller/bitrate_estimator.cc
+ */
+class AcknowledgedBitrateEstimator
+{
+    /**
+     * The length of the window of the first sample.
+     */
+    private static final int kInitialRateWindowMs = 500;
+
+    /**
+     * The length of the window of the subsequent samples.
+     */
+    private static final int kRateWindowMs = 150;
+
+    /**
+     * The estimated rate in kbps or a negative value if there is no estimate
+     * yet.
+     */
+    private float bitrateEstimate = -1f;
+
+    /**
+     * The variance of {@link #bitrateEstimate}.
+     */
+    private float bitrateEstimateVar = 50f;
+
+    /**
+     * The number of bytes which arrived in the current window.
+     */
+    private long sum = 0;
+
+    /**
+     * The amount of time covered by the current window.
+     */
+    private long currentWindowMs = 0;
+
+    /**
+     * The arrival time of the previous packet or -1.
+     */
+    private long prevTimeMs = -1;
+
+    /**
+     * The time at which the application limited region ended, or -1.
+     */
+    private long alrEndedTimeMs = -1;
+
+    /**
+     * Notifies this instance that a packet has been acknowledged.
+     *
+     * @param sendTimeMs the (local) time at which the packet was sent.
+     * @param arrivalTimeMs the (remote) time at which the packet arrived.
+     * @param size the size of the packet in bytes.
+     */
+    void incomingPacketFeedback(long sendTimeMs, long arrivalTimeMs, int size)
+    {
+        if (alrEndedTimeMs != -1 && sendTimeMs > alrEndedTimeMs)
+        {
+            // The first packet sent after the application limited region.
+            // The rate is expected to increase quickly, so trust the next
+            // samples more than the estimate.
+            alrEndedTimeMs = -1;
+            bitrateEstimateVar += 200;
+        }
+
+        int rateWindowMs
+            = bitrateEstimate < 0 ? kInitialRateWindowMs : kRateWindowMs;
+        float bitrateSample = updateWindow(arrivalTimeMs, size, rateWindowMs);
+
+        if (bitrateSample < 0)
+            return;
+
+        if (bitrateEstimate < 0)
+        {
+            // This is the very first sample we get. Use it to initialize the
+            // estimate.
+            bitrateEstimate = bitrateSample;
+            return;
+        }
+
+        // Define the sample uncertainty as a function of how far away it is
+        // from the current estimate.
+        float sampleUncertainty
+            = 10f * Math.abs(bitrateEstimate - bitrateSample)
+                / bitrateEstimate;
+        float sampleVar = sampleUncertainty * sampleUncertainty;
+        // Update a bayesian estimate of the rate, weighting it lower if the
+        // sample uncertainty is large. The bitrate estimate uncertainty is
+        // increased with each update to model that the bitrate changes over
+        // time.
+        float predBitrateEstimateVar = bitrateEstimateVar + 5f;
+
+        bitrateEstimate
+            = (sampleVar * bitrateEstimate
+                    + predBitrateEstimateVar * bitrateSample)
+                / (sampleVar + predBitrateEstimateVar);
+        bitrateEstimateVar
+            = sampleVar * predBitrateEstimateVar
+                / (sampleVar + predBitrateEstimateVar);
+    }
+
+    /**
+     * Accounts a packet in the current window.
+     *
+     * @param nowMs the arrival time of the packet.
+     * @param bytes the size of the packet in bytes.
+     * @param rateWindowMs the length of the window.
+     * @return the rate in kbps measured over the window which the packet
+     * completed, or <tt>-1</tt> if it did not complete a window.
+     */
+    private float updateWindow(long nowMs, int bytes, int rateWindowMs)
+    {
+        // Reset if time moves backwards.
+        if (nowMs < prevTimeMs)
+        {
+            prevTimeMs = -1;
+            sum = 0;
+            currentWindowMs = 0;
+        }
+        if (prevTimeMs >= 0)
+        {
+            currentWindowMs += nowMs - prevTimeMs;
+            // Reset if nothing has been received for more than a full window.
+            if (nowMs - prevTimeMs > rateWindowMs)
+            {
+                sum = 0;
+                currentWindowMs %= rateWindowMs;
+            }
+        }
+        prevTimeMs = nowMs;
+
+        float bitrateSample = -1f;
+
+        if (currentWindowMs >= rateWindowMs)
+        {
+            bitrateSample = 8f * sum / rateWindowMs;
+            currentWindowMs -= rateWindowMs;
+            sum = 0;
+        }
+        sum += bytes;
+        return bitrateSample;
+    }
+
+    /**
+     * Notifies this instance that the application limited region ended.
+     *
+     * @param alrEndedTimeMs the time at which the application limited region
+     * ended.
+     */
+    void setAlrEndedTimeMs(long alrEndedTimeMs)
+    {
+        this.alrEndedTimeMs = alrEndedTimeMs;
+    }
+
+    /**
+     * Gets the estimated rate at which the remote endpoint receives our
+     * packets.
+     *
+     * @return the estimated rate in bits per second, or <tt>-1</tt> if there
+     * is no estimate yet.
+     */
+    long getBitrateBps()
+    {
+        return bitrateEstimate < 0 ? -1 : (long) (bitrateEstimate * 1000);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.remotebitrateestimator;
+
+/**
+ * Detects the application limited region (ALR), i.e. the periods during
+ * which we send considerably less than the estimated bandwidth because we do
+ * not have more to send. The delay-based estimate cannot be trusted to grow
+ * during such periods, because the path is not being probed.
+ *
+ * The detector keeps a budget which grows at a fraction of the estimated
+ * bitrate and shrinks with the bytes which are sent. The ALR starts when the
+ * budget has accumulated above {@link #kAlrStartBudgetPercent} of its maximum
+ * and ends when it falls below {@link #kAlrStopBudgetPercent}.
+ *
+ * Instances are thread-safe.
+ *
+ * webrtc/modules/congestion_controller/alr_detector.cc
+ * webrtc/modules/pacing/interval_budget.cc
+ */
+class AlrDetector
+{
+    /**
+     * The percentage of the estimated bitrate which is considered "used".
+     */
+    private static final int kAlrBandwidthUsagePercent = 65;
+
+    /**
+     * The budget level (in percent) above which the ALR starts.
+     */
+    private static final int kAlrStartBudgetPercent = 80;
+
+    /**
+     * The budget level (in percent) below which the ALR ends.
+     */
+    private static final int kAlrStopBudgetPercent = 50;
+
+    /**
+     * The length of the window of the budget.
+     */
+    private static final int kWindowMs = 500;
+
+    /**
+     * The rate at which the budget grows, in kbps.
+     */
+    private long targetRateKbps = 0;
+
+    /**
+     * The maximum (and the negated minimum) number of bytes in the budget.
+     */
+    private long maxBytesInBudget = 0;
+
+    /**
+     * The number of bytes in the budget.
+     */
+    private long bytesRemaining = 0;
+
+    /**
+     * The time at which a packet was last sent or -1.
+     */
+    private long lastSendTimeMs = -1;
+
+    /**
+     * The time at which the current ALR started or -1 if we are not in ALR.
+     */
+    private long alrStartedTimeMs = -1;
+
+    /**
+     * Notifies this instance that a packet has been sent.
+     *
+     * @param bytes the size of the packet in bytes.
+     * @param nowMs the time at which the packet was sent.
+     */
+    synchronized void onBytesSent(int bytes, long nowMs)
+    {
+        if (lastSendTimeMs == -1)
+        {
+            lastSendTimeMs = nowMs;
+            return;
+        }
+
+        long deltaTimeMs = nowMs - lastSendTimeMs;
+
+        lastSendTimeMs = nowMs;
+        if (maxBytesInBudget == 0)
+            return;
+
+        // Use the budget and then refill it for the elapsed time (allowing
+        // unused budget to build up, which is what the detector looks for).
+        bytesRemaining = Math.max(bytesRemaining - bytes, -maxBytesInBudget);
+        if (deltaTimeMs > 0)
+        {
+            bytesRemaining
+                = Math.min(
+                        bytesRemaining + targetRateKbps * deltaTimeMs / 8,
+                        maxBytesInBudget);
+        }
+
+        long budgetLevelPercent = bytesRemaining * 100 / maxBytesInBudget;
+
+        if (budgetLevelPercent > kAlrStartBudgetPercent
+                && alrStartedTimeMs == -1)
+        {
+            alrStartedTimeMs = nowMs;
+        }
+        else if (budgetLevelPercent < kAlrStopBudgetPercent
+                && alrStartedTimeMs != -1)
+        {
+            alrStartedTimeMs = -1;
+        }
+    }
+
+    /**
+     * Sets the estimated bitrate, which determines the rate at which the
+     * budget grows.
+     *
+     * @param bitrateBps the estimated bitrate in bits per second.
+     */
+    synchronized void setEstimatedBitrate(long bitrateBps)
+    {
+        targetRateKbps = bitrateBps * kAlrBandwidthUsagePercent / 100 / 1000;
+        maxBytesInBudget = kWindowMs * targetRateKbps / 8;
+        bytesRemaining
+            = Math.min(
+                    Math.max(bytesRemaining, -maxBytesInBudget),
+                    maxBytesInBudget);
+    }
+
+    /**
+     * Gets the time at which the current ALR started.
+     *
+     * @return the time at which the current ALR started, or <tt>-1</tt> if we
+     * are not in ALR.
+     */
+    synchronized long getAlrStartTimeMs()
+    {
+        return alrStartedTimeMs;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.remotebitrateestimator;
+
+import org.jetbrains.annotations.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * A send-side, delay-based bandwidth estimator driven by transport-cc
+ * feedback. Unlike {@link RemoteBitrateEstimatorAbsSendTime}, which models the
+ * one-way delay variation with a Kalman filter, it fits a trendline to the
+ * delay gradient ({@link TrendlineEstimator}), measures the rate at which our
+ * packets are acknowledged ({@link AcknowledgedBitrateEstimator}) and tracks
+ * the application limited region ({@link AlrDetector}).
+ *
+ * The feedback of one RTCP packet is fed with
+ * {@link #incomingPacketFeedback(long, long, int)} for each acknowledged
+ * packet, followed by {@link #feedbackProcessed(long)}, which returns the
+ * updated estimate. These are to be invoked by one thread at a time (e.g.
+ * while synchronized on this instance). {@link #packetSent(int, long)} may be
+ * invoked from any thread.
+ *
+ * webrtc/modules/congestion_controller/delay_based_bwe.cc
+ */
+public class DelayBasedBandwidthEstimator
+{
+    /**
+     * The {@link TimeSeriesLogger} to be used by this instance to print time
+     * series.
+     */
+    private static final TimeSeriesLogger timeSeriesLogger
+        = TimeSeriesLogger.getTimeSeriesLogger(
+                DelayBasedBandwidthEstimator.class);
+
+    /**
+     * The time after which the inter-arrival state is reset if no feedback
+     * has been received.
+     */
+    private static final long kStreamTimeOutMs = 2000;
+
+    /**
+     * The number of consecutive feedback packets without any known packet
+     * after which the estimate is halved.
+     */
+    private static final int kMaxConsecutiveFailedLookups = 5;
+
+    /**
+     * The initial threshold of the {@link OveruseDetector}. Matches the scale
+     * of {@link TrendlineEstimator#getTrendlineSlope()}.
+     */
+    private static final double kTrendlineInitialThreshold = 12.5;
+
+    /**
+     * The minimum interval between two halvings of the estimate while
+     * over-using before there is an acknowledged bitrate.
+     */
+    private static final long kInitialReductionIntervalMs = 200;
+
+    /**
+     * The {@link DiagnosticContext} of this instance.
+     */
+    private final DiagnosticContext diagnosticContext;
+
+    /**
+     * Groups the acknowledged packets and computes the deltas between the
+     * groups.
+     */
+    private InterArrival interArrival;
+
+    /**
+     * Estimates the trend of the delay gradient.
+     */
+    private TrendlineEstimator trendline;
+
+    /**
+     * Detects over-use from the trend of the delay gradient.
+     */
+    private final OveruseDetector detector;
+
+    /**
+     * Computes the estimate from the detector state and the acknowledged
+     * bitrate.
+     */
+    private final AimdRateControl rateControl;
+
+    /**
+     * Estimates the rate at which our packets are acknowledged.
+     */
+    private final AcknowledgedBitrateEstimator ackedBitrateEstimator
+        = new AcknowledgedBitrateEstimator();
+
+    /**
+     * Detects the application limited region.
+     */
+    private final AlrDetector alrDetector = new AlrDetector();
+
+    /**
+     * Reduces the effects of allocations and garbage collection of the method
+     * {@link #incomingPacketFeedback(long, long, int)}.
+     */
+    private final long[] deltas = new long[3];
+
+    /**
+     * Reduces the effects of allocations and garbage collection of the method
+     * {@link #feedbackProcessed(long)}.
+     */
+    private final RateControlInput input
+        = new RateControlInput(BandwidthUsage.kBwNormal, 0L, 0D);
+
+    /**
+     * The time at which feedback was last processed or -1.
+     */
+    private long lastSeenPacketMs = -1;
+
+    /**
+     * The number of consecutive feedback packets without any known packet.
+     */
+    private int consecutiveDelayedFeedbacks = 0;
+
+    /**
+     * Whether any acknowledged packet has been fed since the last invocation
+     * of {@link #feedbackProcessed(long)}.
+     */
+    private boolean feedbackHasPackets = false;
+
+    /**
+     * The arrival time of the last acknowledged packet.
+     */
+    private long lastArrivalTimeMs = -1;
+
+    /**
+     * Whether we were in the application limited region when feedback was
+     * last processed.
+     */
+    private boolean wasInAlr = false;
+
+    /**
+     * The time at which the estimate was last halved because of over-use
+     * before there was an acknowledged bitrate.
+     */
+    private long lastInitialReductionMs = -1;
+
+    /**
+     * Initializes a new <tt>DelayBasedBandwidthEstimator</tt>.
+     *
+     * @param diagnosticContext the {@link DiagnosticContext} of this instance.
+     */
+    public DelayBasedBandwidthEstimator(
+            @NotNull DiagnosticContext diagnosticContext)
+    {
+        this.diagnosticContext = diagnosticContext;
+
+        OverUseDetectorOptions options = new OverUseDetectorOptions();
+
+        options.initialThreshold = kTrendlineInitialThreshold;
+        detector = new OveruseDetector(options, diagnosticContext);
+        rateControl = new AimdRateControl(diagnosticContext);
+        resetInterArrival();
+    }
+
+    /**
+     * Resets the inter-arrival and the trendline state.
+     */
+    private void resetInterArrival()
+    {
+        interArrival
+            = new InterArrival(
+                    RemoteBitrateEstimatorAbsSendTime
+                        .kTimestampGroupLengthTicks,
+                    RemoteBitrateEstimatorAbsSendTime.kTimestampToMs,
+                    true,
+                    diagnosticContext);
+        trendline = new TrendlineEstimator();
+    }
+
+    /**
+     * Notifies this instance that a packet has been sent. Used to detect the
+     * application limited region.
+     *
+     * @param length the length of the packet in bytes.
+     * @param nowMs the time at which the packet was sent.
+     */
+    public void packetSent(int length, long nowMs)
+    {
+        alrDetector.onBytesSent(length, nowMs);
+    }
+
+    /**
+     * Notifies this instance that a packet has been acknowledged.
+     *
+     * @param sendTimeMs the (local) time at which the packet was sent.
+     * @param arrivalTimeMs the time at which the packet arrived, in the local
+     * time base.
+     * @param size the size of the packet in bytes.
+     */
+    public synchronized void incomingPacketFeedback(
+            long sendTimeMs, long arrivalTimeMs, int size)
+    {
+        long nowMs = System.currentTimeMillis();
+
+        if (!feedbackHasPackets)
+        {
+            feedbackHasPackets = true;
+            // Reset if the stream has timed out.
+            if (lastSeenPacketMs == -1
+                    || nowMs - lastSeenPacketMs > kStreamTimeOutMs)
+            {
+                resetInterArrival();
+            }
+            lastSeenPacketMs = nowMs;
+        }
+
+        ackedBitrateEstimator.incomingPacketFeedback(
+                sendTimeMs, arrivalTimeMs, size);
+        lastArrivalTimeMs = arrivalTimeMs;
+
+        long timestamp
+            = RemoteBitrateEstimatorAbsSendTime.convertMsTo24Bits(sendTimeMs)
+                << RemoteBitrateEstimatorAbsSendTime
+                    .kAbsSendTimeInterArrivalUpshift;
+
+        if (interArrival.computeDeltas(
+                timestamp, arrivalTimeMs, size, deltas, nowMs))
+        {
+            double tsDeltaMs
+                = deltas[0] * RemoteBitrateEstimatorAbsSendTime.kTimestampToMs;
+
+            trendline.update(deltas[1], tsDeltaMs, arrivalTimeMs);
+            detector.detect(
+                    trendline.getTrendlineSlope(),
+                    tsDeltaMs,
+                    trendline.getNumOfDeltas(),
+                    arrivalTimeMs);
+        }
+    }
+
+    /**
+     * Notifies this instance that all acknowledged packets of a feedback
+     * packet have been fed and updates the estimate.
+     *
+     * @param nowMs the current time.
+     * @return the updated estimate in bits per second, or <tt>-1</tt> if the
+     * estimate was not updated.
+     */
+    public synchronized long feedbackProcessed(long nowMs)
+    {
+        boolean inAlr = alrDetector.getAlrStartTimeMs() != -1;
+
+        if (wasInAlr && !inAlr)
+        {
+            ackedBitrateEstimator.setAlrEndedTimeMs(nowMs);
+        }
+        wasInAlr = inAlr;
+
+        if (!feedbackHasPackets)
+        {
+            // None of the acknowledged packets were known to us (e.g. the
+            // feedback was delayed beyond our history).
+            if (++consecutiveDelayedFeedbacks >= kMaxConsecutiveFailedLookups)
+            {
+                consecutiveDelayedFeedbacks = 0;
+                return onLongFeedbackDelay(nowMs);
+            }
+            return -1;
+        }
+
+        feedbackHasPackets = false;
+        consecutiveDelayedFeedbacks = 0;
+
+        long ackedBitrateBps = ackedBitrateEstimator.getBitrateBps();
+        long estimateBps = -1;
+
+        if (detector.getState() == BandwidthUsage.kBwOverusing)
+        {
+            if (ackedBitrateBps > 0)
+            {
+                if (rateControl.isTimeToReduceFurther(nowMs, ackedBitrateBps))
+                {
+                    estimateBps = updateEstimate(nowMs, ackedBitrateBps);
+                }
+            }
+            else if (rateControl.isValidEstimate()
+                    && (lastInitialReductionMs == -1
+                        || nowMs - lastInitialReductionMs
+                            >= kInitialReductionIntervalMs))
+            {
+                // Over-using before we have a measured acknowledged bitrate.
+                // Reduce the send rate by 50% every 200 ms.
+                lastInitialReductionMs = nowMs;
+                rateControl.setEstimate(
+                        rateControl.getLatestEstimate() / 2, nowMs);
+                estimateBps = rateControl.getLatestEstimate();
+            }
+        }
+        else
+        {
+            estimateBps = updateEstimate(nowMs, Math.max(ackedBitrateBps, 0));
+        }
+
+        if (estimateBps > 0)
+        {
+            alrDetector.setEstimatedBitrate(estimateBps);
+            if (timeSeriesLogger.isTraceEnabled())
+            {
+                timeSeriesLogger.trace(diagnosticContext
+                        .makeTimeSeriesPoint("delay_based_bwe", nowMs)
+                        .addField("estimate_bps", estimateBps)
+                        .addField("acked_bps", ackedBitrateBps)
+                        .addField("state", detector.getState().getValue())
+                        .addField("in_alr", inAlr));
+            }
+        }
+        return estimateBps;
+    }
+
+    /**
+     * Updates the AIMD rate control with the current detector state.
+     *
+     * @param nowMs the current time.
+     * @param ackedBitrateBps the acknowledged bitrate or <tt>0</tt>.
+     * @return the updated estimate in bits per second, or <tt>-1</tt> if
+     * there is no valid estimate.
+     */
+    private long updateEstimate(long nowMs, long ackedBitrateBps)
+    {
+        input.bwState = detector.getState();
+        input.incomingBitRate = ackedBitrateBps;
+        input.noiseVar = 0D;
+        rateControl.update(input, nowMs);
+
+        long estimateBps = rateControl.updateBandwidthEstimate(nowMs);
+
+        return rateControl.isValidEstimate() ? estimateBps : -1;
+    }
+
+    /**
+     * Halves the estimate because we have been receiving feedback only about
+     * packets which we do not know for too long.
+     *
+     * @param nowMs the current time.
+     * @return the updated estimate in bits per second, or <tt>-1</tt> if
+     * there is no valid estimate.
+     */
+    private long onLongFeedbackDelay(long nowMs)
+    {
+        if (!rateControl.isValidEstimate())
+            return -1;
+
+        rateControl.setEstimate(
+                rateControl.getLatestEstimate() / 2,
+                lastArrivalTimeMs == -1 ? nowMs : lastArrivalTimeMs);
+        return rateControl.getLatestEstimate();
+    }
+
+    /**
+     * Notifies this instance about an updated round-trip time.
+     *
+     * @param avgRttMs the average round-trip time in milliseconds.
+     */
+    public synchronized void onRttUpdate(long avgRttMs)
+    {
+        rateControl.setRtt(avgRttMs);
+    }
+
+    /**
+     * Sets the minimum estimate of this instance.
+     *
+     * @param minBitrateBps the minimum estimate in bits per second.
+     */
+    public synchronized void setMinBitrate(long minBitrateBps)
+    {
+        rateControl.setMinBitrate(minBitrateBps);
+    }
+
+    /**
+     * Gets the latest estimate of this instance.
+     *
+     * @return the latest estimate in bits per second, or <tt>-1</tt> if there
+     * is no valid estimate yet.
+     */
+    public synchronized long getLatestEstimate()
+    {
+        return
+            rateControl.isValidEstimate() ? rateControl.getLatestEstimate() : -1;
+    }
+
+    /**
+     * Gets the rate at which the remote endpoint acknowledges our packets.
+     *
+     * @return the acknowledged bitrate in bits per second, or <tt>-1</tt> if
+     * it is not known yet.
+     */
+    public synchronized long getAcknowledgedBitrate()
+    {
+        return ackedBitrateEstimator.getBitrateBps();
+    }
+
+    /**
+     * Checks whether we are sending considerably less than the estimate
+     * because we do not have more to send.
+     *
+     * @return <tt>true</tt> if we are in the application limited region.
+     */
+    public boolean isInAlr()
+    {
+        return alrDetector.getAlrStartTimeMs() != -1;
+    }
+}
@@ -52,7 +52,7 @@
      * point) to make it inter-arrival compatible (expanded AST, 32 bits, 6.26
      * fixed point).
      */
-    private final static int kAbsSendTimeInterArrivalUpshift = 8;
+    final static int kAbsSendTimeInterArrivalUpshift = 8;
 
     /**
      * This is used in the {@link InterArrival} computations. In this estimator
@@ -65,21 +65,21 @@
      * Defines the number of digits in the expanded AST representation (32 bits,
      * 6.26 fixed point) after the radix.
      */
-    private final static int kInterArrivalShift
+    final static int kInterArrivalShift
         = kAbsSendTimeFraction + kAbsSendTimeInterArrivalUpshift;
 
     /**
      * Converts the {@link #kTimestampGroupLengthMs} into "ticks" for use with
      * the {@link InterArrival}.
      */
-    private static final long kTimestampGroupLengthTicks
+    static final long kTimestampGroupLengthTicks
         = (kTimestampGroupLengthMs << kInterArrivalShift) / 1000;
 
     /**
      * Defines the expanded AST (32 bits) to millis conversion rate. Units are
      * ms per timestamp
      */
-    private static final double
+    static final double
         kTimestampToMs = (double) 1000 / (1 << kInterArrivalShift);
 
     /**
@@ -0,0 +1,237 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.remotebitrateestimator;
+
+/**
+ * Estimates the trend of the one-way delay variation: accumulates the
+ * differences between the arrival and the send deltas of packet groups,
+ * smooths the accumulated delay and fits a line through the last
+ * {@link #windowSize} smoothed values. A positive slope means that queues
+ * build up along the path.
+ *
+ * webrtc/modules/congestion_controller/trendline_estimator.cc
+ */
+class TrendlineEstimator
+{
+    /**
+     * The maximum number of deltas which {@link #getNumOfDeltas()} reports.
+     */
+    private static final int kDeltaCounterMax = 1000;
+
+    /**
+     * The default number of smoothed delays to fit the trendline to.
+     */
+    static final int kDefaultWindowSize = 20;
+
+    /**
+     * The default coefficient of the exponential smoothing of the
+     * accumulated delay.
+     */
+    static final double kDefaultSmoothingCoef = 0.9;
+
+    /**
+     * The default gain to apply to the slope of the trendline before it is
+     * compared against the threshold of the {@link OveruseDetector}.
+     */
+    static final double kDefaultThresholdGain = 4.0;
+
+    /**
+     * The number of smoothed delays to fit the trendline to.
+     */
+    private final int windowSize;
+
+    /**
+     * The coefficient of the exponential smoothing of the accumulated delay.
+     */
+    private final double smoothingCoef;
+
+    /**
+     * The gain to apply to the slope of the trendline.
+     */
+    private final double thresholdGain;
+
+    /**
+     * The arrival times (relative to {@link #firstArrivalTimeMs}) of the
+     * samples in the window. Used as a ring buffer together with
+     * {@link #smoothedDelays}, {@link #head} and {@link #count}.
+     */
+    private final double[] arrivalTimes;
+
+    /**
+     * The smoothed delays of the samples in the window.
+     */
+    private final double[] smoothedDelays;
+
+    /**
+     * The index in {@link #arrivalTimes} of the oldest sample.
+     */
+    private int head = 0;
+
+    /**
+     * The number of samples in the window.
+     */
+    private int count = 0;
+
+    /**
+     * The number of deltas the trendline is based on, capped at
+     * {@link #kDeltaCounterMax}.
+     */
+    private int numOfDeltas = 0;
+
+    /**
+     * The arrival time of the first sample.
+     */
+    private long firstArrivalTimeMs = -1;
+
+    /**
+     * The sum of all delay deltas.
+     */
+    private double accumulatedDelay = 0;
+
+    /**
+     * The exponentially smoothed {@link #accumulatedDelay}.
+     */
+    private double smoothedDelay = 0;
+
+    /**
+     * The slope of the trendline (without {@link #thresholdGain}).
+     */
+    private double trendline = 0;
+
+    /**
+     * Initializes a new <tt>TrendlineEstimator</tt> with the default
+     * parameters.
+     */
+    TrendlineEstimator()
+    {
+        this(kDefaultWindowSize, kDefaultSmoothingCoef, kDefaultThresholdGain);
+    }
+
+    /**
+     * Initializes a new <tt>TrendlineEstimator</tt>.
+     *
+     * @param windowSize the number of smoothed delays to fit the trendline to.
+     * @param smoothingCoef the coefficient of the exponential smoothing of the
+     * accumulated delay.
+     * @param thresholdGain the gain to apply to the slope of the trendline.
+     */
+    TrendlineEstimator(
+            int windowSize, double smoothingCoef, double thresholdGain)
+    {
+        if (windowSize < 2)
+            throw new IllegalArgumentException("windowSize " + windowSize);
+
+        this.windowSize = windowSize;
+        this.smoothingCoef = smoothingCoef;
+        this.thresholdGain = thresholdGain;
+        arrivalTimes = new double[windowSize];
+        smoothedDelays = new double[windowSize];
+    }
+
+    /**
+     * Updates the trendline with the deltas of a packet group.
+     *
+     * @param recvDeltaMs the difference between the arrival times of this and
+     * the previous packet group.
+     * @param sendDeltaMs the difference between the send times of this and the
+     * previous packet group.
+     * @param arrivalTimeMs the arrival time of this packet group.
+     */
+    void update(double recvDeltaMs, double sendDeltaMs, long arrivalTimeMs)
+    {
+        double deltaMs = recvDeltaMs - sendDeltaMs;
+
+        if (numOfDeltas < kDeltaCounterMax)
+            numOfDeltas++;
+        if (firstArrivalTimeMs == -1)
+            firstArrivalTimeMs = arrivalTimeMs;
+
+        // Exponential backoff filter.
+        accumulatedDelay += deltaMs;
+        smoothedDelay
+            = smoothingCoef * smoothedDelay
+                + (1 - smoothingCoef) * accumulatedDelay;
+
+        // Simple linear regression.
+        int tail = (head + count) % windowSize;
+
+        arrivalTimes[tail] = arrivalTimeMs - firstArrivalTimeMs;
+        smoothedDelays[tail] = smoothedDelay;
+        if (count < windowSize)
+            count++;
+        else
+            head = (head + 1) % windowSize;
+
+        if (count == windowSize)
+            trendline = linearFitSlope(trendline);
+    }
+
+    /**
+     * Computes the slope of the least squares line through the samples in the
+     * window.
+     *
+     * @param defaultValue the value to return if the slope is undefined (i.e.
+     * all samples have the same arrival time).
+     * @return the slope of the least squares line through the samples in the
+     * window, or <tt>defaultValue</tt>.
+     */
+    private double linearFitSlope(double defaultValue)
+    {
+        // Compute the "center of mass".
+        double sumX = 0, sumY = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            sumX += arrivalTimes[i];
+            sumY += smoothedDelays[i];
+        }
+
+        double xAvg = sumX / count, yAvg = sumY / count;
+
+        // Compute the slope k = \sum (x_i-x_avg)(y_i-y_avg) / \sum (x_i-x_avg)^2
+        double numerator = 0, denominator = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            double x = arrivalTimes[i] - xAvg;
+
+            numerator += x * (smoothedDelays[i] - yAvg);
+            denominator += x * x;
+        }
+        return denominator == 0 ? defaultValue : numerator / denominator;
+    }
+
+    /**
+     * Gets the slope of the trendline multiplied by the threshold gain, i.e.
+     * the value to feed into the {@link OveruseDetector}.
+     *
+     * @return the (amplified) slope of the trendline.
+     */
+    double getTrendlineSlope()
+    {
+        return trendline * thresholdGain;
+    }
+
+    /**
+     * Gets the number of deltas the trendline is based on.
+     *
+     * @return the number of deltas the trendline is based on.
+     */
+    int getNumOfDeltas()
+    {
+        return numOfDeltas;
+    }
+}
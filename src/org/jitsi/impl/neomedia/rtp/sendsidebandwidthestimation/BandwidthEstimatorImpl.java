@@ -210,6 +210,15 @@ public void updateReceiverEstimate(long bandwidth)
         sendSideBandwidthEstimation.updateReceiverEstimate(bandwidth);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateDelayBasedEstimate(long bandwidth)
+    {
+        sendSideBandwidthEstimation.updateDelayBasedEstimate(bandwidth);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -263,6 +263,11 @@
      */
     private long bwe_incoming_ = 0;
 
+    /**
+     * send_side_bandwidth_estimation.h
+     */
+    private long delay_based_bitrate_bps_ = 0;
+
     /**
      * send_side_bandwidth_estimation.h
      */
@@ -345,6 +350,10 @@ private synchronized long capBitrateToThresholds(long bitrate)
         {
             bitrate = bwe_incoming_;
         }
+        if (delay_based_bitrate_bps_ > 0 && bitrate > delay_based_bitrate_bps_)
+        {
+            bitrate = delay_based_bitrate_bps_;
+        }
         if (bitrate > max_bitrate_configured_)
         {
             bitrate = max_bitrate_configured_;
@@ -363,12 +372,14 @@ protected synchronized void updateEstimate(long now)
     {
         long bitrate = bitrate_;
 
-        // We trust the REMB during the first 2 seconds if we haven't had any
-        // packet loss reported, to allow startup bitrate probing.
+        // We trust the REMB (or the delay-based estimate) during the first 2
+        // seconds if we haven't had any packet loss reported, to allow startup
+        // bitrate probing.
+        long incoming = Math.max(bwe_incoming_, delay_based_bitrate_bps_);
         if (last_fraction_loss_ == 0 && isInStartPhase(now) &&
-                bwe_incoming_ > bitrate)
+                incoming > bitrate)
         {
-            setBitrate(capBitrateToThresholds(bwe_incoming_));
+            setBitrate(capBitrateToThresholds(incoming));
             min_bitrate_history_.clear();
             min_bitrate_history_.addLast(new Pair<>(now, bitrate_));
             return;
@@ -544,6 +555,16 @@ public synchronized void updateReceiverEstimate(long bandwidth)
         setBitrate(capBitrateToThresholds(bitrate_));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void updateDelayBasedEstimate(long bandwidth)
+    {
+        delay_based_bitrate_bps_ = bandwidth;
+        setBitrate(capBitrateToThresholds(bitrate_));
+    }
+
     /**
      * void SendSideBandwidthEstimation::SetMinMaxBitrate
      */
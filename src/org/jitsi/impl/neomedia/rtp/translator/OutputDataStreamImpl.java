@@ -16,6 +16,8 @@
 package org.jitsi.impl.neomedia.rtp.translator;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.media.*;
 import javax.media.rtp.*;
@@ -29,7 +31,6 @@
 import org.jitsi.util.*;
 import org.jitsi.utils.*;
 import org.jitsi.utils.logging.Logger; // Disambiguation.
-import org.jitsi.utils.queue.*;
 
 /**
  * Implements <tt>OutputDataStream</tt> for an <tt>RTPTranslatorImpl</tt>. The
@@ -42,8 +43,7 @@
  * @author Boris Grozev
  */
 class OutputDataStreamImpl
-    implements OutputDataStream,
-               Runnable
+    implements OutputDataStream
 {
     /**
      * The <tt>Logger</tt> used by the <tt>OutputDataStreamImpl</tt> class and
@@ -61,10 +61,13 @@
     private static final String REMOVE_RTP_HEADER_EXTENSIONS_PNAME
         = RTPTranslatorImpl.class.getName() + ".removeRTPHeaderExtensions";
 
-    private static final int WRITE_Q_CAPACITY
-        = RTPConnectorOutputStream.PACKET_QUEUE_CAPACITY;
+    /**
+     * The capacity of {@link #writePool}.
+     */
+    private static final int WRITE_POOL_CAPACITY
+        = RTPConnectorOutputStream.POOL_CAPACITY;
 
-    private boolean closed;
+    private volatile boolean closed;
 
     private final RTPConnectorImpl connector;
 
@@ -90,29 +93,60 @@
      * to (1) avoid {@code Iterator}s and (2) reduce synchronization. The access
      * to {@link #_streams} is synchronized by {@link #_streamsSyncRoot}.
      */
-    private List<OutputDataStreamDesc> _streams = Collections.emptyList();
+    private volatile List<OutputDataStreamDesc> _streams
+        = Collections.emptyList();
+
+    /**
+     * The {@link #_streams} by the {@code StreamRTPManagerDesc} of their
+     * endpoints. Used to route RTCP feedback messages to the endpoint which
+     * receives their media source without iterating over all endpoints.
+     * Replaced along with {@link #_streams} (i.e. copy-on-write).
+     */
+    private volatile Map<StreamRTPManagerDesc, List<OutputDataStreamDesc>>
+        _streamsByStreamRTPManager = Collections.emptyMap();
 
     /**
      * The {@code Object} which synchronizes the access to {@link #_streams}.
      */
     private final Object _streamsSyncRoot = new Object();
 
-    private final RTPTranslatorBuffer[] writeQ
-        = new RTPTranslatorBuffer[WRITE_Q_CAPACITY];
-
-    private int writeQHead;
+    /**
+     * The number of packets dropped because they were written while the
+     * queue of {@link #workers} was full.
+     */
+    private final LongAdder numDroppedPackets = new LongAdder();
 
-    private int writeQLength;
+    /**
+     * The number of writes into endpoint {@code OutputDataStream}s which
+     * shared the {@link SharedPacketBuffer} of the written packet instead of
+     * copying it.
+     */
+    private final AtomicLong numberOfSharedWrites = new AtomicLong();
 
-    private final QueueStatistics writeQStats;
+    /**
+     * The number of writes into endpoint {@code OutputDataStream}s which had
+     * to copy the written packet, either because the packet had to be
+     * modified for the endpoint (copy-on-write) or because the endpoint
+     * {@code OutputDataStream} does not accept a {@link SharedPacketBuffer}.
+     */
+    private final AtomicLong numberOfCopiedWrites = new AtomicLong();
 
     /**
-     * The number of packets dropped because a packet was inserted while
-     * {@link #writeQ} was full.
+     * The pool of <tt>RTPTranslatorBuffer</tt>s i.e. of writes to be done by
+     * {@link #workers}, to reduce their allocations and garbage collection.
      */
-    private int numDroppedPackets = 0;
+    private final Queue<RTPTranslatorBuffer> writePool
+        = new ArrayBlockingQueue<>(WRITE_POOL_CAPACITY);
 
-    private Thread writeThread;
+    /**
+     * The source of work of the shared <tt>RTPTranslatorWorkers</tt> which
+     * writes the packets written into this instance into the endpoint
+     * {@code OutputDataStream}s. The packets of this instance are written in
+     * order and by one thread at a time, so the flooding of one instance
+     * drops its own packets only.
+     */
+    private final RTPTranslatorWorkers.Source workers
+        = RTPTranslatorWorkers.getInstance().createSource();
 
     public OutputDataStreamImpl(RTPConnectorImpl connector, boolean data)
     {
@@ -124,15 +158,6 @@ public OutputDataStreamImpl(RTPConnectorImpl connector, boolean data)
                     LibJitsi.getConfigurationService(),
                     REMOVE_RTP_HEADER_EXTENSIONS_PNAME,
                     false);
-
-        if (logger.isTraceEnabled())
-        {
-            writeQStats = new QueueStatistics();
-        }
-        else
-        {
-            writeQStats = null;
-        }
     }
 
     /**
@@ -167,26 +192,44 @@ public void addStream(
 
             newStreams.addAll(_streams);
             newStreams.add(new OutputDataStreamDesc(connectorDesc, stream));
-            _streams = newStreams;
+            setStreams(newStreams);
         }
     }
 
-    public synchronized void close()
+    public void close()
     {
         closed = true;
-        writeThread = null;
-        notify();
-    }
+        writePool.clear();
 
-    private synchronized void createWriteThread()
-    {
-        writeThread = new Thread(this, getClass().getName());
-        writeThread.setDaemon(true);
-        writeThread.start();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "Closing, shared writes (copies avoided): "
+                        + numberOfSharedWrites.get() + ", copied writes: "
+                        + numberOfCopiedWrites.get());
+        }
     }
 
+    /**
+     * Writes a packet into the endpoint {@code OutputDataStream}s of this
+     * instance.
+     *
+     * @param buf the packet data
+     * @param off the offset in {@code buf} at which the packet data starts
+     * @param len the length of the packet data
+     * @param sharedBuffer the {@link SharedPacketBuffer} which holds the
+     * packet data (i.e. {@code buf} is its data and {@code off} is {@code 0})
+     * or {@code null} if the packet data is not held by a
+     * {@code SharedPacketBuffer}. Endpoint {@code RTPConnectorOutputStream}s
+     * which do not need to modify the packet share it rather than copy it.
+     * @param format the FMJ {@code Format} of the packet data
+     * @param exclusion the {@code StreamRTPManagerDesc} which is excluded
+     * from the write
+     * @return the number of {@code byte}s written
+     */
     private int doWrite(
             byte[] buf, int off, int len,
+            SharedPacketBuffer sharedBuffer,
             Format format,
             StreamRTPManagerDesc exclusion)
     {
@@ -199,8 +242,37 @@ private int doWrite(
         // storage in order to avoid synchronization and, especially, here where
         // I'm to invoke writes on multiple other OutputDataStreams.
         List<OutputDataStreamDesc> streams = _streams;
+
+        if (!_data)
+        {
+            // An RTCP feedback message is written only into the endpoint
+            // which receives its media source, so look that endpoint up
+            // instead of trying all endpoints.
+            long ssrcOfMediaSource = getSSRCOfMediaSource(buf, off, len);
+
+            if (ssrcOfMediaSource == -2)
+                return 0;
+            if (ssrcOfMediaSource != -1)
+            {
+                StreamRTPManagerDesc destination
+                    = translator.findStreamRTPManagerDescByReceiveSSRC(
+                            (int) ssrcOfMediaSource,
+                            exclusion);
+
+                streams
+                    = (destination == null)
+                        ? null
+                        : _streamsByStreamRTPManager.get(destination);
+                if (streams == null)
+                    return 0;
+            }
+        }
+
         boolean removeRTPHeaderExtensions = _removeRTPHeaderExtensions;
         int written = 0;
+        // The RawPacket presented to the RTPTranslatorImpl for the purposes
+        // of filtering. Reused for all destinations.
+        RawPacket pkt = null;
 
         // XXX I do NOT want to use an Iterator.
         for (int i = 0, end = streams.size(); i < end; ++i)
@@ -213,6 +285,9 @@ private int doWrite(
                 continue;
 
             boolean write;
+            // The private copy of the packet for the current destination if
+            // the packet has to be modified for it (copy-on-write).
+            SharedPacketBuffer copy = null;
 
             if (_data)
             {
@@ -223,16 +298,33 @@ private int doWrite(
                 // follow RFC 4588"
                 if (removeRTPHeaderExtensions)
                 {
+                    // The packet has not been shared with any destination yet
+                    // so it is safe to modify it in place.
                     removeRTPHeaderExtensions = false;
                     len = removeRTPHeaderExtensions(buf, off, len);
+                    if (sharedBuffer != null)
+                        sharedBuffer.setLength(len);
                 }
 
-                write
-                    = willWriteData(
-                            streamRTPManager,
-                            buf, off, len,
-                            format,
-                            exclusion);
+                write = willWriteData(streamRTPManager);
+                if (write)
+                {
+                    int pt
+                        = getPayloadType(
+                                streamRTPManager,
+                                len,
+                                format,
+                                exclusion);
+
+                    if (pt != -1 && (buf[off + 1] & 0x7f) != pt)
+                    {
+                        copy = SharedPacketBuffer.acquire(buf, off, len);
+
+                        byte[] data = copy.getData();
+
+                        data[1] = (byte) ((data[1] & 0x80) | (pt & 0x7f));
+                    }
+                }
             }
             else
             {
@@ -244,29 +336,89 @@ private int doWrite(
                             exclusion);
             }
 
-            if (write)
+            try
             {
-                // Allow the RTPTranslatorImpl a final chance to filter out the
-                // packet on a source-destination basis.
-                write
-                    = translator.willWrite(
-                        /* source */ exclusion,
-                    new RawPacket(buf, off, len),
-                        /* destination */ streamRTPManager,
-                    _data);
-            }
+                byte[] b = (copy == null) ? buf : copy.getData();
+                int o = (copy == null) ? off : 0;
 
-            if (write)
-            {
-                int w = s.stream.write(buf, off, len);
+                if (write)
+                {
+                    // Allow the RTPTranslatorImpl a final chance to filter out
+                    // the packet on a source-destination basis.
+                    if (pkt == null)
+                    {
+                        pkt = new RawPacket(b, o, len);
+                    }
+                    else
+                    {
+                        pkt.setBuffer(b);
+                        pkt.setOffset(o);
+                        pkt.setLength(len);
+                    }
+                    write
+                        = translator.willWrite(
+                            /* source */ exclusion,
+                            pkt,
+                            /* destination */ streamRTPManager,
+                            _data);
+                }
 
-                if (written < w)
-                    written = w;
+                if (write)
+                {
+                    SharedPacketBuffer shared
+                        = (copy == null) ? sharedBuffer : copy;
+                    int w;
+
+                    if (shared != null
+                            && s.stream instanceof RTPConnectorOutputStream)
+                    {
+                        w = ((RTPConnectorOutputStream) s.stream).write(shared);
+                        if (copy == null)
+                            numberOfSharedWrites.incrementAndGet();
+                        else
+                            numberOfCopiedWrites.incrementAndGet();
+                    }
+                    else
+                    {
+                        w = s.stream.write(b, o, len);
+                        numberOfCopiedWrites.incrementAndGet();
+                    }
+
+                    if (written < w)
+                        written = w;
+                }
+            }
+            finally
+            {
+                if (copy != null)
+                    copy.release();
             }
         }
         return written;
     }
 
+    /**
+     * Gets the number of writes into endpoint {@code OutputDataStream}s which
+     * shared the written packet instead of copying it.
+     *
+     * @return the number of writes which shared the written packet
+     */
+    public long getNumberOfSharedWrites()
+    {
+        return numberOfSharedWrites.get();
+    }
+
+    /**
+     * Gets the number of writes into endpoint {@code OutputDataStream}s which
+     * copied the written packet.
+     *
+     * @return the number of writes which copied the written packet
+     */
+    public long getNumberOfCopiedWrites()
+    {
+        return numberOfCopiedWrites.get();
+    }
+
     private RTPTranslatorImpl getTranslator()
     {
         return connector.translator;
@@ -354,99 +506,85 @@ public void removeStreams(RTPConnectorDesc connectorDesc)
                 if (i.next().connectorDesc == connectorDesc)
                     i.remove();
             }
-            _streams = newStreams;
+            setStreams(newStreams);
         }
     }
 
-    @Override
-    public void run()
+    /**
+     * Sets {@link #_streams} and updates {@link #_streamsByStreamRTPManager}
+     * accordingly. Must be called with {@link #_streamsSyncRoot} held.
+     *
+     * @param streams the new list of {@code OutputDataStream}s into which this
+     * {@code OutputDataStream} copies written data/packets.
+     */
+    private void setStreams(List<OutputDataStreamDesc> streams)
     {
-        try
+        Map<StreamRTPManagerDesc, List<OutputDataStreamDesc>>
+            streamsByStreamRTPManager = new HashMap<>();
+
+        for (OutputDataStreamDesc streamDesc : streams)
         {
-            do
-            {
-                int writeIndex;
-                byte[] buffer;
-                StreamRTPManagerDesc exclusion;
-                Format format;
-                int length;
+            streamsByStreamRTPManager
+                .computeIfAbsent(
+                        streamDesc.connectorDesc.streamRTPManagerDesc,
+                        k -> new ArrayList<>(1))
+                    .add(streamDesc);
+        }
 
-                synchronized (this)
-                {
-                    if (closed || !Thread.currentThread().equals(writeThread))
-                        break;
-                    if (writeQLength < 1)
-                    {
-                        boolean interrupted = false;
+        _streamsByStreamRTPManager = streamsByStreamRTPManager;
+        _streams = streams;
+    }
 
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException ie)
-                        {
-                            interrupted = true;
-                        }
-                        if (interrupted)
-                            Thread.currentThread().interrupt();
-                        continue;
-                    }
+    /**
+     * Gets the SSRC of the media source of an RTCP feedback message (i.e. the
+     * SSRC whose receiver the message is to be written into).
+     *
+     * @param buffer the buffer which contains the RTCP packet
+     * @param offset the offset in <tt>buffer</tt> at which the RTCP packet
+     * starts
+     * @param length the length in bytes of the RTCP packet
+     * @return the SSRC of the media source of the RTCP feedback message in
+     * <tt>buffer</tt> (as an unsigned value), <tt>-1</tt> if the packet is not
+     * a (valid) RTCP feedback message and is to be written into all
+     * endpoints or <tt>-2</tt> if the packet is a malformed FIR and is to be
+     * written into none.
+     */
+    static long getSSRCOfMediaSource(
+            byte[] buffer, int offset, int length)
+    {
+        // Mirrors the checks of willWriteControl.
+        if (length < 12 /* FB */)
+            return -1;
 
-                    writeIndex = writeQHead;
+        byte b0 = buffer[offset];
 
-                    RTPTranslatorBuffer write = writeQ[writeIndex];
+        if (((b0 & 0xc0) >>> 6) /* version */ != RTCPHeader.VERSION)
+            return -1;
 
-                    buffer = write.data;
-                    write.data = null;
-                    exclusion = write.exclusion;
-                    write.exclusion = null;
-                    format = write.format;
-                    write.format = null;
-                    length = write.length;
-                    write.length = 0;
+        int pt = buffer[offset + 1] & 0xff; /* payload type */
 
-                    writeQHead++;
-                    if (writeQHead >= writeQ.length)
-                        writeQHead = 0;
-                    writeQLength--;
-                    if (writeQStats != null)
-                    {
-                        writeQStats.remove(System.currentTimeMillis());
-                    }
-                }
+        if ((pt != 205 /* RTPFB */) && (pt != 206 /* PSFB */))
+            return -1;
 
-                try
-                {
-                    doWrite(buffer, 0, length, format, exclusion);
-                }
-                finally
-                {
-                    synchronized (this)
-                    {
-                        RTPTranslatorBuffer write = writeQ[writeIndex];
+        int rtcpLength
+            = (RTPUtils.readUint16AsInt(buffer, offset + 2) + 1) * 4;
 
-                        if (write != null && write.data == null)
-                            write.data = buffer;
-                    }
-                }
-            }
-            while (true);
-        }
-        catch (Throwable t)
+        if (rtcpLength > length)
+            return -1;
+
+        if (pt == 206 && (b0 & 0x1f) == 4) // FIR
         {
-            logger.error("Failed to translate RTP packet", t);
-            if (t instanceof ThreadDeath)
-                throw (ThreadDeath) t;
+            // FIR messages are at least 20 bytes long and don't have a valid
+            // 'media source' field, use the SSRC from the first FCI entry
+            // instead
+            return
+                (rtcpLength < 20)
+                    ? -2
+                    : RTPUtils.readInt(buffer, offset + 12) & 0xffffffffL;
         }
-        finally
+        else
         {
-            synchronized (this)
-            {
-                if (Thread.currentThread().equals(writeThread))
-                    writeThread = null;
-                if (!closed && writeThread == null && writeQLength > 0)
-                    createWriteThread();
-            }
+            return RTPUtils.readInt(buffer, offset + 8) & 0xffffffffL;
         }
     }
 
@@ -566,41 +704,49 @@ private boolean willWriteControl(
     }
 
     /**
-     * Notifies this instance that a specific <tt>byte</tt> buffer will be
-     * written into the data <tt>OutputDataStream</tt> of a specific
-     * <tt>StreamRTPManagerDesc</tt>.
+     * Notifies this instance that a data packet will be written into the data
+     * <tt>OutputDataStream</tt> of a specific <tt>StreamRTPManagerDesc</tt>.
+     *
+     * @param destination the <tt>StreamRTPManagerDesc</tt> which is the
+     * destination of the write
+     * @return <tt>true</tt> to write the data packet into the specified
+     * <tt>destination</tt> or <tt>false</tt> to not write it into the
+     * specified <tt>destination</tt>
+     */
+    private boolean willWriteData(StreamRTPManagerDesc destination)
+    {
+        // Only write data packets to OutputDataStreams for which the
+        // associated MediaStream allows sending.
+        return
+            destination.streamRTPManager.getMediaStream().getDirection()
+                .allowsSending();
+    }
+
+    /**
+     * Gets the RTP payload type which a data packet of a specific FMJ
+     * <tt>Format</tt> is to carry when it is written into the data
+     * <tt>OutputDataStream</tt> of a specific <tt>StreamRTPManagerDesc</tt>.
+     * The packet is not modified because it may be shared with other
+     * destinations.
      *
      * @param destination the <tt>StreamRTPManagerDesc</tt> which is the
      * destination of the write
-     * @param buf the data to be written into <tt>destination</tt>
-     * @param off the offset in <tt>buf</tt> at which the data to be written
-     * into <tt>destination</tt> starts
-     * @param len the number of <tt>byte</tt>s in <tt>buf</tt> beginning at
-     * <tt>off</tt> which constitute the data to the written into
+     * @param len the number of <tt>byte</tt>s of the data to the written into
      * <tt>destination</tt>
      * @param format the FMJ <tt>Format</tt> of the data to be written into
      * <tt>destination</tt>
      * @param exclusion the <tt>StreamRTPManagerDesc</tt> which is exclude
      * from the write batch, possibly because it is the cause of the write
      * batch in the first place
-     * @return <tt>true</tt> to write the specified data into the specified
-     * <tt>destination</tt> or <tt>false</tt> to not write the specified
-     * data into the specified <tt>destination</tt>
+     * @return the RTP payload type which the packet is to carry when written
+     * into <tt>destination</tt> or <tt>-1</tt> if it is to be written as is
      */
-    private boolean willWriteData(
+    private static int getPayloadType(
             StreamRTPManagerDesc destination,
-            byte[] buf, int off, int len,
+            int len,
             Format format,
             StreamRTPManagerDesc exclusion)
     {
-        // Only write data packets to OutputDataStreams for which the
-        // associated MediaStream allows sending.
-        if (!destination.streamRTPManager.getMediaStream().getDirection()
-                .allowsSending())
-        {
-            return false;
-        }
-
         if (format != null && len > 0)
         {
             Integer pt = destination.getPayloadType(format);
@@ -611,14 +757,11 @@ private boolean willWriteData(
             }
             if (pt != null)
             {
-                int ptByteIndex = off + 1;
-
-                buf[ptByteIndex]
-                    = (byte) ((buf[ptByteIndex] & 0x80) | (pt & 0x7f));
+                return pt & 0x7f;
             }
         }
 
-        return true;
+        return -1;
     }
 
     @Override
@@ -626,10 +769,27 @@ public int write(byte[] buf, int off, int len)
     {
         // FIXME It's unclear at the time of this writing why the method doWrite
         // is being invoked here and not the overloaded method write.
-        return doWrite(buf, off, len, /* format */ null, /* exclusion */ null);
+        return
+            doWrite(
+                    buf, off, len,
+                    /* sharedBuffer */ null,
+                    /* format */ null,
+                    /* exclusion */ null);
     }
 
-    public synchronized void write(
+    /**
+     * Queues a packet to be written into the endpoint {@code OutputDataStream}s
+     * of this instance by {@link #workers}. The packets are written in order
+     * and by one thread at a time.
+     *
+     * @param buf the packet data
+     * @param off the offset in {@code buf} at which the packet data starts
+     * @param len the length of the packet data
+     * @param format the FMJ {@code Format} of the packet data
+     * @param exclusion the {@code StreamRTPManagerDesc} which is excluded
+     * from the write
+     */
+    public void write(
             byte[] buf, int off, int len,
             Format format,
             StreamRTPManagerDesc exclusion)
@@ -637,58 +797,92 @@ public synchronized void write(
         if (closed)
             return;
 
-        int writeIndex;
+        RTPTranslatorBuffer write = writePool.poll();
 
-        if (writeQLength < writeQ.length)
-        {
-            writeIndex = (writeQHead + writeQLength) % writeQ.length;
-        }
-        else
-        {
-            writeIndex = writeQHead;
-            writeQHead++;
-            if (writeQHead >= writeQ.length)
-                writeQHead = 0;
-            writeQLength--;
-            if (writeQStats != null)
-            {
-                writeQStats.remove(System.currentTimeMillis());
-            }
+        if (write == null)
+            write = new RTPTranslatorBuffer(this);
 
-            numDroppedPackets++;
-            if (RTPConnectorOutputStream.logDroppedPacket(numDroppedPackets))
-            {
-                logger.warn(
-                        "Dropped " + numDroppedPackets + " packets "
-                                + "hashCode=" + hashCode() + "): ");
-            }
-        }
+        // This is the only copy of the packet which is shared by all
+        // destinations which do not need to modify it.
+        write.buffer = SharedPacketBuffer.acquire(buf, off, len);
+        write.exclusion = exclusion;
+        write.format = format;
 
-        RTPTranslatorBuffer write = writeQ[writeIndex];
+        workers.execute(write);
+    }
 
-        if (write == null)
-            writeQ[writeIndex] = write = new RTPTranslatorBuffer();
+    /**
+     * Notifies this instance that a packet written into it has been dropped
+     * because the queue of {@link #workers} was full.
+     *
+     * @param write the dropped packet.
+     */
+    void dropped(RTPTranslatorBuffer write)
+    {
+        release(write);
 
-        byte[] data = write.data;
+        numDroppedPackets.increment();
 
-        if (data == null || data.length < len)
-            write.data = data = new byte[len];
-        System.arraycopy(buf, off, data, 0, len);
+        long numDroppedPackets = this.numDroppedPackets.sum();
 
-        write.exclusion = exclusion;
-        write.format = format;
-        write.length = len;
+        if (RTPConnectorOutputStream.logDroppedPacket((int) numDroppedPackets))
+        {
+            logger.warn(
+                    "Dropped " + numDroppedPackets + " packets "
+                            + "hashCode=" + hashCode() + "): ");
+        }
+    }
 
-        writeQLength++;
-        if (writeQStats != null)
+    /**
+     * Writes a packet queued by {@link #write(byte[], int, int, Format,
+     * StreamRTPManagerDesc)} into the endpoint {@code OutputDataStream}s of
+     * this instance. Invoked by {@link #workers} i.e. by one thread at a time
+     * per instance, though the instances of a translator (e.g. its data and
+     * control streams) and of different translators write concurrently,
+     * which {@link RTPTranslatorImpl#willWrite(StreamRTPManagerDesc,
+     * RawPacket, StreamRTPManagerDesc, boolean)} and its
+     * <tt>WriteFilter</tt>s must allow.
+     *
+     * @param write the packet to write.
+     */
+    void doWrite(RTPTranslatorBuffer write)
+    {
+        SharedPacketBuffer buffer = write.buffer;
+
+        try
+        {
+            if (!closed)
+            {
+                doWrite(
+                        buffer.getData(), 0, buffer.getLength(),
+                        buffer,
+                        write.format,
+                        write.exclusion);
+            }
+        }
+        finally
         {
-            writeQStats.add(System.currentTimeMillis());
+            release(write);
         }
+    }
 
-        if (writeThread == null)
-            createWriteThread();
-        else
-            notify();
+    /**
+     * Releases the packet of a write and returns the write to
+     * {@link #writePool}.
+     *
+     * @param write the write to release.
+     */
+    void release(RTPTranslatorBuffer write)
+    {
+        if (write.buffer != null)
+        {
+            write.buffer.release();
+            write.buffer = null;
+        }
+        write.exclusion = null;
+        write.format = null;
+        if (!closed)
+            writePool.offer(write);
     }
 
     /**
@@ -18,24 +18,25 @@
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.media.*;
 import javax.media.protocol.*;
 
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.utils.logging.Logger; // Disambiguation.
-import org.jitsi.utils.queue.*;
 
 /**
  * Implements <tt>PushSourceStream</tt> for an <tt>RTPTranslatorImpl</tt>. Reads
  * packets from endpoint <tt>PushSourceStream</tt>s and pushes them to an
- * <tt>RTPTranslatorImpl</tt> to be translated.
+ * <tt>RTPTranslatorImpl</tt> to be translated. The packets are pushed on the
+ * threads of the shared <tt>RTPTranslatorWorkers</tt> rather than on a thread
+ * of each instance.
  *
  * @author Lyubomir Marinov
  */
 class PushSourceStreamImpl
     implements PushSourceStream,
-               Runnable,
                SourceTransferHandler
 {
     /**
@@ -49,19 +50,12 @@
      * The indicator which determines whether {@link #close()} has been
      * invoked on this instance.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     private final RTPConnectorImpl connector;
 
     private final boolean data;
 
-    /**
-     * The indicator which determines whether
-     * {@link #read(byte[], int, int)} read a <tt>SourcePacket</tt> from
-     * {@link #readQ} after a <tt>SourcePacket</tt> was written there.
-     */
-    private boolean _read = false;
-
     /**
      * The <tt>Queue</tt> of <tt>SourcePacket</tt>s to be read out of this
      * instance via {@link #read(byte[], int, int)}.
@@ -73,8 +67,6 @@
      */
     private final int readQCapacity;
 
-    private final QueueStatistics readQStats;
-
     /**
      * The number of packets dropped because a packet was inserted while
      * {@link #readQ} was full.
@@ -90,14 +82,44 @@
 
     private final List<PushSourceStreamDesc> streams = new LinkedList<>();
 
+    private volatile SourceTransferHandler _transferHandler;
+
     /**
-     * The <tt>Thread</tt> which invokes
+     * The source of work of the shared <tt>RTPTranslatorWorkers</tt> on which
+     * {@link #drain} runs, which invokes
      * {@link SourceTransferHandler#transferData(PushSourceStream)} on
-     * {@link #_transferHandler}. 
+     * {@link #_transferHandler}. <tt>SourceTransferHandler</tt>s expect the
+     * packets of a stream to be pushed by one thread at a time, which the
+     * tasks of a source are.
      */
-    private Thread transferDataThread;
+    private final RTPTranslatorWorkers.Source workers
+        = RTPTranslatorWorkers.getInstance().createSource();
 
-    private SourceTransferHandler _transferHandler;
+    /**
+     * The indicator which determines whether {@link #drain} has been queued
+     * on {@link #workers} and has not finished yet.
+     */
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /**
+     * The work which pushes the packets of {@link #readQ} to
+     * {@link #_transferHandler}.
+     */
+    private final RTPTranslatorWorkers.Task drain
+        = new RTPTranslatorWorkers.Task()
+        {
+            @Override
+            protected void dropped()
+            {
+                drainScheduled.set(false);
+            }
+
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
 
     public PushSourceStreamImpl(RTPConnectorImpl connector, boolean data)
     {
@@ -106,18 +128,6 @@ public PushSourceStreamImpl(RTPConnectorImpl connector, boolean data)
 
         readQCapacity = RTPConnectorOutputStream.PACKET_QUEUE_CAPACITY;
         readQ = new ArrayBlockingQueue<>(readQCapacity);
-        if (logger.isTraceEnabled())
-        {
-            readQStats = new QueueStatistics();
-        }
-        else
-        {
-            readQStats = null;
-        }
-
-        transferDataThread = new Thread(this, getClass().getName());
-        transferDataThread.setDaemon(true);
-        transferDataThread.start();
     }
 
     public synchronized void addStream(
@@ -143,6 +153,54 @@ public void close()
         sourcePacketPool.clear();
     }
 
+    /**
+     * Runs on {@link #workers} and invokes
+     * {@link SourceTransferHandler#transferData(PushSourceStream)} on
+     * {@link #_transferHandler} for the packets in {@link #readQ}. Pushes at
+     * most as many packets as there are at the start so that the other
+     * streams of the shard get their turn.
+     */
+    private void drain()
+    {
+        try
+        {
+            for (int i = readQ.size(); i > 0 && !closed; i--)
+            {
+                SourceTransferHandler transferHandler = _transferHandler;
+
+                if (transferHandler == null)
+                    break;
+
+                try
+                {
+                    transferHandler.transferData(this);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                    {
+                        throw (ThreadDeath) t;
+                    }
+                    else
+                    {
+                        logger.warn(
+                                "An RTP packet may have not been fully"
+                                        + " handled.",
+                                t);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            drainScheduled.set(false);
+        }
+        // Packets may have been added after the last check of readQ and
+        // before drainScheduled was cleared.
+        if (!readQ.isEmpty())
+            scheduleDrain();
+    }
+
     /**
      * Not implemented because there are currently no uses of the underlying
      * functionality.
@@ -239,12 +297,6 @@ public int read(byte[] buffer, int offset, int length)
             }
 
             readQ.remove();
-            if (readQStats != null)
-            {
-                readQStats.remove(System.currentTimeMillis());
-            }
-            _read = true;
-            readQ.notifyAll();
         }
 
         System.arraycopy(
@@ -293,58 +345,17 @@ public synchronized void removeStreams(RTPConnectorDesc connectorDesc)
     }
 
     /**
-     * Runs in {@link #transferDataThread} and invokes
-     * {@link SourceTransferHandler#transferData(PushSourceStream)} on
-     * {@link #_transferHandler}.
+     * Queues {@link #drain} on {@link #workers} unless it is already queued
+     * or running, {@link #_transferHandler} is not set or this instance is
+     * closed.
      */
-    @Override
-    public void run()
+    private void scheduleDrain()
     {
-        try
+        if (!closed
+                && _transferHandler != null
+                && drainScheduled.compareAndSet(false, true))
         {
-            while (!closed)
-            {
-                SourceTransferHandler transferHandler = _transferHandler;
-
-                synchronized (readQ)
-                {
-                    if (readQ.isEmpty() || (transferHandler == null))
-                    {
-                        try
-                        {
-                            readQ.wait(100);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                        }
-                        continue;
-                    }
-                }
-
-                try
-                {
-                    transferHandler.transferData(this);
-                }
-                catch (Throwable t)
-                {
-                    if (t instanceof ThreadDeath)
-                    {
-                        throw (ThreadDeath) t;
-                    }
-                    else
-                    {
-                        logger.warn(
-                                "An RTP packet may have not been fully"
-                                        + " handled.",
-                                t);
-                    }
-                }
-            }
-        }
-        finally
-        {
-            if (Thread.currentThread().equals(transferDataThread))
-                transferDataThread = null;
+            workers.execute(drain);
         }
     }
 
@@ -357,6 +368,7 @@ public synchronized void setTransferHandler(
             _transferHandler = transferHandler;
             for (PushSourceStreamDesc streamDesc : streams)
                 streamDesc.stream.setTransferHandler(this);
+            scheduleDrain();
         }
     }
 
@@ -454,34 +466,11 @@ public void transferData(PushSourceStream stream)
                 pkt.setLength(read);
                 pkt.streamDesc = streamDesc;
 
-                boolean yield;
-
-                synchronized (readQ)
-                {
-                    int readQSize = readQ.size();
-
-                    if (readQSize < 1)
-                        yield = false;
-                    else if (readQSize < readQCapacity)
-                        yield = (_read == false);
-                    else
-                        yield = true;
-                    if (yield)
-                        readQ.notifyAll();
-                }
-                if (yield)
-                    Thread.yield();
-
                 synchronized (readQ)
                 {
-                    long now = System.currentTimeMillis();
                     if (readQ.size() >= readQCapacity)
                     {
                         readQ.remove();
-                        if (readQStats != null)
-                        {
-                            readQStats.remove(now);
-                        }
                         numDroppedPackets++;
                         if (RTPConnectorOutputStream.logDroppedPacket(
                                 numDroppedPackets))
@@ -491,20 +480,9 @@ else if (readQSize < readQCapacity)
                                             + "hashCode=" + hashCode() + "): ");
                         }
                     }
-
-                    if (readQ.offer(pkt))
-                    {
-                        if (readQStats != null)
-                        {
-                            readQStats.add(now);
-                        }
-                        // TODO It appears that it is better to not yield based
-                        // on whether the read method has read after the last
-                        // write.
-                        // this.read = false;
-                    }
-                    readQ.notifyAll();
+                    readQ.offer(pkt);
                 }
+                scheduleDrain();
             }
             else
             {
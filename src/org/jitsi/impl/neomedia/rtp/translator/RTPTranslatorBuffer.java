@@ -17,19 +17,62 @@
 
 import javax.media.*;
 
+import org.jitsi.impl.neomedia.*;
+
 /**
  * Privately used by {@link OutputDataStreamImpl} at the time of this writing
- * and extracted into its own file for the sake of readability.
+ * and extracted into its own file for the sake of readability. A packet
+ * written into an <tt>OutputDataStreamImpl</tt> which is to be written into
+ * its endpoint <tt>OutputDataStream</tt>s by <tt>RTPTranslatorWorkers</tt>.
  *
  * @author Lyubomir Marinov
  */
 class RTPTranslatorBuffer
+    extends RTPTranslatorWorkers.Task
 {
-    public byte[] data;
+    /**
+     * The <tt>OutputDataStreamImpl</tt> into which the packet was written.
+     */
+    private final OutputDataStreamImpl stream;
+
+    /**
+     * The (reference-counted) packet data to be written.
+     */
+    public SharedPacketBuffer buffer;
 
     public StreamRTPManagerDesc exclusion;
 
     public Format format;
 
-    public int length;
+    /**
+     * Initializes a new <tt>RTPTranslatorBuffer</tt> instance.
+     *
+     * @param stream the <tt>OutputDataStreamImpl</tt> into which the packets
+     * described by the new instance are written.
+     */
+    RTPTranslatorBuffer(OutputDataStreamImpl stream)
+    {
+        this.stream = stream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void dropped()
+    {
+        stream.dropped(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Writes the packet into the endpoint <tt>OutputDataStream</tt>s of
+     * {@link #stream}.
+     */
+    @Override
+    public void run()
+    {
+        stream.doWrite(this);
+    }
 }
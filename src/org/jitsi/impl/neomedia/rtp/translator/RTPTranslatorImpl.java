@@ -31,6 +31,7 @@
 import org.jitsi.impl.neomedia.rtp.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.logging.*;
 
 /**
@@ -157,6 +158,16 @@ static void logRTCP(
     private final List<StreamRTPManagerDesc> streamRTPManagers
         = new ArrayList<>();
 
+    /**
+     * The <tt>StreamRTPManager</tt>s which receive the receive/remote SSRCs
+     * i.e. the routing index of this translator. An SSRC is received by a
+     * single <tt>StreamRTPManager</tt>. Looking an SSRC up takes no lock so
+     * that routing does not depend on the number of
+     * <tt>StreamRTPManager</tt>s.
+     */
+    private final CopyOnWriteIntMap<StreamRTPManagerDesc> receiveSSRCIndex
+        = new CopyOnWriteIntMap<>();
+
     /**
      * Initializes a new <tt>RTPTranslatorImpl</tt> instance.
      */
@@ -465,19 +476,10 @@ int didRead(
             {
                 int ssrc = RTPUtils.readInt(buf, off + 8);
 
-                if (!streamRTPManager.containsReceiveSSRC(ssrc))
+                if (receiveSSRCIndex.get(ssrc) != streamRTPManager
+                        && !addReceiveSSRC(streamRTPManager, ssrc))
                 {
-                    if (findStreamRTPManagerDescByReceiveSSRC(
-                                ssrc,
-                                streamRTPManager)
-                            == null)
-                    {
-                        streamRTPManager.addReceiveSSRC(ssrc);
-                    }
-                    else
-                    {
-                        return 0;
-                    }
+                    return 0;
                 }
 
                 int pt = buf[off + 1] & 0x7f;
@@ -515,6 +517,43 @@ else if (LOGGER.isTraceEnabled())
         return len;
     }
 
+    /**
+     * Adds a receive/remote SSRC to a specific <tt>StreamRTPManagerDesc</tt>
+     * unless it is received by another <tt>StreamRTPManagerDesc</tt>.
+     *
+     * @param streamRTPManager the <tt>StreamRTPManagerDesc</tt> to which
+     * <tt>receiveSSRC</tt> is to be added
+     * @param receiveSSRC the receive/remote SSRC to add
+     * @return <tt>true</tt> if <tt>receiveSSRC</tt> is received by
+     * <tt>streamRTPManager</tt> or <tt>false</tt> if it is received by another
+     * <tt>StreamRTPManagerDesc</tt> or <tt>streamRTPManager</tt> has been
+     * disposed of
+     */
+    boolean addReceiveSSRC(
+            StreamRTPManagerDesc streamRTPManager,
+            int receiveSSRC)
+    {
+        synchronized (receiveSSRCIndex)
+        {
+            // A packet which was read before its StreamRTPManager was disposed
+            // of must not route the SSRC to it again.
+            if (streamRTPManager.disposed)
+            {
+                return false;
+            }
+
+            StreamRTPManagerDesc owner = receiveSSRCIndex.get(receiveSSRC);
+
+            if (owner == null)
+            {
+                streamRTPManager.addReceiveSSRC(receiveSSRC);
+                receiveSSRCIndex.put(receiveSSRC, streamRTPManager);
+                return true;
+            }
+            return owner == streamRTPManager;
+        }
+    }
+
     /**
      * Releases the resources allocated by this instance in the course of its
      * execution and prepares it to be garbage collected.
@@ -594,6 +633,7 @@ public void dispose(StreamRTPManager streamRTPManager)
                 }
 
                 streamRTPManagerIter.remove();
+                removeReceiveSSRCs(streamRTPManagerDesc);
                 break;
             }
         }
@@ -605,6 +645,29 @@ public void dispose(StreamRTPManager streamRTPManager)
         }
     }
 
+    /**
+     * Marks a specific <tt>StreamRTPManagerDesc</tt> as disposed of and removes
+     * the receive/remote SSRCs which it receives from the routing index of
+     * this translator.
+     *
+     * @param streamRTPManager the <tt>StreamRTPManagerDesc</tt> whose receive
+     * SSRCs are to be removed
+     */
+    void removeReceiveSSRCs(StreamRTPManagerDesc streamRTPManager)
+    {
+        synchronized (receiveSSRCIndex)
+        {
+            streamRTPManager.disposed = true;
+            for (int receiveSSRC : streamRTPManager.getReceiveSSRCs())
+            {
+                if (receiveSSRCIndex.get(receiveSSRC) == streamRTPManager)
+                {
+                    receiveSSRCIndex.remove(receiveSSRC);
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -630,35 +693,13 @@ public StreamRTPManager findStreamRTPManagerByReceiveSSRC(int receiveSSRC)
      * @return the first <tt>StreamRTPManager</tt> which is related to the
      * specified <tt>receiveSSRC</tt>
      */
-    private StreamRTPManagerDesc findStreamRTPManagerDescByReceiveSSRC(
+    StreamRTPManagerDesc findStreamRTPManagerDescByReceiveSSRC(
             int receiveSSRC,
             StreamRTPManagerDesc exclusion)
     {
-        Lock lock = _lock.readLock();
-        StreamRTPManagerDesc ret = null;
-
-        lock.lock();
-        try
-        {
-
-        for (int i = 0, count = streamRTPManagers.size(); i < count; i++)
-        {
-            StreamRTPManagerDesc s = streamRTPManagers.get(i);
+        StreamRTPManagerDesc ret = receiveSSRCIndex.get(receiveSSRC);
 
-            if ((s != exclusion) && s.containsReceiveSSRC(receiveSSRC))
-            {
-                ret = s;
-                break;
-            }
-        }
-
-        }
-        finally
-        {
-            lock.unlock();
-        }
-
-        return ret;
+        return (ret == exclusion) ? null : ret;
     }
 
     /**
@@ -1105,7 +1146,10 @@ public void update(ReceiveStreamEvent event)
 
     /**
      * Notifies this <tt>RTPTranslator</tt> that a <tt>buffer</tt> from a
-     * <tt>source</tt> will be written into a <tt>destination</tt>.
+     * <tt>source</tt> will be written into a <tt>destination</tt>. The data
+     * and the control packets are written by the shared
+     * <tt>RTPTranslatorWorkers</tt>, each kind in order and by one thread at
+     * a time, but the two kinds may be written concurrently.
      *
      * @param source the source of <tt>buffer</tt>
      * @param pkt the packet from the <tt>source</tt> which are to be written into the
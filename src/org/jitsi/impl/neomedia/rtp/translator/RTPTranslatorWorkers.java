@@ -0,0 +1,583 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.translator;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.utils.logging.Logger; // Disambiguation.
+
+/**
+ * Runs the work of all <tt>RTPTranslatorImpl</tt>s (reading packets from the
+ * endpoints and writing them into the other endpoints) on a fixed number of
+ * threads (by default, one per core) instead of on threads of each
+ * translator stream. The work is submitted through {@link Source}s (e.g. one
+ * per translator stream), each of which is assigned to one thread (i.e.
+ * shard) and has its own bounded queue, so that the work of a source is done
+ * in order, one task at a time. A shard takes one task from each of its
+ * sources in turn. When the queue of a source is full, either its oldest or
+ * its newest work is dropped, as configured, so that a source which floods
+ * its shard only drops its own work and delays the work of the other sources
+ * of the shard by at most one task per turn.
+ */
+public class RTPTranslatorWorkers
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPTranslatorWorkers</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RTPTranslatorWorkers.class);
+
+    /**
+     * The name of the property which specifies the number of threads (i.e.
+     * shards).
+     */
+    public static final String THREADS_PNAME
+        = RTPTranslatorWorkers.class.getName() + ".THREADS";
+
+    /**
+     * The name of the property which specifies the capacity of the queue of
+     * each source.
+     */
+    public static final String QUEUE_CAPACITY_PNAME
+        = RTPTranslatorWorkers.class.getName() + ".QUEUE_CAPACITY";
+
+    /**
+     * The name of the property which specifies the {@link DropPolicy} of the
+     * queues.
+     */
+    public static final String DROP_POLICY_PNAME
+        = RTPTranslatorWorkers.class.getName() + ".DROP_POLICY";
+
+    /**
+     * The default capacity of the queue of each source. The same as that of
+     * the write queue which each translator stream used to have.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The <tt>RTPTranslatorWorkers</tt> shared by the
+     * <tt>RTPTranslatorImpl</tt>s.
+     */
+    private static final RTPTranslatorWorkers instance;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        DropPolicy dropPolicy = DropPolicy.DROP_OLDEST;
+
+        if (cfg != null)
+        {
+            threads = cfg.getInt(THREADS_PNAME, threads);
+            queueCapacity = cfg.getInt(QUEUE_CAPACITY_PNAME, queueCapacity);
+
+            String s = cfg.getString(DROP_POLICY_PNAME);
+
+            if (s != null && s.length() != 0)
+            {
+                try
+                {
+                    dropPolicy = DropPolicy.valueOf(s.trim().toUpperCase());
+                }
+                catch (IllegalArgumentException iae)
+                {
+                    logger.warn("Unknown " + DROP_POLICY_PNAME + ": " + s);
+                }
+            }
+        }
+        instance
+            = new RTPTranslatorWorkers(
+                    Math.max(threads, 1),
+                    Math.max(queueCapacity, 1),
+                    dropPolicy);
+    }
+
+    /**
+     * Gets the <tt>RTPTranslatorWorkers</tt> shared by the
+     * <tt>RTPTranslatorImpl</tt>s.
+     *
+     * @return the <tt>RTPTranslatorWorkers</tt> shared by the
+     * <tt>RTPTranslatorImpl</tt>s.
+     */
+    public static RTPTranslatorWorkers getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * The shards.
+     */
+    private final Shard[] shards;
+
+    /**
+     * The capacity of the queue of each source.
+     */
+    private final int queueCapacity;
+
+    /**
+     * What is dropped when the queue of a source is full.
+     */
+    private final DropPolicy dropPolicy;
+
+    /**
+     * The number of sources created so far, used to assign the sources to the
+     * shards in turn.
+     */
+    private final AtomicInteger sourceCount = new AtomicInteger();
+
+    /**
+     * Initializes a new <tt>RTPTranslatorWorkers</tt> instance.
+     *
+     * @param threads the number of threads (i.e. shards).
+     * @param queueCapacity the capacity of the queue of each source.
+     * @param dropPolicy what is dropped when the queue of a source is full.
+     */
+    RTPTranslatorWorkers(int threads, int queueCapacity, DropPolicy dropPolicy)
+    {
+        this.queueCapacity = queueCapacity;
+        this.dropPolicy = dropPolicy;
+
+        shards = new Shard[threads];
+        for (int i = 0; i < threads; i++)
+            shards[i] = new Shard(i);
+    }
+
+    /**
+     * Creates a new source of work. The sources are assigned to the shards
+     * in turn.
+     *
+     * @return a new source of work.
+     */
+    Source createSource()
+    {
+        int index
+            = (sourceCount.getAndIncrement() & 0x7fffffff) % shards.length;
+
+        return new Source(shards[index]);
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the number of shards.
+     */
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Gets the statistics of a specific shard.
+     *
+     * @param index the index of the shard.
+     * @return the statistics of the shard with index <tt>index</tt>.
+     */
+    public ShardStats getShardStats(int index)
+    {
+        return shards[index];
+    }
+
+    /**
+     * What is dropped when the queue of a source is full.
+     */
+    public enum DropPolicy
+    {
+        /**
+         * The oldest queued work of the source is dropped to make room for
+         * the new one. Suits media, where late packets are worth less than
+         * new ones.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new work is dropped.
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * The statistics of the queues of the sources of a shard.
+     */
+    public interface ShardStats
+    {
+        /**
+         * @return the number of tasks which wait in the queues.
+         */
+        int getQueued();
+
+        /**
+         * @return the largest number of tasks which have waited in the queues
+         * at the same time.
+         */
+        int getMaxQueued();
+
+        /**
+         * @return the number of tasks run.
+         */
+        long getExecuted();
+
+        /**
+         * @return the number of tasks dropped because the queue of their
+         * source was full.
+         */
+        long getDropped();
+
+        /**
+         * @return the mean time in milliseconds which the run tasks waited
+         * in the queues.
+         */
+        double getMeanQueueTime();
+    }
+
+    /**
+     * Work to be done by a shard.
+     */
+    static abstract class Task
+        implements Runnable
+    {
+        /**
+         * The time in milliseconds at which the task was queued.
+         */
+        private long queued;
+
+        /**
+         * Notifies this task that it has been dropped because the queue of
+         * its source was full, so that it releases its resources.
+         */
+        protected void dropped()
+        {
+        }
+    }
+
+    /**
+     * A source of work (e.g. a translator stream) with its own bounded queue.
+     * The tasks of a source are run in order by the thread of its shard, one
+     * at a time.
+     */
+    class Source
+    {
+        /**
+         * The shard which runs the tasks of this source.
+         */
+        private final Shard shard;
+
+        /**
+         * The tasks which wait to be run. Guarded by <tt>this</tt>.
+         */
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+
+        /**
+         * The indicator which determines whether this source waits in the
+         * turn of {@link #shard}. Guarded by <tt>this</tt>.
+         */
+        private boolean scheduled;
+
+        /**
+         * The next source in the turn of {@link #shard}. Guarded by
+         * {@link #shard}.
+         */
+        private Source next;
+
+        /**
+         * Initializes a new <tt>Source</tt>.
+         *
+         * @param shard the shard which is to run the tasks of the new
+         * instance.
+         */
+        private Source(Shard shard)
+        {
+            this.shard = shard;
+        }
+
+        /**
+         * Adds a task to the queue of this source, dropping a task of this
+         * source if it is full. Never blocks.
+         *
+         * @param task the task.
+         * @return <tt>true</tt> if <tt>task</tt> was queued or <tt>false</tt>
+         * if it was dropped (in which case {@link Task#dropped()} has been
+         * invoked).
+         */
+        boolean execute(Task task)
+        {
+            Task drop = null;
+            boolean schedule = false;
+
+            task.queued = System.currentTimeMillis();
+            synchronized (this)
+            {
+                if (queue.size() >= queueCapacity)
+                {
+                    drop
+                        = (dropPolicy == DropPolicy.DROP_OLDEST)
+                            ? queue.poll()
+                            : task;
+                }
+                if (drop != task)
+                {
+                    queue.add(task);
+                    if (!scheduled)
+                    {
+                        scheduled = true;
+                        schedule = true;
+                    }
+                }
+            }
+
+            if (drop != null)
+            {
+                shard.dropped.increment();
+                drop.dropped();
+                if (drop == task)
+                    return false;
+            }
+            else
+            {
+                shard.queued(1);
+            }
+            if (schedule)
+                shard.schedule(this);
+            return true;
+        }
+
+        /**
+         * Takes the next task of this source and schedules this source again
+         * if it has more. Invoked by the thread of {@link #shard} only.
+         *
+         * @return the next task of this source.
+         */
+        private Task poll()
+        {
+            Task task;
+            boolean schedule;
+
+            synchronized (this)
+            {
+                task = queue.poll();
+                schedule = scheduled = !queue.isEmpty();
+            }
+            if (schedule)
+                shard.schedule(this);
+            return task;
+        }
+    }
+
+    /**
+     * A thread which runs the tasks of its sources in turn.
+     */
+    private class Shard
+        implements ShardStats
+    {
+        /**
+         * The first of the sources which have tasks to run, in turn. Guarded
+         * by <tt>this</tt>.
+         */
+        private Source head;
+
+        /**
+         * The last of the sources which have tasks to run, in turn. Guarded
+         * by <tt>this</tt>.
+         */
+        private Source tail;
+
+        /**
+         * The number of tasks which wait in the queues of the sources.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        /**
+         * The number of tasks run.
+         */
+        private final LongAdder executed = new LongAdder();
+
+        /**
+         * The number of tasks dropped.
+         */
+        private final LongAdder dropped = new LongAdder();
+
+        /**
+         * The total time in milliseconds which the run tasks waited in the
+         * queues.
+         */
+        private final LongAdder queueTime = new LongAdder();
+
+        /**
+         * The largest value of {@link #queued} seen when adding a task.
+         */
+        private final AtomicInteger maxQueued = new AtomicInteger();
+
+        /**
+         * Initializes a new <tt>Shard</tt> and starts its thread.
+         *
+         * @param index the index of the shard.
+         */
+        Shard(int index)
+        {
+            Thread thread
+                = new Thread(
+                        this::runInThread,
+                        RTPTranslatorWorkers.class.getName() + "-" + index);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Updates the number of the tasks which wait in the queues of the
+         * sources.
+         *
+         * @param delta the number of tasks added (or removed if negative).
+         */
+        private void queued(int delta)
+        {
+            int size = queued.addAndGet(delta);
+
+            for (int max; (max = maxQueued.get()) < size;)
+            {
+                if (maxQueued.compareAndSet(max, size))
+                    break;
+            }
+        }
+
+        /**
+         * Appends a source to the turn of this shard.
+         *
+         * @param source the source.
+         */
+        private synchronized void schedule(Source source)
+        {
+            source.next = null;
+            if (tail == null)
+                head = source;
+            else
+                tail.next = source;
+            tail = source;
+            notify();
+        }
+
+        /**
+         * Removes the first source from the turn of this shard, waiting for
+         * one if there is none.
+         *
+         * @return the first source of the turn of this shard.
+         * @throws InterruptedException if the thread is interrupted while
+         * waiting.
+         */
+        private synchronized Source take()
+            throws InterruptedException
+        {
+            while (head == null)
+                wait();
+
+            Source source = head;
+
+            head = source.next;
+            if (head == null)
+                tail = null;
+            source.next = null;
+            return source;
+        }
+
+        /**
+         * Runs the tasks of the sources of this shard.
+         */
+        private void runInThread()
+        {
+            while (true)
+            {
+                Task task;
+
+                try
+                {
+                    task = take().poll();
+                }
+                catch (InterruptedException ie)
+                {
+                    // The thread is shared and must keep running.
+                    continue;
+                }
+                if (task == null)
+                    continue;
+
+                queued(-1);
+                queueTime.add(System.currentTimeMillis() - task.queued);
+                executed.increment();
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error("Failed to translate an RTP packet", t);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getQueued()
+        {
+            return queued.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getMaxQueued()
+        {
+            return maxQueued.get();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getExecuted()
+        {
+            return executed.sum();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getDropped()
+        {
+            return dropped.sum();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public double getMeanQueueTime()
+        {
+            long executed = this.executed.sum();
+
+            return executed == 0 ? 0 : queueTime.sum() / (double) executed;
+        }
+    }
+}
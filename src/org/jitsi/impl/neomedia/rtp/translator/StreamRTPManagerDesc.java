@@ -38,6 +38,14 @@
 
     public RTPConnectorDesc connectorDesc;
 
+    /**
+     * Whether the associated <tt>StreamRTPManager</tt> has been disposed of
+     * by <tt>RTPTranslatorImpl</tt> i.e. whether receive SSRCs are no longer
+     * to be routed to it. Guarded by the routing index of
+     * <tt>RTPTranslatorImpl</tt>.
+     */
+    boolean disposed = false;
+
     private final Map<Integer, Format> formats = new HashMap<>();
 
     /**
@@ -50,8 +58,11 @@
      * of the receive SSRC in at least 3 places, in the MediaStreamImpl (we have
      * a remoteSourceIDs vector), in StreamRTPManager.receiveSSRCs and in
      * RtpChannel.receiveSSRCs. TAG(cat4-remote-ssrc-hurricane)
+     *
+     * Implemented as a copy-on-write storage so that it is read without
+     * synchronization.
      */
-    private int[] receiveSSRCs = EMPTY_INT_ARRAY;
+    private volatile int[] receiveSSRCs = EMPTY_INT_ARRAY;
 
     private final List<ReceiveStreamListener> receiveStreamListeners
         = new LinkedList<>();
@@ -121,8 +132,10 @@ public void addReceiveStreamListener(ReceiveStreamListener listener)
      * contained in the list of SSRC received by the associated
      * <tt>StreamRTPManager</tt>; otherwise, <tt>false</tt>
      */
-    public synchronized boolean containsReceiveSSRC(int receiveSSRC)
+    public boolean containsReceiveSSRC(int receiveSSRC)
     {
+        int[] receiveSSRCs = this.receiveSSRCs;
+
         for (int i = 0; i < receiveSSRCs.length; i++)
         {
             if (receiveSSRCs[i] == receiveSSRC)
@@ -131,6 +144,18 @@ public synchronized boolean containsReceiveSSRC(int receiveSSRC)
         return false;
     }
 
+    /**
+     * Gets the synchronization source (SSRC) identifiers received by the
+     * associated <tt>StreamRTPManager</tt>.
+     *
+     * @return the SSRCs received by the associated <tt>StreamRTPManager</tt>.
+     * The returned array is not to be modified.
+     */
+    int[] getReceiveSSRCs()
+    {
+        return receiveSSRCs;
+    }
+
     public Format getFormat(int payloadType)
     {
         synchronized (formats)
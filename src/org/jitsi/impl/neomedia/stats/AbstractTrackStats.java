@@ -44,41 +44,46 @@
     /**
      * The total number of bytes.
      */
-    protected final AtomicLong bytes = new AtomicLong();
+    protected final LongAdder bytes = new LongAdder();
 
     /**
      * The total number of RTP packets. This excludes RTCP packets, because
      * the value is used to calculate the number of lost RTP packets.
      */
-    protected final AtomicLong packets = new AtomicLong();
+    protected final LongAdder packets = new LongAdder();
+
+    /**
+     * The total number of RTCP packets.
+     */
+    protected final LongAdder rtcpPackets = new LongAdder();
 
     /**
      * Number of bytes retransmitted.
      */
-    protected final AtomicLong bytesRetransmitted = new AtomicLong();
+    protected final LongAdder bytesRetransmitted = new LongAdder();
 
     /**
      * Number of bytes for packets which were requested and found in the
      * cache, but were intentionally not retransmitted.
      */
-    protected final AtomicLong bytesNotRetransmitted = new AtomicLong();
+    protected final LongAdder bytesNotRetransmitted = new LongAdder();
 
     /**
      * Number of packets retransmitted.
      */
-    protected final AtomicLong packetsRetransmitted = new AtomicLong();
+    protected final LongAdder packetsRetransmitted = new LongAdder();
 
     /**
      * Number of packets which were requested and found in the cache, but
      * were intentionally not retransmitted.
      */
-    protected final AtomicLong packetsNotRetransmitted = new AtomicLong();
+    protected final LongAdder packetsNotRetransmitted = new LongAdder();
 
     /**
      * The number of packets for which retransmission was requested, but
      * they were missing from the cache.
      */
-    protected final AtomicLong packetsMissingFromCache = new AtomicLong();
+    protected final LongAdder packetsMissingFromCache = new LongAdder();
 
 
     /**
@@ -91,6 +96,11 @@
      */
     protected RateStatistics packetRate;
 
+    /**
+     * The RTCP packet rate.
+     */
+    protected RateStatistics rtcpPacketRate;
+
     /**
      * The length of the interval over which the average bitrate, packet rate
      * and packet loss rate are computed.
@@ -111,6 +121,7 @@
         this.ssrc = ssrc;
         bitrate = new RateStatistics(interval);
         packetRate = new RateStatistics(interval, 1000F);
+        rtcpPacketRate = new RateStatistics(interval, 1000F);
     }
 
     /**
@@ -132,16 +143,21 @@ public long getSSRC()
      */
     protected void packetProcessed(int length, long now, boolean rtp)
     {
-        bytes.addAndGet(length);
+        bytes.add(length);
         bitrate.update(length, now);
 
         // Don't count RTCP packets towards the packet rate since it is used to
         // calculate the number of lost packets.
         if (rtp)
         {
-            packets.addAndGet(1);
+            packets.increment();
             packetRate.update(1, now);
         }
+        else
+        {
+            rtcpPackets.increment();
+            rtcpPacketRate.update(1, now);
+        }
     }
 
     /**
@@ -168,7 +184,7 @@ public long getRtt()
     @Override
     public long getBytes()
     {
-        return bytes.get();
+        return bytes.sum();
     }
 
     /**
@@ -177,7 +193,7 @@ public long getBytes()
     @Override
     public long getPackets()
     {
-        return packets.get();
+        return packets.sum();
     }
 
     /**
@@ -219,6 +235,38 @@ public long getCurrentPackets()
     }
 
 
+    /**
+     * Gets the total number of RTCP packets.
+     *
+     * @return the total number of RTCP packets.
+     */
+    long getRtcpPackets()
+    {
+        return rtcpPackets.sum();
+    }
+
+    /**
+     * Gets the RTCP packet rate.
+     *
+     * @param now the current time in milliseconds.
+     * @return the RTCP packet rate in packets per second.
+     */
+    long getRtcpPacketRate(long now)
+    {
+        return rtcpPacketRate.getRate(now);
+    }
+
+    /**
+     * Gets the number of RTCP packets in the last interval.
+     *
+     * @param now the current time in milliseconds.
+     * @return the number of RTCP packets in the last interval.
+     */
+    long getCurrentRtcpPackets(long now)
+    {
+        return rtcpPacketRate.getAccumulatedCount(now);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -255,7 +303,7 @@ protected void setRtt(long rtt)
      */
     public long getBytesRetransmitted()
     {
-        return bytesRetransmitted.get();
+        return bytesRetransmitted.sum();
     }
 
     /**
@@ -267,7 +315,7 @@ public long getBytesRetransmitted()
      */
     public long getBytesNotRetransmitted()
     {
-        return bytesNotRetransmitted.get();
+        return bytesNotRetransmitted.sum();
     }
 
     /**
@@ -278,7 +326,7 @@ public long getBytesNotRetransmitted()
     @Override
     public long getPacketsRetransmitted()
     {
-        return packetsRetransmitted.get();
+        return packetsRetransmitted.sum();
     }
 
     /**
@@ -290,7 +338,7 @@ public long getPacketsRetransmitted()
      */
     public long getPacketsNotRetransmitted()
     {
-        return packetsNotRetransmitted.get();
+        return packetsNotRetransmitted.sum();
     }
 
     /**
@@ -301,7 +349,7 @@ public long getPacketsNotRetransmitted()
      */
     public long getPacketsMissingFromCache()
     {
-        return packetsMissingFromCache.get();
+        return packetsMissingFromCache.sum();
     }
 
     /**
@@ -312,8 +360,8 @@ public long getPacketsMissingFromCache()
      */
     protected void rtpPacketRetransmitted(long length)
     {
-        packetsRetransmitted.incrementAndGet();
-        bytesRetransmitted.addAndGet(length);
+        packetsRetransmitted.increment();
+        bytesRetransmitted.add(length);
     }
 
     /**
@@ -323,8 +371,8 @@ protected void rtpPacketRetransmitted(long length)
      */
     protected void rtpPacketNotRetransmitted(long length)
     {
-        packetsNotRetransmitted.incrementAndGet();
-        bytesNotRetransmitted.addAndGet(length);
+        packetsNotRetransmitted.increment();
+        bytesNotRetransmitted.add(length);
     }
 
     /**
@@ -333,6 +381,6 @@ protected void rtpPacketNotRetransmitted(long length)
      */
     void rtpPacketCacheMiss()
     {
-        packetsMissingFromCache.incrementAndGet();
+        packetsMissingFromCache.increment();
     }
 }
@@ -1,13 +1,22 @@
 package org.jitsi.impl.neomedia.stats;
 
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.logging.*;
 
 import java.util.*;
-import java.util.concurrent.*;
 
 /**
+ * The statistics of a {@link MediaStreamImpl}. The statistics of each SSRC
+ * are updated by the thread which sends or receives its packets without
+ * taking any lock. The statistics aggregated over all SSRCs (i.e. those
+ * returned by {@link #getReceiveStats()} and {@link #getSendStats()}) are
+ * read from immutable snapshots, which are recomputed from the statistics of
+ * the SSRCs at most every {@link #SNAPSHOT_INTERVAL} milliseconds, so that
+ * monitoring threads never contend with the threads which send and receive.
+ *
  * @author Boris Grozev
  */
 public class MediaStreamStats2Impl
@@ -19,6 +28,12 @@
      */
     private static int INTERVAL = 1000;
 
+    /**
+     * The time in milliseconds for which a snapshot of the aggregated
+     * statistics is used before it is recomputed.
+     */
+    static final long SNAPSHOT_INTERVAL = 100;
+
     /**
      * The {@link Logger} used by the {@link MediaStreamStats2Impl} class and its
      * instances for logging output.
@@ -27,28 +42,35 @@
         = Logger.getLogger(MediaStreamStatsImpl.class);
 
     /**
-     * Hold per-SSRC statistics for received streams.
+     * Hold per-SSRC statistics for received streams. The SSRCs are the keys
+     * as <tt>int</tt>s, so that looking them up does not box them.
      */
-    private final Map<Long,ReceiveTrackStatsImpl> receiveSsrcStats
-        = new ConcurrentHashMap<>();
+    private final CopyOnWriteIntMap<ReceiveTrackStatsImpl> receiveSsrcStats
+        = new CopyOnWriteIntMap<>();
 
     /**
-     * Hold per-SSRC statistics for sent streams.
+     * Hold per-SSRC statistics for sent streams. The SSRCs are the keys as
+     * <tt>int</tt>s, so that looking them up does not box them.
      */
-    private final Map<Long,SendTrackStatsImpl> sendSsrcStats
-        = new ConcurrentHashMap<>();
+    private final CopyOnWriteIntMap<SendTrackStatsImpl> sendSsrcStats
+        = new CopyOnWriteIntMap<>();
 
     /**
      * Global (aggregated) statistics for received streams.
      */
     private final AggregateReceiveTrackStats receiveStats
-        = new AggregateReceiveTrackStats(INTERVAL, receiveSsrcStats);
+        = new AggregateReceiveTrackStats(receiveSsrcStats);
 
     /**
      * Global (aggregated) statistics for sent streams.
      */
     private final AggregateSendTrackStats sendStats
-        = new AggregateSendTrackStats(INTERVAL, sendSsrcStats);
+        = new AggregateSendTrackStats(sendSsrcStats);
+
+    /**
+     * The stream whose statistics this instance keeps.
+     */
+    private final MediaStreamImpl mediaStream;
 
     /**
      * Initializes a new {@link MediaStreamStats2Impl} instance.
@@ -56,6 +78,8 @@
     public MediaStreamStats2Impl(MediaStreamImpl mediaStream)
     {
         super(mediaStream);
+
+        this.mediaStream = mediaStream;
     }
 
     /**
@@ -67,12 +91,7 @@ public MediaStreamStats2Impl(MediaStreamImpl mediaStream)
      */
     public void rtpPacketReceived(long ssrc, int seq, int length)
     {
-        synchronized (receiveStats)
-        {
-            getReceiveStats(ssrc).rtpPacketReceived(seq, length);
-            receiveStats
-                .packetProcessed(length, System.currentTimeMillis(), true);
-        }
+        getReceiveStats(ssrc).rtpPacketReceived(seq, length);
     }
 
     /**
@@ -84,7 +103,6 @@ public void rtpPacketReceived(long ssrc, int seq, int length)
     public void rtpPacketRetransmitted(long ssrc, long length)
     {
         getSendStats(ssrc).rtpPacketRetransmitted(length);
-        sendStats.rtpPacketRetransmitted(length);
     }
 
     /**
@@ -97,7 +115,6 @@ public void rtpPacketRetransmitted(long ssrc, long length)
     public void rtpPacketNotRetransmitted(long ssrc, long length)
     {
         getSendStats(ssrc).rtpPacketNotRetransmitted(length);
-        sendStats.rtpPacketNotRetransmitted(length);
     }
 
     /**
@@ -108,7 +125,6 @@ public void rtpPacketNotRetransmitted(long ssrc, long length)
     public void rtpPacketCacheMiss(long ssrc)
     {
         getSendStats(ssrc).rtpPacketCacheMiss();
-        sendStats.rtpPacketCacheMiss();
     }
 
     /**
@@ -120,11 +136,7 @@ public void rtpPacketCacheMiss(long ssrc)
      */
     public void rtpPacketSent(long ssrc, int seq, int length)
     {
-        synchronized (sendStats)
-        {
-            getSendStats(ssrc).rtpPacketSent(seq, length);
-            sendStats.packetProcessed(length, System.currentTimeMillis(), true);
-        }
+        getSendStats(ssrc).rtpPacketSent(seq, length);
     }
 
     /**
@@ -136,10 +148,7 @@ public void rtpPacketSent(long ssrc, int seq, int length)
      */
     public void rtcpReceiverReportReceived(long ssrc, int fractionLost)
     {
-        synchronized (sendStats)
-        {
-            getSendStats(ssrc).rtcpReceiverReportReceived(fractionLost);
-        }
+        getSendStats(ssrc).rtcpReceiverReportReceived(fractionLost);
     }
 
     /**
@@ -150,12 +159,7 @@ public void rtcpReceiverReportReceived(long ssrc, int fractionLost)
      */
     public void rtcpPacketReceived(long ssrc, int length)
     {
-        synchronized (receiveStats)
-        {
-            getReceiveStats(ssrc).rtcpPacketReceived(length);
-            receiveStats
-                .packetProcessed(length, System.currentTimeMillis(), false);
-        }
+        getReceiveStats(ssrc).rtcpPacketReceived(length);
     }
 
     /**
@@ -166,12 +170,7 @@ public void rtcpPacketReceived(long ssrc, int length)
      */
     public void rtcpPacketSent(long ssrc, int length)
     {
-        synchronized (sendStats)
-        {
-            getSendStats(ssrc).rtcpPacketSent(length);
-            sendStats
-                .packetProcessed(length, System.currentTimeMillis(), false);
-        }
+        getSendStats(ssrc).rtcpPacketSent(length);
     }
 
     /**
@@ -190,7 +189,8 @@ public void updateJitter(long ssrc, StreamDirection direction, double jitter)
             receiveStats.setJitter(jitter);
 
             // update jitter for known stats
-            ReceiveTrackStatsImpl receiveSsrcStat = receiveSsrcStats.get(ssrc);
+            ReceiveTrackStatsImpl receiveSsrcStat
+                = receiveSsrcStats.get((int) ssrc);
             if (receiveSsrcStat != null)
             {
                 receiveSsrcStat.setJitter(jitter);
@@ -201,7 +201,7 @@ else if (direction == StreamDirection.UPLOAD)
             sendStats.setJitter(jitter);
 
             // update jitter for known stats
-            SendTrackStatsImpl sendSsrcStat = sendSsrcStats.get(ssrc);
+            SendTrackStatsImpl sendSsrcStat = sendSsrcStats.get((int) ssrc);
             if (sendSsrcStat != null)
             {
                 sendSsrcStat.setJitter(jitter);
@@ -228,11 +228,12 @@ public void updateRtt(long ssrc, long rtt)
 
         // directly get the receive/send stats to avoid creating unnecessary
         // stats
-        ReceiveTrackStatsImpl receiveSsrcStat = receiveSsrcStats.get(ssrc);
+        ReceiveTrackStatsImpl receiveSsrcStat
+                = receiveSsrcStats.get((int) ssrc);
         if (receiveSsrcStat != null)
             receiveSsrcStat.setRtt(rtt);
 
-        SendTrackStatsImpl sendSsrcStat = sendSsrcStats.get(ssrc);
+        SendTrackStatsImpl sendSsrcStat = sendSsrcStats.get((int) ssrc);
         if (sendSsrcStat != null)
             sendSsrcStat.setRtt(rtt);
     }
@@ -269,18 +270,15 @@ public ReceiveTrackStatsImpl getReceiveStats(long ssrc)
             ssrc = -1;
         }
 
-        ReceiveTrackStatsImpl stats = receiveSsrcStats.get(ssrc);
+        ReceiveTrackStatsImpl stats = receiveSsrcStats.get((int) ssrc);
         if (stats == null)
         {
-            synchronized (receiveSsrcStats)
-            {
-                stats = receiveSsrcStats.get(ssrc);
-                if (stats == null)
-                {
-                    stats = new ReceiveTrackStatsImpl(INTERVAL, ssrc);
-                    receiveSsrcStats.put(ssrc, stats);
-                }
-            }
+            long finalSsrc = ssrc;
+
+            stats
+                = receiveSsrcStats.computeIfAbsent(
+                        (int) ssrc,
+                        k -> new ReceiveTrackStatsImpl(INTERVAL, finalSsrc));
         }
 
         return stats;
@@ -300,18 +298,15 @@ public SendTrackStatsImpl getSendStats(long ssrc)
             ssrc = -1;
         }
 
-        SendTrackStatsImpl stats = sendSsrcStats.get(ssrc);
+        SendTrackStatsImpl stats = sendSsrcStats.get((int) ssrc);
         if (stats == null)
         {
-            synchronized (sendSsrcStats)
-            {
-                stats = sendSsrcStats.get(ssrc);
-                if (stats == null)
-                {
-                    stats = new SendTrackStatsImpl(INTERVAL, ssrc);
-                    sendSsrcStats.put(ssrc, stats);
-                }
-            }
+            long finalSsrc = ssrc;
+
+            stats
+                = sendSsrcStats.computeIfAbsent(
+                        (int) ssrc,
+                        k -> new SendTrackStatsImpl(INTERVAL, finalSsrc));
         }
 
         return stats;
@@ -335,42 +330,406 @@ public Collection<? extends ReceiveTrackStats> getAllReceiveStats()
         return receiveSsrcStats.values();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<? extends TransformEngineStats> getTransformEngineStats()
+    {
+        TransformEngineChain transformEngineChain
+            = mediaStream.getTransformEngineChain();
+
+        return
+            transformEngineChain == null
+                ? Collections.<TransformEngineStats>emptyList()
+                : transformEngineChain.getTransformEngineStats();
+    }
+
+    /**
+     * An immutable snapshot of the values aggregated over the statistics of
+     * the SSRCs of one direction.
+     */
+    private static class Snapshot
+    {
+        /**
+         * The time in milliseconds at which this snapshot was taken.
+         */
+        final long time;
+
+        /**
+         * The number of bytes.
+         */
+        final long bytes;
+
+        /**
+         * The number of RTP and RTCP packets.
+         */
+        final long packets;
+
+        /**
+         * The bitrate.
+         */
+        final long bitrate;
+
+        /**
+         * The rate of RTP and RTCP packets.
+         */
+        final long packetRate;
+
+        /**
+         * The number of bytes in the last interval.
+         */
+        final long currentBytes;
+
+        /**
+         * The number of RTP packets in the last interval.
+         */
+        final long currentRtpPackets;
+
+        /**
+         * The number of RTP and RTCP packets in the last interval.
+         */
+        final long currentPackets;
+
+        /**
+         * The number of lost (received) packets.
+         */
+        final long packetsLost;
+
+        /**
+         * The number of (received) packets lost in the last interval.
+         */
+        final long currentPacketsLost;
+
+        /**
+         * The mean of the loss rates (of the sent streams) which are known.
+         */
+        final double meanLossRate;
+
+        /**
+         * The number of bytes retransmitted.
+         */
+        final long bytesRetransmitted;
+
+        /**
+         * The number of bytes of the packets which were requested and found
+         * in the cache, but were intentionally not retransmitted.
+         */
+        final long bytesNotRetransmitted;
+
+        /**
+         * The number of packets retransmitted.
+         */
+        final long packetsRetransmitted;
+
+        /**
+         * The number of packets which were requested and found in the cache,
+         * but were intentionally not retransmitted.
+         */
+        final long packetsNotRetransmitted;
+
+        /**
+         * The number of packets for which retransmission was requested, but
+         * they were missing from the cache.
+         */
+        final long packetsMissingFromCache;
+
+        /**
+         * Initializes a new {@link Snapshot} of the values aggregated over
+         * specific statistics.
+         *
+         * @param children the statistics to aggregate.
+         * @param now the current time in milliseconds.
+         */
+        Snapshot(List<? extends AbstractTrackStats> children, long now)
+        {
+            long bytes = 0, packets = 0, bitrate = 0, packetRate = 0;
+            long currentBytes = 0, currentRtpPackets = 0, currentPackets = 0;
+            long packetsLost = 0, currentPacketsLost = 0;
+            double lossRateSum = 0;
+            int lossRateCount = 0;
+            long bytesRetransmitted = 0, bytesNotRetransmitted = 0;
+            long packetsRetransmitted = 0, packetsNotRetransmitted = 0;
+            long packetsMissingFromCache = 0;
+
+            for (AbstractTrackStats child : children)
+            {
+                long childCurrentPackets = child.getCurrentPackets();
+
+                bytes += child.getBytes();
+                // RTCP packets count towards the aggregate packets and packet
+                // rate.
+                packets += child.getPackets() + child.getRtcpPackets();
+                bitrate += child.getBitrate();
+                packetRate
+                    += child.getPacketRate() + child.getRtcpPacketRate(now);
+                currentBytes += child.getCurrentBytes();
+                currentRtpPackets += childCurrentPackets;
+                currentPackets
+                    += childCurrentPackets + child.getCurrentRtcpPackets(now);
+                bytesRetransmitted += child.getBytesRetransmitted();
+                bytesNotRetransmitted += child.getBytesNotRetransmitted();
+                packetsRetransmitted += child.getPacketsRetransmitted();
+                packetsNotRetransmitted += child.getPacketsNotRetransmitted();
+                packetsMissingFromCache += child.getPacketsMissingFromCache();
+
+                if (child instanceof ReceiveTrackStatsImpl)
+                {
+                    ReceiveTrackStatsImpl receive
+                        = (ReceiveTrackStatsImpl) child;
+
+                    packetsLost += receive.getPacketsLost();
+                    currentPacketsLost += receive.getCurrentPacketsLost();
+                }
+                else
+                {
+                    double lossRate = child.getLossRate();
+
+                    if (lossRate >= 0)
+                    {
+                        lossRateSum += lossRate;
+                        lossRateCount++;
+                    }
+                }
+            }
+
+            this.time = now;
+            this.bytes = bytes;
+            this.packets = packets;
+            this.bitrate = bitrate;
+            this.packetRate = packetRate;
+            this.currentBytes = currentBytes;
+            this.currentRtpPackets = currentRtpPackets;
+            this.currentPackets = currentPackets;
+            this.packetsLost = packetsLost;
+            this.currentPacketsLost = currentPacketsLost;
+            this.meanLossRate
+                = lossRateCount != 0 ? lossRateSum / lossRateCount : 0;
+            this.bytesRetransmitted = bytesRetransmitted;
+            this.bytesNotRetransmitted = bytesNotRetransmitted;
+            this.packetsRetransmitted = packetsRetransmitted;
+            this.packetsNotRetransmitted = packetsNotRetransmitted;
+            this.packetsMissingFromCache = packetsMissingFromCache;
+        }
+    }
+
     /**
      * An {@link TrackStats} implementation which aggregates values for
-     * a collection of {@link TrackStats} instances.
+     * a collection of {@link TrackStats} instances. The values are read from
+     * a {@link Snapshot} which is recomputed when it is older than
+     * {@link #SNAPSHOT_INTERVAL}.
      */
-    private abstract class AggregateTrackStats<T>
-        extends AbstractTrackStats
+    private abstract class AggregateTrackStats
+        implements TrackStats
     {
         /**
          * The collection of {@link TrackStats} for which this instance
          * aggregates.
          */
-        protected final Map<Long, ? extends T> children;
+        private final CopyOnWriteIntMap<? extends AbstractTrackStats> children;
+
+        /**
+         * The last jitter (in milliseconds).
+         */
+        private volatile double jitter = JITTER_UNSET;
+
+        /**
+         * The last RTT in milliseconds or {@code -1} if it has not been
+         * computed yet.
+         */
+        private volatile long rtt = -1;
+
+        /**
+         * The last snapshot of the aggregated values.
+         */
+        private volatile Snapshot snapshot;
 
         /**
          * Initializes a new {@link AggregateTrackStats} instance.
          *
-         * @param interval the interval in milliseconds over which average
-         * values will be calculated.
          * @param children a reference to the map which holds the statistics to
          * aggregate.
          */
-        AggregateTrackStats(int interval, Map<Long, ? extends T> children)
+        AggregateTrackStats(
+            CopyOnWriteIntMap<? extends AbstractTrackStats> children)
         {
-            super(interval, -1);
             this.children = children;
         }
 
+        /**
+         * Gets a snapshot of the aggregated values which is at most
+         * {@link #SNAPSHOT_INTERVAL} milliseconds old.
+         *
+         * @return a snapshot of the aggregated values.
+         */
+        protected Snapshot getSnapshot()
+        {
+            long now = System.currentTimeMillis();
+            Snapshot snapshot = this.snapshot;
+
+            if (snapshot == null || now - snapshot.time >= SNAPSHOT_INTERVAL)
+            {
+                // Two threads may take a snapshot at the same time, which is
+                // harmless.
+                snapshot = new Snapshot(children.values(), now);
+                this.snapshot = snapshot;
+            }
+            return snapshot;
+        }
+
         /**
          * {@inheritDoc}
          */
         @Override
-        protected void packetProcessed(int length, long now, boolean rtp)
+        public long getSSRC()
         {
-            // A hack to make RTCP packets count towards the aggregate packet
-            // rate.
-            super.packetProcessed(length, now, true);
+            return -1;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public double getJitter()
+        {
+            return jitter;
+        }
+
+        /**
+         * Sets the last jitter.
+         *
+         * @param jitter the last jitter in milliseconds.
+         */
+        void setJitter(double jitter)
+        {
+            this.jitter = jitter;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getRtt()
+        {
+            return rtt;
+        }
+
+        /**
+         * Sets the last RTT.
+         *
+         * @param rtt the last RTT in milliseconds.
+         */
+        void setRtt(long rtt)
+        {
+            this.rtt = rtt;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getBytes()
+        {
+            return getSnapshot().bytes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getPackets()
+        {
+            return getSnapshot().packets;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getBitrate()
+        {
+            return getSnapshot().bitrate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getPacketRate()
+        {
+            return getSnapshot().packetRate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getCurrentBytes()
+        {
+            return getSnapshot().currentBytes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getCurrentPackets()
+        {
+            return getSnapshot().currentPackets;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getInterval()
+        {
+            return INTERVAL;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getPacketsMissingFromCache()
+        {
+            return getSnapshot().packetsMissingFromCache;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getBytesRetransmitted()
+        {
+            return getSnapshot().bytesRetransmitted;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getBytesNotRetransmitted()
+        {
+            return getSnapshot().bytesNotRetransmitted;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getPacketsRetransmitted()
+        {
+            return getSnapshot().packetsRetransmitted;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getPacketsNotRetransmitted()
+        {
+            return getSnapshot().packetsNotRetransmitted;
         }
     }
 
@@ -379,23 +738,19 @@ protected void packetProcessed(int length, long now, boolean rtp)
      * a collection of {@link SendTrackStats} instances.
      */
     private class AggregateSendTrackStats
-        extends AggregateTrackStats<SendTrackStats>
+        extends AggregateTrackStats
         implements SendTrackStats
     {
         /**
          * Initializes a new {@link AggregateTrackStats} instance.
          *
-         * @param interval the interval in milliseconds over which average
-         * values will
-         * be calculated.
          * @param children a reference to the map which holds the statistics to
          * aggregate.
          */
         AggregateSendTrackStats(
-            int interval,
-            Map<Long, ? extends SendTrackStats> children)
+            CopyOnWriteIntMap<? extends SendTrackStatsImpl> children)
         {
-            super(interval, children);
+            super(children);
         }
 
         /**
@@ -404,18 +759,7 @@ protected void packetProcessed(int length, long now, boolean rtp)
         @Override
         public double getLossRate()
         {
-            double sum = 0;
-            int count = 0;
-            for (SendTrackStats child : children.values())
-            {
-                double fractionLoss = child.getLossRate();
-                if (fractionLoss >= 0)
-                {
-                    sum += fractionLoss;
-                    count++;
-                }
-            }
-            return count != 0 ? sum/count : 0;
+            return getSnapshot().meanLossRate;
         }
 
         /**
@@ -433,22 +777,18 @@ public int getHighestSent()
      * for a collection of {@link ReceiveTrackStats} instances.
      */
     private class AggregateReceiveTrackStats
-        extends AggregateTrackStats<ReceiveTrackStats>
+        extends AggregateTrackStats
         implements ReceiveTrackStats
     {
         /**
          * Initializes a new {@link AggregateTrackStats} instance.
          *
-         * @param interval the interval in milliseconds over which average
-         * values will
-         * be calculated.
          * @param children a reference to the map which holds the statistics to
          */
         AggregateReceiveTrackStats(
-            int interval,
-            Map<Long, ? extends ReceiveTrackStats> children)
+            CopyOnWriteIntMap<? extends ReceiveTrackStatsImpl> children)
         {
-            super(interval, children);
+            super(children);
         }
 
         /**
@@ -457,12 +797,7 @@ public int getHighestSent()
         @Override
         public long getPacketsLost()
         {
-            long lost = 0;
-            for (ReceiveTrackStats child : children.values())
-            {
-                lost += child.getPacketsLost();
-            }
-            return lost;
+            return getSnapshot().packetsLost;
         }
 
         /**
@@ -471,12 +806,7 @@ public long getPacketsLost()
         @Override
         public long getCurrentPackets()
         {
-            long packets = 0;
-            for (ReceiveTrackStats child : children.values())
-            {
-                packets += child.getCurrentPackets();
-            }
-            return packets;
+            return getSnapshot().currentRtpPackets;
         }
 
         /**
@@ -485,12 +815,7 @@ public long getCurrentPackets()
         @Override
         public long getCurrentPacketsLost()
         {
-            long packetsLost = 0;
-            for (ReceiveTrackStats child : children.values())
-            {
-                packetsLost += child.getCurrentPacketsLost();
-            }
-            return packetsLost;
+            return getSnapshot().currentPacketsLost;
         }
 
         /**
@@ -501,19 +826,9 @@ public long getCurrentPacketsLost()
         @Override
         public double getLossRate()
         {
-            long lost = 0;
-            long expected = 0;
-
-            for (ReceiveTrackStats child : children.values())
-            {
-                // This is not thread safe and the counters might change
-                // between the two function calls below, but the result would
-                // be just a wrong value for the packet loss rate, and likely
-                // just off by a little bit.
-                long childLost = child.getCurrentPacketsLost();
-                expected += childLost + child.getCurrentPackets();
-                lost += childLost;
-            }
+            Snapshot snapshot = getSnapshot();
+            long lost = snapshot.currentPacketsLost;
+            long expected = lost + snapshot.currentRtpPackets;
 
             return expected == 0 ? 0 : (lost / expected);
         }
@@ -44,7 +44,7 @@
     /**
      * The total number of lost packets.
      */
-    private AtomicLong packetsLost = new AtomicLong();
+    private final LongAdder packetsLost = new LongAdder();
 
 
     /**
@@ -64,7 +64,7 @@
     @Override
     public long getPacketsLost()
     {
-        return packetsLost.get();
+        return packetsLost.sum();
     }
 
 
@@ -101,7 +101,7 @@ public void rtpPacketReceived(int seq, int length)
             // RTX format and "de-RTX-ed" packets are not fed to this instance.
             if (diff > -10)
             {
-                packetsLost.addAndGet(-1);
+                packetsLost.add(-1);
                 packetLossRate.update(-1, now);
             }
         }
@@ -114,7 +114,7 @@ public void rtpPacketReceived(int seq, int length)
             // packet).
             if (diff > 1)
             {
-                packetsLost.addAndGet(diff - 1);
+                packetsLost.add(diff - 1);
                 packetLossRate.update(diff - 1, now);
             }
         }
@@ -17,11 +17,13 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import org.jetbrains.annotations.*;
 import org.jitsi.impl.neomedia.rtcp.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.*;
 import org.jitsi.utils.concurrent.*;
 import org.jitsi.utils.logging.*;
@@ -30,6 +32,13 @@
  * Detects lost RTP packets for a particular <tt>RtpChannel</tt> and requests
  * their retransmission by sending RTCP NACK packets.
  *
+ * The packets are tracked per SSRC in a bitmap of the most recent sequence
+ * numbers, which {@link #packetReceived(long, int)} updates without locking
+ * or allocating. It is expected to be called by a single thread (the one
+ * which receives the RTP packets of the stream), while {@link #run()} is
+ * called by a {@link RecurringRunnableExecutor} and writes the NACK FCI
+ * (PID and BLP) entries straight from the bitmap.
+ *
  * @author Boris Grozev
  * @author George Politis
  * @author bbaldino
@@ -64,6 +73,17 @@
      */
     public static final long WAKEUP_INTERVAL_MILLIS = 1000;
 
+    /**
+     * The number of sequence numbers tracked for every SSRC. Must be a power
+     * of 2 bigger than {@link #MAX_MISSING}.
+     */
+    private static final int WINDOW_SIZE = 512;
+
+    /**
+     * The mask to apply to a sequence number to get its slot in the window.
+     */
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
     /**
      * The <tt>Logger</tt> used by the <tt>RetransmissionRequesterDelegate</tt> class
      * and its instances to print debug information.
@@ -75,7 +95,8 @@
      * Maps an SSRC to the <tt>Requester</tt> instance corresponding to it.
      * TODO: purge these somehow (RTCP BYE? Timeout?)
      */
-    private final Map<Long, Requester> requesters = new HashMap<>();
+    private final CopyOnWriteIntMap<Requester> requesters
+        = new CopyOnWriteIntMap<>();
 
     /**
      * The {@link MediaStream} that this instance belongs to.
@@ -133,7 +154,21 @@ public void packetReceived(long ssrc, int seqNum)
     public long getTimeUntilNextRun()
     {
         long now = timeProvider.currentTimeMillis();
-        Requester nextDueRequester = getNextDueRequester();
+        Requester nextDueRequester = null;
+        long nextRequestAt = -1;
+
+        for (Requester requester : requesters.values())
+        {
+            long requestAt = requester.nextRequestAt.get();
+
+            if (requestAt != -1
+                    && (nextDueRequester == null || requestAt < nextRequestAt))
+            {
+                nextDueRequester = requester;
+                nextRequestAt = requestAt;
+            }
+        }
+
         if (nextDueRequester == null)
         {
             return WAKEUP_INTERVAL_MILLIS;
@@ -144,10 +179,10 @@ public long getTimeUntilNextRun()
             {
                 logger.trace(hashCode() + ": Next nack is scheduled for ssrc " +
                     nextDueRequester.ssrc + " at " +
-                    Math.max(nextDueRequester.nextRequestAt, 0) +
+                    Math.max(nextRequestAt, 0) +
                     ".  (current time is " + now + ")");
             }
-            return Math.max(nextDueRequester.nextRequestAt - now, 0);
+            return Math.max(nextRequestAt - now, 0);
         }
     }
 
@@ -188,39 +223,24 @@ public void run()
 
     private Requester getOrCreateRequester(long ssrc)
     {
-        Requester requester;
-        synchronized (requesters)
-        {
-            requester = requesters.get(ssrc);
-            if (requester == null)
-            {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug(
-                        "Creating new Requester for SSRC " + ssrc);
-                }
-                requester = new Requester(ssrc);
-                requesters.put(ssrc, requester);
-            }
-        }
-        return requester;
-    }
+        Requester requester = requesters.get((int) ssrc);
 
-    private Requester getNextDueRequester()
-    {
-        Requester nextDueRequester = null;
-        synchronized (requesters)
+        if (requester == null)
         {
-            for (Requester requester : requesters.values())
-            {
-                if (requester.nextRequestAt != -1 &&
-                    (nextDueRequester == null || requester.nextRequestAt < nextDueRequester.nextRequestAt))
-                {
-                    nextDueRequester = requester;
-                }
-            }
+            requester
+                = requesters.computeIfAbsent(
+                        (int) ssrc,
+                        key ->
+                        {
+                            if (logger.isDebugEnabled())
+                            {
+                                logger.debug(
+                                    "Creating new Requester for SSRC " + ssrc);
+                            }
+                            return new Requester(ssrc);
+                        });
         }
-        return nextDueRequester;
+        return requester;
     }
 
     /**
@@ -234,22 +254,19 @@ private Requester getNextDueRequester()
     private List<Requester> getDueRequesters(long currentTime)
     {
         List<Requester> dueRequesters = new ArrayList<>();
-        synchronized (requesters)
+        for (Requester requester : requesters.values())
         {
-            for (Requester requester : requesters.values())
+            if (requester.isDue(currentTime))
             {
-                if (requester.isDue(currentTime))
+                if (logger.isTraceEnabled())
                 {
-                    if (logger.isTraceEnabled())
-                    {
-                        logger.trace(hashCode() + " requester for ssrc " +
-                            requester.ssrc + " has work due at " +
-                            requester.nextRequestAt +
-                            " (now = " + currentTime + ") and is missing packets: " +
-                            requester.getMissingSeqNums());
-                    }
-                    dueRequesters.add(requester);
+                    logger.trace(hashCode() + " requester for ssrc " +
+                        requester.ssrc + " has work due at " +
+                        requester.nextRequestAt.get() +
+                        " (now = " + currentTime + ") and is missing " +
+                        requester.getMissingCount() + " packets");
                 }
+                dueRequesters.add(requester);
             }
         }
         return dueRequesters;
@@ -299,43 +316,37 @@ private void injectNackPackets(List<NACKPacket> nackPackets)
      */
     protected List<NACKPacket> createNackPackets(long now, List<Requester> dueRequesters)
     {
-        Map<Long, Set<Integer>> packetsToRequest = new HashMap<>();
+        List<NACKPacket> nackPackets = new ArrayList<>();
 
         for (Requester dueRequester : dueRequesters)
         {
-            synchronized (dueRequester)
+            byte[] fci = dueRequester.createNackFci(now);
+            if (fci != null)
             {
-                Set<Integer> missingPackets = dueRequester.getMissingSeqNums();
-                if (!missingPackets.isEmpty())
+                if (logger.isTraceEnabled())
                 {
-                    if (logger.isTraceEnabled())
-                    {
-                        logger.trace(
-                            hashCode() + " Sending nack with packets "
-                                + missingPackets
-                                + " for ssrc " + dueRequester.ssrc);
-
-                    }
-                    packetsToRequest.put(dueRequester.ssrc, missingPackets);
-                    dueRequester.notifyNackCreated(now, missingPackets);
+                    logger.trace(
+                        hashCode() + " Sending nack with "
+                            + (fci.length / 4) + " entries"
+                            + " for ssrc " + dueRequester.ssrc);
                 }
+                nackPackets.add(
+                    new NACKPacket(senderSsrc, dueRequester.ssrc, fci));
             }
         }
-
-        List<NACKPacket> nackPackets = new ArrayList<>();
-        for (Map.Entry<Long, Set<Integer>> entry : packetsToRequest.entrySet())
-        {
-            long sourceSsrc = entry.getKey();
-            Set<Integer> missingPackets = entry.getValue();
-            NACKPacket nack
-                = new NACKPacket(senderSsrc, sourceSsrc, missingPackets);
-            nackPackets.add(nack);
-        }
         return nackPackets;
     }
 
     /**
      * Handles packets for a single SSRC.
+     *
+     * The state of the last {@link #WINDOW_SIZE} sequence numbers is kept in
+     * slots indexed by the sequence number modulo {@link #WINDOW_SIZE}: a bit
+     * in {@link #missing} which tells whether the packet is to be requested,
+     * the sequence number itself, the number of times it has been requested
+     * and the time of the first request. Only the receiving thread sets bits
+     * and it initializes the rest of the slot before it does, so the thread
+     * which sends the NACKs (and may clear bits) sees a consistent slot.
      */
     private class Requester
     {
@@ -345,20 +356,53 @@ protected List<NACKPacket> createNackPackets(long now, List<Requester> dueReques
         private final long ssrc;
 
         /**
-         * The highest received RTP sequence number.
+         * The highest received RTP sequence number. Only written by the
+         * receiving thread.
+         */
+        private volatile int lastReceivedSeq = -1;
+
+        /**
+         * The time that the next request for this SSRC should be sent, 0 if
+         * now or -1 if there is nothing to request.
+         */
+        private final AtomicLong nextRequestAt = new AtomicLong(-1);
+
+        /**
+         * Incremented by the receiving thread whenever it detects new losses
+         * (before it sets {@link #nextRequestAt} to 0), so that
+         * {@link #createNackFci(long)} can tell whether losses were detected
+         * while it was running. Comparing {@link #nextRequestAt} alone does
+         * not tell, because it may already have been 0.
          */
-        private int lastReceivedSeq = -1;
+        private volatile int lossGeneration = 0;
 
         /**
-         * The time that the next request for this SSRC should be sent.
+         * The bitmap of the sequence numbers which are to be requested.
          */
-        private long nextRequestAt = -1;
+        private final AtomicLongArray missing
+            = new AtomicLongArray(WINDOW_SIZE / 64);
 
         /**
-         * The set of active requests for this SSRC. The keys are the sequence
-         * numbers.
+         * The sequence numbers of the slots.
          */
-        private final Map<Integer, Request> requests = new HashMap<>();
+        private final int[] seqs = new int[WINDOW_SIZE];
+
+        /**
+         * The number of times that a retransmission request for the packet of
+         * a slot has been sent.
+         */
+        private final int[] timesRequested = new int[WINDOW_SIZE];
+
+        /**
+         * The time at which a retransmission request for the packet of a slot
+         * was first sent, or -1.
+         */
+        private final long[] firstRequestSentAt = new long[WINDOW_SIZE];
+
+        /**
+         * The buffer into which {@link #createNackFci(long)} writes.
+         */
+        private final byte[] fciBuf = new byte[4 * WINDOW_SIZE];
 
         /**
          * Initializes a new <tt>Requester</tt> instance for the given SSRC.
@@ -376,7 +420,9 @@ private Requester(long ssrc)
          */
         public boolean isDue(long currentTime)
         {
-            return nextRequestAt != -1 && nextRequestAt <= currentTime;
+            long requestAt = nextRequestAt.get();
+
+            return requestAt != -1 && requestAt <= currentTime;
         }
 
         /**
@@ -386,7 +432,7 @@ public boolean isDue(long currentTime)
          * @return true if there is work for this requester ready to be
          * done now, false otherwise
          */
-        synchronized private boolean received(int seq)
+        private boolean received(int seq)
         {
             if (lastReceivedSeq == -1)
             {
@@ -398,26 +444,29 @@ synchronized private boolean received(int seq)
             if (diff <= 0)
             {
                 // An older packet, possibly already requested.
-                Request r = requests.remove(seq);
-                if (requests.isEmpty())
+                int slot = seq & WINDOW_MASK;
+                boolean requested
+                    = -diff < WINDOW_SIZE && seqs[slot] == seq && clear(slot);
+
+                if (requested && getMissingCount() == 0)
                 {
-                    nextRequestAt = -1;
+                    nextRequestAt.set(-1);
                 }
 
-                if (r != null && logger.isDebugEnabled())
+                if (requested && logger.isDebugEnabled())
                 {
                     long rtt
                         = stream.getMediaStreamStats().getSendStats().getRtt();
                     if (rtt > 0)
                     {
 
-                        // firstRequestSentAt is if we created a Request, but
-                        // haven't yet sent a NACK. Assume a delta of 0 in that
-                        // case.
-                        long firstRequestSentAt = r.firstRequestSentAt;
+                        // firstRequestSentAt is -1 if we marked the packet as
+                        // missing, but haven't yet sent a NACK. Assume a delta
+                        // of 0 in that case.
+                        long firstRequestSentAt = this.firstRequestSentAt[slot];
                         long delta
                             = firstRequestSentAt > 0
-                                ? timeProvider.currentTimeMillis() - r.firstRequestSentAt
+                                ? timeProvider.currentTimeMillis() - firstRequestSentAt
                                 : 0;
 
                         logger.debug(Logger.Category.STATISTICS,
@@ -430,121 +479,198 @@ synchronized private boolean received(int seq)
             }
             else if (diff == 1)
             {
-                // The very next packet, as expected.
+                // The very next packet, as expected. Its slot held a packet
+                // which is now out of the window.
+                clear(seq & WINDOW_MASK);
                 lastReceivedSeq = seq;
             }
             else if (diff <= MAX_MISSING)
             {
-                for (int missing = (lastReceivedSeq + 1) % (1<<16);
+                for (int missing = (lastReceivedSeq + 1) & 0xffff;
                      missing != seq;
-                     missing = (missing + 1) % (1<<16))
+                     missing = (missing + 1) & 0xffff)
                 {
-                    Request request = new Request(missing);
-                    requests.put(missing, request);
+                    int slot = missing & WINDOW_MASK;
+
+                    seqs[slot] = missing;
+                    timesRequested[slot] = 0;
+                    firstRequestSentAt[slot] = -1;
+                    set(slot);
                 }
+                clear(seq & WINDOW_MASK);
 
                 lastReceivedSeq = seq;
-                nextRequestAt = 0;
+                lossGeneration++;
+                nextRequestAt.set(0);
 
                 return true;
             }
             else // if (diff > MAX_MISSING)
             {
                 // Too many packets missing. Reset.
-                lastReceivedSeq = seq;
                 if (logger.isDebugEnabled())
                 {
                     logger.debug("Resetting retransmission requester state. "
                                  + "SSRC: " + ssrc
                                  + ", last received: " + lastReceivedSeq
                                  + ", current: " + seq
-                                 + ". Removing " + requests.size()
+                                 + ". Removing " + getMissingCount()
                                  + " unsatisfied requests.");
                 }
-                requests.clear();
-                nextRequestAt = -1;
+                lastReceivedSeq = seq;
+                for (int i = 0; i < missing.length(); i++)
+                {
+                    missing.set(i, 0);
+                }
+                nextRequestAt.set(-1);
             }
             return false;
         }
 
         /**
-         * Returns a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
-         * Assumes that the returned set of sequence numbers will be requested
-         * immediately and updates the state accordingly (i.e. increments the
-         * timesRequested counters and sets the time of next request).
+         * Marks the packet of a slot as missing.
+         *
+         * @param slot the slot.
+         */
+        private void set(int slot)
+        {
+            int i = slot >>> 6;
+            long bit = 1L << (slot & 63);
+            long word;
+
+            do
+            {
+                word = missing.get(i);
+            }
+            while ((word & bit) == 0
+                    && !missing.compareAndSet(i, word, word | bit));
+        }
+
+        /**
+         * Marks the packet of a slot as not missing.
+         *
+         * @param slot the slot.
+         * @return <tt>true</tt> if the packet was marked as missing.
+         */
+        private boolean clear(int slot)
+        {
+            int i = slot >>> 6;
+            long bit = 1L << (slot & 63);
+            long word;
+
+            do
+            {
+                word = missing.get(i);
+                if ((word & bit) == 0)
+                {
+                    return false;
+                }
+            }
+            while (!missing.compareAndSet(i, word, word & ~bit));
+            return true;
+        }
+
+        /**
+         * Gets the number of packets which are to be requested.
          *
-         * @return a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
+         * @return the number of packets which are to be requested.
          */
-        synchronized private @NotNull Set<Integer> getMissingSeqNums()
+        private int getMissingCount()
         {
-            return new HashSet<>(requests.keySet());
+            int count = 0;
+
+            for (int i = 0; i < missing.length(); i++)
+            {
+                count += Long.bitCount(missing.get(i));
+            }
+            return count;
         }
 
         /**
-         * Notify this requester that a nack was sent at the given time
-         * @param time the time at which the nack was sent
+         * Writes the FCI of a NACK packet which requests the packets that are
+         * still missing, from the oldest to the newest, and updates the state
+         * accordingly (i.e. increments the timesRequested counters and sets
+         * the time of next request).
+         *
+         * @param now the current time.
+         * @return the FCI of the NACK packet, or <tt>null</tt> if no packet is
+         * missing.
          */
-        public synchronized void notifyNackCreated(long time, Collection<Integer> sequenceNumbers)
+        private byte[] createNackFci(long now)
         {
-            for (Integer seqNum : sequenceNumbers)
+            int generation = lossGeneration;
+            long requestAt = nextRequestAt.get();
+            int lastSeq = lastReceivedSeq;
+            int len = 0;
+            int pid = -1;
+            int remaining = 0;
+
+            // Visit the slots from the one after the newest (i.e. the oldest
+            // sequence number) on, so that the sequence numbers are visited in
+            // order (even across a wrap-around).
+            for (int i = 1; i <= WINDOW_SIZE; i++)
             {
-                Request request = requests.get(seqNum);
-                request.timesRequested++;
-                if (request.timesRequested == MAX_REQUESTS)
+                int slot = (lastSeq + i) & WINDOW_MASK;
+
+                if ((missing.get(slot >>> 6) & (1L << (slot & 63))) == 0)
+                {
+                    continue;
+                }
+
+                int seq = seqs[slot];
+                int delta = pid == -1 ? 0 : (seq - pid) & 0xffff;
+
+                if (pid == -1 || delta > 16)
+                {
+                    // Start a new entry with a zero BLP.
+                    pid = seq;
+                    RTPUtils.writeShort(fciBuf, len, (short) seq);
+                    RTPUtils.writeShort(fciBuf, len + 2, (short) 0);
+                    len += 4;
+                }
+                else
+                {
+                    // Bit i of the BLP (LSB first) stands for pid + i + 1.
+                    int blp = RTPUtils.readUint16AsInt(fciBuf, len - 2);
+
+                    RTPUtils.writeShort(
+                        fciBuf, len - 2, (short) (blp | 1 << (delta - 1)));
+                }
+
+                int times = ++timesRequested[slot];
+                if (times == MAX_REQUESTS)
                 {
                     if (logger.isDebugEnabled())
                     {
                         logger.debug(
                             "Generated the last NACK for SSRC=" + ssrc + " seq="
-                                + request.seq + ". "
+                                + seq + ". "
                                 + "Time since the first request: "
-                                + (time - request.firstRequestSentAt));
+                                + (now - firstRequestSentAt[slot]));
                     }
-                    requests.remove(seqNum);
+                    clear(slot);
                     continue;
                 }
-                if (request.timesRequested == 1)
+                if (times == 1)
                 {
-                    request.firstRequestSentAt = time;
+                    firstRequestSentAt[slot] = now;
                 }
+                remaining++;
             }
-            nextRequestAt = (requests.size() > 0) ? time + RE_REQUEST_AFTER_MILLIS : -1;
-        }
-
-    }
-
-    /**
-     * Represents a request for the retransmission of a specific RTP packet.
-     */
-    private static class Request
-    {
-        /**
-         * The RTP sequence number.
-         */
-        final int seq;
-
-        /**
-         * The system time at the moment a retransmission request for this
-         * packet was first sent.
-         */
-        long firstRequestSentAt = -1;
 
-        /**
-         * The number of times that a retransmission request for this packet
-         * has been sent.
-         */
-        int timesRequested = 0;
+            // Losses which were detected in the meantime may have been missed
+            // by the loop above, so they are to be requested now. The receiving
+            // thread increments lossGeneration before it sets nextRequestAt to
+            // 0, so either it sets 0 after the CAS or the check below sees the
+            // new generation.
+            nextRequestAt.compareAndSet(
+                requestAt, remaining > 0 ? now + RE_REQUEST_AFTER_MILLIS : -1);
+            if (lossGeneration != generation)
+            {
+                nextRequestAt.set(0);
+            }
 
-        /**
-         * Initializes a new <tt>Request</tt> instance with the given RTP
-         * sequence number.
-         * @param seq the RTP sequence number.
-         */
-        Request(int seq)
-        {
-            this.seq = seq;
+            return len == 0 ? null : Arrays.copyOf(fciBuf, len);
         }
     }
 
@@ -20,6 +20,7 @@
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.rtcp.*;
 import org.jitsi.impl.neomedia.rtp.*;
+import org.jitsi.impl.neomedia.rtp.pacing.*;
 import org.jitsi.impl.neomedia.stats.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -233,10 +234,14 @@ private long getRtxSsrc(RawPacket pkt)
      * @param after the {@code TransformEngine} in the chain of
      * {@code TransformEngine}s of the associated {@code MediaStream} after
      * which the injection of {@code pkt} is to begin
+     * @param priority the {@link PacketPriority} with which the packet is to
+     * be paced.
      * @return {@code true} if the packet was successfully retransmitted,
      * {@code false} otherwise.
      */
-    private boolean retransmit(RawPacket pkt, Byte rtxPt, TransformEngine after)
+    private boolean retransmit(
+        RawPacket pkt, Byte rtxPt, TransformEngine after,
+        PacketPriority priority)
     {
         boolean destinationSupportsRtx = rtxPt != null;
         boolean retransmitPlain;
@@ -254,7 +259,8 @@ private boolean retransmit(RawPacket pkt, Byte rtxPt, TransformEngine after)
             else
             {
                 retransmitPlain
-                    = !encapsulateInRtxAndTransmit(pkt, rtxSsrc, rtxPt, after);
+                    = !encapsulateInRtxAndTransmit(
+                            pkt, rtxSsrc, rtxPt, after, priority);
             }
         }
         else
@@ -268,7 +274,8 @@ private boolean retransmit(RawPacket pkt, Byte rtxPt, TransformEngine after)
             {
                 try
                 {
-                    mediaStream.injectPacket(pkt, /* data */ true, after);
+                    mediaStream.injectPacket(
+                        pkt, /* data */ true, after, priority);
                 }
                 catch (TransmissionFailedException tfe)
                 {
@@ -333,11 +340,14 @@ public void onDynamicPayloadTypesChanged()
      * @param after the {@code TransformEngine} in the chain of
      * {@code TransformEngine}s of the associated {@code MediaStream} after
      * which the injection of {@code pkt} is to begin
+     * @param priority the {@link PacketPriority} with which the packet is to
+     * be paced.
      * @return {@code true} if the packet was successfully retransmitted,
      * {@code false} otherwise.
      */
     private boolean encapsulateInRtxAndTransmit(
-        RawPacket pkt, long rtxSsrc, byte rtxPt, TransformEngine after)
+        RawPacket pkt, long rtxSsrc, byte rtxPt, TransformEngine after,
+        PacketPriority priority)
     {
         byte[] buf = pkt.getBuffer();
         int len = pkt.getLength();
@@ -374,7 +384,8 @@ private boolean encapsulateInRtxAndTransmit(
                 mediaStream.injectPacket(
                         rtxPkt,
                         /* data */ true,
-                        after);
+                        after,
+                        priority);
             }
             catch (TransmissionFailedException tfe)
             {
@@ -491,7 +502,10 @@ private void nackReceived(long mediaSSRC, Collection<Integer> lostPackets)
                     }
 
                     Byte rtxPt = apt2rtx.get(container.pkt.getPayloadType());
-                    if (send && retransmit(container.pkt, rtxPt, after))
+                    if (send
+                        && retransmit(
+                            container.pkt, rtxPt, after,
+                            PacketPriority.RETRANSMISSION))
                     {
                         stats.rtpPacketRetransmitted(
                             mediaSSRC, container.pkt.getLength());
@@ -527,6 +541,30 @@ private void nackReceived(long mediaSSRC, Collection<Integer> lostPackets)
         }
     }
 
+    /**
+     * Sends padding packets with the RTX SSRC associated to the media SSRC that
+     * is passed as a parameter, filling the budget which the pacer of the
+     * associated {@code MediaStream} has left unused since the last call
+     * (i.e. probes for more bandwidth without exceeding the pacing rate).
+     *
+     * @param ssrc the media SSRC to protect.
+     * @return the remaining padding bytes budget.
+     */
+    public int sendPadding(long ssrc)
+    {
+        RTPConnectorOutputStream dataOutputStream
+            = mediaStream == null ? null : mediaStream.getDataOutputStream();
+
+        if (dataOutputStream == null)
+        {
+            return 0;
+        }
+
+        int bytes = dataOutputStream.takePaddingBudget();
+
+        return bytes > 0 ? sendPadding(ssrc, bytes) : 0;
+    }
+
     /**
      * Sends padding packets with the RTX SSRC associated to the media SSRC that
      * is passed as a parameter. It implements packet triplication.
@@ -618,7 +656,8 @@ public int sendPadding(long ssrc, int bytes)
 
                     if (bytes - len > 0 && apt != null)
                     {
-                        retransmit(container.pkt, apt, this);
+                        retransmit(
+                            container.pkt, apt, this, PacketPriority.PADDING);
                         bytes -= len;
                     }
                     else
@@ -199,14 +199,7 @@ private RawPacket[] transformArray(
                     }
                     catch (Throwable t)
                     {
-                        exceptionCounter.incrementAndGet();
-                        if ((exceptionCounter.get() % EXCEPTIONS_TO_LOG) == 0
-                            || exceptionCounter.get() == 1)
-                        {
-                            logger.error(
-                                "Failed to " + logMessage + " RawPacket(s)!",
-                                t);
-                        }
+                        logException(t, exceptionCounter, logMessage);
                         if (t instanceof Error)
                         {
                             throw (Error) t;
@@ -226,4 +219,48 @@ else if (t instanceof RuntimeException)
 
         return pkts;
     }
+
+    /**
+     * Counts an exception caught while (reverse-)transforming a packet and
+     * logs it, unless too many exceptions have been logged already.
+     *
+     * @param t the exception.
+     * @param reverse <tt>true</tt> if <tt>t</tt> was caught in
+     * {@link #reverseTransform(RawPacket)} or <tt>false</tt> if it was caught
+     * in {@link #transform(RawPacket)}.
+     */
+    protected void logException(Throwable t, boolean reverse)
+    {
+        if (reverse)
+        {
+            logException(t, exceptionsInReverseTransform, "reverseTransform");
+        }
+        else
+        {
+            logException(t, exceptionsInTransform, "transform");
+        }
+    }
+
+    /**
+     * Counts an exception and logs it, unless too many exceptions have been
+     * logged already.
+     *
+     * @param t the exception.
+     * @param exceptionCounter a counter of the number of exceptions
+     * encountered.
+     * @param logMessage a name of the transformation function, to be used
+     * when logging <tt>t</tt>.
+     */
+    private static void logException(
+        Throwable t,
+        AtomicInteger exceptionCounter,
+        String logMessage)
+    {
+        int exceptions = exceptionCounter.incrementAndGet();
+
+        if ((exceptions % EXCEPTIONS_TO_LOG) == 0 || exceptions == 1)
+        {
+            logger.error("Failed to " + logMessage + " RawPacket(s)!", t);
+        }
+    }
 }
@@ -17,7 +17,10 @@
 
 import java.util.*;
 
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.utils.*;
 
 /**
  * The engine chain allows using numerous <tt>TransformEngine</tt>s on a single
@@ -29,6 +32,44 @@
 public class TransformEngineChain
     implements TransformEngine
 {
+    /**
+     * The name of the property which enables the collection of per-engine
+     * statistics (i.e. packet counts and sampled latencies) by
+     * <tt>TransformEngineChain</tt>s.
+     */
+    public static final String INSTRUMENTATION_PNAME
+        = TransformEngineChain.class.getName() + ".INSTRUMENTATION";
+
+    /**
+     * The name of the property which specifies the interval (in calls to a
+     * <tt>PacketTransformerChain</tt>) at which the latencies of the engines
+     * are sampled when the instrumentation is enabled.
+     */
+    public static final String INSTRUMENTATION_SAMPLE_INTERVAL_PNAME
+        = TransformEngineChain.class.getName()
+            + ".INSTRUMENTATION_SAMPLE_INTERVAL";
+
+    /**
+     * Whether the instrumentation is enabled.
+     */
+    private static final boolean INSTRUMENTATION
+        = ConfigUtils.getBoolean(
+                LibJitsi.getConfigurationService(),
+                INSTRUMENTATION_PNAME,
+                false);
+
+    /**
+     * The interval (in calls to a <tt>PacketTransformerChain</tt>) at which
+     * the latencies of the engines are sampled.
+     */
+    private static final int INSTRUMENTATION_SAMPLE_INTERVAL
+        = Math.max(
+                1,
+                ConfigUtils.getInt(
+                        LibJitsi.getConfigurationService(),
+                        INSTRUMENTATION_SAMPLE_INTERVAL_PNAME,
+                        16));
+
     /**
      * The sequence of <tt>TransformEngine</tt>s whose
      * <tt>PacketTransformer</tt>s this engine chain will be applying to RTP and
@@ -54,6 +95,17 @@
      */
     private PacketTransformerChain rtpTransformChain;
 
+    /**
+     * The statistics of the engines in {@link #engineChain} or <tt>null</tt>
+     * if the instrumentation is disabled.
+     */
+    private volatile Instrumentation instrumentation;
+
+    /**
+     * Whether this chain collects the statistics of its engines.
+     */
+    private final boolean instrumented;
+
     /**
      * Creates a new <tt>TransformEngineChain</tt> using the
      * <tt>engineChain</tt> array. Engines will be applied in the order
@@ -65,7 +117,26 @@
      */
     public TransformEngineChain(TransformEngine[] engineChain)
     {
+        this(engineChain, INSTRUMENTATION);
+    }
+
+    /**
+     * Creates a new <tt>TransformEngineChain</tt> using the
+     * <tt>engineChain</tt> array and enables or disables the collection of
+     * the statistics of its engines regardless of
+     * {@link #INSTRUMENTATION_PNAME}.
+     *
+     * @param engineChain an array containing <tt>TransformEngine</tt>s in the
+     * order that they are to be applied on outgoing packets.
+     * @param instrumented <tt>true</tt> to collect the statistics of the
+     * engines of the new instance.
+     */
+    TransformEngineChain(TransformEngine[] engineChain, boolean instrumented)
+    {
+        this.instrumented = instrumented;
         setEngineChain(engineChain.clone());
+        if (instrumented)
+            TransformEngineStatsRegistry.getInstance().register(this);
     }
 
     /**
@@ -76,6 +147,7 @@ public TransformEngineChain(TransformEngine[] engineChain)
     protected TransformEngineChain()
     {
         // Extenders must initialize this.engineChain
+        instrumented = INSTRUMENTATION;
     }
 
     /**
@@ -201,6 +273,30 @@ public TransformEngine[] getEngineChain()
         return engineChain.clone();
     }
 
+    /**
+     * Gets the statistics of the engines in this chain, those of their RTP
+     * transformers followed by those of their RTCP transformers. The
+     * statistics are only collected if {@link #INSTRUMENTATION_PNAME} is
+     * enabled.
+     *
+     * @return the statistics of the engines in this chain, or an empty list if
+     * the instrumentation is disabled.
+     */
+    public List<TransformEngineStats> getTransformEngineStats()
+    {
+        Instrumentation instrumentation = this.instrumentation;
+
+        if (instrumentation == null)
+            return Collections.emptyList();
+
+        List<TransformEngineStats> stats
+            = new ArrayList<>(2 * instrumentation.engines.length);
+
+        Collections.addAll(stats, instrumentation.rtpStats);
+        Collections.addAll(stats, instrumentation.rtcpStats);
+        return stats;
+    }
+
     /**
      * Returns the meta <tt>PacketTransformer</tt> that will be applying
      * RTCP transformations from all engines registered in this
@@ -300,10 +396,101 @@ public PacketTransformer getRTPTransformer()
      */
     private void setEngineChain(TransformEngine[] engineChain)
     {
+        if (instrumented)
+            instrumentation = new Instrumentation(engineChain, instrumentation);
+
         this.engineChain = engineChain;
         this.engineChainAsList = Arrays.asList(engineChain);
     }
 
+    /**
+     * The statistics of the engines of a specific version of
+     * {@link #engineChain}. The statistics of an engine survive changes of the
+     * chain.
+     */
+    private static class Instrumentation
+    {
+        /**
+         * The engines whose statistics are collected.
+         */
+        final TransformEngine[] engines;
+
+        /**
+         * The statistics of the RTP transformers of {@link #engines}.
+         */
+        final TransformEngineStatsImpl[] rtpStats;
+
+        /**
+         * The statistics of the RTCP transformers of {@link #engines}.
+         */
+        final TransformEngineStatsImpl[] rtcpStats;
+
+        /**
+         * Initializes a new <tt>Instrumentation</tt> instance.
+         *
+         * @param engines the engines whose statistics are to be collected.
+         * @param previous the <tt>Instrumentation</tt> of the previous version
+         * of the chain, or <tt>null</tt>.
+         */
+        Instrumentation(TransformEngine[] engines, Instrumentation previous)
+        {
+            this.engines = engines;
+            rtpStats = new TransformEngineStatsImpl[engines.length];
+            rtcpStats = new TransformEngineStatsImpl[engines.length];
+
+            for (int i = 0; i < engines.length; i++)
+            {
+                TransformEngine engine = engines[i];
+                int j = -1;
+
+                if (previous != null)
+                {
+                    for (int k = 0; k < previous.engines.length; k++)
+                    {
+                        if (previous.engines[k] == engine)
+                        {
+                            j = k;
+                            break;
+                        }
+                    }
+                }
+                if (j == -1)
+                {
+                    String name = engine.getClass().getSimpleName();
+
+                    rtpStats[i] = new TransformEngineStatsImpl(name, true);
+                    rtcpStats[i] = new TransformEngineStatsImpl(name, false);
+                }
+                else
+                {
+                    rtpStats[i] = previous.rtpStats[j];
+                    rtcpStats[i] = previous.rtcpStats[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the non-<tt>null</tt> elements of an array of packets.
+     *
+     * @param pkts the array of packets.
+     * @return the number of non-<tt>null</tt> elements of <tt>pkts</tt>.
+     */
+    private static int count(RawPacket[] pkts)
+    {
+        int count = 0;
+
+        if (pkts != null)
+        {
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt != null)
+                    count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * A <tt>PacketTransformerChain</tt> is a meta <tt>PacketTransformer</tt>
      * that applies all transformers present in this engine chain. The class
@@ -320,6 +507,13 @@ private void setEngineChain(TransformEngine[] engineChain)
          */
         private final boolean rtp;
 
+        /**
+         * The number of calls to this transformer, used to sample the
+         * latencies of the engines when the instrumentation is enabled. It is
+         * not synchronized because a lost update only shifts the sampling.
+         */
+        private int calls;
+
         /**
          * Creates an instance of this packet transformer and prepares it to
          * deal with RTP or RTCP according to the <tt>isRtp</tt> argument.
@@ -364,6 +558,16 @@ public void close()
         @Override
         public RawPacket[] reverseTransform(RawPacket pkts[])
         {
+            Instrumentation instrumentation
+                = TransformEngineChain.this.instrumentation;
+
+            if (instrumentation != null
+                    && instrumentation.engines
+                        == TransformEngineChain.this.engineChain)
+            {
+                return reverseTransform(pkts, instrumentation);
+            }
+
             TransformEngine[] engineChain
                 = TransformEngineChain.this.engineChain;
 
@@ -411,6 +615,16 @@ public RawPacket[] transform(RawPacket[] pkts)
          */
         public RawPacket[] transform(RawPacket[] pkts, TransformEngine after)
         {
+            Instrumentation instrumentation
+                = TransformEngineChain.this.instrumentation;
+
+            if (instrumentation != null
+                    && instrumentation.engines
+                        == TransformEngineChain.this.engineChain)
+            {
+                return transform(pkts, after, instrumentation);
+            }
+
             // If the specified after is in the transformation chain, the
             // transformation is to start after it.
             boolean lookForAfter
@@ -442,5 +656,125 @@ public RawPacket[] transform(RawPacket[] pkts, TransformEngine after)
 
             return pkts;
         }
+
+        /**
+         * Determines whether the latencies of the engines are to be measured
+         * in the current call.
+         *
+         * @return <tt>true</tt> if the latencies are to be measured.
+         */
+        private boolean sample()
+        {
+            return (calls++ % INSTRUMENTATION_SAMPLE_INTERVAL) == 0;
+        }
+
+        /**
+         * Implements {@link #reverseTransform(RawPacket[])} and collects the
+         * statistics of the engines.
+         *
+         * @param pkts the packets to reverse-transform.
+         * @param instrumentation the statistics of the engines.
+         * @return the reverse-transformed packets.
+         */
+        private RawPacket[] reverseTransform(
+                RawPacket[] pkts,
+                Instrumentation instrumentation)
+        {
+            TransformEngine[] engines = instrumentation.engines;
+            TransformEngineStatsImpl[] stats
+                = rtp ? instrumentation.rtpStats : instrumentation.rtcpStats;
+            boolean sample = sample();
+            int in = count(pkts);
+
+            for (int i = engines.length - 1 ; i >= 0; i--)
+            {
+                TransformEngine engine = engines[i];
+                PacketTransformer pTransformer
+                    = rtp
+                        ? engine.getRTPTransformer()
+                        : engine.getRTCPTransformer();
+
+                if (pTransformer == null)
+                    continue;
+
+                long start = sample ? System.nanoTime() : 0;
+
+                pkts = pTransformer.reverseTransform(pkts);
+
+                TransformEngineStatsImpl.PacketTransformerStatsImpl s
+                    = stats[i].reverseTransformStats;
+                int out = count(pkts);
+
+                if (sample)
+                    s.sampled(System.nanoTime() - start);
+                s.transformed(in, out);
+                in = out;
+            }
+
+            return pkts;
+        }
+
+        /**
+         * Implements {@link #transform(RawPacket[], TransformEngine)} and
+         * collects the statistics of the engines.
+         *
+         * @param pkts the packets to transform.
+         * @param after the {@code TransformEngine} in the chain after which the
+         * transformation is to begin.
+         * @param instrumentation the statistics of the engines.
+         * @return the transformed packets.
+         */
+        private RawPacket[] transform(
+                RawPacket[] pkts,
+                TransformEngine after,
+                Instrumentation instrumentation)
+        {
+            TransformEngine[] engines = instrumentation.engines;
+            TransformEngineStatsImpl[] stats
+                = rtp ? instrumentation.rtpStats : instrumentation.rtcpStats;
+            int i = 0;
+
+            if (after != null)
+            {
+                for (int j = 0; j < engines.length; j++)
+                {
+                    if (after.equals(engines[j]))
+                    {
+                        i = j + 1;
+                        break;
+                    }
+                }
+            }
+
+            boolean sample = sample();
+            int in = count(pkts);
+
+            for (; i < engines.length; i++)
+            {
+                TransformEngine engine = engines[i];
+                PacketTransformer transformer
+                    = rtp
+                        ? engine.getRTPTransformer()
+                        : engine.getRTCPTransformer();
+
+                if (transformer == null)
+                    continue;
+
+                long start = sample ? System.nanoTime() : 0;
+
+                pkts = transformer.transform(pkts);
+
+                TransformEngineStatsImpl.PacketTransformerStatsImpl s
+                    = stats[i].transformStats;
+                int out = count(pkts);
+
+                if (sample)
+                    s.sampled(System.nanoTime() - start);
+                s.transformed(in, out);
+                in = out;
+            }
+
+            return pkts;
+        }
     }
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements {@link TransformEngineStats} for the engines of an instrumented
+ * {@link TransformEngineChain}.
+ */
+public class TransformEngineStatsImpl
+    implements TransformEngineStats
+{
+    /**
+     * The name of the engine.
+     */
+    private final String name;
+
+    /**
+     * Whether these are the statistics of an RTP (or an RTCP) transformer.
+     */
+    private final boolean rtp;
+
+    /**
+     * The statistics of <tt>transform</tt>.
+     */
+    final PacketTransformerStatsImpl transformStats
+        = new PacketTransformerStatsImpl();
+
+    /**
+     * The statistics of <tt>reverseTransform</tt>.
+     */
+    final PacketTransformerStatsImpl reverseTransformStats
+        = new PacketTransformerStatsImpl();
+
+    /**
+     * Initializes a new <tt>TransformEngineStatsImpl</tt> instance.
+     *
+     * @param name the name of the engine.
+     * @param rtp <tt>true</tt> for the statistics of an RTP transformer or
+     * <tt>false</tt> for those of an RTCP transformer.
+     */
+    public TransformEngineStatsImpl(String name, boolean rtp)
+    {
+        this.name = name;
+        this.rtp = rtp;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRtp()
+    {
+        return rtp;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformerStats getTransformStats()
+    {
+        return transformStats;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformerStats getReverseTransformStats()
+    {
+        return reverseTransformStats;
+    }
+
+    /**
+     * Adds the statistics of another instance to this one.
+     *
+     * @param other the instance whose statistics are to be added.
+     */
+    public void add(TransformEngineStatsImpl other)
+    {
+        transformStats.add(other.transformStats);
+        reverseTransformStats.add(other.reverseTransformStats);
+    }
+
+    /**
+     * Resets the statistics of this instance.
+     */
+    public void reset()
+    {
+        transformStats.reset();
+        reverseTransformStats.reset();
+    }
+
+    /**
+     * Implements {@link PacketTransformerStats}.
+     */
+    static class PacketTransformerStatsImpl
+        implements PacketTransformerStats
+    {
+        /**
+         * The number of packets passed to the transformer.
+         */
+        private final LongAdder packets = new LongAdder();
+
+        /**
+         * The number of packets dropped by the transformer.
+         */
+        private final LongAdder droppedPackets = new LongAdder();
+
+        /**
+         * The sampled latencies of the transformer.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * Notifies this instance that the transformer was called.
+         *
+         * @param in the number of packets passed to the transformer.
+         * @param out the number of packets returned by the transformer.
+         */
+        void transformed(int in, int out)
+        {
+            if (in != 0)
+                packets.add(in);
+            if (out < in)
+                droppedPackets.add(in - out);
+        }
+
+        /**
+         * Notifies this instance of the latency of a call to the transformer.
+         *
+         * @param nanos the latency in nanoseconds.
+         */
+        void sampled(long nanos)
+        {
+            latency.record(nanos);
+        }
+
+        /**
+         * Adds the statistics of another instance to this one.
+         *
+         * @param other the instance whose statistics are to be added.
+         */
+        void add(PacketTransformerStatsImpl other)
+        {
+            packets.add(other.packets.sum());
+            droppedPackets.add(other.droppedPackets.sum());
+            latency.add(other.latency);
+        }
+
+        /**
+         * Resets the statistics of this instance.
+         */
+        void reset()
+        {
+            packets.reset();
+            droppedPackets.reset();
+            latency.reset();
+        }
+
+        @Override
+        public long getPackets()
+        {
+            return packets.sum();
+        }
+
+        @Override
+        public long getDroppedPackets()
+        {
+            return droppedPackets.sum();
+        }
+
+        @Override
+        public long getLatencySamples()
+        {
+            return latency.getCount();
+        }
+
+        @Override
+        public double getMeanLatencyNanos()
+        {
+            return latency.getMean();
+        }
+
+        @Override
+        public long getMedianLatencyNanos()
+        {
+            return latency.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getP99LatencyNanos()
+        {
+            return latency.getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getMaxLatencyNanos()
+        {
+            return latency.getMax();
+        }
+
+        @Override
+        public long getLatencyNanosAtPercentile(double percentile)
+        {
+            return latency.getValueAtPercentile(percentile);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.stats.*;
+
+/**
+ * The JMX management interface of {@link TransformEngineStatsRegistry}.
+ */
+public interface TransformEngineStatsMXBean
+{
+    /**
+     * Gets the statistics of the engines of all instrumented
+     * {@link TransformEngineChain}s, summed up per engine name and RTP/RTCP.
+     *
+     * @return the statistics of the engines of all instrumented
+     * {@link TransformEngineChain}s.
+     */
+    List<TransformEngineStats> getTransformEngineStats();
+
+    /**
+     * Gets the number of instrumented {@link TransformEngineChain}s.
+     *
+     * @return the number of instrumented {@link TransformEngineChain}s.
+     */
+    int getChainCount();
+
+    /**
+     * Resets the statistics of all instrumented {@link TransformEngineChain}s.
+     */
+    void reset();
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.lang.management.*;
+import java.util.*;
+
+import javax.management.*;
+
+import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * Keeps track of the instrumented {@link TransformEngineChain}s (without
+ * keeping them from being garbage collected) and exposes the statistics of
+ * their engines, summed up per engine, as an MXBean named
+ * {@link #OBJECT_NAME} on the platform MBean server.
+ */
+public class TransformEngineStatsRegistry
+    implements TransformEngineStatsMXBean
+{
+    /**
+     * The name of the MXBean.
+     */
+    public static final String OBJECT_NAME
+        = "org.jitsi.impl.neomedia.transform:type=TransformEngineStats";
+
+    /**
+     * The {@link Logger} used by the {@link TransformEngineStatsRegistry}
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TransformEngineStatsRegistry.class);
+
+    /**
+     * The single instance, created (and registered as an MXBean) when the
+     * first chain is registered.
+     */
+    private static TransformEngineStatsRegistry instance;
+
+    /**
+     * Gets the single instance of this class, creating it and registering it
+     * with the platform MBean server if needed.
+     *
+     * @return the single instance of this class.
+     */
+    public static synchronized TransformEngineStatsRegistry getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new TransformEngineStatsRegistry();
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        instance,
+                        new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException | SecurityException e)
+            {
+                logger.warn("Failed to register " + OBJECT_NAME, e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * The registered chains.
+     */
+    private final Map<TransformEngineChain, Boolean> chains
+        = new WeakHashMap<>();
+
+    /**
+     * Registers a chain.
+     *
+     * @param chain the chain to register.
+     */
+    void register(TransformEngineChain chain)
+    {
+        synchronized (chains)
+        {
+            chains.put(chain, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Gets a snapshot of the registered chains.
+     *
+     * @return a snapshot of the registered chains.
+     */
+    private List<TransformEngineChain> getChains()
+    {
+        synchronized (chains)
+        {
+            return new ArrayList<>(chains.keySet());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<TransformEngineStats> getTransformEngineStats()
+    {
+        Map<String, TransformEngineStatsImpl> sums = new LinkedHashMap<>();
+
+        for (TransformEngineChain chain : getChains())
+        {
+            for (TransformEngineStats stats : chain.getTransformEngineStats())
+            {
+                String key
+                    = stats.getName() + (stats.isRtp() ? "/RTP" : "/RTCP");
+
+                sums.computeIfAbsent(
+                        key,
+                        k -> new TransformEngineStatsImpl(
+                                stats.getName(), stats.isRtp()))
+                    .add((TransformEngineStatsImpl) stats);
+            }
+        }
+        return new ArrayList<>(sums.values());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getChainCount()
+    {
+        synchronized (chains)
+        {
+            return chains.size();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset()
+    {
+        for (TransformEngineChain chain : getChains())
+        {
+            for (TransformEngineStats stats : chain.getTransformEngineStats())
+            {
+                ((TransformEngineStatsImpl) stats).reset();
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.jitsi.impl.neomedia.transform;
 
 import java.io.*;
-import java.net.*;
 
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.service.neomedia.*;
@@ -50,24 +49,20 @@ protected TransformInputStream(T socket)
     }
 
     /**
-     * Creates a new <tt>RawPacket</tt> array from a specific
-     * <tt>DatagramPacket</tt> in order to have this instance receive its
-     * packet data through its {@link #read(byte[], int, int)} method.
-     * Reverse-transforms the received packet.
+     * Reverse-transforms the <tt>RawPacket</tt>s created from received
+     * <tt>DatagramPacket</tt>s. When datagrams are received in batches, the
+     * whole batch is reverse-transformed as a single <tt>RawPacket[]</tt>.
      *
-     * @param datagramPacket the <tt>DatagramPacket</tt> containing the packet
-     * data
-     * @return a new <tt>RawPacket</tt> array containing the packet data of the
-     * specified <tt>DatagramPacket</tt> or possibly its modification;
-     * <tt>null</tt> to ignore the packet data of the specified
-     * <tt>DatagramPacket</tt> and not make it available to this instance
-     * through its {@link #read(byte[], int, int)} method
-     * @see RTPConnectorInputStream#createRawPacket(DatagramPacket)
+     * @param pkts the <tt>RawPacket</tt>s created from received
+     * <tt>DatagramPacket</tt>s
+     * @return the reverse-transformed <tt>RawPacket</tt>s; <tt>null</tt>
+     * elements are ignored
+     * @see RTPConnectorInputStream#processRawPackets(RawPacket[])
      */
     @Override
-    protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
+    protected RawPacket[] processRawPackets(RawPacket[] pkts)
     {
-        RawPacket[] pkts = super.createRawPacket(datagramPacket);
+        pkts = super.processRawPackets(pkts);
 
         // Don't try to transform invalid (e.g. empty) packets.
         for (int i = 0; i < pkts.length; i++)
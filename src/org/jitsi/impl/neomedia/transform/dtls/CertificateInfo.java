@@ -16,6 +16,7 @@
 package org.jitsi.impl.neomedia.transform.dtls;
 
 import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
 import org.bouncycastle.crypto.tls.*;
 
 /**
@@ -102,4 +103,18 @@ public AsymmetricCipherKeyPair getKeyPair()
     {
         return keyPair;
     }
+
+    /**
+     * Gets the TLS signature algorithm of the keys of {@link #certificate}.
+     *
+     * @return {@link SignatureAlgorithm#ecdsa} if the keys of
+     * {@link #certificate} are ECDSA keys or {@link SignatureAlgorithm#rsa}
+     */
+    public short getSignatureAlgorithm()
+    {
+        return
+            keyPair.getPrivate() instanceof ECKeyParameters
+                ? SignatureAlgorithm.ecdsa
+                : SignatureAlgorithm.rsa;
+    }
 }
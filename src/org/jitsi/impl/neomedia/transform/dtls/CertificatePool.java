@@ -0,0 +1,350 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.jitsi.utils.logging.*;
+
+/**
+ * Provides the certificate with which the <tt>DtlsControlImpl</tt> instances
+ * authenticate their ends of DTLS sessions. The certificate is shared by all
+ * instances and is rotated after a specific time. Spare certificates are
+ * generated in the background ahead of the rotations, so that (with the
+ * exception of the very first one) a certificate rarely has to be generated
+ * while a <tt>DtlsControlImpl</tt> is being initialized i.e. while a call is
+ * being set up.
+ */
+public class CertificatePool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>CertificatePool</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(CertificatePool.class);
+
+    /**
+     * The function which generates new certificates.
+     */
+    private final Supplier<CertificateInfo> generator;
+
+    /**
+     * The time in milliseconds after which the current certificate is
+     * replaced.
+     */
+    private final long expireTime;
+
+    /**
+     * The time in milliseconds after its generation after which a spare
+     * certificate is discarded (and replaced in the background).
+     */
+    private final long spareLifetime;
+
+    /**
+     * The number of spare certificates to keep ready.
+     */
+    private final int size;
+
+    /**
+     * The certificate which is currently handed out.
+     */
+    private CertificateInfo current;
+
+    /**
+     * The time in milliseconds of system time at which {@link #current}
+     * started to be handed out.
+     */
+    private long currentSince;
+
+    /**
+     * The spare certificates, the oldest first.
+     */
+    private final Deque<CertificateInfo> spares = new ArrayDeque<>();
+
+    /**
+     * Whether spare certificates are being generated in the background.
+     */
+    private boolean refilling = false;
+
+    /**
+     * The <tt>Executor</tt> which generates the spare certificates and
+     * discards the expired ones or <tt>null</tt> if it has not been needed
+     * yet.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * The number of certificates handed out without having to be generated.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of certificates which had to be generated (or waited for)
+     * when they were requested.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The number of certificates generated.
+     */
+    private final LongAdder generated = new LongAdder();
+
+    /**
+     * Initializes a new <tt>CertificatePool</tt> instance.
+     *
+     * @param generator the function which generates new certificates.
+     * @param expireTime the time in milliseconds after which a certificate is
+     * replaced.
+     * @param spareLifetime the time in milliseconds after its generation
+     * after which a spare certificate is discarded.
+     * @param size the number of spare certificates to generate in the
+     * background. If <tt>0</tt>, certificates are only generated when they are
+     * requested.
+     */
+    CertificatePool(
+            Supplier<CertificateInfo> generator,
+            long expireTime,
+            long spareLifetime,
+            int size)
+    {
+        this.generator = generator;
+        this.expireTime = expireTime;
+        this.spareLifetime = spareLifetime;
+        this.size = Math.max(size, 0);
+    }
+
+    /**
+     * Gets the current certificate, replacing it (with a spare one, if ready)
+     * if it has expired.
+     *
+     * @return the current certificate.
+     */
+    synchronized CertificateInfo get()
+    {
+        long now = System.currentTimeMillis();
+
+        if (current != null && now - currentSince < expireTime)
+        {
+            hits.increment();
+            return current;
+        }
+
+        CertificateInfo certificateInfo = pollSpare(now);
+
+        if (certificateInfo != null)
+        {
+            hits.increment();
+        }
+        else
+        {
+            misses.increment();
+
+            // A certificate which is being generated in the background will
+            // be ready sooner than one generated now.
+            boolean interrupted = false;
+
+            while (refilling && (certificateInfo = pollSpare(now)) == null)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (certificateInfo == null)
+            {
+                certificateInfo = generator.get();
+                generated.increment();
+            }
+        }
+
+        current = certificateInfo;
+        currentSince = now;
+        refill();
+        return certificateInfo;
+    }
+
+    /**
+     * Removes the oldest spare certificate which has not expired.
+     *
+     * @param now the current time in milliseconds of system time.
+     * @return the oldest spare certificate which has not expired or
+     * <tt>null</tt>.
+     */
+    private CertificateInfo pollSpare(long now)
+    {
+        discardExpiredSpares(now);
+        return spares.poll();
+    }
+
+    /**
+     * Discards the spare certificates which have expired.
+     *
+     * @param now the current time in milliseconds of system time.
+     */
+    private void discardExpiredSpares(long now)
+    {
+        CertificateInfo spare;
+
+        while ((spare = spares.peek()) != null
+                && now - spare.timestamp >= spareLifetime)
+        {
+            spares.poll();
+        }
+    }
+
+    /**
+     * Discards the spare certificates which have expired and generates new
+     * ones in the background.
+     */
+    private synchronized void renewSpares()
+    {
+        discardExpiredSpares(System.currentTimeMillis());
+        refill();
+    }
+
+    /**
+     * Starts generating spare certificates in the background if there are
+     * less than {@link #size}.
+     */
+    private void refill()
+    {
+        if (refilling || spares.size() >= size)
+            return;
+
+        if (executor == null)
+        {
+            executor
+                = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "DtlsCertificatePool");
+
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+        refilling = true;
+        try
+        {
+            executor.execute(this::runInRefillThread);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            refilling = false;
+            logger.error("Failed to generate spare certificates.", ree);
+        }
+    }
+
+    /**
+     * Generates spare certificates until there are {@link #size}.
+     */
+    private void runInRefillThread()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (spares.size() >= size)
+                {
+                    refilling = false;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            CertificateInfo spare;
+
+            try
+            {
+                spare = generator.get();
+            }
+            catch (Throwable t)
+            {
+                synchronized (this)
+                {
+                    refilling = false;
+                    notifyAll();
+                }
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Failed to generate a spare certificate.", t);
+                return;
+            }
+
+            generated.increment();
+            synchronized (this)
+            {
+                spares.add(spare);
+                notifyAll();
+            }
+            executor.schedule(
+                    this::renewSpares,
+                    spareLifetime,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the number of certificates handed out without having to be
+     * generated (i.e. the current certificate or a spare one).
+     *
+     * @return the number of hits of this pool.
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of certificates which had to be generated (or waited
+     * for) when they were requested.
+     *
+     * @return the number of misses of this pool.
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of certificates generated by this pool.
+     *
+     * @return the number of certificates generated by this pool.
+     */
+    public long getGenerated()
+    {
+        return generated.sum();
+    }
+
+    /**
+     * Gets the number of spare certificates which are ready.
+     *
+     * @return the number of spare certificates which are ready.
+     */
+    public synchronized int getSpares()
+    {
+        return spares.size();
+    }
+}
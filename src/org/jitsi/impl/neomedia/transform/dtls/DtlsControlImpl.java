@@ -21,9 +21,11 @@
 import java.util.*;
 
 import org.bouncycastle.asn1.*;
+import org.bouncycastle.asn1.sec.*;
 import org.bouncycastle.asn1.x500.*;
 import org.bouncycastle.asn1.x500.style.*;
 import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.asn1.x9.*;
 import org.bouncycastle.cert.*;
 import org.bouncycastle.crypto.*;
 import org.bouncycastle.crypto.generators.*;
@@ -82,11 +84,43 @@
     /**
      * The name of the property which specifies the signature algorithm used
      * during certificate creation. When a certificate is created and this
-     * property is not set, a default value of "SHA1withRSA" will be used.
+     * property is not set, a default value of "SHA1withRSA" (or
+     * "SHA256withECDSA" for an ECDSA key) will be used.
      */
     public static final String PROP_SIGNATURE_ALGORITHM =
         "org.jitsi.impl.neomedia.transform.dtls.SIGNATURE_ALGORITHM";
 
+    /**
+     * The name of the property which specifies the type of the key of the
+     * certificate: &quot;RSA&quot; (the default) or &quot;ECDSA&quot; (with
+     * the P-256 curve, whose keys are faster to generate and to sign with).
+     */
+    public static final String CERT_KEY_TYPE_PNAME =
+        "org.jitsi.impl.neomedia.transform.dtls.CERT_KEY_TYPE";
+
+    /**
+     * Whether the key of the certificate is an ECDSA (rather than an RSA)
+     * key. The default value is <tt>false</tt> but may be overridden by the
+     * {@code ConfigurationService} and/or {@code System} property
+     * {@code CERT_KEY_TYPE_PNAME}.
+     */
+    public static final boolean CERT_KEY_TYPE_ECDSA;
+
+    /**
+     * The name of the property which specifies the number of certificates to
+     * generate in the background ahead of the rotation of the certificate
+     * (every {@link #CERT_CACHE_EXPIRE_TIME}). If <tt>0</tt>, a certificate
+     * is generated when a <tt>DtlsControlImpl</tt> is initialized after the
+     * previous one has expired.
+     */
+    public static final String CERT_POOL_SIZE_PNAME =
+        "org.jitsi.impl.neomedia.transform.dtls.CERT_POOL_SIZE";
+
+    /**
+     * The default number of certificates to generate in the background.
+     */
+    public static final int DEFAULT_CERT_POOL_SIZE = 1;
+
     /**
      * The name of the property to specify RSA Key length.
      */
@@ -184,10 +218,10 @@
         = DtlsControlImpl.class.getName() + ".verifyAndValidateCertificate";
 
     /**
-     * The cache of {@link #certificateInfo} so that we do not invoke CPU
+     * The pool of {@link #certificateInfo} so that we do not invoke CPU
      * intensive methods for each new {@code DtlsControlImpl} instance.
      */
-    private static CertificateInfo certificateInfoCache;
+    private static final CertificatePool certificatePool;
 
     static
     {
@@ -217,6 +251,23 @@
                     CERT_CACHE_EXPIRE_TIME_PNAME,
                     DEFAULT_CERT_CACHE_EXPIRE_TIME);
 
+        CERT_KEY_TYPE_ECDSA
+            = "ECDSA".equalsIgnoreCase(
+                    ConfigUtils.getString(
+                            LibJitsi.getConfigurationService(),
+                            CERT_KEY_TYPE_PNAME,
+                            "RSA"));
+
+        certificatePool
+            = new CertificatePool(
+                    DtlsControlImpl::generateCertificateInfo,
+                    CERT_CACHE_EXPIRE_TIME,
+                    /* spareLifetime */ CERT_CACHE_EXPIRE_TIME,
+                    ConfigUtils.getInt(
+                            LibJitsi.getConfigurationService(),
+                            CERT_POOL_SIZE_PNAME,
+                            DEFAULT_CERT_POOL_SIZE));
+
         // HASH_FUNCTION_UPGRADES
         HASH_FUNCTION_UPGRADES.put(
                 "sha-1",
@@ -411,6 +462,33 @@ private static CertificateInfo generateCertificateInfo()
                     timestamp);
     }
 
+    /**
+     * Initializes the <tt>SubjectPublicKeyInfo</tt> of a public key. The
+     * domain parameters of an ECDSA key are specified by the name of the
+     * (P-256) curve because that is what browsers accept.
+     *
+     * @param publicKey the public key.
+     * @return the <tt>SubjectPublicKeyInfo</tt> of <tt>publicKey</tt>
+     * @throws IOException if <tt>publicKey</tt> cannot be encoded
+     */
+    private static SubjectPublicKeyInfo createSubjectPublicKeyInfo(
+            AsymmetricKeyParameter publicKey)
+        throws IOException
+    {
+        if (publicKey instanceof ECPublicKeyParameters)
+        {
+            return
+                new SubjectPublicKeyInfo(
+                        new AlgorithmIdentifier(
+                                X9ObjectIdentifiers.id_ecPublicKey,
+                                SECObjectIdentifiers.secp256r1),
+                        ((ECPublicKeyParameters) publicKey).getQ()
+                            .getEncoded(false));
+        }
+        return
+            SubjectPublicKeyInfoFactory.createSubjectPublicKeyInfo(publicKey);
+    }
+
     /**
      * Generates a new subject for a self-signed certificate to be generated by
      * <tt>DtlsControlImpl</tt>.
@@ -442,12 +520,30 @@ private static X500Name generateCN()
     }
 
     /**
-     * Return a pair of RSA private and public keys.
+     * Return a pair of RSA or ECDSA (depending on
+     * {@link #CERT_KEY_TYPE_ECDSA}) private and public keys.
      *
      * @return a pair of private and public keys
      */
     private static AsymmetricCipherKeyPair generateKeyPair()
     {
+        if (CERT_KEY_TYPE_ECDSA)
+        {
+            X9ECParameters curve
+                = ECNamedCurveTable.getByOID(SECObjectIdentifiers.secp256r1);
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+
+            generator.init(
+                    new ECKeyGenerationParameters(
+                            new ECDomainParameters(
+                                    curve.getCurve(),
+                                    curve.getG(),
+                                    curve.getN(),
+                                    curve.getH()),
+                            new SecureRandom()));
+            return generator.generateKeyPair();
+        }
+
         RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
 
         generator.init(
@@ -475,14 +571,16 @@ private static AsymmetricCipherKeyPair generateKeyPair()
                 X500Name subject,
                 AsymmetricCipherKeyPair keyPair)
     {
+        boolean ecdsa = keyPair.getPrivate() instanceof ECKeyParameters;
+
         // The signature algorithm of the generated certificate defaults to
-        // SHA1. However, allow the overriding of the default via the
-        // ConfigurationService.
+        // SHA1 (or SHA256 for ECDSA). However, allow the overriding of the
+        // default via the ConfigurationService.
         String signatureAlgorithm
             = ConfigUtils.getString(
                     LibJitsi.getConfigurationService(),
                     PROP_SIGNATURE_ALGORITHM,
-                    "SHA1withRSA");
+                    ecdsa ? "SHA256withECDSA" : "SHA1withRSA");
 
         if (logger.isDebugEnabled())
             logger.debug("Signature algorithm: " + signatureAlgorithm);
@@ -491,7 +589,10 @@ private static AsymmetricCipherKeyPair generateKeyPair()
         {
             long now = System.currentTimeMillis();
             Date notBefore = new Date(now - ONE_DAY);
-            Date notAfter = new Date(now + ONE_DAY * 6 + CERT_CACHE_EXPIRE_TIME);
+            // The certificate may wait in the pool for up to
+            // CERT_CACHE_EXPIRE_TIME before it starts to be used.
+            Date notAfter
+                = new Date(now + ONE_DAY * 6 + 2 * CERT_CACHE_EXPIRE_TIME);
             X509v3CertificateBuilder builder
                 = new X509v3CertificateBuilder(
                         /* issuer */ subject,
@@ -500,17 +601,17 @@ private static AsymmetricCipherKeyPair generateKeyPair()
                         notAfter,
                         subject,
                         /* publicKeyInfo */
-                            SubjectPublicKeyInfoFactory
-                                .createSubjectPublicKeyInfo(
-                                    keyPair.getPublic()));
+                            createSubjectPublicKeyInfo(keyPair.getPublic()));
             AlgorithmIdentifier sigAlgId
                 = new DefaultSignatureAlgorithmIdentifierFinder()
                     .find(signatureAlgorithm);
             AlgorithmIdentifier digAlgId
                 = new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId);
-            ContentSigner signer
-                = new BcRSAContentSignerBuilder(sigAlgId, digAlgId)
-                    .build(keyPair.getPrivate());
+            BcContentSignerBuilder signerBuilder
+                = ecdsa
+                    ? new BcECContentSignerBuilder(sigAlgId, digAlgId)
+                    : new BcRSAContentSignerBuilder(sigAlgId, digAlgId);
+            ContentSigner signer = signerBuilder.build(keyPair.getPrivate());
 
             return builder.build(signer).toASN1Structure();
         }
@@ -608,28 +709,12 @@ public DtlsControlImpl(boolean srtpDisabled)
     {
         super(SrtpControlType.DTLS_SRTP);
 
-        CertificateInfo certificateInfo;
-
         // The methods generateKeyPair(), generateX509Certificate(),
         // findHashFunction(), and/or computeFingerprint() may be too CPU
         // intensive to invoke for each new DtlsControlImpl instance. That's
         // why we've decided to reuse their return values within a certain time
-        // frame. Attempt to retrieve from the cache.
-        synchronized (DtlsControlImpl.class)
-        {
-            certificateInfo = certificateInfoCache;
-            if (certificateInfo == null
-                    || certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME
-                        < System.currentTimeMillis())
-            {
-                // The cache doesn't exist yet or has outlived its lifetime.
-                // Rebuild the cache.
-                certificateInfoCache
-                    = certificateInfo
-                        = generateCertificateInfo();
-            }
-        }
-        this.certificateInfo = certificateInfo;
+        // frame and to generate the next ones in the background.
+        certificateInfo = certificatePool.get();
 
         properties = new Properties(srtpDisabled);
     }
@@ -665,6 +750,18 @@ protected void doCleanup()
         }
     }
 
+    /**
+     * Gets the pool of the certificates of the <tt>DtlsControlImpl</tt>
+     * instances (e.g. for its statistics).
+     *
+     * @return the pool of the certificates of the <tt>DtlsControlImpl</tt>
+     * instances
+     */
+    public static CertificatePool getCertificatePool()
+    {
+        return certificatePool;
+    }
+
     /**
      * Gets the certificate, hash function, fingerprint, etc. with which the
      * local endpoint represented by this instance authenticates its ends of
@@ -0,0 +1,499 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.utils.*;
+import org.jitsi.utils.logging.*;
+
+/**
+ * Runs the DTLS handshakes of all <tt>DtlsPacketTransformer</tt>s on a
+ * bounded number of threads, so that many simultaneous handshakes (e.g. when
+ * all the participants of a bridge reconnect at once) do not start as many
+ * threads. The handshakes which wait for a thread are queued by priority
+ * (audio before video before the rest) and then in the order in which they
+ * were submitted. When the queue is full, new handshakes are rejected.
+ *
+ * A handshake keeps its thread until it completes or fails, including while
+ * it waits for the retransmissions of the remote peer, because the
+ * handshakes of Bouncy Castle block. In order for a few unresponsive peers
+ * not to hold all the threads, a handshake which runs for longer than
+ * {@link #HANDSHAKE_TIMEOUT_PNAME} is aborted. The number of threads should
+ * cover the handshakes expected to be in progress at the same time (see
+ * {@link #MAX_THREADS_PNAME}). The handshakes which have to wait for a thread
+ * are logged and counted (see {@link #getDelayed()}).
+ */
+public class DtlsHandshakeExecutor
+{
+    /**
+     * The name of the property which specifies the maximum number of
+     * handshakes to run at the same time, i.e. the number of threads. The
+     * default is twice the number of processors and at least 4.
+     */
+    public static final String MAX_THREADS_PNAME
+        = DtlsHandshakeExecutor.class.getName() + ".MAX_THREADS";
+
+    /**
+     * The name of the property which specifies the maximum number of
+     * handshakes which wait for a thread.
+     */
+    public static final String MAX_QUEUED_PNAME
+        = DtlsHandshakeExecutor.class.getName() + ".MAX_QUEUED";
+
+    /**
+     * The name of the property which specifies the time in milliseconds
+     * after which a running handshake is aborted. A non-positive value
+     * disables the timeout.
+     */
+    public static final String HANDSHAKE_TIMEOUT_PNAME
+        = DtlsHandshakeExecutor.class.getName() + ".HANDSHAKE_TIMEOUT";
+
+    /**
+     * The default of {@link #HANDSHAKE_TIMEOUT_PNAME}. It allows the
+     * retransmissions of Bouncy Castle (after 1, 2 and 4 seconds) to complete
+     * a handshake with a slow peer.
+     */
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>DtlsHandshakeExecutor</tt> class
+     * and its instances.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DtlsHandshakeExecutor.class);
+
+    /**
+     * The time in seconds after which an idle thread exits.
+     */
+    private static final long KEEP_ALIVE_TIME = 60;
+
+    /**
+     * The <tt>DtlsHandshakeExecutor</tt> shared by the
+     * <tt>DtlsPacketTransformer</tt>s.
+     */
+    private static final DtlsHandshakeExecutor instance;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int maxThreads
+            = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        int maxQueued = 1024;
+        long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+        if (cfg != null)
+        {
+            maxThreads = cfg.getInt(MAX_THREADS_PNAME, maxThreads);
+            maxQueued = cfg.getInt(MAX_QUEUED_PNAME, maxQueued);
+            handshakeTimeout
+                = cfg.getLong(HANDSHAKE_TIMEOUT_PNAME, handshakeTimeout);
+        }
+        instance
+            = new DtlsHandshakeExecutor(
+                    Math.max(maxThreads, 1),
+                    Math.max(maxQueued, 0),
+                    Math.max(handshakeTimeout, 0));
+    }
+
+    /**
+     * Gets the <tt>DtlsHandshakeExecutor</tt> shared by the
+     * <tt>DtlsPacketTransformer</tt>s.
+     *
+     * @return the <tt>DtlsHandshakeExecutor</tt> shared by the
+     * <tt>DtlsPacketTransformer</tt>s.
+     */
+    public static DtlsHandshakeExecutor getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * The maximum number of handshakes which wait for a thread.
+     */
+    private final int maxQueued;
+
+    /**
+     * The time in milliseconds after which a running handshake is aborted or
+     * <tt>0</tt> if handshakes are not aborted.
+     */
+    private final long handshakeTimeout;
+
+    /**
+     * The executor which runs the handshakes.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The executor which aborts the handshakes which time out and runs the
+     * delayed tasks of {@link #schedule(Runnable, long)}.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * The sequence number of the next handshake to be submitted.
+     */
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    /**
+     * The number of handshakes submitted.
+     */
+    private final LongAdder submitted = new LongAdder();
+
+    /**
+     * The number of handshakes which had to wait for a thread.
+     */
+    private final LongAdder delayed = new LongAdder();
+
+    /**
+     * The number of handshakes rejected because the queue was full.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * The number of handshakes cancelled before they started.
+     */
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * The number of handshakes aborted because they timed out.
+     */
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * The total time in milliseconds that the started handshakes waited in
+     * the queue.
+     */
+    private final LongAdder queueTime = new LongAdder();
+
+    /**
+     * The number of handshakes which started.
+     */
+    private final LongAdder started = new LongAdder();
+
+    /**
+     * Initializes a new <tt>DtlsHandshakeExecutor</tt> instance.
+     *
+     * @param maxThreads the maximum number of handshakes to run at the same
+     * time.
+     * @param maxQueued the maximum number of handshakes which wait for a
+     * thread.
+     * @param handshakeTimeout the time in milliseconds after which a running
+     * handshake is aborted or <tt>0</tt> if handshakes are not to be aborted.
+     */
+    DtlsHandshakeExecutor(int maxThreads, int maxQueued, long handshakeTimeout)
+    {
+        this.maxQueued = maxQueued;
+        this.handshakeTimeout = handshakeTimeout;
+
+        AtomicInteger threadCount = new AtomicInteger();
+
+        executor
+            = new ThreadPoolExecutor(
+                    maxThreads,
+                    maxThreads,
+                    KEEP_ALIVE_TIME,
+                    TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(),
+                    r -> {
+                        Thread t
+                            = new Thread(
+                                    r,
+                                    DtlsHandshakeExecutor.class.getName()
+                                        + "-" + threadCount.incrementAndGet());
+
+                        t.setDaemon(true);
+                        return t;
+                    });
+        executor.allowCoreThreadTimeOut(true);
+
+        timer
+            = new ScheduledThreadPoolExecutor(
+                    1,
+                    r -> {
+                        Thread t
+                            = new Thread(
+                                    r,
+                                    DtlsHandshakeExecutor.class.getName()
+                                        + "-timer");
+
+                        t.setDaemon(true);
+                        return t;
+                    });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Submits a handshake to be run.
+     *
+     * @param task the handshake.
+     * @return <tt>true</tt> if <tt>task</tt> was submitted or <tt>false</tt>
+     * if it was rejected because too many handshakes wait for a thread.
+     */
+    boolean execute(Task task)
+    {
+        if (executor.getQueue().size() >= maxQueued
+                && executor.getActiveCount() >= executor.getMaximumPoolSize())
+        {
+            rejected.increment();
+            return false;
+        }
+
+        boolean delay
+            = !executor.getQueue().isEmpty()
+                || executor.getActiveCount() >= executor.getMaximumPoolSize();
+
+        task.executor = this;
+        task.seq = nextSeq.getAndIncrement();
+        task.submitted = System.currentTimeMillis();
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        if (delay)
+        {
+            delayed.increment();
+
+            long count = delayed.sum();
+
+            if (count == 1 || count % 100 == 0)
+            {
+                logger.warn(
+                        "DTLS handshakes wait for a thread (total delayed: "
+                            + count + ", queued: " + getQueued()
+                            + ", threads: " + executor.getMaximumPoolSize()
+                            + "). Consider increasing " + MAX_THREADS_PNAME
+                            + ".");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a handshake which has not started yet from the queue.
+     *
+     * @param task the handshake.
+     */
+    void cancel(Task task)
+    {
+        if (executor.remove(task))
+            cancelled.increment();
+    }
+
+    /**
+     * Runs a specific task after a specific delay (e.g. to submit a handshake
+     * again after it was rejected).
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds.
+     * @return the <tt>ScheduledFuture</tt> with which <tt>task</tt> may be
+     * cancelled.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay)
+    {
+        return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of handshakes which wait for a thread.
+     */
+    public int getQueued()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of handshakes which are running.
+     */
+    public int getRunning()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of handshakes submitted.
+     */
+    public long getSubmitted()
+    {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of handshakes which had to wait for a thread because
+     * all threads were running handshakes.
+     */
+    public long getDelayed()
+    {
+        return delayed.sum();
+    }
+
+    /**
+     * @return the number of handshakes rejected because too many handshakes
+     * waited for a thread.
+     */
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of handshakes cancelled before they started.
+     */
+    public long getCancelled()
+    {
+        return cancelled.sum();
+    }
+
+    /**
+     * @return the number of handshakes aborted because they timed out.
+     */
+    public long getTimedOut()
+    {
+        return timedOut.sum();
+    }
+
+    /**
+     * @return the mean time in milliseconds that the started handshakes
+     * waited for a thread.
+     */
+    public double getMeanQueueTime()
+    {
+        long started = this.started.sum();
+
+        return started == 0 ? 0 : queueTime.sum() / (double) started;
+    }
+
+    /**
+     * A handshake to be run by a <tt>DtlsHandshakeExecutor</tt>.
+     */
+    static abstract class Task
+        implements Runnable, Comparable<Task>
+    {
+        /**
+         * The priority of the handshake (the lower, the sooner it is run).
+         */
+        private final int priority;
+
+        /**
+         * The <tt>DtlsHandshakeExecutor</tt> to which the handshake was
+         * submitted.
+         */
+        private DtlsHandshakeExecutor executor;
+
+        /**
+         * The sequence number of the handshake.
+         */
+        private long seq;
+
+        /**
+         * The time in milliseconds at which the handshake was submitted.
+         */
+        private long submitted;
+
+        /**
+         * Initializes a new <tt>Task</tt> instance.
+         *
+         * @param mediaType the type of the media of the stream of the
+         * handshake, which determines its priority.
+         */
+        Task(MediaType mediaType)
+        {
+            if (MediaType.AUDIO.equals(mediaType))
+                priority = 0;
+            else if (MediaType.VIDEO.equals(mediaType))
+                priority = 1;
+            else
+                priority = 2;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(Task other)
+        {
+            int c = Integer.compare(priority, other.priority);
+
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Records the time the handshake waited for a thread and runs it,
+         * aborting it if it times out.
+         */
+        @Override
+        public final void run()
+        {
+            DtlsHandshakeExecutor executor = this.executor;
+
+            executor.queueTime.add(System.currentTimeMillis() - submitted);
+            executor.started.increment();
+
+            ScheduledFuture<?> timeout
+                = executor.handshakeTimeout == 0
+                    ? null
+                    : executor.timer.schedule(
+                            this::timeout,
+                            executor.handshakeTimeout,
+                            TimeUnit.MILLISECONDS);
+
+            try
+            {
+                runHandshake();
+            }
+            finally
+            {
+                if (timeout != null)
+                    timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Aborts the handshake because it has been running for too long.
+         */
+        private void timeout()
+        {
+            executor.timedOut.increment();
+            logger.warn(
+                    "Aborting a DTLS handshake which has been running for "
+                        + executor.handshakeTimeout + " ms.");
+            abortHandshake();
+        }
+
+        /**
+         * Runs the handshake.
+         */
+        protected abstract void runHandshake();
+
+        /**
+         * Aborts the running handshake i.e. makes {@link #runHandshake()}
+         * return as soon as possible. Called on a thread other than the one
+         * which runs the handshake.
+         */
+        protected abstract void abortHandshake();
+    }
+}
@@ -19,6 +19,7 @@
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.bouncycastle.crypto.tls.*;
 import org.jitsi.impl.neomedia.*;
@@ -63,6 +64,19 @@
      */
     private static final int CONNECT_TRIES = 3;
 
+    /**
+     * The delay in milliseconds after which a handshake rejected by the
+     * {@link DtlsHandshakeExecutor} is first submitted again. The delay
+     * doubles with each rejection up to {@link #START_RETRY_MAX_DELAY}.
+     */
+    private static final long START_RETRY_MIN_DELAY = 100;
+
+    /**
+     * The maximum delay in milliseconds after which a handshake rejected by
+     * the {@link DtlsHandshakeExecutor} is submitted again.
+     */
+    private static final long START_RETRY_MAX_DELAY = 5000;
+
     /**
      * The indicator which determines whether unencrypted packets sent or
      * received through <tt>DtlsPacketTransformer</tt> are to be dropped. The
@@ -99,6 +113,14 @@
     private static final Logger logger
         = Logger.getLogger(DtlsPacketTransformer.class);
 
+    /**
+     * The maximum number of milliseconds {@link #getSRTPTransformer()} waits
+     * for a running handshake to initialize {@link #_srtpTransformer}. Kept
+     * short because the packets which arrive in the meantime are queued
+     * anyway and the waiting thread may be a shared I/O thread.
+     */
+    private static final long SRTP_TRANSFORMER_WAIT_MILLIS = 1;
+
     /**
      * The maximum number of elements of queues such as
      * {@link #_reverseTransformSrtpQueue} and {@link #_transformSrtpQueue}.
@@ -186,7 +208,14 @@ public static boolean isDtlsRecord(byte[] buf, int off, int len)
     private AbstractRTPConnector connector;
 
     /**
-     * The background <tt>Thread</tt> which initializes {@link #dtlsTransport}.
+     * The handshake which initializes {@link #dtlsTransport}. It waits for or
+     * runs on a thread of the shared {@link DtlsHandshakeExecutor}.
+     */
+    private DtlsHandshakeExecutor.Task connectTask;
+
+    /**
+     * The <tt>Thread</tt> which runs {@link #connectTask} (once it has
+     * started).
      */
     private Thread connectThread;
 
@@ -258,6 +287,18 @@ public static boolean isDtlsRecord(byte[] buf, int off, int len)
 
     private boolean started = false;
 
+    /**
+     * The scheduled retry of {@link #maybeStart()} after the handshake was
+     * rejected by the {@link DtlsHandshakeExecutor} or <tt>null</tt>.
+     */
+    private ScheduledFuture<?> startRetry;
+
+    /**
+     * The delay in milliseconds of the last retry of {@link #maybeStart()}
+     * or <tt>0</tt> if the last handshake was not rejected.
+     */
+    private long startRetryDelay = 0;
+
     /**
      * Initializes a new <tt>DtlsPacketTransformer</tt> instance.
      *
@@ -411,37 +452,41 @@ private SinglePacketTransformer getSRTPTransformer()
         // SrtpListener is not supported by this DTLS SrtpControl implementation
         // and (2) encrypted packets may arrive soon enough to be let through
         // while _srtpTransformer is still initializing. Consequently, we may
-        // wait for _srtpTransformer (a bit) to initialize.
-        boolean yield = true;
-
-        do
+        // wait for _srtpTransformer (a bit) to initialize. The wait is on
+        // the monitor of this instance, which is notified when
+        // _srtpTransformer is set and when the handshake ends.
+        synchronized (this)
         {
-            synchronized (this)
+            long deadline
+                = System.currentTimeMillis() + SRTP_TRANSFORMER_WAIT_MILLIS;
+
+            while (true)
             {
                 srtpTransformer = _srtpTransformer;
                 if (srtpTransformer != null)
                     break; // _srtpTransformer is initialized
 
-                if (connectThread == null)
+                // Though _srtpTransformer is NOT initialized, there is no
+                // point in waiting because there is no one to initialize it
+                // (yet, if the handshake waits for a thread).
+                if (connectTask == null || connectThread == null)
+                    break;
+
+                long timeout = deadline - System.currentTimeMillis();
+
+                if (timeout <= 0)
+                    break;
+                try
+                {
+                    wait(timeout);
+                }
+                catch (InterruptedException ie)
                 {
-                    // Though _srtpTransformer is NOT initialized, there is no
-                    // point in waiting because there is no one to initialize
-                    // it.
+                    Thread.currentThread().interrupt();
                     break;
                 }
             }
-
-            if (yield)
-            {
-                yield = false;
-                Thread.yield();
-            }
-            else
-            {
-                break;
-            }
         }
-        while (true);
 
         return srtpTransformer;
     }
@@ -1219,7 +1264,7 @@ private synchronized void start()
     {
         if (this.datagramTransport != null)
         {
-            if (this.connectThread == null && dtlsTransport == null)
+            if (this.connectTask == null && dtlsTransport == null)
             {
                 logger.warn(
                         getClass().getName()
@@ -1265,12 +1310,19 @@ private synchronized void start()
 
         datagramTransport.setConnector(connector);
 
-        Thread connectThread
-            = new Thread()
+        DtlsHandshakeExecutor.Task connectTask
+            = new DtlsHandshakeExecutor.Task(mediaType)
             {
                 @Override
-                public void run()
+                protected void runHandshake()
                 {
+                    synchronized (DtlsPacketTransformer.this)
+                    {
+                        if (this != DtlsPacketTransformer.this.connectTask)
+                            return;
+                        DtlsPacketTransformer.this.connectThread
+                            = Thread.currentThread();
+                    }
                     try
                     {
                         runInConnectThread(
@@ -1280,49 +1332,102 @@ public void run()
                     }
                     finally
                     {
-                        if (Thread.currentThread().equals(
-                                DtlsPacketTransformer.this.connectThread))
+                        synchronized (DtlsPacketTransformer.this)
                         {
-                            DtlsPacketTransformer.this.connectThread = null;
+                            if (this
+                                    == DtlsPacketTransformer.this.connectTask)
+                            {
+                                DtlsPacketTransformer.this.connectTask = null;
+                                DtlsPacketTransformer.this.connectThread
+                                    = null;
+                                // Wake up getSRTPTransformer().
+                                DtlsPacketTransformer.this.notifyAll();
+                            }
                         }
                     }
                 }
-            };
 
-        connectThread.setDaemon(true);
-        connectThread.setName(
-                DtlsPacketTransformer.class.getName() + ".connectThread");
+                @Override
+                protected void abortHandshake()
+                {
+                    synchronized (DtlsPacketTransformer.this)
+                    {
+                        if (this != DtlsPacketTransformer.this.connectTask
+                                || datagramTransport
+                                    != DtlsPacketTransformer.this
+                                        .datagramTransport)
+                        {
+                            return;
+                        }
+                        logger.error(
+                                "Failed to establish the DTLS connection: the"
+                                    + " handshake timed out!");
+                        // Closing the datagramTransport makes the blocked
+                        // handshake fail and keeps it from being retried.
+                        closeDatagramTransport();
+                    }
+                }
+            };
 
-        this.connectThread = connectThread;
+        this.connectTask = connectTask;
         this.datagramTransport = datagramTransport;
 
-        boolean started = false;
+        DtlsHandshakeExecutor executor = DtlsHandshakeExecutor.getInstance();
 
-        try
+        if (executor.execute(connectTask))
         {
-            connectThread.start();
-            started = true;
+            startRetryDelay = 0;
         }
-        finally
+        else
         {
-            if (!started)
-            {
-                if (connectThread.equals(this.connectThread))
-                    this.connectThread = null;
-                if (datagramTransport.equals(this.datagramTransport))
-                    this.datagramTransport = null;
-            }
+            startRetryDelay
+                = startRetryDelay == 0
+                    ? START_RETRY_MIN_DELAY
+                    : Math.min(2 * startRetryDelay, START_RETRY_MAX_DELAY);
+            logger.error(
+                    "Failed to start the DTLS handshake: too many handshakes"
+                        + " are queued! Will retry in " + startRetryDelay
+                        + " ms.");
+            this.connectTask = null;
+            this.datagramTransport = null;
+            // Allow maybeStart() to try again.
+            this.started = false;
+            startRetry = executor.schedule(this::retryStart, startRetryDelay);
         }
 
         notifyAll();
     }
 
+    /**
+     * Tries to start this <tt>PacketTransformer</tt> again after its
+     * handshake was rejected by the {@link DtlsHandshakeExecutor}.
+     */
+    private synchronized void retryStart()
+    {
+        if (startRetry != null)
+        {
+            startRetry = null;
+            maybeStart();
+        }
+    }
+
     /**
      * Stops this <tt>PacketTransformer</tt>.
      */
     private synchronized void stop()
     {
         started = false;
+        startRetryDelay = 0;
+        if (startRetry != null)
+        {
+            startRetry.cancel(false);
+            startRetry = null;
+        }
+        if (connectTask != null)
+        {
+            DtlsHandshakeExecutor.getInstance().cancel(connectTask);
+            connectTask = null;
+        }
         if (connectThread != null)
             connectThread = null;
         try
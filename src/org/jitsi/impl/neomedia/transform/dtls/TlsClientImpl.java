@@ -353,7 +353,7 @@ public TlsCredentials getClientCredentials(
                             certificateInfo.getKeyPair().getPrivate(),
                             new SignatureAndHashAlgorithm(
                                     HashAlgorithm.sha1,
-                                    SignatureAlgorithm.rsa));
+                                    certificateInfo.getSignatureAlgorithm()));
             }
             return clientCredentials;
         }
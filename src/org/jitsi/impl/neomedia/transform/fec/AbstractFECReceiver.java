@@ -20,6 +20,7 @@
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
+import org.jitsi.utils.*;
 import org.jitsi.utils.logging.*;
 
 import java.util.*;
@@ -28,6 +29,15 @@
  * A {@link PacketTransformer} which handles incoming fec packets.  This class
  * contains only the generic fec handling logic.
  *
+ * The media packets are copied into a ring of reusable packets indexed by
+ * their RTP sequence numbers and the fec packets are kept in a similar ring,
+ * together with a description of the media packets they protect which is
+ * parsed once by the specific implementation (see
+ * {@link #parseFecPacket(RawPacket, FecPacketDesc)}). Recovery is the same for
+ * all fec schemes: repeated over all fec packets until no more media packets
+ * can be recovered, so that losses covered by overlapping fec packets are
+ * recovered in one pass.
+ *
  * @author bgrozev
  * @author bbaldino
  */
@@ -97,51 +107,52 @@
         MEDIA_BUF_SIZE = mediaBufSize;
     }
 
+    /**
+     * The value returned by {@link #findMissing(FecPacketDesc)} when all the
+     * media packets protected by a fec packet have been received.
+     */
+    private static final int NONE_MISSING = -1;
+
+    /**
+     * The value returned by {@link #findMissing(FecPacketDesc)} when more than
+     * one of the media packets protected by a fec packet are missing.
+     */
+    private static final int MANY_MISSING = -2;
+
     /**
      * The payload type of the fec stream
      */
     private byte payloadType;
 
     /**
-     * Buffer which keeps (copies of) received media packets.
-     *
-     * We keep them ordered by their RTP sequence numbers, so that
-     * we can easily select the oldest one to discard when the buffer is
-     * full (when the map has more than <tt>MEDIA_BUFF_SIZE</tt> entries).
-     *
-     * We keep them in a <tt>Map</tt> so that we can easily search for a
-     * packet with a specific sequence number.
-     *
-     * Note: This might turn out to be inefficient, especially with increased
-     * buffer sizes. In the vast majority of cases (e.g. on every received
-     * packet) we do an insert at one end and a delete from the other -- this
-     * can be optimized. We very rarely (when we receive a packet out of order)
-     * need to insert at an arbitrary location.
-     * FIXME: Look at using the existing packet cache instead of our own here
+     * Ring of (copies of) received and recovered media packets, indexed by
+     * their RTP sequence numbers modulo the size of the ring. The
+     * <tt>RawPacket</tt>s and their buffers are reused.
      */
-    protected final SortedMap<Integer, RawPacket> mediaPackets
-        = new TreeMap<Integer, RawPacket>(RTPUtils.sequenceNumberComparator);
+    private final RawPacket[] mediaPackets;
 
     /**
-     * Buffer which keeps (copies of) received fec packets.
-     *
-     * We keep them ordered by their RTP sequence numbers, so that
-     * we can easily select the oldest one to discard when the buffer is
-     * full (when the map has more than <tt>FEC_BUFF_SIZE</tt> entries.
-     *
-     * We keep them in a <tt>Map</tt> so that we can easily search for a
-     * packet with a specific sequence number.
-     *
-     * Note: This might turn out to be inefficient, especially with increased
-     * buffer sizes. In the vast majority of cases (e.g. on every received
-     * packet) we do an insert at one end and a delete from the other -- this
-     * can be optimized. We very rarely (when we receive a packet out of order)
-     * need to insert at an arbitrary location.
-     * FIXME: Look at using the existing packet cache instead of our own here
+     * The RTP sequence numbers of the packets in {@link #mediaPackets}, or -1
+     * for slots which do not contain a packet.
+     */
+    private final int[] mediaSeqs;
+
+    /**
+     * Ring of received fec packets which have not been used yet, indexed by
+     * their RTP sequence numbers modulo the size of the ring. The
+     * <tt>FecPacketDesc</tt>s are reused.
      */
-    protected final SortedMap<Integer,RawPacket> fecPackets
-        = new TreeMap<Integer, RawPacket>(RTPUtils.sequenceNumberComparator);
+    private final FecPacketDesc[] fecPackets;
 
+    /**
+     * The number of fec packets in {@link #fecPackets}.
+     */
+    private int fecCount = 0;
+
+    /**
+     * The highest RTP sequence number of a media packet seen so far, or -1.
+     */
+    private int highestMediaSeq = -1;
 
     /**
      * Initialize the FEC receiver
@@ -152,54 +163,152 @@
     {
         this.ssrc = ssrc;
         this.payloadType = payloadType;
+
+        mediaPackets = new RawPacket[ceilPowerOfTwo(MEDIA_BUF_SIZE)];
+        mediaSeqs = new int[mediaPackets.length];
+        Arrays.fill(mediaSeqs, -1);
+        fecPackets = new FecPacketDesc[ceilPowerOfTwo(FEC_BUF_SIZE)];
     }
 
     /**
-     * Saves <tt>p</tt> into <tt>fecPackets</tt>. If the size of
-     * <tt>fecPackets</tt> has reached <tt>FEC_BUFF_SIZE</tt> discards the
-     * oldest packet from it.
-     * @param p the packet to save.
+     * Gets the smallest power of two which is not less than a specific
+     * (positive) number.
+     *
+     * @param n the number.
+     * @return the smallest power of two which is not less than <tt>n</tt>.
      */
-    private void saveFec(RawPacket p)
+    private static int ceilPowerOfTwo(int n)
     {
-        if (fecPackets.size() >= FEC_BUF_SIZE)
-            fecPackets.remove(fecPackets.firstKey());
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
 
-        fecPackets.put(p.getSequenceNumber(), p);
+    /**
+     * XORs a specific number of bytes of a source buffer into a destination
+     * buffer, 8 bytes at a time.
+     *
+     * @param src the source buffer.
+     * @param srcOff the offset in <tt>src</tt>.
+     * @param dst the destination buffer.
+     * @param dstOff the offset in <tt>dst</tt>.
+     * @param len the number of bytes to XOR.
+     */
+    static void xor(byte[] src, int srcOff, byte[] dst, int dstOff, int len)
+    {
+        int end = srcOff + (len & ~7);
+
+        for (; srcOff < end; srcOff += 8, dstOff += 8)
+        {
+            dst[dstOff] ^= src[srcOff];
+            dst[dstOff + 1] ^= src[srcOff + 1];
+            dst[dstOff + 2] ^= src[srcOff + 2];
+            dst[dstOff + 3] ^= src[srcOff + 3];
+            dst[dstOff + 4] ^= src[srcOff + 4];
+            dst[dstOff + 5] ^= src[srcOff + 5];
+            dst[dstOff + 6] ^= src[srcOff + 6];
+            dst[dstOff + 7] ^= src[srcOff + 7];
+        }
+        for (end += len & 7; srcOff < end; srcOff++, dstOff++)
+        {
+            dst[dstOff] ^= src[srcOff];
+        }
     }
 
     /**
-     * Makes a copy of <tt>p</tt> into <tt>mediaPackets</tt>. If the size of
-     * <tt>mediaPackets</tt> has reached <tt>MEDIA_BUFF_SIZE</tt> discards
-     * the oldest packet from it and reuses it.
-     * @param p the packet to copy.
+     * Saves <tt>p</tt> into <tt>fecPackets</tt>, replacing the fec packet
+     * (if any) which was saved into the same slot of the ring.
+     * @param p the packet to save.
      */
-    protected void saveMedia(RawPacket p)
+    private void saveFec(RawPacket p)
     {
-        RawPacket newMedia;
-        if (mediaPackets.size() < MEDIA_BUF_SIZE)
+        int idx = p.getSequenceNumber() & (fecPackets.length - 1);
+        FecPacketDesc desc = fecPackets[idx];
+
+        if (desc == null)
         {
-            newMedia = new RawPacket();
-            newMedia.setBuffer(new byte[FECTransformEngine.INITIAL_BUFFER_SIZE]);
-            newMedia.setOffset(0);
+            fecPackets[idx] = desc = new FecPacketDesc();
         }
-        else
+        else if (desc.pkt != null)
         {
-            newMedia = mediaPackets.remove(mediaPackets.firstKey());
+            desc.pkt = null;
+            fecCount--;
         }
 
-        int pLen = p.getLength();
-        if (pLen > newMedia.getBuffer().length)
+        desc.clear();
+        if (parseFecPacket(p, desc))
         {
-            newMedia.setBuffer(new byte[pLen]);
+            desc.pkt = p;
+            fecCount++;
         }
+    }
+
+    /**
+     * Makes a copy of <tt>p</tt> into <tt>mediaPackets</tt>, reusing the
+     * packet (and its buffer) in the slot of the ring for its sequence number.
+     * @param p the packet to copy.
+     */
+    protected void saveMedia(RawPacket p)
+    {
+        int seq = p.getSequenceNumber();
+        int pLen = p.getLength();
+        RawPacket newMedia = getMediaSlot(seq, pLen);
 
         System.arraycopy(p.getBuffer(), p.getOffset(), newMedia.getBuffer(),
             0, pLen);
         newMedia.setLength(pLen);
         newMedia.setOffset(0);
 
-        mediaPackets.put(newMedia.getSequenceNumber(), newMedia);
+        mediaSeqs[seq & (mediaPackets.length - 1)] = seq;
+        if (highestMediaSeq == -1
+                || RTPUtils.getSequenceNumberDelta(seq, highestMediaSeq) > 0)
+        {
+            highestMediaSeq = seq;
+        }
+    }
+
+    /**
+     * Gets the (reusable) packet in the slot of {@link #mediaPackets} for a
+     * specific sequence number, making sure that its buffer has a specific
+     * capacity. The slot is marked empty.
+     *
+     * @param seq the RTP sequence number.
+     * @param capacity the minimum capacity of the buffer.
+     * @return the packet in the slot for <tt>seq</tt>.
+     */
+    private RawPacket getMediaSlot(int seq, int capacity)
+    {
+        int idx = seq & (mediaPackets.length - 1);
+        RawPacket media = mediaPackets[idx];
+
+        if (media == null)
+        {
+            media = new RawPacket();
+            media.setBuffer(
+                new byte[
+                    Math.max(
+                        capacity, FECTransformEngine.INITIAL_BUFFER_SIZE)]);
+            media.setOffset(0);
+            mediaPackets[idx] = media;
+        }
+        else if (capacity > media.getBuffer().length)
+        {
+            media.setBuffer(new byte[capacity]);
+        }
+        mediaSeqs[idx] = -1;
+        return media;
+    }
+
+    /**
+     * Gets the saved media packet with a specific RTP sequence number.
+     *
+     * @param seq the RTP sequence number.
+     * @return the saved media packet with sequence number <tt>seq</tt>, or
+     * <tt>null</tt> if there is none.
+     */
+    protected RawPacket getMedia(int seq)
+    {
+        int idx = seq & (mediaPackets.length - 1);
+
+        return mediaSeqs[idx] == seq ? mediaPackets[idx] : null;
     }
 
     /**
@@ -254,11 +363,242 @@ public synchronized RawPacket[] reverseTransform(RawPacket[] pkts)
             }
         }
 
-        pkts = doReverseTransform(pkts);
+        if (handleFec && fecCount != 0)
+        {
+            pkts = recover(pkts);
+        }
+
+        return pkts;
+    }
+
+    /**
+     * Goes over the saved fec packets and recovers the media packets which
+     * they make recoverable, repeating until no more can be recovered (i.e.
+     * a recovered packet may allow the recovery of another one). Fec packets
+     * which are no longer needed are discarded.
+     *
+     * @param pkts the array to add the recovered media packets to.
+     * @return <tt>pkts</tt> or a new array which contains the elements of
+     * <tt>pkts</tt> and the recovered media packets.
+     */
+    private RawPacket[] recover(RawPacket[] pkts)
+    {
+        boolean recovered;
+
+        do
+        {
+            recovered = false;
+            for (FecPacketDesc desc : fecPackets)
+            {
+                if (desc == null || desc.pkt == null)
+                {
+                    continue;
+                }
+
+                int missingSeq = findMissing(desc);
+
+                if (missingSeq == MANY_MISSING)
+                {
+                    continue;
+                }
+
+                // The fec packet is either not needed anymore or is about to
+                // be used.
+                desc.pkt = null;
+                fecCount--;
+                if (missingSeq == NONE_MISSING)
+                {
+                    continue;
+                }
+
+                RawPacket recoveredPacket = recover(desc, missingSeq);
+
+                if (recoveredPacket != null)
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Recovered packet " + missingSeq);
+                    }
+                    statistics.numRecoveredPackets++;
+                    pkts = ArrayUtils.insert(
+                        recoveredPacket, pkts, RawPacket.class);
+                    recovered = true;
+                }
+                else
+                {
+                    statistics.failedRecoveries++;
+                }
+            }
+        }
+        while (recovered && fecCount != 0);
 
         return pkts;
     }
 
+    /**
+     * Checks which of the media packets protected by a specific fec packet
+     * are missing.
+     *
+     * @param desc the description of the fec packet.
+     * @return the sequence number of the missing media packet if exactly one
+     * is missing, {@link #NONE_MISSING} if none is missing, or
+     * {@link #MANY_MISSING} if more than one is missing or the missing packet
+     * is too old to be recovered.
+     */
+    private int findMissing(FecPacketDesc desc)
+    {
+        int missingSeq = NONE_MISSING;
+
+        for (int word = 0; word < 2; word++)
+        {
+            long bits = word == 0 ? desc.maskLo : desc.maskHi;
+
+            while (bits != 0)
+            {
+                int delta
+                    = (word << 6) + Long.numberOfTrailingZeros(bits);
+                int seq = (desc.baseSeq + delta) & 0xffff;
+
+                bits &= bits - 1;
+                if (getMedia(seq) == null)
+                {
+                    if (missingSeq != NONE_MISSING)
+                    {
+                        return MANY_MISSING;
+                    }
+                    missingSeq = seq;
+                }
+            }
+        }
+
+        // A packet which would not fit in the ring anymore may have been
+        // received and discarded already.
+        if (missingSeq != NONE_MISSING
+                && (highestMediaSeq == -1
+                    || RTPUtils.getSequenceNumberDelta(
+                            highestMediaSeq, missingSeq)
+                        >= mediaPackets.length))
+        {
+            return MANY_MISSING;
+        }
+
+        // The missing packet is to be recovered into its slot of the ring,
+        // which must not hold another one of the protected packets.
+        if (missingSeq != NONE_MISSING)
+        {
+            int heldSeq = mediaSeqs[missingSeq & (mediaPackets.length - 1)];
+
+            if (heldSeq != -1 && desc.protects(heldSeq))
+            {
+                return MANY_MISSING;
+            }
+        }
+
+        return missingSeq;
+    }
+
+    /**
+     * Recovers a media packet by XORing a fec packet with the other media
+     * packets that it protects. The recovered packet is saved into
+     * <tt>mediaPackets</tt> (so that it can be used to recover other packets)
+     * and a copy of it is returned.
+     *
+     * @param desc the description of the fec packet.
+     * @param missingSeq the sequence number of the media packet to recover.
+     * @return the recovered media packet, or <tt>null</tt> if the recovery
+     * failed.
+     */
+    private RawPacket recover(FecPacketDesc desc, int missingSeq)
+    {
+        int headerRecovery = desc.headerRecovery;
+        int lengthRecovery = desc.lengthRecovery;
+        int tsRecovery = desc.tsRecovery;
+
+        for (int word = 0; word < 2; word++)
+        {
+            long bits = word == 0 ? desc.maskLo : desc.maskHi;
+
+            while (bits != 0)
+            {
+                int delta
+                    = (word << 6) + Long.numberOfTrailingZeros(bits);
+                int seq = (desc.baseSeq + delta) & 0xffff;
+
+                bits &= bits - 1;
+                if (seq != missingSeq)
+                {
+                    RawPacket media = getMedia(seq);
+                    byte[] buf = media.getBuffer();
+                    int off = media.getOffset();
+
+                    headerRecovery ^= RTPUtils.readUint16AsInt(buf, off);
+                    lengthRecovery
+                        ^= media.getLength() - RawPacket.FIXED_HEADER_SIZE;
+                    tsRecovery ^= RTPUtils.readInt(buf, off + 4);
+                }
+            }
+        }
+        lengthRecovery &= 0xffff;
+
+        if (lengthRecovery > desc.protectionLength)
+        {
+            // The fec payload only covers part of the media packet, which
+            // isn't useful for us.
+            logger.warn("Recovered only a partial RTP packet. Discarding.");
+            return null;
+        }
+
+        int len = RawPacket.FIXED_HEADER_SIZE + lengthRecovery;
+        RawPacket recovered = getMediaSlot(missingSeq, len);
+        byte[] recoveredBuf = recovered.getBuffer();
+
+        System.arraycopy(
+            desc.buf, desc.payloadOffset,
+            recoveredBuf, RawPacket.FIXED_HEADER_SIZE,
+            lengthRecovery);
+        for (int word = 0; word < 2; word++)
+        {
+            long bits = word == 0 ? desc.maskLo : desc.maskHi;
+
+            while (bits != 0)
+            {
+                int delta
+                    = (word << 6) + Long.numberOfTrailingZeros(bits);
+                int seq = (desc.baseSeq + delta) & 0xffff;
+
+                bits &= bits - 1;
+                if (seq != missingSeq)
+                {
+                    RawPacket media = getMedia(seq);
+
+                    xor(
+                        media.getBuffer(),
+                        media.getOffset() + RawPacket.FIXED_HEADER_SIZE,
+                        recoveredBuf,
+                        RawPacket.FIXED_HEADER_SIZE,
+                        Math.min(
+                            media.getLength() - RawPacket.FIXED_HEADER_SIZE,
+                            lengthRecovery));
+                }
+            }
+        }
+
+        // Set the version to 2 and restore the P, X, CC, M and PT fields. The
+        // sequence number and the SSRC are not recoverable this way.
+        recoveredBuf[0] = (byte) (0x80 | ((headerRecovery >> 8) & 0x3f));
+        recoveredBuf[1] = (byte) headerRecovery;
+        RTPUtils.writeShort(recoveredBuf, 2, (short) missingSeq);
+        RTPUtils.writeInt(recoveredBuf, 4, tsRecovery);
+        RTPUtils.writeInt(recoveredBuf, 8, (int) desc.protectedSsrc);
+        recovered.setOffset(0);
+        recovered.setLength(len);
+        mediaSeqs[missingSeq & (mediaPackets.length - 1)] = missingSeq;
+
+        // The saved copy stays in the ring, the returned one is handed over
+        // to the rest of the chain.
+        return new RawPacket(Arrays.copyOf(recoveredBuf, len), 0, len);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -275,16 +615,124 @@ public void close()
     }
 
     /**
-     * Perform fec receive logic specific to the fec implementation
-     * @param pkts the input media packets
-     * @return a RawPacket[] containing the given media packets as well as any
-     * media packets that were recovered
+     * Parses a fec packet specific to the fec implementation.
+     * @param pkt the fec packet.
+     * @param desc the (cleared) description to fill in.
+     * @return <tt>true</tt> if <tt>pkt</tt> was parsed successfully and
+     * <tt>desc</tt> describes it, or <tt>false</tt> if <tt>pkt</tt> is to be
+     * ignored.
      */
-    protected abstract RawPacket[] doReverseTransform(RawPacket[] pkts);
+    protected abstract boolean parseFecPacket(
+            RawPacket pkt, FecPacketDesc desc);
 
     class Statistics {
         int numRxFecPackets;
         int numRecoveredPackets;
         int failedRecoveries;
     }
+
+    /**
+     * Describes a fec packet in a form that is independent of the fec scheme:
+     * the set of protected media packets and the location of the recovery
+     * fields.
+     */
+    static class FecPacketDesc
+    {
+        /**
+         * The fec packet, or <tt>null</tt> if the slot of the ring which
+         * holds this instance is empty.
+         */
+        RawPacket pkt;
+
+        /**
+         * The buffer of the fec packet.
+         */
+        byte[] buf;
+
+        /**
+         * The sequence number that the bits of the mask are relative to.
+         */
+        int baseSeq;
+
+        /**
+         * The bits of the mask for the deltas 0 to 63 from {@link #baseSeq},
+         * with delta 0 in the least significant bit.
+         */
+        long maskLo;
+
+        /**
+         * The bits of the mask for the deltas 64 to 127 from
+         * {@link #baseSeq}.
+         */
+        long maskHi;
+
+        /**
+         * The recovery of the first two bytes of the RTP header (P, X, CC, M
+         * and PT).
+         */
+        int headerRecovery;
+
+        /**
+         * The recovery of the length of the media packets, without the fixed
+         * RTP header.
+         */
+        int lengthRecovery;
+
+        /**
+         * The recovery of the RTP timestamp.
+         */
+        int tsRecovery;
+
+        /**
+         * The SSRC of the protected media packets.
+         */
+        long protectedSsrc;
+
+        /**
+         * The offset in {@link #buf} of the recovery of the part of the media
+         * packets which follows the fixed RTP header.
+         */
+        int payloadOffset;
+
+        /**
+         * The number of bytes at {@link #payloadOffset}.
+         */
+        int protectionLength;
+
+        /**
+         * Checks whether the fec packet protects the media packet with a
+         * specific RTP sequence number.
+         *
+         * @param seq the RTP sequence number.
+         * @return <tt>true</tt> if the fec packet protects <tt>seq</tt>.
+         */
+        boolean protects(int seq)
+        {
+            int delta = RTPUtils.getSequenceNumberDelta(seq, baseSeq);
+
+            if (delta < 0 || delta >= 128)
+            {
+                return false;
+            }
+            return
+                ((delta < 64 ? maskLo : maskHi) & (1L << (delta & 63))) != 0;
+        }
+
+        /**
+         * Clears the fields of this instance except {@link #pkt}.
+         */
+        void clear()
+        {
+            buf = null;
+            baseSeq = 0;
+            maskLo = 0;
+            maskHi = 0;
+            headerRecovery = 0;
+            lengthRecovery = 0;
+            tsRecovery = 0;
+            protectedSsrc = 0;
+            payloadOffset = 0;
+            protectionLength = 0;
+        }
+    }
 }
@@ -18,6 +18,7 @@
 import org.jitsi.impl.neomedia.rtp.*;
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
 import org.jitsi.utils.logging.*;
 
 import java.util.*;
@@ -76,6 +77,9 @@ public enum FecType {
      * An ulpfec packet will be generated for every <tt>fecRate</tt> media
      * packets.
      * If set to 0, no ulpfec packets will be generated.
+     *
+     * For flexfec this is the base rate, which is increased when the remote
+     * side reports loss.
      */
     private int fecRate = 0;
 
@@ -93,6 +97,19 @@ public enum FecType {
     private final Map<Long, FECSender> fecSenders
             = new HashMap<Long,FECSender>();
 
+    /**
+     * Maps an SSRC to a <tt>FlexFec03Sender</tt> to be used for packets with
+     * that SSRC.
+     */
+    private final Map<Long, FlexFec03Sender> flexFecSenders
+            = new HashMap<>();
+
+    /**
+     * Maps the SSRC of a media stream to the SSRC of the flexfec stream which
+     * protects it. Accessed with {@link #flexFecSenders} locked.
+     */
+    private final Map<Long, Long> flexFecSsrcs = new HashMap<>();
+
     private final MediaStream mediaStream;
 
     /**
@@ -185,7 +202,8 @@ else if (fecType == FecType.FLEXFEC_03)
      * {@inheritDoc}
      *
      * Adds ulpfec packets to the stream (one ulpfec packet after every
-     * <tt>fecRate</tt> media packets.
+     * <tt>fecRate</tt> media packets), or flexfec packets on the flexfec SSRC
+     * of the stream.
      */
     @Override
     public RawPacket[] transform(RawPacket[] pkts)
@@ -197,6 +215,9 @@ public RawPacket[] transform(RawPacket[] pkts)
         if (ssrc == null)
             return pkts;
 
+        if (fecType == FecType.FLEXFEC_03)
+            return transformFlexFec(ssrc, pkts);
+
         FECSender fpt;
         synchronized (fecSenders)
         {
@@ -211,6 +232,116 @@ public RawPacket[] transform(RawPacket[] pkts)
         return fpt.transform(pkts);
     }
 
+    /**
+     * Adds flexfec packets protecting the packets with a specific SSRC to
+     * <tt>pkts</tt> using the <tt>FlexFec03Sender</tt> for that SSRC. Nothing
+     * is added unless a flexfec SSRC has been set for <tt>ssrc</tt> or has
+     * been signaled for it (see {@link #findFlexFecSsrc(long)}).
+     *
+     * @param ssrc the SSRC of the packets in <tt>pkts</tt>.
+     * @param pkts the packets to transform.
+     * @return the transformed packets.
+     */
+    private RawPacket[] transformFlexFec(long ssrc, RawPacket[] pkts)
+    {
+        FlexFec03Sender sender;
+        synchronized (flexFecSenders)
+        {
+            sender = flexFecSenders.get(ssrc);
+            if (sender == null)
+            {
+                Long flexFecSsrc = flexFecSsrcs.get(ssrc);
+                if (flexFecSsrc == null)
+                {
+                    long signaledSsrc = findFlexFecSsrc(ssrc);
+                    if (signaledSsrc == -1)
+                    {
+                        return pkts;
+                    }
+                    flexFecSsrc = signaledSsrc;
+                    flexFecSsrcs.put(ssrc, flexFecSsrc);
+                }
+
+                sender
+                    = new FlexFec03Sender(
+                            ssrc, flexFecSsrc, fecRate, outgoingPT,
+                            mediaStream);
+                flexFecSenders.put(ssrc, sender);
+            }
+        }
+
+        return sender.transform(pkts);
+    }
+
+    /**
+     * Finds the SSRC of the flexfec packets which protect the media packets
+     * with a specific SSRC in the (FEC-FR) ssrc-group signaled for the stream
+     * which receives the media packets, i.e. the secondary SSRC of type
+     * {@link Constants#FLEXFEC_03} of their <tt>RTPEncodingDesc</tt>.
+     *
+     * @param ssrc the SSRC of the media packets.
+     * @return the SSRC of the flexfec packets which protect <tt>ssrc</tt>,
+     * or -1 if none has been signaled.
+     */
+    private long findFlexFecSsrc(long ssrc)
+    {
+        RTPTranslator rtpTranslator = mediaStream.getRTPTranslator();
+        if (rtpTranslator == null)
+        {
+            return -1;
+        }
+
+        StreamRTPManager receiveRTPManager
+            = rtpTranslator.findStreamRTPManagerByReceiveSSRC((int) ssrc);
+        MediaStream receiveStream
+            = receiveRTPManager == null
+                ? null : receiveRTPManager.getMediaStream();
+        MediaStreamTrackReceiver receiver
+            = receiveStream == null
+                ? null : receiveStream.getMediaStreamTrackReceiver();
+        if (receiver == null)
+        {
+            return -1;
+        }
+
+        RTPEncodingDesc encoding = receiver.findRTPEncodingDesc(ssrc);
+        return
+            encoding == null
+                ? -1 : encoding.getSecondarySsrc(Constants.FLEXFEC_03);
+    }
+
+    /**
+     * Sets the SSRC of the flexfec packets which protect the media packets
+     * with a specific SSRC. Flexfec packets are only generated for media
+     * SSRCs for which a flexfec SSRC has been set or signaled (and only if
+     * the fec type of this engine is {@link FecType#FLEXFEC_03}). An
+     * embedding application which signals the FEC-FR ssrc-group as a
+     * secondary SSRC of type {@link Constants#FLEXFEC_03} of the media
+     * encoding does not need to call this method; it overrides the signaled
+     * association otherwise.
+     *
+     * @param mediaSsrc the SSRC of the media packets.
+     * @param flexFecSsrc the SSRC of the flexfec packets, or -1 to stop
+     * generating flexfec packets for <tt>mediaSsrc</tt>.
+     */
+    public void setFlexFecSsrc(long mediaSsrc, long flexFecSsrc)
+    {
+        FlexFec03Sender sender;
+        synchronized (flexFecSenders)
+        {
+            if (flexFecSsrc == -1)
+                flexFecSsrcs.remove(mediaSsrc);
+            else
+                flexFecSsrcs.put(mediaSsrc, flexFecSsrc);
+            sender = flexFecSenders.remove(mediaSsrc);
+        }
+
+        if (sender != null)
+        {
+            sender.close();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -219,6 +350,7 @@ public void close()
     {
         Collection<AbstractFECReceiver> receivers;
         Collection<FECSender> senders;
+        Collection<FlexFec03Sender> flexFecSenders;
 
         synchronized (fecReceivers)
         {
@@ -230,6 +362,11 @@ public void close()
             senders = fecSenders.values();
             fecSenders.clear();
         }
+        synchronized (this.flexFecSenders)
+        {
+            flexFecSenders = new ArrayList<>(this.flexFecSenders.values());
+            this.flexFecSenders.clear();
+        }
 
         for (AbstractFECReceiver fecReceiver : receivers)
         {
@@ -239,6 +376,10 @@ public void close()
         {
             fecSender.close();
         }
+        for (FlexFec03Sender flexFecSender : flexFecSenders)
+        {
+            flexFecSender.close();
+        }
     }
 
     /**
@@ -290,6 +431,11 @@ public void setOutgoingPT(byte outgoingPT)
             for (FECSender f : fecSenders.values())
                 f.setUlpfecPT(outgoingPT);
         }
+        synchronized (flexFecSenders)
+        {
+            for (FlexFec03Sender f : flexFecSenders.values())
+                f.setPayloadType(outgoingPT);
+        }
         if (logger.isDebugEnabled())
             logger.debug("Setting payload type for outgoing ulpfec: "
                     + outgoingPT);
@@ -307,6 +453,11 @@ public void setFecRate(int fecRate)
             for (FECSender f : fecSenders.values())
                 f.setFecRate(fecRate);
         }
+        synchronized (flexFecSenders)
+        {
+            for (FlexFec03Sender f : flexFecSenders.values())
+                f.setFecRate(fecRate);
+        }
 
         this.fecRate = fecRate;
     }
@@ -0,0 +1,740 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import net.sf.fmj.media.rtp.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.util.*;
+import org.jitsi.utils.*;
+import org.jitsi.utils.logging.*;
+
+import java.util.*;
+
+/**
+ * A <tt>PacketTransformer</tt> which adds FlexFEC-03 packets protecting the
+ * media packets of a specific SSRC. The packets are sent on a separate SSRC
+ * (the FlexFEC SSRC) and the media packets are not modified.
+ *
+ * The media packets are protected in windows of {@link #windowSize}
+ * consecutive packets. At the start of each window, the number of FlexFEC
+ * packets for the window is chosen from the base rate and the loss rate
+ * reported in RTCP Receiver Reports, and each media packet of the window is
+ * XORed into the accumulators of the FlexFEC packets which protect it
+ * according to the {@link MaskType}. The masks are always written as flexible
+ * (F=0) masks, which is what {@link FlexFec03Receiver} and the browsers
+ * understand.
+ */
+class FlexFec03Sender
+    implements PacketTransformer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>FlexFec03Sender</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(FlexFec03Sender.class);
+
+    /**
+     * The ways in which the media packets of a window are assigned to the
+     * FlexFEC packets which protect them.
+     */
+    enum MaskType
+    {
+        /**
+         * Each FlexFEC packet protects a run of consecutive media packets
+         * (1-D non-interleaved, i.e. row, protection). Recovers isolated
+         * losses.
+         */
+        ROW,
+
+        /**
+         * Each FlexFEC packet protects every n-th media packet, where n is the
+         * number of FlexFEC packets of the window (1-D interleaved, i.e.
+         * column, protection). Recovers bursts of up to n losses.
+         */
+        COLUMN,
+
+        /**
+         * Each FlexFEC packet protects both a column and a row, so that each
+         * media packet is protected by up to two FlexFEC packets and some
+         * combinations of losses which neither a row nor a column mask can
+         * recover become recoverable.
+         */
+        FLEXIBLE
+    }
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the value of {@link #DEFAULT_WINDOW_SIZE}.
+     */
+    static final String WINDOW_SIZE_PNAME
+        = FlexFec03Sender.class.getName() + ".WINDOW_SIZE";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the value of {@link #DEFAULT_MASK_TYPE}.
+     */
+    static final String MASK_TYPE_PNAME
+        = FlexFec03Sender.class.getName() + ".MASK_TYPE";
+
+    /**
+     * The largest number of media packets that a window may contain: the
+     * largest delta from the base sequence number that a FlexFEC-03 mask can
+     * express is 108.
+     */
+    static final int MAX_WINDOW_SIZE = 109;
+
+    /**
+     * The default number of media packets of a window. Note that a receiver
+     * can only use a FlexFEC packet while it still keeps all the media
+     * packets it protects (see <tt>AbstractFECReceiver.MEDIA_BUF_SIZE</tt>).
+     */
+    private static final int DEFAULT_WINDOW_SIZE;
+
+    /**
+     * The default <tt>MaskType</tt>.
+     */
+    private static final MaskType DEFAULT_MASK_TYPE;
+
+    /**
+     * The factor by which the reported loss rate is multiplied in order to
+     * obtain the ratio of FlexFEC packets to media packets.
+     */
+    private static final double LOSS_PROTECTION_FACTOR = 2d;
+
+    /**
+     * The highest ratio of FlexFEC packets to media packets.
+     */
+    private static final double MAX_PROTECTION_RATIO = 0.5d;
+
+    /**
+     * The length of the fixed RTP header.
+     */
+    private static final int RTP_HDR_LEN = RawPacket.FIXED_HEADER_SIZE;
+
+    /**
+     * The length of the FlexFEC-03 header without the mask (with a single
+     * SSRC).
+     */
+    private static final int FLEXFEC_HDR_LEN_WITHOUT_MASK = 18;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int windowSize = 10;
+        MaskType maskType = MaskType.COLUMN;
+
+        if (cfg != null)
+        {
+            windowSize = cfg.getInt(WINDOW_SIZE_PNAME, windowSize);
+
+            String s = cfg.getString(MASK_TYPE_PNAME);
+
+            if (s != null)
+            {
+                try
+                {
+                    maskType = MaskType.valueOf(s);
+                }
+                catch (IllegalArgumentException iae)
+                {
+                    logger.warn("Invalid value for " + MASK_TYPE_PNAME + ": "
+                        + s);
+                }
+            }
+        }
+        DEFAULT_WINDOW_SIZE
+            = Math.max(1, Math.min(windowSize, MAX_WINDOW_SIZE));
+        DEFAULT_MASK_TYPE = maskType;
+    }
+
+    /**
+     * The SSRC of the media packets which this instance protects.
+     */
+    private final long mediaSsrc;
+
+    /**
+     * The SSRC of the FlexFEC packets.
+     */
+    private final long fecSsrc;
+
+    /**
+     * The <tt>MediaStream</tt> from whose statistics the loss rate is read,
+     * or <tt>null</tt>.
+     */
+    private final MediaStream mediaStream;
+
+    /**
+     * The FlexFEC payload type.
+     */
+    private byte payloadType;
+
+    /**
+     * One FlexFEC packet will be generated for every <tt>fecRate</tt> media
+     * packets regardless of the loss. If set to 0, no FlexFEC packets will be
+     * generated at all.
+     */
+    private int fecRate;
+
+    /**
+     * The number of media packets of a window.
+     */
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * The way in which the media packets of a window are assigned to the
+     * FlexFEC packets.
+     */
+    private MaskType maskType = DEFAULT_MASK_TYPE;
+
+    /**
+     * The accumulators of the FlexFEC packets of the current window. Reused
+     * across windows.
+     */
+    private final Accumulator[] accumulators = new Accumulator[MAX_WINDOW_SIZE];
+
+    /**
+     * The number of FlexFEC packets of the current window.
+     */
+    private int fecCount;
+
+    /**
+     * The number of media packets added to the current window or 0 if there
+     * is no current window.
+     */
+    private int mediaCount;
+
+    /**
+     * The sequence number of the first media packet of the current window.
+     */
+    private int baseSeq;
+
+    /**
+     * The number of media packets in a row (for {@link MaskType#ROW} and
+     * {@link MaskType#FLEXIBLE}) in the current window.
+     */
+    private int rowLength;
+
+    /**
+     * The sequence number of the next FlexFEC packet.
+     */
+    private int fecSeq = new Random().nextInt(0x10000);
+
+    /**
+     * The number of FlexFEC packets added.
+     */
+    private int nbFec = 0;
+
+    /**
+     * Initializes a new <tt>FlexFec03Sender</tt> instance.
+     *
+     * @param mediaSsrc the SSRC of the media packets to protect.
+     * @param fecSsrc the SSRC of the FlexFEC packets.
+     * @param fecRate the base rate at which to add FlexFEC packets.
+     * @param payloadType the payload type of the FlexFEC packets.
+     * @param mediaStream the <tt>MediaStream</tt> from whose statistics the
+     * loss rate is to be read, or <tt>null</tt>.
+     */
+    FlexFec03Sender(
+            long mediaSsrc,
+            long fecSsrc,
+            int fecRate,
+            byte payloadType,
+            MediaStream mediaStream)
+    {
+        this.mediaSsrc = mediaSsrc;
+        this.fecSsrc = fecSsrc;
+        this.fecRate = fecRate;
+        this.payloadType = payloadType;
+        this.mediaStream = mediaStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RawPacket[] reverseTransform(RawPacket[] pkts)
+    {
+        return pkts;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Adds the media packets in <tt>pkts</tt> to the current window and, when
+     * the window is complete, adds its FlexFEC packets to <tt>pkts</tt>.
+     */
+    @Override
+    public synchronized RawPacket[] transform(RawPacket[] pkts)
+    {
+        if (fecRate == 0 || pkts == null)
+            return pkts;
+
+        for (int i = 0, length = pkts.length; i < length; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt != null
+                    && pkt.getVersion() == RTPHeader.VERSION
+                    && pkt.getSSRCAsLong() == mediaSsrc)
+            {
+                pkts = add(pkt, pkts);
+            }
+        }
+        return pkts;
+    }
+
+    /**
+     * Adds a media packet to the current window, starting a new window if
+     * necessary.
+     *
+     * @param pkt the media packet to add.
+     * @param pkts the array to which the FlexFEC packets of a complete window
+     * are to be added.
+     * @return <tt>pkts</tt> or a new array which contains the elements of
+     * <tt>pkts</tt> and the FlexFEC packets of a complete window.
+     */
+    private RawPacket[] add(RawPacket pkt, RawPacket[] pkts)
+    {
+        int seq = pkt.getSequenceNumber();
+
+        if (mediaCount != 0)
+        {
+            int delta = RTPUtils.getSequenceNumberDelta(seq, baseSeq);
+
+            // The packet cannot be described relative to the base of the
+            // current window (e.g. the sequence numbers jumped), so finish
+            // the window early.
+            if (delta < mediaCount || delta >= windowSize)
+                pkts = finishWindow(pkts);
+        }
+        if (mediaCount == 0)
+        {
+            if (!startWindow(seq))
+                return pkts;
+        }
+
+        int index = RTPUtils.getSequenceNumberDelta(seq, baseSeq);
+        int column = index % fecCount;
+        int row = Math.min(index / rowLength, fecCount - 1);
+
+        switch (maskType)
+        {
+        case ROW:
+            accumulators[row].add(pkt, index);
+            break;
+        case COLUMN:
+            accumulators[column].add(pkt, index);
+            break;
+        case FLEXIBLE:
+            accumulators[column].add(pkt, index);
+            if (row != column)
+                accumulators[row].add(pkt, index);
+            break;
+        }
+
+        mediaCount = index + 1;
+        if (mediaCount >= windowSize)
+            pkts = finishWindow(pkts);
+
+        return pkts;
+    }
+
+    /**
+     * Starts a new window.
+     *
+     * @param seq the sequence number of the first media packet of the window.
+     * @return <tt>true</tt> if the window is to be protected, or
+     * <tt>false</tt> if no FlexFEC packets are to be generated for it.
+     */
+    private boolean startWindow(int seq)
+    {
+        fecCount = getFecCount();
+        if (fecCount == 0)
+            return false;
+
+        baseSeq = seq;
+        rowLength = (windowSize + fecCount - 1) / fecCount;
+        for (int i = 0; i < fecCount; i++)
+        {
+            if (accumulators[i] == null)
+                accumulators[i] = new Accumulator();
+            accumulators[i].reset();
+        }
+        return true;
+    }
+
+    /**
+     * Finishes the current window and adds its FlexFEC packets to a specific
+     * array.
+     *
+     * @param pkts the array to add the FlexFEC packets to.
+     * @return <tt>pkts</tt> or a new array which contains the elements of
+     * <tt>pkts</tt> and the FlexFEC packets.
+     */
+    private RawPacket[] finishWindow(RawPacket[] pkts)
+    {
+        for (int i = 0; i < fecCount; i++)
+        {
+            Accumulator accumulator = accumulators[i];
+
+            if (accumulator.count == 0)
+                continue;
+
+            RawPacket fecPacket = accumulator.toPacket();
+
+            pkts = ArrayUtils.add(pkts, RawPacket.class, fecPacket);
+            nbFec++;
+        }
+        mediaCount = 0;
+        fecCount = 0;
+        return pkts;
+    }
+
+    /**
+     * Determines the number of FlexFEC packets of a new window from the base
+     * rate and the loss rate reported in RTCP Receiver Reports.
+     *
+     * @return the number of FlexFEC packets of a new window.
+     */
+    private int getFecCount()
+    {
+        double ratio = 1d / fecRate;
+        double lossRate = getLossRate();
+
+        if (lossRate > 0)
+            ratio = Math.max(ratio, lossRate * LOSS_PROTECTION_FACTOR);
+        ratio = Math.min(ratio, MAX_PROTECTION_RATIO);
+
+        return
+            Math.max(
+                    1,
+                    Math.min(
+                            windowSize,
+                            (int) Math.ceil(windowSize * ratio)));
+    }
+
+    /**
+     * Gets the loss rate of the media packets reported by the remote peer.
+     *
+     * @return the loss rate of the media packets reported by the remote peer,
+     * or 0 if it is not known.
+     */
+    private double getLossRate()
+    {
+        if (mediaStream == null)
+            return 0;
+
+        MediaStreamStats2 stats = mediaStream.getMediaStreamStats();
+
+        if (stats == null)
+            return 0;
+
+        SendTrackStats sendStats = stats.getSendStats(mediaSsrc);
+
+        return sendStats == null ? 0 : sendStats.getLossRate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        if (logger.isInfoEnabled())
+        {
+            logger.info(
+                    "Closing FlexFec03Sender for ssrc=" + mediaSsrc
+                        + ". Added " + nbFec + " flexfec packets.");
+        }
+    }
+
+    /**
+     * Sets the FlexFEC payload type.
+     *
+     * @param payloadType the payload type.
+     */
+    synchronized void setPayloadType(byte payloadType)
+    {
+        this.payloadType = payloadType;
+    }
+
+    /**
+     * Sets the base rate at which FlexFEC packets are generated. Finishes the
+     * current window without protecting it.
+     *
+     * @param fecRate the rate to set.
+     */
+    synchronized void setFecRate(int fecRate)
+    {
+        if (this.fecRate != fecRate)
+        {
+            this.fecRate = fecRate;
+            mediaCount = 0;
+            fecCount = 0;
+        }
+    }
+
+    /**
+     * Sets the number of media packets of a window. Finishes the current
+     * window without protecting it.
+     *
+     * @param windowSize the number of media packets of a window, in
+     * [1, {@link #MAX_WINDOW_SIZE}].
+     */
+    synchronized void setWindowSize(int windowSize)
+    {
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("windowSize=" + windowSize);
+
+        this.windowSize = windowSize;
+        mediaCount = 0;
+        fecCount = 0;
+    }
+
+    /**
+     * Sets the way in which the media packets of a window are assigned to the
+     * FlexFEC packets. Finishes the current window without protecting it.
+     *
+     * @param maskType the <tt>MaskType</tt> to set.
+     */
+    synchronized void setMaskType(MaskType maskType)
+    {
+        if (maskType == null)
+            throw new NullPointerException("maskType");
+
+        this.maskType = maskType;
+        mediaCount = 0;
+        fecCount = 0;
+    }
+
+    /**
+     * Accumulates the XOR of the media packets protected by a single FlexFEC
+     * packet. The buffer is reused for all the FlexFEC packets which the
+     * instance produces.
+     */
+    private class Accumulator
+    {
+        /**
+         * The XOR of the first two bytes (V, P, X, CC, M and PT) of the RTP
+         * headers of the media packets.
+         */
+        private int header;
+
+        /**
+         * The XOR of the lengths (without the fixed RTP header) of the media
+         * packets.
+         */
+        private int lengthRecovery;
+
+        /**
+         * The XOR of the RTP timestamps of the media packets.
+         */
+        private int tsRecovery;
+
+        /**
+         * The XOR of the media packets after their fixed RTP header.
+         */
+        private byte[] payload
+            = new byte[FECTransformEngine.INITIAL_BUFFER_SIZE];
+
+        /**
+         * The length of the longest media packet (without the fixed RTP
+         * header), i.e. the length of the valid part of {@link #payload}.
+         */
+        private int protectionLength;
+
+        /**
+         * The bits of the mask for the deltas 0 to 63 from the base sequence
+         * number.
+         */
+        private long maskLo;
+
+        /**
+         * The bits of the mask for the deltas 64 to 108 from the base sequence
+         * number.
+         */
+        private long maskHi;
+
+        /**
+         * The largest delta from the base sequence number of a media packet.
+         */
+        private int maxDelta;
+
+        /**
+         * The number of media packets.
+         */
+        private int count;
+
+        /**
+         * The RTP timestamp of the last media packet.
+         */
+        private long timestamp;
+
+        /**
+         * Prepares this instance for a new FlexFEC packet.
+         */
+        void reset()
+        {
+            header = 0;
+            lengthRecovery = 0;
+            tsRecovery = 0;
+            protectionLength = 0;
+            maskLo = 0;
+            maskHi = 0;
+            maxDelta = 0;
+            count = 0;
+        }
+
+        /**
+         * XORs a media packet into this instance.
+         *
+         * @param pkt the media packet.
+         * @param delta the delta of the sequence number of <tt>pkt</tt> from
+         * the base sequence number.
+         */
+        void add(RawPacket pkt, int delta)
+        {
+            byte[] buf = pkt.getBuffer();
+            int off = pkt.getOffset();
+            int payloadLength = pkt.getLength() - RTP_HDR_LEN;
+
+            if (payloadLength > payload.length)
+                payload = Arrays.copyOf(payload, payloadLength);
+
+            // The buffer is reused, so the part beyond the current protection
+            // length has to be cleared before it is XORed into.
+            if (payloadLength > protectionLength)
+            {
+                Arrays.fill(payload, protectionLength, payloadLength, (byte) 0);
+                protectionLength = payloadLength;
+            }
+
+            header ^= RTPUtils.readUint16AsInt(buf, off);
+            lengthRecovery ^= payloadLength;
+            tsRecovery ^= RTPUtils.readInt(buf, off + 4);
+
+            for (int i = 0, j = off + RTP_HDR_LEN; i < payloadLength; i++, j++)
+                payload[i] ^= buf[j];
+
+            if (delta < 64)
+                maskLo |= 1L << delta;
+            else
+                maskHi |= 1L << (delta - 64);
+            if (delta > maxDelta)
+                maxDelta = delta;
+            timestamp = pkt.getTimestamp();
+            count++;
+        }
+
+        /**
+         * Creates the FlexFEC packet of the media packets XORed into this
+         * instance.
+         *
+         * @return the FlexFEC packet.
+         */
+        RawPacket toPacket()
+        {
+            int maskLength = maxDelta <= 14 ? 2 : maxDelta <= 45 ? 6 : 14;
+            int fecHdrLen = FLEXFEC_HDR_LEN_WITHOUT_MASK + maskLength;
+            int length = RTP_HDR_LEN + fecHdrLen + protectionLength;
+            byte[] buf = new byte[length];
+            RawPacket fecPacket = new RawPacket(buf, 0, length);
+
+            // RTP header: no padding, no extension, no CSRCs.
+            buf[0] = (byte) 0x80;
+            buf[1] = (byte) (payloadType & 0x7f);
+            RTPUtils.writeShort(buf, 2, (short) fecSeq);
+            RTPUtils.writeInt(buf, 4, (int) timestamp);
+            RTPUtils.writeInt(buf, 8, (int) fecSsrc);
+            fecSeq = (fecSeq + 1) & 0xffff;
+
+            // FlexFEC header: R = 0 (not a retransmission) and F = 0
+            // (flexible mask).
+            int off = RTP_HDR_LEN;
+
+            RTPUtils.writeShort(buf, off, (short) (header & 0x3fff));
+            RTPUtils.writeShort(buf, off + 2, (short) lengthRecovery);
+            RTPUtils.writeInt(buf, off + 4, tsRecovery);
+            buf[off + 8] = 1; // SSRCCount
+            RTPUtils.writeInt(buf, off + 12, (int) mediaSsrc);
+            RTPUtils.writeShort(buf, off + 16, (short) baseSeq);
+            writeMask(buf, off + FLEXFEC_HDR_LEN_WITHOUT_MASK, maskLength);
+
+            System.arraycopy(
+                    payload, 0,
+                    buf, off + fecHdrLen,
+                    protectionLength);
+
+            return fecPacket;
+        }
+
+        /**
+         * Writes the mask of this instance (including the k bits) to a
+         * specific buffer which is zeroed.
+         *
+         * @param buf the buffer.
+         * @param off the offset in <tt>buf</tt> at which to write the mask.
+         * @param maskLength the length of the mask in bytes (2, 6 or 14).
+         */
+        private void writeMask(byte[] buf, int off, int maskLength)
+        {
+            // The k bits precede the deltas 0-14, 15-45 and 46-108 and are set
+            // on the last part of the mask.
+            if (maskLength == 2)
+                setBit(buf, off, 0);
+            else if (maskLength == 6)
+                setBit(buf, off, 16);
+            else
+                setBit(buf, off, 48);
+
+            for (int delta = 0; delta <= maxDelta; delta++)
+            {
+                boolean set
+                    = delta < 64
+                        ? (maskLo & (1L << delta)) != 0
+                        : (maskHi & (1L << (delta - 64))) != 0;
+
+                if (set)
+                {
+                    int bit
+                        = delta <= 14
+                            ? delta + 1
+                            : delta <= 45 ? delta + 2 : delta + 3;
+
+                    setBit(buf, off, bit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a bit (counting from the most significant bit of the first byte)
+     * in a specific buffer.
+     *
+     * @param buf the buffer.
+     * @param off the offset in <tt>buf</tt> of the first byte.
+     * @param bit the index of the bit to set.
+     */
+    private static void setBit(byte[] buf, int off, int bit)
+    {
+        buf[off + (bit >> 3)] |= 0x80 >> (bit & 7);
+    }
+}
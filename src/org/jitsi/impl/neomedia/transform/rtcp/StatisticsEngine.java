@@ -17,6 +17,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.media.control.*;
 import javax.media.rtp.*;
@@ -35,6 +36,7 @@
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.service.neomedia.rtp.*;
 import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
 import org.jitsi.utils.*;
 import org.jitsi.utils.logging.*;
 
@@ -117,15 +119,22 @@ private static int getLengthIfRTCP(byte[] buf, int off, int len)
 
     /**
      * The number of RTCP sender reports (SR) and/or receiver reports (RR) sent.
-     * Mapped per ssrc.
      */
-    private final Map<Long,Long> numberOfRTCPReportsMap = new HashMap<>();
+    private final LongAdder numberOfRTCPReports = new LongAdder();
+
+    /**
+     * The number of RTCP sender reports (SR) and/or receiver reports (RR) sent
+     * by SSRC (of the first report block). Used to print the reports of each
+     * SSRC at regular intervals.
+     */
+    private final CopyOnWriteIntMap<AtomicLong> numberOfRTCPReportsBySSRC
+        = new CopyOnWriteIntMap<>();
 
     /**
      * The sum of the jitter values we have reported in RTCP reports, in RTP
      * timestamp units.
      */
-    private final Map<Long,Long> jitterSumMap = new HashMap<>();
+    private final LongAdder jitterSum = new LongAdder();
 
     /**
      * The {@link RTCPPacketParserEx} which this instance will use to parse
@@ -168,7 +177,7 @@ public StatisticsEngine(MediaStreamImpl stream)
      * @return <tt>true</tt> if <tt>extendedReport</tt> was added into
      * <tt>pkt</tt>; otherwise, <tt>false</tt>
      */
-    private boolean addRTCPExtendedReport(
+    private static boolean addRTCPExtendedReport(
             RawPacket pkt,
             RTCPExtendedReport extendedReport)
     {
@@ -355,7 +364,7 @@ private List<RTCPExtendedReport> addRTCPExtendedReports(
                     if (rtcpXR != null)
                     {
                         if (rtcpXRs == null)
-                            rtcpXRs = new LinkedList<>();
+                            rtcpXRs = new ArrayList<>(1);
                         rtcpXRs.add(rtcpXR);
                     }
                 }
@@ -371,14 +380,34 @@ private List<RTCPExtendedReport> addRTCPExtendedReports(
 
         // Add the newly created RTCP XR packets into pkt.
         if ((rtcpXRs != null) && !rtcpXRs.isEmpty())
-        {
-            for (RTCPExtendedReport rtcpXR : rtcpXRs)
-                addRTCPExtendedReport(pkt, rtcpXR);
-        }
+            addRTCPExtendedReports(pkt, rtcpXRs);
 
         return rtcpXRs;
     }
 
+    /**
+     * Adds specific RTCP XR packets into <tt>pkt</tt>. Makes room within
+     * <tt>pkt</tt> for all of them at once so that its buffer is reallocated
+     * at most once.
+     *
+     * @param pkt the <tt>RawPacket</tt> into which <tt>rtcpXRs</tt> are to be
+     * added
+     * @param rtcpXRs the RTCP XR packets to add into <tt>pkt</tt>
+     */
+    static void addRTCPExtendedReports(
+            RawPacket pkt,
+            List<RTCPExtendedReport> rtcpXRs)
+    {
+        int rtcpXRsLen = 0;
+
+        for (RTCPExtendedReport rtcpXR : rtcpXRs)
+            rtcpXRsLen += rtcpXR.calcLength();
+        pkt.grow(rtcpXRsLen);
+
+        for (RTCPExtendedReport rtcpXR : rtcpXRs)
+            addRTCPExtendedReport(pkt, rtcpXR);
+    }
+
     /**
      * Initializes a new RTP Control Protocol Extended Report (RTCP XR) packet.
      *
@@ -754,8 +783,8 @@ public long getMaxInterArrivalJitter()
      */
     public double getAvgInterArrivalJitter()
     {
-        long numberOfRTCPReports = getCumulativeValue(numberOfRTCPReportsMap);
-        long jitterSum = getCumulativeValue(jitterSumMap);
+        long numberOfRTCPReports = this.numberOfRTCPReports.sum();
+        long jitterSum = this.jitterSum.sum();
 
         return
             numberOfRTCPReports == 0
@@ -826,6 +855,34 @@ private RTCPReport parseRTCPReport(int type, byte[] buf, int off, int len)
         }
     }
 
+    /**
+     * Finds the next RTCP SR or RR packet in a specific (compound) RTCP packet.
+     *
+     * @param buf the buffer of the compound RTCP packet.
+     * @param off the offset in <tt>buf</tt> at which to start looking.
+     * @param end the offset in <tt>buf</tt> at which the compound RTCP packet
+     * ends.
+     * @return the offset in <tt>buf</tt> of the first RTCP SR or RR packet at
+     * or after <tt>off</tt> or <tt>-1</tt> if there is none.
+     */
+    static int findRTCPReport(byte[] buf, int off, int end)
+    {
+        while (off < end)
+        {
+            int rtcpPktLen = getLengthIfRTCP(buf, off, end - off);
+
+            if (rtcpPktLen <= 0) // Not an RTCP packet.
+                break;
+
+            int pt = 0xff & buf[off + 1]; // payload type (PT)
+
+            if (pt == RTCPPacket.SR || pt == RTCPPacket.RR)
+                return off;
+            off += rtcpPktLen;
+        }
+        return -1;
+    }
+
     /**
      * Initializes a new SR or RR <tt>RTCPReport</tt> instance from a specific
      * <tt>RawPacket</tt>.
@@ -902,7 +959,7 @@ public RawPacket reverseTransform(RawPacket pkt)
 
             try
             {
-                updateReceivedMediaStreamStats(compound.packets);
+                updateReceivedMediaStreamStats(pkt, compound.packets);
             }
             catch (Throwable t)
             {
@@ -929,14 +986,23 @@ else if (t instanceof ThreadDeath)
 
     /**
      * Processes the {@link RTCPPacket}s from {@code in} as received RTCP
-     * packets and updates the {@link MediaStreamStats}. Adds to {@code out} the
-     * ones which were not consumed and should be output from this instance.
-     * @param in the array of received RTCP packets
+     * packets and updates the {@link MediaStreamStats}. The SR and RR
+     * <tt>RTCPReport</tt>s are read directly from the buffer of {@code pkt}
+     * rather than from re-assembled copies of {@code in}.
+     *
+     * @param pkt the received (compound) RTCP packet
+     * @param in the array of received RTCP packets parsed from {@code pkt}
      */
     private void updateReceivedMediaStreamStats(
+            RawPacket pkt,
             RTCPPacket[] in)
     {
         MediaStreamStatsImpl streamStats = mediaStream.getMediaStreamStats();
+        byte[] buf = pkt.getBuffer();
+        int end = pkt.getOffset() + pkt.getLength();
+        // The offset in buf of the next SR or RR packet. The packets in in are
+        // in the order in which they appear in buf.
+        int reportOff = pkt.getOffset();
 
         for (RTCPPacket rtcp : in)
         {
@@ -965,22 +1031,30 @@ private void updateReceivedMediaStreamStats(
                 }
             case RTCPPacket.RR:
                 {
-                RTCPReport report;
+                RTCPReport report = null;
 
-                try
+                reportOff = findRTCPReport(buf, reportOff, end);
+                if (reportOff >= 0)
                 {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    int len
+                        = RTCPUtils.getLength(buf, reportOff, end - reportOff);
 
-                    rtcp.assemble(new DataOutputStream(baos));
-
-                    byte[] buf = baos.toByteArray();
-
-                    report = parseRTCPReport(rtcp.type, buf, 0, buf.length);
+                    try
+                    {
+                        report
+                            = parseRTCPReport(rtcp.type, buf, reportOff, len);
+                    }
+                    catch (IOException ioe)
+                    {
+                        logger.error("Failed to parse an RTCP report: " + ioe);
+                    }
+                    reportOff += len;
                 }
-                catch (IOException ioe)
+                else
                 {
-                    logger.error("Failed to assemble an RTCP report: " + ioe);
-                    report = null;
+                    // There is no SR or RR left in buf, which should not
+                    // happen as the packets were parsed from it.
+                    reportOff = end;
                 }
                 if (report != null)
                 {
@@ -1123,7 +1197,12 @@ private void updateSentMediaStreamStats(RawPacket pkt)
                 long ssrc = feedback.getSSRC();
                 long jitter = feedback.getJitter();
 
-                incrementSSRCCounter(numberOfRTCPReportsMap, ssrc, 1);
+                long numberOfRTCPReports
+                    = numberOfRTCPReportsBySSRC
+                        .computeIfAbsent((int) ssrc, k -> new AtomicLong())
+                            .incrementAndGet();
+
+                this.numberOfRTCPReports.increment();
 
                 if (jitter < getMinInterArrivalJitter()
                         || getMinInterArrivalJitter() == -1)
@@ -1133,12 +1212,10 @@ private void updateSentMediaStreamStats(RawPacket pkt)
                 if (getMaxInterArrivalJitter() < jitter)
                     maxInterArrivalJitter = jitter;
 
-                incrementSSRCCounter(jitterSumMap, ssrc, jitter);
+                jitterSum.add(jitter);
 
                 if(logger.isTraceEnabled())
                 {
-                    long numberOfRTCPReports
-                        = getMapValue(numberOfRTCPReportsMap, ssrc);
                     // As sender reports are sent on every 5 seconds, print
                     // every 4th packet, on every 20 seconds.
                     if(numberOfRTCPReports % 4 == 1)
@@ -1173,71 +1250,6 @@ private void updateSentMediaStreamStats(RawPacket pkt)
         }
     }
 
-    /**
-     * Computes the sum of the values of a specific {@code Map} with
-     * {@code Long} values.
-     *
-     * @param map the {@code Map} with {@code Long} values to sum up. Note that
-     * we synchronize on this object!
-     * @return the sum of the values of the specified {@code map}
-     */
-    private static long getCumulativeValue(Map<?,Long> map)
-    {
-        long cumulativeValue = 0;
-
-        synchronized (map)
-        {
-            for (Long value : map.values())
-            {
-                if (value == null)
-                    continue;
-
-                cumulativeValue += value;
-            }
-        }
-        return cumulativeValue;
-    }
-
-    /**
-     * Utility method to return a value from a map and perform unboxing only if
-     * the result value is not null.
-     * @param map the map to get the value. Note that we synchronize on that
-     * object!
-     * @param ssrc the key
-     * @return the result value or 0 if nothing is found.
-     */
-    private static long getMapValue(Map<?,Long> map, long ssrc)
-    {
-        synchronized (map)
-        {
-            // there can be no entry, or the value can be null
-            Long res = map.get(ssrc);
-            return res == null ? 0 : res;
-        }
-    }
-
-    /**
-     * Utility method to increment map value with specified step. If entry is
-     * missing add it.
-     *
-     * @param map the map holding the values. Note that we synchronize on that
-     * object!
-     * @param ssrc the key of the value to increment
-     * @param step increment step value
-     */
-    private static void incrementSSRCCounter(
-            Map<Long,Long> map,
-            long ssrc,
-            long step)
-    {
-        synchronized(map)
-        {
-            Long count = map.get(ssrc);
-
-            map.put(ssrc, (count == null) ? step : (count + step));
-        }
-    }
-
     private class RTPPacketTransformer
         extends SinglePacketTransformerAdapter
     {
@@ -0,0 +1,139 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.util.*;
+import java.util.function.*;
+
+import org.jitsi.util.concurrent.*;
+
+/**
+ * The crypto contexts of an {@link SRTPTransformer} or an
+ * {@link SRTCPTransformer} by SSRC. Looking a context up takes no lock: the
+ * contexts are kept in a {@link CopyOnWriteIntMap} and each thread remembers
+ * the last context that it looked up, which is what the next packet (of the
+ * same stream) usually needs. Deriving a new context and closing the
+ * registry synchronize on the instance.
+ *
+ * @param <C> the type of the crypto contexts.
+ */
+class CryptoContextRegistry<C>
+{
+    /**
+     * The last context looked up by the current thread (in any registry).
+     */
+    private static final ThreadLocal<LastContext> lastContext
+        = ThreadLocal.withInitial(LastContext::new);
+
+    /**
+     * The contexts by SSRC.
+     */
+    private final CopyOnWriteIntMap<C> contexts = new CopyOnWriteIntMap<>();
+
+    /**
+     * Incremented whenever contexts are removed, so that the contexts
+     * remembered by threads before the removal are not used anymore.
+     */
+    private volatile int generation = 0;
+
+    /**
+     * Gets the context for a specific SSRC.
+     *
+     * @param ssrc the SSRC.
+     * @return the context for <tt>ssrc</tt> or <tt>null</tt> if there is
+     * none.
+     */
+    @SuppressWarnings("unchecked")
+    C get(int ssrc)
+    {
+        LastContext last = lastContext.get();
+        int generation = this.generation;
+
+        if (last.registry == this
+                && last.ssrc == ssrc
+                && last.generation == generation)
+        {
+            return (C) last.context;
+        }
+
+        C context = contexts.get(ssrc);
+
+        if (context != null)
+        {
+            last.registry = this;
+            last.ssrc = ssrc;
+            last.generation = generation;
+            last.context = context;
+        }
+        return context;
+    }
+
+    /**
+     * Gets the context for a specific SSRC and, if there is none, derives one
+     * with a specific function.
+     *
+     * @param ssrc the SSRC.
+     * @param deriveContext the function which derives the context for
+     * <tt>ssrc</tt>. If it returns <tt>null</tt>, no context is added.
+     * @return the (possibly new) context for <tt>ssrc</tt> or <tt>null</tt>.
+     */
+    synchronized C computeIfAbsent(int ssrc, IntFunction<C> deriveContext)
+    {
+        return contexts.computeIfAbsent(ssrc, deriveContext);
+    }
+
+    /**
+     * Removes all contexts.
+     *
+     * @return the removed contexts, which the caller is to close.
+     */
+    synchronized List<C> clear()
+    {
+        List<C> values = contexts.values();
+
+        contexts.clear();
+        generation++;
+        return values;
+    }
+
+    /**
+     * The last context looked up by a thread. Mutable so that a thread which
+     * alternates between streams does not allocate.
+     */
+    private static class LastContext
+    {
+        /**
+         * The registry in which {@link #context} was looked up.
+         */
+        Object registry;
+
+        /**
+         * The SSRC of {@link #context}.
+         */
+        int ssrc;
+
+        /**
+         * The generation of {@link #registry} when {@link #context} was
+         * looked up.
+         */
+        int generation;
+
+        /**
+         * The context.
+         */
+        Object context;
+    }
+}
@@ -15,8 +15,6 @@
  */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.srtp.*;
@@ -37,7 +35,8 @@
     /**
      * All the known SSRC's corresponding SrtcpCryptoContexts
      */
-    private final Map<Integer,SrtcpCryptoContext> contexts;
+    private final CryptoContextRegistry<SrtcpCryptoContext> contexts
+        = new CryptoContextRegistry<>();
 
     /**
      * Constructs an <tt>SRTCPTransformer</tt>, sharing its
@@ -79,7 +78,6 @@ public SRTCPTransformer(
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new HashMap<Integer,SrtcpCryptoContext>();
     }
 
     /**
@@ -130,14 +128,9 @@ public void close()
             if (reverseFactory != forwardFactory)
                 reverseFactory.close();
 
-            for (Iterator<SrtcpCryptoContext> i = contexts.values().iterator();
-                    i.hasNext();)
+            for (SrtcpCryptoContext context : contexts.clear())
             {
-                SrtcpCryptoContext context = i.next();
-
-                i.remove();
-                if (context != null)
-                    context.close();
+                context.close();
             }
         }
     }
@@ -147,16 +140,14 @@ private SrtcpCryptoContext getContext(
             SrtpContextFactory engine)
     {
         int ssrc = (int) pkt.getRTCPSSRC();
-        SrtcpCryptoContext context = null;
+        SrtcpCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        if (context == null && engine != null)
         {
-            context = contexts.get(ssrc);
-            if (context == null && engine != null)
-            {
-                context = engine.deriveControlContext(ssrc);
-                contexts.put(ssrc, context);
-            }
+            context
+                = contexts.computeIfAbsent(
+                        ssrc,
+                        engine::deriveControlContext);
         }
 
         return context;
@@ -34,8 +34,8 @@
 */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
 import javax.media.*;
+
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.srtp.*;
@@ -49,6 +49,12 @@
  * on their SSRC and then invoke the context object to perform the
  * transformation and reverse transformation operation.
  *
+ * An array of packets is transformed in groups of packets with the same SSRC,
+ * so that the context of a group is looked up and locked once. The packets of
+ * a group are transformed in the order in which they appear in the array.
+ * A packet which fails to be (reverse-)transformed is dropped without
+ * affecting the other packets of the array.
+ *
  * @author Bing SU (nova.su@gmail.com)
  */
 public class SRTPTransformer
@@ -60,7 +66,8 @@
     /**
      * All the known SSRC's corresponding SrtpCryptoContexts
      */
-    private final Map<Integer,SrtpCryptoContext> contexts;
+    private final CryptoContextRegistry<SrtpCryptoContext> contexts
+        = new CryptoContextRegistry<>();
 
     /**
      * Initializes a new <tt>SRTPTransformer</tt> instance.
@@ -87,7 +94,6 @@ public SRTPTransformer(
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new HashMap<Integer,SrtpCryptoContext>();
     }
 
     /**
@@ -138,14 +144,9 @@ public void close()
             if (reverseFactory != forwardFactory)
                 reverseFactory.close();
 
-            for (Iterator<SrtpCryptoContext> i = contexts.values().iterator();
-                    i.hasNext();)
+            for (SrtpCryptoContext context : contexts.clear())
             {
-                SrtpCryptoContext context = i.next();
-
-                i.remove();
-                if (context != null)
-                    context.close();
+                context.close();
             }
         }
     }
@@ -155,16 +156,14 @@ private SrtpCryptoContext getContext(
             SrtpContextFactory engine,
             int deriveSrtpKeysIndex)
     {
-        SrtpCryptoContext context;
+        SrtpCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        if (context == null)
         {
-            context = contexts.get(ssrc);
-            if (context == null)
-            {
-                context = engine.deriveContext(ssrc, 0);
-                contexts.put(ssrc, context);
-            }
+            context
+                = contexts.computeIfAbsent(
+                        ssrc,
+                        s -> engine.deriveContext(s, 0));
         }
 
         return context;
@@ -182,7 +181,7 @@ public RawPacket reverseTransform(RawPacket pkt)
     {
         // only accept RTP version 2 (SNOM phones send weird packages when on
         // hold, ignore them with this check (RTP Version must be equal to 2)
-        if((pkt.readByte(0) & 0xC0) != 0x80)
+        if (!isRtpV2(pkt))
             return null;
 
         SrtpCryptoContext context
@@ -191,18 +190,12 @@ public RawPacket reverseTransform(RawPacket pkt)
                     reverseFactory,
                     pkt.getSequenceNumber());
 
-        boolean skipDecryption =
-            (pkt.getFlags() & (Buffer.FLAG_DISCARD | Buffer.FLAG_SILENCE)) != 0;
-
         if (context == null)
         {
             return null;
         }
 
-        return context.reverseTransformPacket(pkt, skipDecryption)
-            == SrtpErrorStatus.OK
-            ? pkt
-            : null;
+        return reverseTransform(context, pkt);
     }
 
     /**
@@ -219,6 +212,237 @@ public RawPacket transform(RawPacket pkt)
 
         if (context == null)
             return null;
+        return transform(context, pkt);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reverse-transforms the packets in groups of packets with the same SSRC.
+     */
+    @Override
+    public RawPacket[] reverseTransform(RawPacket[] pkts)
+    {
+        return transformArray(pkts, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms the packets in groups of packets with the same SSRC.
+     */
+    @Override
+    public RawPacket[] transform(RawPacket[] pkts)
+    {
+        return transformArray(pkts, true);
+    }
+
+    /**
+     * Determines whether a specific packet is an RTP version 2 packet.
+     *
+     * @param pkt the packet.
+     * @return <tt>true</tt> if <tt>pkt</tt> is an RTP version 2 packet.
+     */
+    private static boolean isRtpV2(RawPacket pkt)
+    {
+        return (pkt.readByte(0) & 0xC0) == 0x80;
+    }
+
+    /**
+     * Reverse-transforms a specific packet with a specific context.
+     *
+     * @param context the context of the SSRC of <tt>pkt</tt>.
+     * @param pkt the transformed packet to be restored.
+     * @return <tt>pkt</tt> if it was restored or <tt>null</tt>.
+     */
+    private static RawPacket reverseTransform(
+            SrtpCryptoContext context,
+            RawPacket pkt)
+    {
+        boolean skipDecryption =
+            (pkt.getFlags() & (Buffer.FLAG_DISCARD | Buffer.FLAG_SILENCE)) != 0;
+
+        return context.reverseTransformPacket(pkt, skipDecryption)
+            == SrtpErrorStatus.OK
+            ? pkt
+            : null;
+    }
+
+    /**
+     * Transforms a specific packet with a specific context.
+     *
+     * @param context the context of the SSRC of <tt>pkt</tt>.
+     * @param pkt the packet to be transformed.
+     * @return <tt>pkt</tt> if it was transformed or <tt>null</tt>.
+     */
+    private static RawPacket transform(
+            SrtpCryptoContext context,
+            RawPacket pkt)
+    {
         return context.transformPacket(pkt) == SrtpErrorStatus.OK ? pkt : null;
     }
+
+    /**
+     * (Reverse-)transforms an array of packets in groups of packets with the
+     * same SSRC. An array of the packets of a single SSRC (which is the usual
+     * case) is transformed without allocating.
+     *
+     * @param pkts the packets to (reverse-)transform.
+     * @param forward <tt>true</tt> to transform <tt>pkts</tt> or
+     * <tt>false</tt> to reverse-transform them.
+     * @return <tt>pkts</tt>, with the packets which could not be
+     * (reverse-)transformed replaced with <tt>null</tt>.
+     */
+    private RawPacket[] transformArray(RawPacket[] pkts, boolean forward)
+    {
+        if (pkts == null)
+            return pkts;
+
+        int first = -1;
+        int ssrc = 0;
+        boolean singleSsrc = true;
+
+        for (int i = 0; i < pkts.length; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+                continue;
+            if (!forward && !isRtpV2(pkt))
+            {
+                pkts[i] = null;
+                continue;
+            }
+            if (first == -1)
+            {
+                first = i;
+                ssrc = pkt.getSSRC();
+            }
+            else if (singleSsrc && pkt.getSSRC() != ssrc)
+            {
+                singleSsrc = false;
+            }
+        }
+
+        if (first == -1)
+            return pkts;
+        if (singleSsrc)
+        {
+            transformGroup(pkts, first, ssrc, null, 0, forward);
+            return pkts;
+        }
+
+        // Assign each packet to the group of its SSRC. The groups are
+        // transformed on the calling thread: the packets of an array are
+        // usually few and of a single SSRC, and the threads which (reverse-)
+        // transform arrays are already one per stream.
+        int[] groupOf = new int[pkts.length];
+        int[] groupSsrcs = new int[pkts.length];
+        int[] groupFirsts = new int[pkts.length];
+        int groupCount = 0;
+
+        for (int i = 0; i < pkts.length; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+            {
+                groupOf[i] = -1;
+                continue;
+            }
+
+            int pktSsrc = pkt.getSSRC();
+            int group = 0;
+
+            while (group < groupCount && groupSsrcs[group] != pktSsrc)
+                group++;
+            if (group == groupCount)
+            {
+                groupSsrcs[group] = pktSsrc;
+                groupFirsts[group] = i;
+                groupCount++;
+            }
+            groupOf[i] = group;
+        }
+
+        for (int group = 0; group < groupCount; group++)
+        {
+            transformGroup(
+                    pkts,
+                    groupFirsts[group],
+                    groupSsrcs[group],
+                    groupOf,
+                    group,
+                    forward);
+        }
+        return pkts;
+    }
+
+    /**
+     * (Reverse-)transforms the packets of an array which have a specific
+     * SSRC, looking their context up and locking it once. A packet which
+     * fails to be (reverse-)transformed is replaced with <tt>null</tt> and
+     * counted and logged like in <tt>SinglePacketTransformer</tt>.
+     *
+     * @param pkts the array of packets.
+     * @param first the index in <tt>pkts</tt> of the first packet of the
+     * group.
+     * @param ssrc the SSRC of the packets of the group.
+     * @param groupOf the group of each packet in <tt>pkts</tt> or
+     * <tt>null</tt> if all the (non-<tt>null</tt>) packets starting at
+     * <tt>first</tt> are in the group.
+     * @param group the group, if <tt>groupOf</tt> is not <tt>null</tt>.
+     * @param forward <tt>true</tt> to transform the packets or <tt>false</tt>
+     * to reverse-transform them.
+     */
+    private void transformGroup(
+            RawPacket[] pkts,
+            int first,
+            int ssrc,
+            int[] groupOf,
+            int group,
+            boolean forward)
+    {
+        SrtpCryptoContext context
+            = getContext(ssrc, forward ? forwardFactory : reverseFactory, 0);
+
+        if (context == null)
+        {
+            for (int i = first; i < pkts.length; i++)
+            {
+                if (groupOf == null || groupOf[i] == group)
+                    pkts[i] = null;
+            }
+            return;
+        }
+
+        // Lock the context once for the whole group rather than once per
+        // packet, which also keeps the packets of the group from being
+        // interleaved with those of another thread.
+        synchronized (context)
+        {
+            for (int i = first; i < pkts.length; i++)
+            {
+                if (groupOf != null && groupOf[i] != group)
+                    continue;
+
+                RawPacket pkt = pkts[i];
+
+                if (pkt == null)
+                    continue;
+                try
+                {
+                    if (forward)
+                        pkts[i] = transform(context, pkt);
+                    else
+                        pkts[i] = reverseTransform(context, pkt);
+                }
+                catch (RuntimeException e)
+                {
+                    logException(e, !forward);
+                    pkts[i] = null;
+                }
+            }
+        }
+    }
 }
@@ -15,8 +15,10 @@
  */
 package org.jitsi.service.neomedia;
 
+import java.io.*;
 import java.net.*;
 
+import org.jitsi.impl.neomedia.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.utils.logging.*;
@@ -125,11 +127,12 @@ private static synchronized DatagramSocket createDatagramSocket(
             try
             {
                 return
-                    (bindAddr == null)
-                        ? new DatagramSocket(port)
-                        : new DatagramSocket(port, bindAddr);
+                    RTPConnectorIOEngine.createDatagramSocket(
+                            (bindAddr == null)
+                                ? new InetSocketAddress(port)
+                                : new InetSocketAddress(bindAddr, port));
             }
-            catch (SocketException se)
+            catch (IOException se)
             {
                 logger.warn(
                     "Retrying a bind because of a failure to bind to address "
@@ -56,6 +56,19 @@
      */
     void updateReceiverEstimate(long bandwidth);
 
+    /**
+     * void SendSideBandwidthEstimation::UpdateDelayBasedEstimate
+     * This is the entry/update point for the estimated bitrate of a send-side
+     * delay-based estimator (driven by transport-cc feedback). It caps the
+     * estimate in the same way as {@link #updateReceiverEstimate(long)} and
+     * may be used as an alternative to REMB. The default implementation
+     * ignores the estimate, so that existing implementations which only
+     * handle REMB keep compiling.
+     */
+    default void updateDelayBasedEstimate(long bandwidth)
+    {
+    }
+
     /**
      * @return the latest effective fraction loss calculated by this
      * {@link BandwidthEstimator}. The value is between 0 and 256 (corresponding
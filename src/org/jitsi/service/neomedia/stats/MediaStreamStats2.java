@@ -68,4 +68,15 @@
      * @return all per-SSRC statistics for the receive direction.
      */
     Collection<? extends ReceiveTrackStats> getAllReceiveStats();
+
+    /**
+     * @return the statistics of the engines in the transform chain of the
+     * associated {@link MediaStream}, or an empty collection unless the
+     * instrumentation of transform chains is enabled. The default
+     * implementation returns an empty collection.
+     */
+    default Collection<? extends TransformEngineStats> getTransformEngineStats()
+    {
+        return Collections.emptyList();
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.service.neomedia.stats;
+
+/**
+ * Statistics about the work of a single transform engine in the RTP or the
+ * RTCP transform chain of a {@link org.jitsi.service.neomedia.MediaStream}.
+ * The latencies are sampled (i.e. only measured for some of the packets) and
+ * are those of a call to the transformer, which may handle more than one
+ * packet.
+ */
+public interface TransformEngineStats
+{
+    /**
+     * @return the name of the engine (e.g. its class name).
+     */
+    String getName();
+
+    /**
+     * @return <tt>true</tt> if these are the statistics of the RTP transformer
+     * of the engine, or <tt>false</tt> if they are those of its RTCP
+     * transformer.
+     */
+    boolean isRtp();
+
+    /**
+     * @return the statistics of the outgoing packets (i.e. of
+     * <tt>transform</tt>).
+     */
+    PacketTransformerStats getTransformStats();
+
+    /**
+     * @return the statistics of the incoming packets (i.e. of
+     * <tt>reverseTransform</tt>).
+     */
+    PacketTransformerStats getReverseTransformStats();
+
+    /**
+     * Statistics about one direction of a packet transformer.
+     */
+    interface PacketTransformerStats
+    {
+        /**
+         * @return the number of packets passed to the transformer.
+         */
+        long getPackets();
+
+        /**
+         * @return the number of packets which the transformer dropped (i.e.
+         * the number of packets passed to it less the number of packets it
+         * returned, if positive).
+         */
+        long getDroppedPackets();
+
+        /**
+         * @return the number of latency samples.
+         */
+        long getLatencySamples();
+
+        /**
+         * @return the mean latency in nanoseconds.
+         */
+        double getMeanLatencyNanos();
+
+        /**
+         * @return the median latency in nanoseconds.
+         */
+        long getMedianLatencyNanos();
+
+        /**
+         * @return the 99th percentile of the latency in nanoseconds.
+         */
+        long getP99LatencyNanos();
+
+        /**
+         * @return the maximum latency in nanoseconds.
+         */
+        long getMaxLatencyNanos();
+
+        /**
+         * @param percentile the percentile (from 0 to 100).
+         * @return the latency in nanoseconds at <tt>percentile</tt>.
+         */
+        long getLatencyNanosAtPercentile(double percentile);
+    }
+}
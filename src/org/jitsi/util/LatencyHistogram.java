@@ -0,0 +1,241 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A fixed-size histogram of non-negative durations (e.g. nanoseconds) in the
+ * manner of HdrHistogram: the values are counted in buckets which double in
+ * width. The values below {@link #SUB_BUCKET_COUNT} are counted exactly;
+ * above, every power of 2 is split into <tt>SUB_BUCKET_COUNT / 2</tt> (i.e.
+ * 16) linear sub-buckets, so that a value is known within 1/16 (6.25%) of
+ * its magnitude. Recording a value is a few shifts and one atomic increment,
+ * and does not allocate.
+ *
+ * Instances are thread-safe, but the statistics read while values are being
+ * recorded need not be consistent with each other.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The base 2 logarithm of {@link #SUB_BUCKET_COUNT}.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of linear sub-buckets of a bucket.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets. Values of <tt>2^(BUCKET_COUNT +
+     * SUB_BUCKET_BITS - 1)</tt> (about 36 seconds in nanoseconds) and above
+     * are counted in the last sub-bucket.
+     */
+    private static final int BUCKET_COUNT = 31;
+
+    /**
+     * The counts of the sub-buckets.
+     */
+    private final AtomicLongArray counts
+        = new AtomicLongArray((BUCKET_COUNT + 1) * SUB_BUCKET_COUNT / 2);
+
+    /**
+     * The number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * The maximum recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Gets the index of the sub-bucket which counts a specific value. The
+     * values below {@link #SUB_BUCKET_COUNT} have one sub-bucket each; above,
+     * every power of 2 is split into <tt>SUB_BUCKET_COUNT / 2</tt>
+     * sub-buckets.
+     *
+     * @param value the value.
+     * @return the index of the sub-bucket which counts <tt>value</tt>.
+     */
+    static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        if (bucket >= BUCKET_COUNT)
+            return (BUCKET_COUNT + 1) * SUB_BUCKET_COUNT / 2 - 1;
+
+        int subBucket = (int) (value >>> bucket);
+
+        return (bucket + 1) * SUB_BUCKET_COUNT / 2 + subBucket
+            - SUB_BUCKET_COUNT / 2;
+    }
+
+    /**
+     * Gets the highest value which is counted in a specific sub-bucket.
+     *
+     * @param index the index of the sub-bucket.
+     * @return the highest value which is counted in the sub-bucket with
+     * index <tt>index</tt>.
+     */
+    static long highestValueAt(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int bucket = index / (SUB_BUCKET_COUNT / 2) - 1;
+        long subBucket = index % (SUB_BUCKET_COUNT / 2) + SUB_BUCKET_COUNT / 2;
+
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value to record. Negative values are recorded as 0.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long oldMax;
+
+        while (value > (oldMax = max.get())
+                && !max.compareAndSet(oldMax, value))
+            ;
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     *
+     * @param other the histogram whose values are to be added.
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            long c = other.counts.get(i);
+
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+
+        long otherMax = other.max.get();
+        long oldMax;
+
+        while (otherMax > (oldMax = max.get())
+                && !max.compareAndSet(oldMax, otherMax))
+            ;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Gets the maximum recorded value.
+     *
+     * @return the maximum recorded value, or 0 if none was recorded.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return the mean of the recorded values, or 0 if none was recorded.
+     */
+    public double getMean()
+    {
+        long count = this.count.get();
+
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Gets (an upper bound of) the value below which a specific percentage of
+     * the recorded values fall.
+     *
+     * @param percentile the percentage (from 0 to 100).
+     * @return the value at <tt>percentile</tt>, or 0 if no value was
+     * recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+
+        long rank
+            = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        int last = counts.length() - 1;
+
+        for (int i = 0; i < last; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        // The last sub-bucket also counts the values which overflow the
+        // buckets so its highest value is unknown.
+        return max.get();
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
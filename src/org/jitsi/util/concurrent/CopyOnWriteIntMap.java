@@ -0,0 +1,385 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * A read-mostly map from primitive <tt>int</tt> keys (e.g. SSRCs) to objects.
+ * Lookups are lock-free and do not box their keys: they probe an
+ * open-addressing table which is published through a <tt>volatile</tt> field.
+ * Modifications are synchronized, copy the table and publish the copy, so
+ * they are expected to be rare compared to lookups (e.g. a new stream starts
+ * or an old one expires).
+ *
+ * Values must not be <tt>null</tt>.
+ *
+ * @param <V> the type of the values of the map.
+ */
+public class CopyOnWriteIntMap<V>
+{
+    /**
+     * The table which has no entries. Shared by all empty maps.
+     */
+    private static final Table<?> EMPTY_TABLE = new Table<>(1);
+
+    /**
+     * The current table. Never modified after it has been published.
+     */
+    private volatile Table<V> table;
+
+    /**
+     * Initializes a new empty <tt>CopyOnWriteIntMap</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    public CopyOnWriteIntMap()
+    {
+        table = (Table<V>) EMPTY_TABLE;
+    }
+
+    /**
+     * Gets the value to which a specific key is mapped.
+     *
+     * @param key the key.
+     * @return the value to which <tt>key</tt> is mapped or <tt>null</tt> if
+     * there is no mapping for <tt>key</tt>.
+     */
+    public V get(int key)
+    {
+        return table.get(key);
+    }
+
+    /**
+     * Checks whether this map contains a mapping for a specific key.
+     *
+     * @param key the key.
+     * @return <tt>true</tt> if this map contains a mapping for <tt>key</tt>.
+     */
+    public boolean containsKey(int key)
+    {
+        return table.get(key) != null;
+    }
+
+    /**
+     * Gets the number of mappings in this map.
+     *
+     * @return the number of mappings in this map.
+     */
+    public int size()
+    {
+        return table.size;
+    }
+
+    /**
+     * Checks whether this map is empty.
+     *
+     * @return <tt>true</tt> if this map contains no mappings.
+     */
+    public boolean isEmpty()
+    {
+        return table.size == 0;
+    }
+
+    /**
+     * Maps a specific key to a specific value.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @return the value to which <tt>key</tt> was previously mapped or
+     * <tt>null</tt>.
+     */
+    public synchronized V put(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+
+        Table<V> oldTable = table;
+        V oldValue = oldTable.get(key);
+
+        if (oldValue != value)
+        {
+            Table<V> newTable
+                = oldTable.copy(oldValue == null ? oldTable.size + 1 : 0);
+
+            newTable.put(key, value);
+            table = newTable;
+        }
+        return oldValue;
+    }
+
+    /**
+     * Gets the value to which a specific key is mapped and, if there is no
+     * such value, maps the key to a value created by a specific function.
+     *
+     * @param key the key.
+     * @param mappingFunction the function which creates the value to map
+     * <tt>key</tt> to. If it returns <tt>null</tt>, no mapping is added.
+     * @return the (possibly new) value to which <tt>key</tt> is mapped or
+     * <tt>null</tt>.
+     */
+    public V computeIfAbsent(int key, IntFunction<V> mappingFunction)
+    {
+        V value = table.get(key);
+
+        if (value == null)
+        {
+            synchronized (this)
+            {
+                value = table.get(key);
+                if (value == null)
+                {
+                    value = mappingFunction.apply(key);
+                    if (value != null)
+                        put(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the mapping for a specific key.
+     *
+     * @param key the key.
+     * @return the value to which <tt>key</tt> was mapped or <tt>null</tt>.
+     */
+    public synchronized V remove(int key)
+    {
+        Table<V> oldTable = table;
+        V oldValue = oldTable.get(key);
+
+        if (oldValue != null)
+            table = oldTable.copyExcept(key);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mappings whose values satisfy a specific predicate.
+     *
+     * @param filter the predicate.
+     * @return <tt>true</tt> if any mapping was removed.
+     */
+    public synchronized boolean removeIf(Predicate<? super V> filter)
+    {
+        Table<V> oldTable = table;
+        Table<V> newTable = null;
+
+        for (int i = 0; i < oldTable.keys.length; i++)
+        {
+            V value = oldTable.value(i);
+
+            if (value != null && filter.test(value))
+            {
+                newTable
+                    = (newTable == null ? oldTable : newTable)
+                        .copyExcept(oldTable.keys[i]);
+            }
+        }
+        if (newTable != null)
+        {
+            table = newTable;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void clear()
+    {
+        table = (Table<V>) EMPTY_TABLE;
+    }
+
+    /**
+     * Gets a snapshot of the values of this map.
+     *
+     * @return a snapshot of the values of this map.
+     */
+    public List<V> values()
+    {
+        Table<V> table = this.table;
+        List<V> values = new ArrayList<>(table.size);
+
+        for (int i = 0; i < table.keys.length; i++)
+        {
+            V value = table.value(i);
+
+            if (value != null)
+                values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Gets a snapshot of the keys of this map.
+     *
+     * @return a snapshot of the keys of this map.
+     */
+    public int[] keys()
+    {
+        Table<V> table = this.table;
+        int[] keys = new int[table.size];
+        int j = 0;
+
+        for (int i = 0; i < table.keys.length; i++)
+        {
+            if (table.values[i] != null)
+                keys[j++] = table.keys[i];
+        }
+        return keys;
+    }
+
+    /**
+     * An open-addressing (linear probing) hash table with a power-of-two
+     * capacity.
+     *
+     * @param <V> the type of the values of the table.
+     */
+    private static class Table<V>
+    {
+        /**
+         * Mixes the bits of a key so that SSRCs which differ only in their
+         * high bits do not collide.
+         *
+         * @param key the key.
+         * @return the hash of <tt>key</tt>.
+         */
+        private static int hash(int key)
+        {
+            int h = key * 0x9E3779B9;
+
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * The keys.
+         */
+        final int[] keys;
+
+        /**
+         * The values. A <tt>null</tt> value denotes an empty slot.
+         */
+        final Object[] values;
+
+        /**
+         * <tt>keys.length - 1</tt>.
+         */
+        final int mask;
+
+        /**
+         * The number of mappings in this table.
+         */
+        int size = 0;
+
+        /**
+         * Initializes a new <tt>Table</tt> which can hold at least a specific
+         * number of mappings with a load factor of at most <tt>0.5</tt>.
+         *
+         * @param expectedSize the number of mappings.
+         */
+        Table(int expectedSize)
+        {
+            int capacity = 2;
+
+            while (capacity < 2 * expectedSize)
+                capacity <<= 1;
+            keys = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        V value(int i)
+        {
+            return (V) values[i];
+        }
+
+        V get(int key)
+        {
+            for (int i = hash(key) & mask;; i = (i + 1) & mask)
+            {
+                V value = value(i);
+
+                if (value == null)
+                    return null;
+                if (keys[i] == key)
+                    return value;
+            }
+        }
+
+        /**
+         * Adds or replaces a mapping. Only invoked before the table is
+         * published.
+         */
+        void put(int key, V value)
+        {
+            for (int i = hash(key) & mask;; i = (i + 1) & mask)
+            {
+                if (values[i] == null)
+                {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+                if (keys[i] == key)
+                {
+                    values[i] = value;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies this table into a new one which can hold at least a specific
+         * number of mappings.
+         */
+        Table<V> copy(int expectedSize)
+        {
+            Table<V> copy = new Table<>(Math.max(size, expectedSize));
+
+            for (int i = 0; i < keys.length; i++)
+            {
+                V value = value(i);
+
+                if (value != null)
+                    copy.put(keys[i], value);
+            }
+            return copy;
+        }
+
+        /**
+         * Copies this table, except the mapping of a specific key, into a new
+         * one.
+         */
+        Table<V> copyExcept(int key)
+        {
+            Table<V> copy = new Table<>(size);
+
+            for (int i = 0; i < keys.length; i++)
+            {
+                V value = value(i);
+
+                if (value != null && keys[i] != key)
+                    copy.put(keys[i], value);
+            }
+            return copy;
+        }
+    }
+}
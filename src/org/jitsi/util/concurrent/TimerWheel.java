@@ -0,0 +1,251 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import java.util.*;
+
+/**
+ * A hashed timer wheel: schedules tasks with a granularity of one tick in
+ * constant time, independently of the number of pending tasks. Meant for
+ * many short timers such as the ones of packet pacers, where the ordering
+ * kept by a <tt>PriorityQueue</tt> costs more than it is worth.
+ *
+ * A task never expires before its deadline but may expire up to one tick
+ * after it. Instances are not thread-safe: they are meant to be owned by a
+ * single thread (e.g. an I/O thread), which both schedules tasks and
+ * periodically calls {@link #expire(long, Collection)}.
+ */
+public class TimerWheel
+{
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The buckets of the wheel. The tasks which expire at tick <tt>t</tt> are
+     * kept in the bucket at index <tt>t &amp; mask</tt> (along with the tasks
+     * which expire in later rotations of the wheel).
+     */
+    private final ArrayDeque<Timeout>[] buckets;
+
+    /**
+     * <tt>buckets.length - 1</tt>.
+     */
+    private final int mask;
+
+    /**
+     * The value of {@link System#nanoTime()} at which tick <tt>0</tt> starts.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The next tick to be processed by {@link #expire(long, Collection)}.
+     */
+    private long currentTick = 0;
+
+    /**
+     * The number of pending tasks.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes a new <tt>TimerWheel</tt> instance.
+     *
+     * @param tickNanos the duration of a tick in nanoseconds.
+     * @param ticksPerWheel the number of ticks per rotation of the wheel
+     * (rounded up to a power of two). Tasks with deadlines further than one
+     * rotation in the future are supported but are visited once per rotation.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickNanos, int ticksPerWheel)
+    {
+        if (tickNanos < 1)
+            throw new IllegalArgumentException("tickNanos " + tickNanos);
+        if (ticksPerWheel < 1 || ticksPerWheel > (1 << 30))
+        {
+            throw new IllegalArgumentException(
+                    "ticksPerWheel " + ticksPerWheel);
+        }
+
+        int length = Integer.highestOneBit(ticksPerWheel);
+
+        if (length < ticksPerWheel)
+            length <<= 1;
+
+        this.tickNanos = tickNanos;
+        buckets = new ArrayDeque[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Gets the tick in which a specific time falls.
+     *
+     * @param nanos the time (as returned by {@link System#nanoTime()}).
+     * @return the tick in which <tt>nanos</tt> falls.
+     */
+    private long tick(long nanos)
+    {
+        long elapsed = nanos - startNanos;
+
+        return elapsed <= 0 ? 0 : elapsed / tickNanos;
+    }
+
+    /**
+     * Schedules a task to expire at a specific time.
+     *
+     * @param task the task.
+     * @param deadlineNanos the time (as returned by {@link System#nanoTime()})
+     * at which <tt>task</tt> is to expire.
+     */
+    public void schedule(Runnable task, long deadlineNanos)
+    {
+        // Round up so that the task never expires before its deadline.
+        long deadlineTick = tick(deadlineNanos + tickNanos - 1);
+
+        if (deadlineTick < currentTick)
+            deadlineTick = currentTick;
+
+        int index = (int) deadlineTick & mask;
+        ArrayDeque<Timeout> bucket = buckets[index];
+
+        if (bucket == null)
+            buckets[index] = bucket = new ArrayDeque<>();
+        bucket.add(new Timeout(task, deadlineTick));
+        size++;
+    }
+
+    /**
+     * Removes the tasks which have expired at a specific time from this wheel.
+     *
+     * @param nowNanos the current time (as returned by
+     * {@link System#nanoTime()}).
+     * @param expired the <tt>Collection</tt> to add the expired tasks to, in
+     * the order of their deadlines (with the granularity of a tick).
+     * @return the number of expired tasks.
+     */
+    public int expire(long nowNanos, Collection<Runnable> expired)
+    {
+        long nowTick = tick(nowNanos);
+
+        if (size == 0)
+        {
+            if (nowTick >= currentTick)
+                currentTick = nowTick + 1;
+            return 0;
+        }
+
+        int count = 0;
+        // There is no need to visit a bucket more than once.
+        long fromTick = Math.max(currentTick, nowTick - mask);
+
+        for (long tick = fromTick; tick <= nowTick && size > 0; tick++)
+        {
+            ArrayDeque<Timeout> bucket = buckets[(int) tick & mask];
+
+            if (bucket == null || bucket.isEmpty())
+                continue;
+
+            for (Iterator<Timeout> i = bucket.iterator(); i.hasNext();)
+            {
+                Timeout timeout = i.next();
+
+                if (timeout.deadlineTick <= nowTick)
+                {
+                    i.remove();
+                    size--;
+                    expired.add(timeout.task);
+                    count++;
+                }
+            }
+        }
+        if (nowTick >= currentTick)
+            currentTick = nowTick + 1;
+        return count;
+    }
+
+    /**
+     * Gets the time until the next tick which has (possibly) expiring tasks.
+     *
+     * @param nowNanos the current time (as returned by
+     * {@link System#nanoTime()}).
+     * @return the number of nanoseconds until the next tick which has tasks
+     * (which may be scheduled for later rotations of the wheel), <tt>0</tt>
+     * if such a tick has already started, or <tt>-1</tt> if this wheel has no
+     * tasks.
+     */
+    public long getNanosUntilNextTick(long nowNanos)
+    {
+        if (size == 0)
+            return -1;
+
+        for (int j = 0; j <= mask; j++)
+        {
+            long tick = currentTick + j;
+            ArrayDeque<Timeout> bucket = buckets[(int) tick & mask];
+
+            if (bucket != null && !bucket.isEmpty())
+            {
+                long nanos = startNanos + tick * tickNanos - nowNanos;
+
+                return nanos > 0 ? nanos : 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether this wheel has no pending tasks.
+     *
+     * @return <tt>true</tt> if this wheel has no pending tasks.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Gets the number of pending tasks.
+     *
+     * @return the number of pending tasks.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * A task scheduled in a {@link TimerWheel}.
+     */
+    private static class Timeout
+    {
+        /**
+         * The task.
+         */
+        final Runnable task;
+
+        /**
+         * The tick at (the start of) which {@link #task} expires.
+         */
+        final long deadlineTick;
+
+        Timeout(Runnable task, long deadlineTick)
+        {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
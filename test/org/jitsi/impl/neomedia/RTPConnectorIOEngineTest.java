@@ -0,0 +1,119 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class RTPConnectorIOEngineTest
+{
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() ->
+                RTPConnectorIOEngine.ENABLED_PNAME.equals(
+                        EasyMock.getCurrentArguments()[0])
+                    || (Boolean) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    @Test
+    public void testReceive()
+        throws Exception
+    {
+        DatagramSocket socket
+            = RTPConnectorIOEngine.createDatagramSocket(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        DatagramChannel channel = RTPConnectorIOEngine.getChannel(socket);
+
+        // The engine can only service sockets created through a channel.
+        assertNotNull(channel);
+
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        CountDownLatch drained = new CountDownLatch(1);
+        RTPConnectorIOEngine.Registration registration
+            = RTPConnectorIOEngine.getInstance().register(
+                    channel,
+                    new RTPConnectorIOEngine.DatagramHandler()
+                    {
+                        @Override
+                        public void datagramReceived(DatagramPacket p)
+                        {
+                            received.add(
+                                    Arrays.copyOfRange(
+                                            p.getData(),
+                                            p.getOffset(),
+                                            p.getOffset() + p.getLength()));
+                        }
+
+                        @Override
+                        public void datagramsDrained()
+                        {
+                            drained.countDown();
+                        }
+
+                        @Override
+                        public void receiveFailed(IOException ioe)
+                        {
+                        }
+                    });
+
+        try (DatagramSocket sender = new DatagramSocket())
+        {
+            byte[] data = { 1, 2, 3, 4, 5 };
+
+            sender.send(
+                    new DatagramPacket(
+                            data, data.length,
+                            socket.getLocalSocketAddress()));
+
+            assertArrayEquals(data, received.poll(5, TimeUnit.SECONDS));
+            assertTrue(drained.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            registration.cancel();
+            socket.close();
+        }
+    }
+}
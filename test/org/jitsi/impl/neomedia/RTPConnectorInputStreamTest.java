@@ -0,0 +1,149 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import org.easymock.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import javax.media.protocol.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class RTPConnectorInputStreamTest
+{
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() ->
+                RTPConnectorIOEngine.ENABLED_PNAME.equals(
+                        EasyMock.getCurrentArguments()[0])
+                    || (Boolean) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        expect(LibJitsi.getPacketLoggingService()).andReturn(null).anyTimes();
+        replayAll();
+    }
+
+    @Test
+    public void testBatchedReverseTransform()
+        throws Exception
+    {
+        int count = 5;
+        DatagramSocket socket
+            = RTPConnectorIOEngine.createDatagramSocket(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        RTPConnectorUDPInputStream stream
+            = new RTPConnectorUDPInputStream(socket);
+        BlockingQueue<Integer> batches = new LinkedBlockingQueue<>();
+
+        stream.setTransformer(
+                new PacketTransformer()
+                {
+                    @Override
+                    public void close()
+                    {
+                    }
+
+                    @Override
+                    public RawPacket[] reverseTransform(RawPacket[] pkts)
+                    {
+                        int n = 0;
+
+                        for (RawPacket pkt : pkts)
+                        {
+                            if (pkt != null)
+                                n++;
+                        }
+                        batches.add(n);
+                        return pkts;
+                    }
+
+                    @Override
+                    public RawPacket[] transform(RawPacket[] pkts)
+                    {
+                        return pkts;
+                    }
+                });
+
+        try (DatagramSocket sender = new DatagramSocket())
+        {
+            // Queue the datagrams before the stream starts receiving, so that
+            // they are all immediately available to the I/O thread.
+            for (int i = 0; i < count; i++)
+            {
+                byte[] data = new byte[20];
+
+                data[0] = (byte) 0x80;
+                data[3] = (byte) i;
+                sender.send(
+                        new DatagramPacket(
+                                data, data.length,
+                                socket.getLocalSocketAddress()));
+            }
+
+            byte[] buf = new byte[1500];
+            CountDownLatch transferred = new CountDownLatch(count);
+
+            stream.setTransferHandler(
+                    new SourceTransferHandler()
+                    {
+                        @Override
+                        public void transferData(PushSourceStream s)
+                        {
+                            try
+                            {
+                                s.read(buf, 0, buf.length);
+                            }
+                            catch (IOException ioe)
+                            {
+                                fail(ioe.toString());
+                            }
+                            transferred.countDown();
+                        }
+                    });
+
+            assertTrue(transferred.await(5, TimeUnit.SECONDS));
+            assertEquals(count, (int) batches.poll(5, TimeUnit.SECONDS));
+            assertTrue(batches.isEmpty());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
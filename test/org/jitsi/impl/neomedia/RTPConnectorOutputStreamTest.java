@@ -0,0 +1,201 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import org.easymock.*;
+import org.jitsi.impl.neomedia.rtp.pacing.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class RTPConnectorOutputStreamTest
+{
+    private static final byte VIDEO = 1;
+
+    private static final byte AUDIO = 2;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() -> {
+                Object name = EasyMock.getCurrentArguments()[0];
+
+                return RTPConnectorIOEngine.ENABLED_PNAME.equals(name)
+                    || RTPConnectorOutputStream.PACING_ENABLED_PNAME.equals(
+                            name)
+                    || (Boolean) EasyMock.getCurrentArguments()[1];
+            })
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getString(EasyMock.anyString(), EasyMock.anyString()))
+            .andAnswer(() -> (String) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        expect(LibJitsi.getPacketLoggingService()).andReturn(null).anyTimes();
+        replayAll();
+    }
+
+    /**
+     * Creates an <tt>RTPConnectorOutputStream</tt> which adds the first byte
+     * of each packet that it sends to a specific queue.
+     */
+    private static RTPConnectorOutputStream createStream(
+            BlockingQueue<Byte> sent)
+    {
+        return
+            new RTPConnectorOutputStream()
+            {
+                @Override
+                protected void doLogPacket(
+                        RawPacket packet,
+                        InetSocketAddress target)
+                {
+                }
+
+                @Override
+                protected boolean isSocketValid()
+                {
+                    return true;
+                }
+
+                @Override
+                protected void sendToTarget(
+                        RawPacket packet,
+                        InetSocketAddress target)
+                {
+                    sent.add(packet.getBuffer()[packet.getOffset()]);
+                }
+            };
+    }
+
+    @Test
+    public void testAudioBypassesPacingTimer()
+        throws Exception
+    {
+        BlockingQueue<Byte> sent = new LinkedBlockingQueue<>();
+        RTPConnectorOutputStream stream = createStream(sent);
+
+        stream.addTarget(InetAddress.getLoopbackAddress(), 5000);
+        // The pacing rate is a few kilobytes per second, so the second video
+        // packet has to wait for hundreds of milliseconds.
+        stream.setTargetBitrate(8000);
+
+        try
+        {
+            byte[] video = new byte[1000];
+            byte[] audio = new byte[100];
+
+            video[0] = VIDEO;
+            audio[0] = AUDIO;
+
+            stream.write(video, 0, video.length, null, PacketPriority.VIDEO);
+            assertEquals(VIDEO, (byte) sent.poll(5, TimeUnit.SECONDS));
+
+            stream.write(video, 0, video.length, null, PacketPriority.VIDEO);
+            // Let the queue arm its pacing timer.
+            Thread.sleep(50);
+            assertNull(sent.poll());
+
+            stream.write(audio, 0, audio.length, null, PacketPriority.AUDIO);
+
+            Byte next = sent.poll(100, TimeUnit.MILLISECONDS);
+
+            assertNotNull("audio waited for the pacing timer", next);
+            assertEquals(AUDIO, (byte) next);
+            assertEquals(VIDEO, (byte) sent.poll(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testSharedBufferReleasedOnce()
+        throws Exception
+    {
+        BlockingQueue<Byte> sent = new LinkedBlockingQueue<>();
+        RTPConnectorOutputStream[] streams = new RTPConnectorOutputStream[3];
+
+        for (int i = 0; i < streams.length; i++)
+        {
+            streams[i] = createStream(sent);
+            streams[i].addTarget(InetAddress.getLoopbackAddress(), 5000 + i);
+        }
+
+        try
+        {
+            byte[] audio = new byte[100];
+
+            audio[0] = AUDIO;
+
+            SharedPacketBuffer buffer
+                = SharedPacketBuffer.acquire(audio, 0, audio.length);
+
+            for (RTPConnectorOutputStream stream : streams)
+                assertEquals(audio.length, stream.write(buffer));
+
+            // Each stream releases its reference before it sends the packet.
+            for (int i = 0; i < streams.length; i++)
+                assertEquals(AUDIO, (byte) sent.poll(5, TimeUnit.SECONDS));
+            assertNull(sent.poll(50, TimeUnit.MILLISECONDS));
+
+            // Only the reference of the writer is left.
+            buffer.release();
+            try
+            {
+                buffer.retain();
+                fail("The buffer is still referenced.");
+            }
+            catch (IllegalStateException expected)
+            {
+            }
+            try
+            {
+                buffer.release();
+                fail("The buffer was released too many times.");
+            }
+            catch (IllegalStateException expected)
+            {
+            }
+        }
+        finally
+        {
+            for (RTPConnectorOutputStream stream : streams)
+                stream.close();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.conference;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+import org.easymock.*;
+import org.jitsi.impl.neomedia.audiolevel.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+/**
+ * Tests the selection of the loudest speakers by
+ * <tt>AudioMixerPushBufferStream</tt> by feeding it sequences of audio
+ * levels.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class AudioMixerPushBufferStreamTest
+{
+    /**
+     * The audio samples of an input stream which provided any in a frame. The
+     * selection looks at the audio levels only.
+     */
+    private static final short[] SAMPLES = new short[0];
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    /**
+     * Tests that the loudest input streams are selected ordered from the
+     * loudest to the quietest and that the input streams which did not
+     * provide audio samples are never selected.
+     */
+    @Test
+    public void testSelectLoudest()
+    {
+        InStreamDesc[] inStreams = createInStreams(5);
+        int[] selected = new int[2];
+
+        assertEquals(
+                2,
+                frame(inStreams, selected, 30, 10, 50, 20, -1));
+        assertSelected(inStreams, 1, 3);
+        assertArrayEquals(new int[] { 1, 3 }, selected);
+
+        // The loudest input stream provides no audio samples.
+        inStreams = createInStreams(5);
+        assertEquals(
+                2,
+                frame(inStreams, selected, 30, -1, 50, 20, 40));
+        assertSelected(inStreams, 3, 0);
+        assertArrayEquals(new int[] { 3, 0 }, selected);
+
+        // Fewer input streams than selectable provide audio samples.
+        inStreams = createInStreams(3);
+        selected = new int[4];
+        assertEquals(2, frame(inStreams, selected, -1, 60, 70));
+        assertSelected(inStreams, 1, 2);
+    }
+
+    /**
+     * Tests that a selected input stream is only replaced by one which is
+     * more than {@link AudioMixerPushBufferStream#SPEAKER_SELECTION_HYSTERESIS}
+     * dB louder.
+     */
+    @Test
+    public void testHysteresis()
+    {
+        int hysteresis
+            = AudioMixerPushBufferStream.SPEAKER_SELECTION_HYSTERESIS;
+        InStreamDesc[] inStreams = createInStreams(3);
+        int[] selected = new int[1];
+
+        frame(inStreams, selected, 20, 30, 40);
+        assertSelected(inStreams, 0);
+
+        // Louder but within the hysteresis.
+        frame(inStreams, selected, 20, 20 - hysteresis + 1, 40);
+        assertSelected(inStreams, 0);
+        frame(inStreams, selected, 20, 20 - hysteresis, 40);
+        assertSelected(inStreams, 0);
+
+        // Louder by more than the hysteresis.
+        frame(inStreams, selected, 20, 20 - hysteresis - 1, 40);
+        assertSelected(inStreams, 1);
+
+        // The former speaker is now the one which has to be clearly louder.
+        frame(
+                inStreams,
+                selected,
+                20 - 2 * hysteresis, 20 - hysteresis - 1, 40);
+        assertSelected(inStreams, 1);
+        frame(inStreams, selected, 0, 20 - hysteresis - 1, 40);
+        assertSelected(inStreams, 0);
+    }
+
+    /**
+     * Tests that the audio level of an input stream which falls silent is
+     * released by {@link InStreamDesc#AUDIO_LEVEL_RELEASE} dB per frame so
+     * that the speaker keeps its place during short pauses.
+     */
+    @Test
+    public void testRelease()
+    {
+        int hysteresis
+            = AudioMixerPushBufferStream.SPEAKER_SELECTION_HYSTERESIS;
+        int release = InStreamDesc.AUDIO_LEVEL_RELEASE;
+        InStreamDesc[] inStreams = createInStreams(2);
+        int[] selected = new int[1];
+        int silence = AudioLevelCalculator.MIN_AUDIO_LEVEL;
+
+        frame(inStreams, selected, 10, 20);
+        assertSelected(inStreams, 0);
+
+        // The audio level of the first input stream rises immediately and
+        // falls by the release per frame. It keeps its place until it is more
+        // than the hysteresis quieter than the second one.
+        int frames = 0;
+
+        do
+        {
+            frame(inStreams, selected, silence, 20);
+            frames++;
+            assertEquals(
+                    Math.min(silence, 10 + frames * release),
+                    inStreams[0].getAudioLevel());
+        }
+        while (inStreams[0].isSpeakerSelected() && (frames < silence));
+        assertSelected(inStreams, 1);
+        assertEquals(10 + frames * release, 20 + hysteresis + 1);
+
+        // The audio level rises immediately.
+        frame(inStreams, selected, 5, 20);
+        assertEquals(5, inStreams[0].getAudioLevel());
+        assertSelected(inStreams, 0);
+
+        // An input stream which provides no audio samples is released too.
+        frame(inStreams, selected, -1, 20);
+        assertEquals(5 + release, inStreams[0].getAudioLevel());
+        assertSelected(inStreams, 1);
+    }
+
+    /**
+     * Asserts that exactly the input streams at specific indices are
+     * selected.
+     */
+    private static void assertSelected(
+            InStreamDesc[] inStreams,
+            int... indices)
+    {
+        boolean[] expected = new boolean[inStreams.length];
+
+        for (int index : indices)
+            expected[index] = true;
+        for (int i = 0; i < inStreams.length; i++)
+        {
+            assertEquals(
+                    "input stream " + i,
+                    expected[i],
+                    inStreams[i].isSpeakerSelected());
+        }
+    }
+
+    private static InStreamDesc[] createInStreams(int count)
+    {
+        InStreamDesc[] inStreams = new InStreamDesc[count];
+
+        for (int i = 0; i < count; i++)
+            inStreams[i] = new InStreamDesc(null, null);
+        return inStreams;
+    }
+
+    /**
+     * Simulates a frame in which the input streams have specific audio
+     * levels the way <tt>AudioMixerPushBufferStream</tt> does.
+     *
+     * @param levels the audio levels of the frame in -dBov or <tt>-1</tt> for
+     * an input stream which provides no audio samples in the frame
+     * @return the number of selected input streams
+     */
+    private static int frame(
+            InStreamDesc[] inStreams,
+            int[] selected,
+            int... levels)
+    {
+        short[][] inSamples = new short[levels.length][];
+
+        for (int i = 0; i < levels.length; i++)
+        {
+            if (levels[i] < 0)
+            {
+                inStreams[i].updateAudioLevel(
+                        AudioLevelCalculator.MIN_AUDIO_LEVEL);
+            }
+            else
+            {
+                inSamples[i] = SAMPLES;
+                inStreams[i].updateAudioLevel((byte) levels[i]);
+            }
+        }
+        return
+            AudioMixerPushBufferStream.selectLoudestSpeakers(
+                    inSamples,
+                    inStreams,
+                    selected);
+    }
+}
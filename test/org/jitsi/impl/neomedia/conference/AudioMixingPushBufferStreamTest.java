@@ -0,0 +1,187 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.conference;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the limiter and the mix-minus of
+ * <tt>AudioMixingPushBufferStream</tt>.
+ */
+public class AudioMixingPushBufferStreamTest
+{
+    /**
+     * The level below which the limiter does not touch the samples.
+     */
+    private static final int THRESHOLD = 3 * Short.MAX_VALUE / 4;
+
+    /**
+     * Tests that the samples below the threshold of the limiter pass through
+     * unchanged.
+     */
+    @Test
+    public void testLimitPassThrough()
+    {
+        for (int s = -THRESHOLD; s <= THRESHOLD; s++)
+            assertEquals(s, AudioMixingPushBufferStream.limit(s));
+    }
+
+    /**
+     * Tests that the limiter is monotonic, odd-symmetric and clips at
+     * &plusmn;32767 without wrapping around for any wide sample.
+     */
+    @Test
+    public void testLimitMonotonicAndClipped()
+    {
+        short previous = AudioMixingPushBufferStream.limit(-40 * 32768);
+
+        for (int s = -40 * 32768 + 1; s <= 40 * 32768; s++)
+        {
+            short limited = AudioMixingPushBufferStream.limit(s);
+
+            assertTrue("limit(" + s + ")", limited >= previous);
+            assertTrue(limited <= Short.MAX_VALUE);
+            assertTrue(limited >= -Short.MAX_VALUE);
+            assertEquals(-limited, AudioMixingPushBufferStream.limit(-s));
+            previous = limited;
+        }
+
+        short max = AudioMixingPushBufferStream.limit(Integer.MAX_VALUE);
+        short min = AudioMixingPushBufferStream.limit(Integer.MIN_VALUE);
+
+        assertTrue(max > THRESHOLD && max <= Short.MAX_VALUE);
+        assertTrue(min < -THRESHOLD && min >= -Short.MAX_VALUE);
+        assertTrue(
+                max >= AudioMixingPushBufferStream.limit(40 * 32768));
+        assertTrue(
+                min <= AudioMixingPushBufferStream.limit(-40 * 32768));
+    }
+
+    /**
+     * Tests that the mix of a receiver excludes its own samples, however loud
+     * they are, and includes the samples of everybody else.
+     */
+    @Test
+    public void testMixMinus()
+    {
+        int n = 160;
+        short[] a = new short[n];
+        short[] b = new short[n];
+        short[] c = new short[n - 20];
+
+        for (int i = 0; i < n; i++)
+        {
+            a[i] = (i % 2 == 0) ? Short.MAX_VALUE : Short.MIN_VALUE;
+            b[i] = (short) (i * 100 - 8000);
+            if (i < c.length)
+                c[i] = (short) (3000 - i * 50);
+        }
+
+        InSampleDesc inSampleDesc
+            = new InSampleDesc(new short[][] { a, null, b, c }, null, null);
+        int[] sum = inSampleDesc.sumInSamples(n);
+
+        assertEquals(3, inSampleDesc.getInSampleCount());
+        assertSame(sum, inSampleDesc.getInSampleSum());
+        for (int i = 0; i < n; i++)
+        {
+            assertEquals(
+                    a[i] + b[i] + ((i < c.length) ? c[i] : 0),
+                    sum[i]);
+        }
+
+        // The receiver which sent a hears only b and c.
+        short[] out = mix(sum, new short[][] { a }, null, n);
+
+        for (int i = 0; i < n; i++)
+        {
+            assertEquals(
+                    AudioMixingPushBufferStream.limit(
+                            b[i] + ((i < c.length) ? c[i] : 0)),
+                    out[i]);
+        }
+
+        // The receiver which sent b and c hears only a.
+        out = mix(sum, new short[][] { b, c }, null, n);
+        for (int i = 0; i < n; i++)
+            assertEquals(AudioMixingPushBufferStream.limit(a[i]), out[i]);
+
+        // Nobody is excluded and a tone is added.
+        short[] tone = new short[n / 2];
+
+        Arrays.fill(tone, (short) 1000);
+        out = mix(sum, null, tone, n);
+        for (int i = 0; i < n; i++)
+        {
+            assertEquals(
+                    AudioMixingPushBufferStream.limit(
+                            sum[i] + ((i < tone.length) ? tone[i] : 0)),
+                    out[i]);
+        }
+    }
+
+    /**
+     * Tests that a mix which is longer than the sum is padded with silence
+     * and that a shorter one ignores the rest of the sum.
+     */
+    @Test
+    public void testMixLengths()
+    {
+        InSampleDesc inSampleDesc
+            = new InSampleDesc(
+                    new short[][] { { 1, 2, 3, 4 }, { 10, 20 } },
+                    null,
+                    null);
+        int[] sum = inSampleDesc.sumInSamples(4);
+
+        assertArrayEquals(new int[] { 11, 22, 3, 4 }, sum);
+        assertArrayEquals(
+                new short[] { 1, 2, 3, 4, 0, 0 },
+                mix(sum, new short[][] { { 10, 20 } }, null, 6));
+        assertArrayEquals(
+                new short[] { 10 },
+                mix(sum, new short[][] { { 1, 2, 3, 4 } }, null, 1));
+    }
+
+    /**
+     * Mixes into newly allocated arrays which are dirty so that the test
+     * notices any sample which the mix does not write.
+     */
+    private static short[] mix(
+            int[] sum,
+            short[][] subtracted,
+            short[] added,
+            int count)
+    {
+        int[] mixSamples = new int[count + 3];
+        short[] outSamples = new short[count];
+
+        Arrays.fill(mixSamples, 12345);
+        Arrays.fill(outSamples, (short) 12345);
+        AudioMixingPushBufferStream.mix(
+                sum,
+                subtracted,
+                added,
+                mixSamples,
+                outSamples,
+                count);
+        return outSamples;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MatroskaWriterTest
+{
+    /**
+     * An EBML element read back from the output of a
+     * <tt>MatroskaWriter</tt>.
+     */
+    private static class Element
+    {
+        int id;
+        int offset;
+        int dataOffset;
+        int size;
+    }
+
+    private static Element read(byte[] file, int off)
+    {
+        Element e = new Element();
+        int first = file[off] & 0xff;
+        int idLength = Integer.numberOfLeadingZeros(first) - 23;
+
+        e.offset = off;
+        for (int i = 0; i < idLength; i++)
+            e.id = (e.id << 8) | (file[off++] & 0xff);
+
+        first = file[off] & 0xff;
+
+        int sizeLength = Integer.numberOfLeadingZeros(first) - 23;
+        long size = first & (0xff >> sizeLength);
+
+        off++;
+        for (int i = 1; i < sizeLength; i++)
+            size = (size << 8) | (file[off++] & 0xff);
+        // An unknown size would not fit in an int.
+        assertTrue(size < Integer.MAX_VALUE);
+        e.size = (int) size;
+        e.dataOffset = off;
+        return e;
+    }
+
+    private static List<Element> children(byte[] file, Element parent)
+    {
+        List<Element> children = new ArrayList<>();
+        int end = parent.dataOffset + parent.size;
+
+        for (int off = parent.dataOffset; off < end;)
+        {
+            Element e = read(file, off);
+
+            children.add(e);
+            off = e.dataOffset + e.size;
+        }
+        assertTrue(children.isEmpty()
+                || children.get(children.size() - 1).dataOffset
+                    + children.get(children.size() - 1).size == end);
+        return children;
+    }
+
+    private static Element child(byte[] file, Element parent, int id)
+    {
+        for (Element e : children(file, parent))
+        {
+            if (e.id == id)
+                return e;
+        }
+        fail("No child " + Integer.toHexString(id));
+        return null;
+    }
+
+    private static long uint(byte[] file, Element e)
+    {
+        long value = 0;
+
+        for (int i = 0; i < e.size; i++)
+            value = (value << 8) | (file[e.dataOffset + i] & 0xff);
+        return value;
+    }
+
+    private void testWrite(int bufferSize, boolean asyncFlush)
+        throws IOException
+    {
+        File f = File.createTempFile("MatroskaWriterTest", ".webm");
+
+        try
+        {
+            MatroskaWriter writer
+                = new MatroskaWriter(f.getPath(), bufferSize, asyncFlush);
+            int video = writer.addVideoTrack(MatroskaWriter.CODEC_VP8, 64, 48);
+            int audio
+                = writer.addAudioTrack(
+                        MatroskaWriter.CODEC_OPUS,
+                        48000,
+                        2,
+                        OggOpusWriter.createOpusHead(2));
+            byte[] frame = new byte[1000];
+
+            // Ten seconds of video with a keyframe every three seconds, and
+            // audio.
+            for (int t = 0; t < 10000; t += 20)
+            {
+                if (t % 40 == 0)
+                {
+                    writer.writeFrame(
+                            video, frame, 0, frame.length,
+                            t, t % 3000 == 0, false);
+                }
+                writer.writeFrame(audio, frame, 0, 100, t, true, false);
+            }
+            writer.close();
+
+            byte[] file = Files.readAllBytes(f.toPath());
+            Element ebml = read(file, 0);
+
+            assertEquals(0x1A45DFA3, ebml.id);
+
+            Element segment = read(file, ebml.dataOffset + ebml.size);
+
+            assertEquals(0x18538067, segment.id);
+            assertEquals(file.length, segment.dataOffset + segment.size);
+
+            List<Element> top = children(file, segment);
+            Map<Integer, Integer> positions = new HashMap<>();
+            int clusters = 0;
+            int blocks = 0;
+
+            for (Element e : top)
+            {
+                positions.put(e.id, e.offset - segment.dataOffset);
+                if (e.id == 0x1F43B675)
+                {
+                    clusters++;
+                    for (Element b : children(file, e))
+                    {
+                        if (b.id == 0xA3)
+                            blocks++;
+                    }
+                }
+            }
+            assertEquals(0x114D9B74, top.get(0).id);
+            // A cluster per keyframe.
+            assertEquals(4, clusters);
+            assertEquals(250 + 500, blocks);
+
+            // The SeekHead points at the Info, the Tracks and the Cues.
+            int seeks = 0;
+
+            for (Element seek : children(file, top.get(0)))
+            {
+                Element id = child(file, seek, 0x53AB);
+                Element position = child(file, seek, 0x53AC);
+
+                assertEquals(
+                        positions.get((int) uint(file, id)).longValue(),
+                        uint(file, position));
+                seeks++;
+            }
+            assertEquals(3, seeks);
+
+            // The Cues point at the clusters.
+            Element cues
+                = read(file, positions.get(0x1C53BB6B) + segment.dataOffset);
+            List<Element> cuePoints = children(file, cues);
+
+            assertEquals(4, cuePoints.size());
+            for (int i = 0; i < cuePoints.size(); i++)
+            {
+                Element cuePoint = cuePoints.get(i);
+                Element trackPositions = child(file, cuePoint, 0xB7);
+                long clusterPosition
+                    = uint(file, child(file, trackPositions, 0xF1));
+
+                assertEquals(
+                        i * 3000L,
+                        uint(file, child(file, cuePoint, 0xB3)));
+                assertEquals(
+                        0x1F43B675,
+                        read(file, (int) clusterPosition + segment.dataOffset)
+                            .id);
+            }
+
+            // The Duration.
+            Element info
+                = read(file, positions.get(0x1549A966) + segment.dataOffset);
+            Element duration = child(file, info, 0x4489);
+
+            assertEquals(
+                    9980.0,
+                    ByteBuffer.wrap(file, duration.dataOffset, 8).getDouble(),
+                    0);
+        }
+        finally
+        {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testWrite()
+        throws IOException
+    {
+        testWrite(MatroskaWriter.DEFAULT_BUFFER_SIZE, false);
+    }
+
+    @Test
+    public void testWriteWithSmallAsyncBuffers()
+        throws IOException
+    {
+        testWrite(4096, true);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OggOpusWriterTest
+{
+    /**
+     * A page read back from the output of an <tt>OggOpusWriter</tt>.
+     */
+    private static class Page
+    {
+        int type;
+        long granule;
+        int seq;
+        List<Integer> packetLengths = new ArrayList<>();
+    }
+
+    /**
+     * Computes the Ogg CRC-32 bit by bit.
+     */
+    private static int crc(byte[] buf, int off, int len)
+    {
+        int crc = 0;
+
+        for (int i = off; i < off + len; i++)
+        {
+            crc ^= (buf[i] & 0xff) << 24;
+            for (int j = 0; j < 8; j++)
+                crc = (crc < 0) ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+        }
+        return crc;
+    }
+
+    private static List<Page> parse(byte[] file)
+    {
+        List<Page> pages = new ArrayList<>();
+        ByteBuffer bb = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        int off = 0;
+
+        while (off < file.length)
+        {
+            assertEquals('O', file[off]);
+            assertEquals('g', file[off + 1]);
+            assertEquals('g', file[off + 2]);
+            assertEquals('S', file[off + 3]);
+
+            Page page = new Page();
+
+            page.type = file[off + 5];
+            page.granule = bb.getLong(off + 6);
+            page.seq = bb.getInt(off + 18);
+
+            int crc = bb.getInt(off + 22);
+            int segments = file[off + 26] & 0xff;
+            int length = 27 + segments;
+            int packetLength = 0;
+
+            for (int i = 0; i < segments; i++)
+            {
+                int lacing = file[off + 27 + i] & 0xff;
+
+                length += lacing;
+                packetLength += lacing;
+                if (lacing < 255)
+                {
+                    page.packetLengths.add(packetLength);
+                    packetLength = 0;
+                }
+            }
+
+            byte[] copy = Arrays.copyOfRange(file, off, off + length);
+
+            Arrays.fill(copy, 22, 26, (byte) 0);
+            assertEquals(crc(copy, 0, copy.length), crc);
+
+            pages.add(page);
+            off += length;
+        }
+        return pages;
+    }
+
+    @Test
+    public void testGetSamples()
+    {
+        // CELT-only, 20 ms, one frame.
+        assertEquals(
+                960,
+                OggOpusWriter.getSamples(OggOpusWriter.SILENCE_FRAME, 0, 3));
+        // SILK-only, 60 ms, two frames.
+        assertEquals(
+                5760,
+                OggOpusWriter.getSamples(new byte[] { 0x19, 0 }, 0, 2));
+        // Hybrid, 10 ms, three frames (code 3).
+        assertEquals(
+                1440,
+                OggOpusWriter.getSamples(new byte[] { 0x63, 3 }, 0, 2));
+        // Code 3 without the frame count byte.
+        assertEquals(-1, OggOpusWriter.getSamples(new byte[] { 0x63 }, 0, 1));
+        // Longer than 120 ms.
+        assertEquals(
+                -1,
+                OggOpusWriter.getSamples(new byte[] { 0x1b, 3 }, 0, 2));
+        assertEquals(-1, OggOpusWriter.getSamples(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void testPages()
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 2);
+        byte[] packet = new byte[300];
+
+        packet[0] = (byte) 0xf8;
+        // Two seconds of 20 ms packets.
+        for (int i = 0; i < 100; i++)
+            writer.writePacket(packet, 0, packet.length, 960);
+        writer.writeSilence(3 * 960 + 100);
+        assertEquals(103 * 960, writer.getGranulePosition());
+        writer.close();
+
+        List<Page> pages = parse(out.toByteArray());
+
+        // OpusHead
+        assertEquals(0x02, pages.get(0).type);
+        assertEquals(0, pages.get(0).granule);
+        assertEquals(Arrays.asList(19), pages.get(0).packetLengths);
+        // OpusTags
+        assertEquals(0, pages.get(1).type);
+        assertEquals(0, pages.get(1).granule);
+
+        int packets = 0;
+
+        for (int i = 0; i < pages.size(); i++)
+        {
+            Page page = pages.get(i);
+
+            assertEquals(i, page.seq);
+            if (i > 1)
+            {
+                packets += page.packetLengths.size();
+                assertTrue(page.granule <= 103 * 960);
+            }
+        }
+        assertEquals(103, packets);
+
+        Page last = pages.get(pages.size() - 1);
+
+        assertEquals(0x04, last.type);
+        assertEquals(103 * 960, last.granule);
+        assertEquals(
+                Arrays.asList(3, 3, 3),
+                last.packetLengths.subList(
+                        last.packetLengths.size() - 3,
+                        last.packetLengths.size()));
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+/**
+ * Tests the reordering, loss concealment and splitting of
+ * <tt>OpusRecording</tt> with writers which keep the packets in memory.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class OpusRecordingTest
+{
+    /**
+     * The duration in samples of the packets of the tests.
+     */
+    private static final int SAMPLES = OggOpusWriter.SILENCE_FRAME_SAMPLES;
+
+    /**
+     * The packet written by {@link OpusPacketWriter#writeSilence(long)} as
+     * recorded by a {@link MemoryWriter}.
+     */
+    private static final int SILENCE = -1;
+
+    /**
+     * A writer which keeps the tags of the packets written into it.
+     */
+    private static class MemoryWriter
+        implements OpusPacketWriter
+    {
+        final List<Integer> packets = new ArrayList<>();
+
+        boolean closed;
+
+        @Override
+        public void writePacket(byte[] buf, int off, int len, int samples)
+        {
+            assertFalse(closed);
+            if (buf == OggOpusWriter.SILENCE_FRAME)
+            {
+                packets.add(SILENCE);
+            }
+            else
+            {
+                assertEquals(2, len);
+                assertEquals(SAMPLES, samples);
+                packets.add((buf[off] & 0xff) << 8 | (buf[off + 1] & 0xff));
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    /**
+     * The writers created by {@link #recording} in the order of their
+     * creation.
+     */
+    private final List<MemoryWriter> writers = new ArrayList<>();
+
+    /**
+     * The RTP timestamps with which {@link #recording} has started files.
+     */
+    private final List<Long> startTimestamps = new ArrayList<>();
+
+    private OpusRecording recording;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createNiceMock(ConfigurationService.class);
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+
+        String prefix
+            = new File(
+                    System.getProperty("java.io.tmpdir"),
+                    "OpusRecordingTest-" + System.nanoTime())
+                .getPath();
+
+        recording
+            = new OpusRecording(
+                    1234,
+                    (byte) 1,
+                    prefix,
+                    ".opus",
+                    false,
+                    (ssrc, rtpTimestamp, filename)
+                        -> startTimestamps.add(rtpTimestamp))
+            {
+                @Override
+                OpusPacketWriter createWriter(String filename)
+                {
+                    MemoryWriter writer = new MemoryWriter();
+
+                    writers.add(writer);
+                    return writer;
+                }
+            };
+    }
+
+    /**
+     * Adds a 20 ms CELT packet tagged with its sequence number.
+     */
+    private void add(int seq, long timestamp)
+    {
+        byte[] buf = new byte[RawPacket.FIXED_HEADER_SIZE + 2];
+        RawPacket pkt = new RawPacket(buf, 0, buf.length);
+
+        pkt.setVersion();
+        pkt.setPayloadType((byte) 111);
+        pkt.setSSRC(1234);
+        pkt.setSequenceNumber(seq);
+        pkt.setTimestamp(timestamp);
+        // TOC: CELT-only, fullband, 20 ms, one frame.
+        buf[RawPacket.FIXED_HEADER_SIZE] = (byte) 0xf8;
+        buf[RawPacket.FIXED_HEADER_SIZE + 1] = (byte) seq;
+        recording.addPacket(pkt);
+    }
+
+    /**
+     * Adds packets with sequence numbers and contiguous timestamps.
+     */
+    private void addAll(int... seqs)
+    {
+        for (int seq : seqs)
+            add(seq, (long) seq * SAMPLES);
+    }
+
+    /**
+     * Gets the expected tags of packets with specific sequence numbers or
+     * {@link #SILENCE}.
+     */
+    private static List<Integer> packets(int... seqs)
+    {
+        List<Integer> packets = new ArrayList<>();
+
+        for (int seq : seqs)
+            packets.add((seq == SILENCE) ? SILENCE : (0xf8 << 8 | seq & 0xff));
+        return packets;
+    }
+
+    @Test
+    public void testReorder()
+    {
+        addAll(0, 2, 1, 4, 3, 7, 5, 6);
+        // A duplicate and a packet which is too late.
+        addAll(5, 1);
+        recording.close();
+
+        assertEquals(1, writers.size());
+        assertTrue(writers.get(0).closed);
+        assertEquals(packets(0, 1, 2, 3, 4, 5, 6, 7), writers.get(0).packets);
+        assertEquals(Collections.singletonList(0L), startTimestamps);
+    }
+
+    @Test
+    public void testLoss()
+    {
+        // 2 is lost and filled with silence once the window has been flushed.
+        addAll(0, 1, 3, 4);
+        recording.close();
+
+        assertEquals(1, writers.size());
+        assertEquals(packets(0, 1, SILENCE, 3, 4), writers.get(0).packets);
+    }
+
+    @Test
+    public void testLossBeyondWindow()
+    {
+        // The window does not wait for 1-19 once 20 arrives but 20 waits
+        // for the ones which still fit in the window before it.
+        addAll(0, 20);
+
+        MemoryWriter writer = writers.get(0);
+
+        assertEquals(packets(0), writer.packets);
+
+        // 19 is just in time.
+        addAll(19);
+        recording.close();
+
+        int[] expected = new int[21];
+
+        Arrays.fill(expected, SILENCE);
+        expected[0] = 0;
+        expected[19] = 19;
+        expected[20] = 20;
+        assertEquals(packets(expected), writer.packets);
+    }
+
+    @Test
+    public void testDiscontinuousTimestamps()
+    {
+        // DTX: the sequence numbers are contiguous but the timestamps are
+        // not.
+        add(0, 0);
+        add(1, 50 * SAMPLES);
+        // An overlap with what has been written already is dropped.
+        add(2, 50 * SAMPLES + SAMPLES / 2);
+        add(3, 51 * SAMPLES);
+        recording.close();
+
+        int[] expected = new int[52];
+
+        Arrays.fill(expected, SILENCE);
+        expected[0] = 0;
+        expected[50] = 1;
+        expected[51] = 3;
+        assertEquals(1, writers.size());
+        assertEquals(packets(expected), writers.get(0).packets);
+    }
+
+    @Test
+    public void testLongPause()
+    {
+        int maxSilence = 3 * OggOpusWriter.SAMPLE_RATE;
+
+        // A pause of exactly the maximum is filled with silence.
+        add(0, 0);
+        add(1, SAMPLES + maxSilence);
+        assertEquals(1, writers.size());
+        assertEquals(
+                2 + maxSilence / SAMPLES,
+                writers.get(0).packets.size());
+
+        // A longer one starts a new file.
+        long timestamp = 2 * SAMPLES + 2L * maxSilence + 1;
+
+        add(2, timestamp);
+        add(3, timestamp + SAMPLES);
+        recording.close();
+
+        assertEquals(2, writers.size());
+        assertTrue(writers.get(0).closed);
+        assertTrue(writers.get(1).closed);
+        assertEquals(packets(2, 3), writers.get(1).packets);
+        assertEquals(Arrays.asList(0L, timestamp), startTimestamps);
+    }
+
+    @Test
+    public void testSequenceNumberJump()
+    {
+        // 2 waits for 1 when the sender starts over with new sequence
+        // numbers so it is written (after the silence of 1) first.
+        addAll(0, 2);
+        add(30000, 3 * SAMPLES);
+        add(30001, 4 * SAMPLES);
+        recording.close();
+
+        assertEquals(1, writers.size());
+        assertEquals(
+                packets(0, SILENCE, 2, 30000, 30001),
+                writers.get(0).packets);
+    }
+
+    @Test
+    public void testSequenceNumberWrap()
+    {
+        add(65534, 0);
+        add(0, 2 * SAMPLES);
+        add(65535, SAMPLES);
+        add(1, 3 * SAMPLES);
+        recording.close();
+
+        assertEquals(1, writers.size());
+        assertEquals(packets(65534, 65535, 0, 1), writers.get(0).packets);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.recording;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PacketBufferTest
+{
+    private static final byte VP8_PT = 100;
+
+    private static final long SSRC = 1234;
+
+    private static final long OTHER_SSRC = 5678;
+
+    /**
+     * Creates a VP8 RTP packet.
+     */
+    private static RawPacket vp8(
+            int pt, int seq, long ts, boolean start, boolean marker)
+    {
+        return vp8(SSRC, pt, seq, ts, start, marker);
+    }
+
+    /**
+     * Creates a VP8 RTP packet with a specific SSRC.
+     */
+    private static RawPacket vp8(
+            long ssrc,
+            int pt, int seq, long ts, boolean start, boolean marker)
+    {
+        byte[] buf = new byte[12 + 1 + 10];
+
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) ((marker ? 0x80 : 0) | pt);
+        buf[2] = (byte) (seq >> 8);
+        buf[3] = (byte) seq;
+        buf[4] = (byte) (ts >> 24);
+        buf[5] = (byte) (ts >> 16);
+        buf[6] = (byte) (ts >> 8);
+        buf[7] = (byte) ts;
+        buf[8] = (byte) (ssrc >> 24);
+        buf[9] = (byte) (ssrc >> 16);
+        buf[10] = (byte) (ssrc >> 8);
+        buf[11] = (byte) ssrc;
+        // The S bit of the VP8 payload descriptor, with partition ID 0.
+        buf[12] = (byte) (start ? 0x10 : 0);
+        return new RawPacket(buf, 0, buf.length);
+    }
+
+    /**
+     * Passes a packet through a <tt>PacketBuffer</tt> and returns the
+     * sequence numbers of the packets which come out.
+     */
+    private static List<Integer> insert(PacketBuffer buffer, RawPacket pkt)
+    {
+        List<Integer> seqs = new ArrayList<>();
+
+        for (RawPacket out : buffer.reverseTransform(new RawPacket[] { pkt }))
+        {
+            if (out != null)
+                seqs.add(out.getSequenceNumber());
+        }
+        return seqs;
+    }
+
+    private static PacketBuffer createPacketBuffer(long maxDelay)
+    {
+        PacketBuffer buffer = new PacketBuffer(64, maxDelay);
+
+        buffer.addPayloadType(VP8_PT, Constants.VP8);
+        return buffer;
+    }
+
+    @Test
+    public void testReleaseCompleteFrames()
+    {
+        PacketBuffer buffer = createPacketBuffer(10000);
+
+        // The first frame is complete as soon as it is received.
+        assertEquals(
+                Arrays.asList(65534),
+                insert(buffer, vp8(VP8_PT, 65534, 0, true, true)));
+        // The second frame arrives out of order, across the wrap.
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 0, 3000, false, false)));
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 1, 3000, false, true)));
+        assertEquals(
+                Arrays.asList(65535, 0, 1),
+                insert(buffer, vp8(VP8_PT, 65535, 3000, true, false)));
+        // Late and duplicate packets are dropped.
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 0, 3000, false, false)));
+        // Other payload types are not buffered.
+        assertEquals(
+                Arrays.asList(5),
+                insert(buffer, vp8(111, 5, 0, true, true)));
+    }
+
+    @Test
+    public void testMaxDelay()
+        throws InterruptedException
+    {
+        PacketBuffer buffer = createPacketBuffer(50);
+
+        assertEquals(
+                Arrays.asList(10),
+                insert(buffer, vp8(VP8_PT, 10, 0, true, true)));
+        // 11 is lost.
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 12, 3000, false, true)));
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 13, 6000, true, false)));
+
+        Thread.sleep(100);
+
+        // The missing packet is given up on, and the next frame is released
+        // as soon as it is complete.
+        assertEquals(
+                Arrays.asList(12, 13, 14),
+                insert(buffer, vp8(VP8_PT, 14, 6000, false, true)));
+    }
+
+    @Test
+    public void testMaxDelayWhenSsrcStopsSending()
+        throws InterruptedException
+    {
+        PacketBuffer buffer = createPacketBuffer(50);
+
+        assertEquals(
+                Arrays.asList(10),
+                insert(buffer, vp8(VP8_PT, 10, 0, true, true)));
+        // 11 is lost and SSRC stops sending.
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 12, 3000, false, true)));
+
+        Thread.sleep(100);
+
+        // The packets of SSRC are released when another SSRC is received.
+        assertEquals(
+                Arrays.asList(500, 12),
+                insert(
+                        buffer,
+                        vp8(OTHER_SSRC, VP8_PT, 500, 0, true, true)));
+    }
+
+    @Test
+    public void testEmptyBuffer()
+    {
+        PacketBuffer buffer = createPacketBuffer(10000);
+
+        insert(buffer, vp8(VP8_PT, 100, 0, true, false));
+        insert(buffer, vp8(VP8_PT, 102, 0, false, true));
+        buffer.disable(SSRC);
+        assertEquals(
+                Collections.emptyList(),
+                insert(buffer, vp8(VP8_PT, 101, 0, false, false)));
+
+        RawPacket[] pkts = buffer.emptyBuffer(SSRC);
+
+        assertEquals(2, pkts.length);
+        assertEquals(100, pkts[0].getSequenceNumber());
+        assertEquals(102, pkts[1].getSequenceNumber());
+
+        buffer.reset(SSRC);
+        assertEquals(
+                Arrays.asList(200),
+                insert(buffer, vp8(VP8_PT, 200, 0, true, true)));
+    }
+}
@@ -19,6 +19,8 @@
 import org.jitsi.utils.logging.*;
 import org.junit.*;
 
+import java.util.*;
+
 import static org.junit.Assert.*;
 
 /**
@@ -230,4 +232,179 @@ public void createAndParse2()
         nextReferenceTime250us = nextReferenceTime250us + (17 << 2);
         assertEquals(nextReferenceTime250us, (long) after.get(1274));
     }
+
+    /**
+     * Writes the packets in a {@link TCCPacketRing} with a
+     * {@link TCCFciWriter}, parses the result (including the packets reported
+     * as not received) and checks that every packet in the window of the ring
+     * comes back with its timestamp.
+     *
+     * @return the FCI which was written.
+     */
+    private static byte[] writeAndParse(TCCPacketRing ring)
+    {
+        TCCFciWriter writer = new TCCFciWriter(new DiagnosticContext());
+        int fciLength = writer.writeFci(ring, 5, 0);
+        byte[] fci = Arrays.copyOf(writer.getBuffer(), fciLength);
+
+        List<Integer> seqs = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+
+        assertTrue(
+            RTCPTCCPacket.readPacketsFromFci(
+                new ByteArrayBufferImpl(fci),
+                true /* includeNotReceived */,
+                (seq, ts) -> {
+                    seqs.add(seq);
+                    times.add(ts);
+                }));
+
+        int firstSeq = ring.getFirstSeq();
+        long referenceTimeMs = ring.getTime(firstSeq);
+        referenceTimeMs -= referenceTimeMs % 64;
+        // As in createAndParse2, the parsed reference time is a 32-bit int.
+        int referenceTime64ms = (int) ((referenceTimeMs >> 6) & 0xffffff);
+        long referenceTime250us = referenceTime64ms << 8;
+
+        assertEquals(ring.getPacketCount(), seqs.size());
+        for (int i = 0; i < seqs.size(); i++)
+        {
+            int seq = (firstSeq + i) & 0xffff;
+            long ts = ring.getTime(seq);
+            long expected
+                = ts < 0
+                    ? -1
+                    : referenceTime250us + ((ts - referenceTimeMs) << 2);
+
+            assertEquals(seq, (int) seqs.get(i));
+            assertEquals("seq=" + seq, expected, (long) times.get(i));
+        }
+        return fci;
+    }
+
+    /**
+     * @return the packet status chunk at a specific index in an FCI.
+     */
+    private static int getChunk(byte[] fci, int index)
+    {
+        int off = RTCPTCCPacket.PACKET_STATUS_CHUNK_OFFSET + 2 * index;
+
+        return ((fci[off] & 0xff) << 8) | (fci[off + 1] & 0xff);
+    }
+
+    @Test
+    public void writeRunLengthChunk()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        for (int i = 0; i < 100; i++)
+        {
+            ring.put(1000 + i, now + i);
+        }
+
+        byte[] fci = writeAndParse(ring);
+
+        // Run length, small delta, 100 packets.
+        assertEquals(0x2000 | 100, getChunk(fci, 0));
+    }
+
+    @Test
+    public void writeOneBitVectorChunk()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        // Every other packet is lost.
+        for (int i = 0; i < 15; i += 2)
+        {
+            ring.put(2000 + i, now + i);
+        }
+
+        byte[] fci = writeAndParse(ring);
+
+        // A vector of 14 1-bit symbols: R, NR, R, NR...
+        assertEquals(0x8000 | 0x2aaa, getChunk(fci, 0));
+        // The last packet: a run of one small delta.
+        assertEquals(0x2000 | 1, getChunk(fci, 1));
+    }
+
+    @Test
+    public void writeTwoBitVectorChunk()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        ring.put(3000, now);
+        ring.put(3001, now + 1);
+        // A large delta.
+        ring.put(3002, now + 500);
+        ring.put(3004, now + 501);
+        ring.put(3005, now + 501);
+        ring.put(3006, now + 502);
+        ring.put(3007, now + 503);
+        ring.put(3008, now + 504);
+
+        byte[] fci = writeAndParse(ring);
+
+        // A vector of 7 2-bit symbols: S, S, L, NR, S, S, S.
+        assertEquals(0xc000 | 0x1615, getChunk(fci, 0));
+        // The two remaining packets: a run of small deltas.
+        assertEquals(0x2000 | 2, getChunk(fci, 1));
+    }
+
+    @Test
+    public void writeLargeAndNegativeDeltas()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        ring.put(4000, now);
+        // Reordered on the network.
+        ring.put(4001, now - 10);
+        ring.put(4002, now + 2000);
+        ring.put(4003, now + 1990);
+        // Right below the largest delta that can be written.
+        ring.put(4004, now + 1990 + 8190);
+        ring.put(4005, now + 1990 + 8190 - 8191);
+
+        writeAndParse(ring);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeTooLargeDelta()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        ring.put(5000, now);
+        ring.put(5001, now + 8191);
+
+        new TCCFciWriter(new DiagnosticContext()).writeFci(ring, 0, 0);
+    }
+
+    @Test
+    public void writeAcrossSequenceNumberWrap()
+    {
+        TCCPacketRing ring
+            = new TCCPacketRing(RTCPTCCPacket.MAX_PACKET_COUNT, false);
+        long now = 1489968000021L;
+
+        for (int i = 0; i < 40; i++)
+        {
+            // Lose a few packets around the wrap.
+            if (i != 5 && i != 6 && i != 10)
+                ring.put((65530 + i) & 0xffff, now + 3 * i);
+        }
+
+        byte[] fci = writeAndParse(ring);
+
+        assertEquals(65530, (fci[0] & 0xff) << 8 | (fci[1] & 0xff));
+        assertEquals(40, (fci[2] & 0xff) << 8 | (fci[3] & 0xff));
+    }
 }
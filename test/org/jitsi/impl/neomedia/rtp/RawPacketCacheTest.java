@@ -0,0 +1,233 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class RawPacketCacheTest
+{
+    private static final long SSRC = 1234;
+
+    /**
+     * The default of {@link RawPacketCache#NACK_CACHE_SIZE_PACKETS}, which is
+     * not a power of two.
+     */
+    private static final int MAX_SIZE_PACKETS = 500;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    /**
+     * Creates an RTP packet the payload of which is derived from its sequence
+     * number.
+     */
+    private static RawPacket packet(int seq)
+    {
+        byte[] buf = new byte[12 + 4 + (seq & 0xff)];
+
+        buf[0] = (byte) 0x80;
+        buf[1] = 100;
+        buf[2] = (byte) (seq >> 8);
+        buf[3] = (byte) seq;
+        buf[8] = (byte) (SSRC >> 24);
+        buf[9] = (byte) (SSRC >> 16);
+        buf[10] = (byte) (SSRC >> 8);
+        buf[11] = (byte) SSRC;
+        Arrays.fill(buf, 12, buf.length, (byte) seq);
+        return new RawPacket(buf, 0, buf.length);
+    }
+
+    /**
+     * Checks that a packet returned by the cache is (a copy of) the packet
+     * with a specific sequence number.
+     */
+    private static void assertPacket(int seq, RawPacket pkt)
+    {
+        assertNotNull("missing " + seq, pkt);
+        assertEquals(seq, pkt.getSequenceNumber());
+        assertEquals(12 + 4 + (seq & 0xff), pkt.getLength());
+
+        byte[] buf = pkt.getBuffer();
+
+        for (int i = pkt.getOffset() + 12;
+                i < pkt.getOffset() + pkt.getLength();
+                i++)
+        {
+            assertEquals((byte) seq, buf[i]);
+        }
+    }
+
+    @Test
+    public void testWraparound()
+        throws Exception
+    {
+        try (RawPacketCache cache = new RawPacketCache(0))
+        {
+            // Across the wrap of the RTP sequence numbers and more than once
+            // around the ring.
+            int first = 65000;
+            int count = 3 * MAX_SIZE_PACKETS;
+
+            for (int i = 0; i < count; i++)
+            {
+                cache.cachePacket(packet((first + i) & 0xffff));
+            }
+
+            int last = (first + count - 1) & 0xffff;
+
+            for (int i = 0; i < MAX_SIZE_PACKETS; i++)
+            {
+                int seq = (last - i) & 0xffff;
+
+                assertPacket(seq, cache.get(SSRC, seq));
+            }
+            assertNull(cache.get(SSRC, (last + 1) & 0xffff));
+        }
+    }
+
+    @Test
+    public void testEviction()
+        throws Exception
+    {
+        try (RawPacketCache cache = new RawPacketCache(0))
+        {
+            for (int seq = 0; seq < 2 * MAX_SIZE_PACKETS; seq++)
+            {
+                cache.cachePacket(packet(seq));
+            }
+
+            int last = 2 * MAX_SIZE_PACKETS - 1;
+            int oldest = last - MAX_SIZE_PACKETS + 1;
+
+            // No more than MAX_SIZE_PACKETS packets are kept although the ring
+            // has more slots.
+            assertPacket(oldest, cache.get(SSRC, oldest));
+            assertNull(cache.get(SSRC, oldest - 1));
+            assertNull(cache.get(SSRC, 0));
+            assertEquals(
+                    MAX_SIZE_PACKETS,
+                    cache.getMany(SSRC, Integer.MAX_VALUE).size());
+
+            // Packets older than SIZE_MILLIS are evicted on the next insert.
+            long old = System.currentTimeMillis() - 60_000;
+
+            for (int seq = oldest; seq < oldest + 10; seq++)
+            {
+                cache.updateTimestamp(SSRC, seq, old);
+            }
+            cache.cachePacket(packet(last + 1));
+            for (int seq = oldest; seq < oldest + 10; seq++)
+            {
+                assertNull(cache.get(SSRC, seq));
+            }
+            assertPacket(oldest + 10, cache.get(SSRC, oldest + 10));
+
+            // A packet from before the window is not cached.
+            cache.cachePacket(packet(0));
+            assertNull(cache.get(SSRC, 0));
+        }
+    }
+
+    @Test
+    public void testConcurrentGetAndPut()
+        throws Exception
+    {
+        try (RawPacketCache cache = new RawPacketCache(0))
+        {
+            AtomicInteger highest = new AtomicInteger(-1);
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            ExecutorService readers = Executors.newFixedThreadPool(2);
+            CountDownLatch done = new CountDownLatch(2);
+
+            for (int r = 0; r < 2; r++)
+            {
+                readers.execute(() -> {
+                    Random random = new Random();
+
+                    try
+                    {
+                        while (!stop.get())
+                        {
+                            int h = highest.get();
+
+                            if (h < 0)
+                                continue;
+
+                            // Ask for recent packets, which the writer is
+                            // about to overwrite in the ring too.
+                            int seq
+                                = (h - random.nextInt(MAX_SIZE_PACKETS))
+                                    & 0xffff;
+                            RawPacket pkt = cache.get(SSRC, seq);
+
+                            if (pkt != null)
+                                assertPacket(seq, pkt);
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failure.compareAndSet(null, t);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                });
+            }
+
+            for (int i = 0; i < 200_000; i++)
+            {
+                cache.cachePacket(packet(i & 0xffff));
+                highest.set(i & 0xffff);
+            }
+            stop.set(true);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            readers.shutdown();
+
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.pacing;
+
+import org.junit.*;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PacerTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static Pacer<byte[]> createPacer(int capacity)
+    {
+        return new Pacer<>(capacity, pkt -> pkt.length, 10 * MS, 500 * MS);
+    }
+
+    @Test
+    public void unpacedOrdersByPriority()
+    {
+        Pacer<byte[]> pacer = createPacer(10);
+        byte[] video = new byte[1000];
+        byte[] rtx = new byte[1000];
+        byte[] audio = new byte[100];
+        byte[] padding = new byte[200];
+
+        pacer.offer(padding, PacketPriority.PADDING);
+        pacer.offer(video, PacketPriority.VIDEO);
+        pacer.offer(rtx, PacketPriority.RETRANSMISSION);
+        pacer.offer(audio, PacketPriority.AUDIO);
+
+        long now = System.nanoTime();
+
+        assertEquals(0, pacer.getDelayNanos(now));
+        assertSame(audio, pacer.poll(now));
+        assertSame(rtx, pacer.poll(now));
+        assertSame(video, pacer.poll(now));
+        assertSame(padding, pacer.poll(now));
+        assertNull(pacer.poll(now));
+        assertEquals(-1, pacer.getDelayNanos(now));
+    }
+
+    @Test
+    public void pacesAtBitrate()
+    {
+        Pacer<byte[]> pacer = createPacer(10);
+
+        // 1000 bytes per millisecond.
+        pacer.setBitrate(8_000_000);
+        for (int i = 0; i < 3; i++)
+        {
+            pacer.offer(new byte[1000], PacketPriority.VIDEO);
+        }
+
+        long now = System.nanoTime();
+
+        // The bucket starts empty (but not in debt).
+        assertNotNull(pacer.poll(now));
+
+        long delay = pacer.getDelayNanos(now);
+
+        assertTrue(delay > 0 && delay <= MS);
+        assertNull(pacer.poll(now));
+
+        // Audio is never delayed.
+        byte[] audio = new byte[100];
+
+        pacer.offer(audio, PacketPriority.AUDIO);
+        assertEquals(0, pacer.getDelayNanos(now));
+        assertSame(audio, pacer.poll(now));
+
+        assertNotNull(pacer.poll(now + 2 * MS));
+        assertEquals(1, pacer.size());
+    }
+
+    @Test
+    public void dropsLowestPriorityWhenFull()
+    {
+        Pacer<byte[]> pacer = createPacer(2);
+        byte[] padding = new byte[1];
+        byte[] video = new byte[1];
+        byte[] audio = new byte[1];
+
+        assertNull(pacer.offer(padding, PacketPriority.PADDING));
+        assertNull(pacer.offer(video, PacketPriority.VIDEO));
+        assertSame(padding, pacer.offer(audio, PacketPriority.AUDIO));
+
+        // All queued packets have higher priorities than the new one.
+        byte[] padding2 = new byte[1];
+
+        assertSame(padding2, pacer.offer(padding2, PacketPriority.PADDING));
+        assertEquals(2, pacer.size());
+    }
+}
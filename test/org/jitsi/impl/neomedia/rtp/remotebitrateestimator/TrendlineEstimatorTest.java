@@ -0,0 +1,65 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.remotebitrateestimator;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class TrendlineEstimatorTest
+{
+    @Test
+    public void flatDelayHasNoTrend()
+    {
+        TrendlineEstimator trendline = new TrendlineEstimator();
+
+        for (int i = 0; i < 40; i++)
+        {
+            trendline.update(5, 5, i * 5);
+        }
+
+        assertEquals(0, trendline.getTrendlineSlope(), 1e-9);
+        assertEquals(40, trendline.getNumOfDeltas());
+    }
+
+    @Test
+    public void growingDelayHasPositiveTrend()
+    {
+        TrendlineEstimator trendline = new TrendlineEstimator();
+
+        // Every group arrives 1ms later than it was sent relative to the
+        // previous one, i.e. a queue builds up.
+        for (int i = 0; i < 40; i++)
+        {
+            trendline.update(6, 5, i * 6);
+        }
+
+        assertTrue(trendline.getTrendlineSlope() > 0);
+    }
+
+    @Test
+    public void noTrendUntilWindowIsFull()
+    {
+        TrendlineEstimator trendline = new TrendlineEstimator();
+
+        for (int i = 0; i < TrendlineEstimator.kDefaultWindowSize - 1; i++)
+        {
+            trendline.update(10, 5, i * 10);
+        }
+
+        assertEquals(0, trendline.getTrendlineSlope(), 0);
+    }
+}
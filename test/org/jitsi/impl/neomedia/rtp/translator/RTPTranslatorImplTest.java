@@ -0,0 +1,239 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.translator;
+
+import static org.junit.Assert.*;
+
+import org.jitsi.util.*;
+import org.junit.*;
+
+/**
+ * Tests the routing of receive SSRCs by <tt>RTPTranslatorImpl</tt> and of
+ * RTCP feedback messages by <tt>OutputDataStreamImpl</tt>.
+ */
+public class RTPTranslatorImplTest
+{
+    private RTPTranslatorImpl translator;
+
+    @Before
+    public void setUp()
+    {
+        translator = new RTPTranslatorImpl();
+    }
+
+    @After
+    public void tearDown()
+    {
+        translator.dispose();
+    }
+
+    /**
+     * Tests that a receive SSRC is claimed by the first
+     * <tt>StreamRTPManagerDesc</tt> which receives it and by no other.
+     */
+    @Test
+    public void testSingleOwner()
+    {
+        StreamRTPManagerDesc a = new StreamRTPManagerDesc(null);
+        StreamRTPManagerDesc b = new StreamRTPManagerDesc(null);
+        int ssrc = 0xcafebabe;
+
+        assertNull(find(ssrc, null));
+        assertTrue(translator.addReceiveSSRC(a, ssrc));
+        assertFalse(translator.addReceiveSSRC(b, ssrc));
+        assertTrue(translator.addReceiveSSRC(a, ssrc));
+
+        assertSame(a, find(ssrc, null));
+        assertNull(find(ssrc, a));
+        assertSame(a, find(ssrc, b));
+        assertArrayEquals(new int[] { ssrc }, a.getReceiveSSRCs());
+        assertEquals(0, b.getReceiveSSRCs().length);
+
+        assertTrue(translator.addReceiveSSRC(b, ssrc + 1));
+        assertSame(
+                b,
+                find(ssrc + 1, null));
+    }
+
+    /**
+     * Tests that a packet which was read before its
+     * <tt>StreamRTPManagerDesc</tt> was disposed of but gets to claim its SSRC
+     * after that does not route the SSRC to the disposed
+     * <tt>StreamRTPManagerDesc</tt> and that the SSRC can be claimed by
+     * another one afterwards.
+     */
+    @Test
+    public void testDisposeRacingDidRead()
+    {
+        StreamRTPManagerDesc a = new StreamRTPManagerDesc(null);
+        StreamRTPManagerDesc b = new StreamRTPManagerDesc(null);
+        int ssrc1 = 1;
+        int ssrc2 = 2;
+
+        assertTrue(translator.addReceiveSSRC(a, ssrc1));
+
+        // didRead has found ssrc2 unclaimed and is about to claim it for a
+        // when a is disposed of.
+        translator.removeReceiveSSRCs(a);
+        assertTrue(a.disposed);
+        assertNull(find(ssrc1, null));
+
+        assertFalse(translator.addReceiveSSRC(a, ssrc2));
+        assertFalse(translator.addReceiveSSRC(a, ssrc1));
+        assertNull(find(ssrc2, null));
+
+        // The SSRCs are free to be claimed by the live StreamRTPManagerDesc.
+        assertTrue(translator.addReceiveSSRC(b, ssrc1));
+        assertTrue(translator.addReceiveSSRC(b, ssrc2));
+
+        // Disposing of a again must not take b's SSRCs away.
+        translator.removeReceiveSSRCs(a);
+        assertSame(b, find(ssrc1, null));
+        assertSame(b, find(ssrc2, null));
+    }
+
+    /**
+     * Tests that a FIR is routed by the SSRC of its first FCI entry rather than
+     * by its media source field which FIR does not use.
+     */
+    @Test
+    public void testFIRRouting()
+    {
+        StreamRTPManagerDesc a = new StreamRTPManagerDesc(null);
+        StreamRTPManagerDesc b = new StreamRTPManagerDesc(null);
+        int ssrcA = 0x11111111;
+        int ssrcB = 0xfedcba98;
+
+        translator.addReceiveSSRC(a, ssrcA);
+        translator.addReceiveSSRC(b, ssrcB);
+
+        // The media source field is ssrcA but FIR ignores it.
+        byte[] fir = createFB(206, 4, ssrcA, 20);
+
+        RTPUtils.writeInt(fir, 12, ssrcB);
+
+        long ssrc
+            = OutputDataStreamImpl.getSSRCOfMediaSource(fir, 0, fir.length);
+
+        assertEquals(ssrcB & 0xffffffffL, ssrc);
+        assertSame(
+                b,
+                find((int) ssrc, null));
+
+        // At an offset.
+        byte[] buf = new byte[fir.length + 7];
+
+        System.arraycopy(fir, 0, buf, 7, fir.length);
+        assertEquals(
+                ssrc,
+                OutputDataStreamImpl.getSSRCOfMediaSource(buf, 7, fir.length));
+
+        // Other feedback messages are routed by their media source field.
+        byte[] pli = createFB(206, 1, ssrcA, 12);
+
+        assertEquals(
+                ssrcA & 0xffffffffL,
+                OutputDataStreamImpl.getSSRCOfMediaSource(pli, 0, pli.length));
+
+        byte[] nack = createFB(205, 1, ssrcB, 16);
+
+        assertEquals(
+                ssrcB & 0xffffffffL,
+                OutputDataStreamImpl.getSSRCOfMediaSource(
+                        nack, 0, nack.length));
+    }
+
+    /**
+     * Tests that a malformed FIR is written into no endpoint and that packets
+     * which are not (valid) feedback messages are written into all endpoints.
+     */
+    @Test
+    public void testMalformedFIR()
+    {
+        // A FIR without (a complete) FCI entry.
+        byte[] fir = createFB(206, 4, 1, 12);
+
+        assertEquals(
+                -2,
+                OutputDataStreamImpl.getSSRCOfMediaSource(fir, 0, fir.length));
+        fir = createFB(206, 4, 1, 16);
+        assertEquals(
+                -2,
+                OutputDataStreamImpl.getSSRCOfMediaSource(fir, 0, fir.length));
+
+        // The length field of the FIR exceeds the packet.
+        fir = createFB(206, 4, 1, 20);
+        assertEquals(
+                -1,
+                OutputDataStreamImpl.getSSRCOfMediaSource(fir, 0, 16));
+
+        // Too short to be a feedback message.
+        assertEquals(
+                -1,
+                OutputDataStreamImpl.getSSRCOfMediaSource(fir, 0, 11));
+
+        // Not a feedback message (SR).
+        byte[] sr = createFB(200, 0, 1, 28);
+
+        assertEquals(
+                -1,
+                OutputDataStreamImpl.getSSRCOfMediaSource(sr, 0, sr.length));
+
+        // Not RTCP version 2.
+        byte[] pli = createFB(206, 1, 1, 12);
+
+        pli[0] &= 0x3f;
+        assertEquals(
+                -1,
+                OutputDataStreamImpl.getSSRCOfMediaSource(pli, 0, pli.length));
+    }
+
+    /**
+     * Looks up the <tt>StreamRTPManagerDesc</tt> which receives a specific
+     * SSRC in the routing index of {@link #translator}.
+     */
+    private StreamRTPManagerDesc find(
+            int receiveSSRC,
+            StreamRTPManagerDesc exclusion)
+    {
+        return
+            translator.findStreamRTPManagerDescByReceiveSSRC(
+                    receiveSSRC,
+                    exclusion);
+    }
+
+    /**
+     * Creates an RTCP packet with the header of a feedback message.
+     *
+     * @param pt the RTCP packet type
+     * @param fmt the feedback message type
+     * @param mediaSSRC the SSRC of the media source
+     * @param length the length in bytes of the packet (including zeroed FCI)
+     * @return the packet
+     */
+    private static byte[] createFB(
+            int pt, int fmt, int mediaSSRC, int length)
+    {
+        byte[] buf = new byte[length];
+
+        buf[0] = (byte) (0x80 | fmt);
+        buf[1] = (byte) pt;
+        RTPUtils.writeShort(buf, 2, (short) (length / 4 - 1));
+        RTPUtils.writeInt(buf, 4, 0x12345678);
+        RTPUtils.writeInt(buf, 8, mediaSSRC);
+        return buf;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.rtp.translator;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class RTPTranslatorWorkersTest
+{
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getString(EasyMock.anyString()))
+            .andReturn(null)
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    private static RTPTranslatorWorkers.Task task(
+            Runnable runnable,
+            Runnable dropped)
+    {
+        return new RTPTranslatorWorkers.Task()
+        {
+            @Override
+            protected void dropped()
+            {
+                if (dropped != null)
+                    dropped.run();
+            }
+
+            @Override
+            public void run()
+            {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Blocks the thread of the shard of a source until the returned latch is
+     * counted down.
+     */
+    private static CountDownLatch block(RTPTranslatorWorkers.Source source)
+        throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        source.execute(
+                task(
+                    () -> {
+                        started.countDown();
+                        try
+                        {
+                            release.await();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                        }
+                    },
+                    null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void testOrderPerSource()
+        throws InterruptedException
+    {
+        RTPTranslatorWorkers workers
+            = new RTPTranslatorWorkers(
+                    4,
+                    1024,
+                    RTPTranslatorWorkers.DropPolicy.DROP_OLDEST);
+        int keys = 16;
+        int tasksPerKey = 50;
+        RTPTranslatorWorkers.Source[] sources
+            = new RTPTranslatorWorkers.Source[keys];
+        Map<Integer, List<Integer>> runs = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+        for (int key = 0; key < keys; key++)
+            sources[key] = workers.createSource();
+        for (int i = 0; i < tasksPerKey; i++)
+        {
+            for (int key = 0; key < keys; key++)
+            {
+                int k = key;
+                int seq = i;
+
+                sources[key].execute(
+                        task(
+                            () -> {
+                                runs.computeIfAbsent(k, x -> new ArrayList<>())
+                                    .add(seq);
+                                done.countDown();
+                            },
+                            null));
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        for (int key = 0; key < keys; key++)
+        {
+            List<Integer> run = runs.get(key);
+
+            assertEquals(tasksPerKey, run.size());
+            for (int i = 0; i < tasksPerKey; i++)
+                assertEquals(i, (int) run.get(i));
+        }
+    }
+
+    @Test
+    public void testDropOldest()
+        throws InterruptedException
+    {
+        RTPTranslatorWorkers workers
+            = new RTPTranslatorWorkers(
+                    1,
+                    2,
+                    RTPTranslatorWorkers.DropPolicy.DROP_OLDEST);
+        RTPTranslatorWorkers.Source source = workers.createSource();
+        CountDownLatch release = block(source);
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        List<Integer> dropped = new CopyOnWriteArrayList<>();
+
+        for (int i = 0; i < 4; i++)
+        {
+            int seq = i;
+
+            assertTrue(
+                    source.execute(
+                            task(() -> ran.add(seq), () -> dropped.add(seq))));
+        }
+        assertEquals(Arrays.asList(0, 1), dropped);
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        release.countDown();
+        source.execute(task(done::countDown, null));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(2, 3), ran);
+
+        RTPTranslatorWorkers.ShardStats stats = workers.getShardStats(0);
+
+        assertEquals(2, stats.getDropped());
+        assertEquals(2, stats.getMaxQueued());
+    }
+
+    @Test
+    public void testDropNewest()
+        throws InterruptedException
+    {
+        RTPTranslatorWorkers workers
+            = new RTPTranslatorWorkers(
+                    1,
+                    2,
+                    RTPTranslatorWorkers.DropPolicy.DROP_NEWEST);
+        RTPTranslatorWorkers.Source source = workers.createSource();
+        CountDownLatch release = block(source);
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        AtomicInteger dropped = new AtomicInteger();
+
+        assertTrue(source.execute(task(() -> ran.add(0), null)));
+        assertTrue(source.execute(task(() -> ran.add(1), null)));
+        assertFalse(
+                source.execute(
+                        task(() -> ran.add(2), dropped::incrementAndGet)));
+        assertEquals(1, dropped.get());
+
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (workers.getShardStats(0).getExecuted() < 3)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(Arrays.asList(0, 1), ran);
+        assertEquals(1, workers.getShardStats(0).getDropped());
+        assertEquals(0, workers.getShardStats(0).getQueued());
+    }
+
+    /**
+     * A source which floods a shard only drops its own tasks, and the shard
+     * runs the tasks of its sources in turn.
+     */
+    @Test
+    public void testSourceIsolation()
+        throws InterruptedException
+    {
+        RTPTranslatorWorkers workers
+            = new RTPTranslatorWorkers(
+                    1,
+                    2,
+                    RTPTranslatorWorkers.DropPolicy.DROP_OLDEST);
+        RTPTranslatorWorkers.Source flood = workers.createSource();
+        RTPTranslatorWorkers.Source other = workers.createSource();
+        CountDownLatch release = block(workers.createSource());
+        List<String> ran = new CopyOnWriteArrayList<>();
+        List<String> dropped = new CopyOnWriteArrayList<>();
+
+        for (int i = 0; i < 10; i++)
+        {
+            String name = "flood" + i;
+
+            assertTrue(
+                    flood.execute(
+                            task(
+                                () -> ran.add(name),
+                                () -> dropped.add(name))));
+            if (i == 4 || i == 8)
+            {
+                String otherName = "other" + i;
+
+                assertTrue(
+                        other.execute(
+                                task(
+                                    () -> ran.add(otherName),
+                                    () -> dropped.add(otherName))));
+            }
+        }
+        assertEquals(8, dropped.size());
+        for (String name : dropped)
+            assertTrue(name.startsWith("flood"));
+        assertEquals(4, workers.getShardStats(0).getQueued());
+
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (workers.getShardStats(0).getExecuted() < 5)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(
+                Arrays.asList("flood8", "other4", "flood9", "other8"),
+                ran);
+        assertEquals(8, workers.getShardStats(0).getDropped());
+    }
+}
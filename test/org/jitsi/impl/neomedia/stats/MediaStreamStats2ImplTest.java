@@ -0,0 +1,129 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.stats;
+
+import org.easymock.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class MediaStreamStats2ImplTest
+{
+    private MediaStreamStats2Impl stats;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() -> (Boolean) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+
+        MediaStreamImpl stream
+            = PowerMock.createNiceMock(MediaStreamImpl.class);
+
+        replayAll();
+
+        stats = new MediaStreamStats2Impl(stream);
+    }
+
+    /**
+     * The aggregates count the RTCP packets of all SSRCs, while the
+     * statistics of an SSRC count its RTP packets only.
+     */
+    @Test
+    public void testAggregatesIncludeRtcp()
+    {
+        stats.rtpPacketReceived(1, 1, 100);
+        stats.rtpPacketReceived(1, 2, 100);
+        stats.rtcpPacketReceived(1, 50);
+        stats.rtcpPacketReceived(2, 60);
+        stats.rtpPacketSent(3, 1, 200);
+        stats.rtcpPacketSent(3, 40);
+        stats.rtcpPacketSent(4, 30);
+
+        assertEquals(2, stats.getReceiveStats(1).getPackets());
+        assertEquals(1, stats.getReceiveStats(1).getRtcpPackets());
+        assertEquals(0, stats.getReceiveStats(2).getPackets());
+
+        ReceiveTrackStats receive = stats.getReceiveStats();
+
+        assertEquals(4, receive.getPackets());
+        assertEquals(310, receive.getBytes());
+
+        SendTrackStats send = stats.getSendStats();
+
+        assertEquals(3, send.getPackets());
+        assertEquals(270, send.getBytes());
+        assertEquals(-1, send.getSSRC());
+    }
+
+    /**
+     * The aggregates are read from a snapshot which is reused for
+     * {@link MediaStreamStats2Impl#SNAPSHOT_INTERVAL} and then recomputed.
+     */
+    @Test
+    public void testSnapshotRefresh()
+        throws InterruptedException
+    {
+        TrackStats receive = stats.getReceiveStats();
+
+        stats.rtpPacketReceived(1, 1, 100);
+
+        long start = System.currentTimeMillis();
+
+        assertEquals(1, receive.getPackets());
+
+        stats.rtpPacketReceived(1, 2, 100);
+        stats.rtcpPacketReceived(2, 50);
+
+        long packets = receive.getPackets();
+
+        // The snapshot is stale unless this thread has been delayed past its
+        // interval.
+        if (System.currentTimeMillis() - start
+                < MediaStreamStats2Impl.SNAPSHOT_INTERVAL)
+        {
+            assertEquals(1, packets);
+            assertEquals(100, receive.getBytes());
+        }
+
+        Thread.sleep(MediaStreamStats2Impl.SNAPSHOT_INTERVAL + 10);
+
+        // The same instance reflects the new packets.
+        assertSame(receive, stats.getReceiveStats());
+        assertEquals(3, receive.getPackets());
+        assertEquals(250, receive.getBytes());
+    }
+}
@@ -25,6 +25,7 @@
 import org.powermock.api.easymock.*;
 
 import java.util.*;
+import java.util.logging.*;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -420,4 +421,129 @@ public void testReceiveMissingPacketOthersStillMissing()
         RawPacket capturedNackPacket = nackPacketCapture.getValue();
         verifyNackPacket(capturedNackPacket, ssrc, 13, 14);
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that packets lost across the wrap-around of the sequence numbers
+     * are nacked in a single entry
+     */
+    @Test
+    public void testMissingPacketsAcrossWrapAround()
+        throws TransmissionFailedException
+    {
+        long ssrc = 12345L;
+
+        workReadyCallback.run();
+        PowerMock.expectLastCall();
+
+        Capture<RawPacket> nackPacketCapture = Capture.newInstance();
+        mockStream.injectPacket(capture(nackPacketCapture), eq(false), eq((TransformEngine)null));
+        PowerMock.expectLastCall();
+
+        replayAll();
+
+        setTime(0L);
+
+        retransmissionRequester.packetReceived(ssrc, 65534);
+        retransmissionRequester.packetReceived(ssrc, 2);
+        expectHasWorkReady(retransmissionRequester);
+        retransmissionRequester.run();
+
+        assertTrue(nackPacketCapture.hasCaptured());
+        RawPacket capturedNackPacket = nackPacketCapture.getValue();
+        verifyNackPacket(capturedNackPacket, ssrc, 65535, 0, 1);
+        assertEquals(4, NACKPacket.getFCI(capturedNackPacket).getLength());
+    }
+
+    /**
+     * Test that a loss which is detected while a nack is being created (after
+     * the slot of the lost packet has been visited) is requested, even when
+     * nothing else is left to request. The detection is interleaved with the
+     * creation of the nack by a handler of the debug message which reports
+     * the last request of the other missing packet.
+     */
+    @Test
+    public void testLossDetectedWhileCreatingNack()
+        throws TransmissionFailedException
+    {
+        long ssrc = 12345L;
+
+        workReadyCallback.run();
+        PowerMock.expectLastCall().anyTimes();
+
+        Capture<RawPacket> nackPacketCapture = Capture.newInstance(CaptureType.ALL);
+        mockStream.injectPacket(capture(nackPacketCapture), eq(false), eq((TransformEngine)null));
+        PowerMock.expectLastCall().anyTimes();
+
+        replayAll();
+
+        long time = 0;
+        setTime(time);
+
+        retransmissionRequester.packetReceived(ssrc, 10);
+        retransmissionRequester.packetReceived(ssrc, 12);
+        // Request 11 until a single request is left.
+        for (int i = 1; i < RetransmissionRequesterDelegate.MAX_REQUESTS; ++i)
+        {
+            retransmissionRequester.run();
+            time += RetransmissionRequesterDelegate.RE_REQUEST_AFTER_MILLIS;
+            setTime(time);
+        }
+        // Lose and then receive 13, so that the next nack is due now.
+        retransmissionRequester.packetReceived(ssrc, 14);
+        retransmissionRequester.packetReceived(ssrc, 13);
+        expectHasWorkReady(retransmissionRequester);
+
+        java.util.logging.Logger julLogger
+            = java.util.logging.Logger.getLogger(
+                RetransmissionRequesterDelegate.class.getName());
+        Level level = julLogger.getLevel();
+        Handler lossDetector = new Handler()
+        {
+            private boolean detected = false;
+
+            @Override
+            public void publish(LogRecord record)
+            {
+                if (!detected
+                    && String.valueOf(record.getMessage())
+                        .startsWith("Generated the last NACK"))
+                {
+                    detected = true;
+                    // Lose 15.
+                    retransmissionRequester.packetReceived(ssrc, 16);
+                }
+            }
+
+            @Override
+            public void flush()
+            {
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+
+        julLogger.setLevel(Level.FINE);
+        julLogger.addHandler(lossDetector);
+        try
+        {
+            retransmissionRequester.run();
+        }
+        finally
+        {
+            julLogger.removeHandler(lossDetector);
+            julLogger.setLevel(level);
+        }
+
+        List<RawPacket> nackPackets = nackPacketCapture.getValues();
+        verifyNackPacket(nackPackets.get(nackPackets.size() - 1), ssrc, 11);
+
+        // 15 was lost while the last nack was being created.
+        expectHasWorkReady(retransmissionRequester);
+        retransmissionRequester.run();
+        nackPackets = nackPacketCapture.getValues();
+        verifyNackPacket(nackPackets.get(nackPackets.size() - 1), ssrc, 15);
+    }
+}
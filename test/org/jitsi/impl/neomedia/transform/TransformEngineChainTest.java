@@ -0,0 +1,307 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.util.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class TransformEngineChainTest
+{
+    /**
+     * An engine which drops the packets with odd sequence numbers one packet
+     * at a time.
+     */
+    private final TransformEngine single = new TransformEngine()
+    {
+        private final PacketTransformer transformer
+            = new SinglePacketTransformer()
+            {
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    return pkt.getSequenceNumber() % 2 == 0 ? pkt : null;
+                }
+
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    return transform(pkt);
+                }
+            };
+
+        @Override
+        public PacketTransformer getRTPTransformer()
+        {
+            return transformer;
+        }
+
+        @Override
+        public PacketTransformer getRTCPTransformer()
+        {
+            return null;
+        }
+    };
+
+    /**
+     * An engine which drops the packets with sequence numbers divisible by 4
+     * from whole arrays.
+     */
+    private final TransformEngine array = new TransformEngine()
+    {
+        private final PacketTransformer transformer = new PacketTransformer()
+        {
+            @Override
+            public void close()
+            {
+            }
+
+            @Override
+            public RawPacket[] transform(RawPacket[] pkts)
+            {
+                for (int i = 0; i < pkts.length; i++)
+                {
+                    if (pkts[i] != null
+                            && pkts[i].getSequenceNumber() % 4 == 0)
+                    {
+                        pkts[i] = null;
+                    }
+                }
+                return pkts;
+            }
+
+            @Override
+            public RawPacket[] reverseTransform(RawPacket[] pkts)
+            {
+                return transform(pkts);
+            }
+        };
+
+        @Override
+        public PacketTransformer getRTPTransformer()
+        {
+            return transformer;
+        }
+
+        @Override
+        public PacketTransformer getRTCPTransformer()
+        {
+            return transformer;
+        }
+    };
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() -> (Boolean) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    /**
+     * Creates RTP packets with the sequence numbers from 0 to
+     * <tt>count - 1</tt>.
+     */
+    private static RawPacket[] packets(int count)
+    {
+        RawPacket[] pkts = new RawPacket[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            byte[] buf = new byte[12 + 20];
+
+            buf[0] = (byte) 0x80;
+            buf[2] = (byte) (i >> 8);
+            buf[3] = (byte) i;
+            pkts[i] = new RawPacket(buf, 0, buf.length);
+        }
+        return pkts;
+    }
+
+    /**
+     * Gets the sequence numbers of the non-<tt>null</tt> packets of an array.
+     */
+    private static List<Integer> seqs(RawPacket[] pkts)
+    {
+        List<Integer> seqs = new ArrayList<>();
+
+        for (RawPacket pkt : pkts)
+        {
+            if (pkt != null)
+                seqs.add(pkt.getSequenceNumber());
+        }
+        return seqs;
+    }
+
+    private static void assertStats(
+            TransformEngineStats.PacketTransformerStats stats,
+            long packets,
+            long dropped)
+    {
+        assertEquals(packets, stats.getPackets());
+        assertEquals(dropped, stats.getDroppedPackets());
+    }
+
+    /**
+     * A chain without instrumentation transforms the packets and has no
+     * statistics.
+     */
+    @Test
+    public void testDisabled()
+    {
+        TransformEngineChain chain
+            = new TransformEngineChain(
+                    new TransformEngine[] { single, array }, false);
+
+        assertEquals(
+            Arrays.asList(2),
+            seqs(chain.getRTPTransformer().transform(packets(6))));
+        assertEquals(
+            Arrays.asList(2),
+            seqs(chain.getRTPTransformer().reverseTransform(packets(6))));
+        assertTrue(chain.getTransformEngineStats().isEmpty());
+    }
+
+    /**
+     * The instrumentation of an array transformed forwards and backwards
+     * through single-packet and array transformers.
+     */
+    @Test
+    public void testEnabled()
+    {
+        TransformEngineChain chain
+            = new TransformEngineChain(
+                    new TransformEngine[] { single, array }, true);
+        PacketTransformer rtp = chain.getRTPTransformer();
+
+        assertEquals(Arrays.asList(2), seqs(rtp.transform(packets(6))));
+        assertEquals(Arrays.asList(2), seqs(rtp.reverseTransform(packets(6))));
+
+        List<TransformEngineStats> stats = chain.getTransformEngineStats();
+
+        // The RTP statistics followed by the RTCP statistics.
+        assertEquals(4, stats.size());
+        assertTrue(stats.get(0).isRtp());
+        assertTrue(stats.get(1).isRtp());
+        assertFalse(stats.get(2).isRtp());
+        assertFalse(stats.get(3).isRtp());
+
+        // 0..5 -> single -> 0, 2, 4 -> array -> 2
+        assertStats(stats.get(0).getTransformStats(), 6, 3);
+        assertStats(stats.get(1).getTransformStats(), 3, 2);
+        // 0..5 -> array -> 1, 2, 3, 5 -> single -> 2
+        assertStats(stats.get(1).getReverseTransformStats(), 6, 2);
+        assertStats(stats.get(0).getReverseTransformStats(), 4, 3);
+
+        // The first call is sampled. The calls in both directions share the
+        // sampling interval.
+        assertEquals(1, stats.get(0).getTransformStats().getLatencySamples());
+        assertEquals(1, stats.get(1).getTransformStats().getLatencySamples());
+        assertEquals(
+            0,
+            stats.get(1).getReverseTransformStats().getLatencySamples());
+
+        // The single engine has no RTCP transformer.
+        assertEquals(
+            Arrays.asList(1, 2, 3),
+            seqs(chain.getRTCPTransformer().transform(packets(4))));
+        assertStats(stats.get(2).getTransformStats(), 0, 0);
+        assertStats(stats.get(3).getTransformStats(), 4, 1);
+        assertStats(stats.get(0).getTransformStats(), 6, 3);
+    }
+
+    /**
+     * The transformation which starts after an engine is only counted by the
+     * engines which follow it.
+     */
+    @Test
+    public void testTransformAfter()
+    {
+        TransformEngineChain chain
+            = new TransformEngineChain(
+                    new TransformEngine[] { single, array }, true);
+        TransformEngineChain.PacketTransformerChain rtp
+            = (TransformEngineChain.PacketTransformerChain)
+                chain.getRTPTransformer();
+
+        assertEquals(
+            Arrays.asList(1, 2, 3, 5),
+            seqs(rtp.transform(packets(6), single)));
+
+        List<TransformEngineStats> stats = chain.getTransformEngineStats();
+
+        assertStats(stats.get(0).getTransformStats(), 0, 0);
+        assertStats(stats.get(1).getTransformStats(), 6, 2);
+    }
+
+    /**
+     * The latencies are sampled every 16 calls and the statistics of an
+     * engine survive changes of the chain.
+     */
+    @Test
+    public void testSamplingAndChainChanges()
+    {
+        TransformEngineChain chain
+            = new TransformEngineChain(new TransformEngine[] { single }, true);
+        PacketTransformer rtp = chain.getRTPTransformer();
+
+        for (int i = 0; i < 16; i++)
+        {
+            rtp.transform(packets(2));
+        }
+
+        TransformEngineStats.PacketTransformerStats stats
+            = chain.getTransformEngineStats().get(0).getTransformStats();
+
+        assertEquals(1, stats.getLatencySamples());
+        rtp.transform(packets(2));
+        assertEquals(2, stats.getLatencySamples());
+        assertStats(stats, 34, 17);
+
+        chain.addEngine(array);
+        rtp.transform(packets(6));
+
+        List<TransformEngineStats> all = chain.getTransformEngineStats();
+
+        assertEquals(4, all.size());
+        assertSame(stats, all.get(0).getTransformStats());
+        assertStats(stats, 40, 20);
+        assertStats(all.get(1).getTransformStats(), 3, 2);
+    }
+}
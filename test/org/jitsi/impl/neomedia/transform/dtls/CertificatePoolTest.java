@@ -0,0 +1,127 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import org.junit.*;
+
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import static org.junit.Assert.*;
+
+public class CertificatePoolTest
+{
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final Supplier<CertificateInfo> generator
+        = () -> new CertificateInfo(
+                null,
+                null,
+                "sha-256",
+                "fingerprint-" + count.incrementAndGet(),
+                System.currentTimeMillis());
+
+    private static void waitForSpares(CertificatePool pool, int spares)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (pool.getSpares() < spares)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testReuseWithinExpireTime()
+    {
+        CertificatePool pool = new CertificatePool(generator, 60000, 60000, 0);
+
+        CertificateInfo first = pool.get();
+
+        assertSame(first, pool.get());
+        assertSame(first, pool.get());
+        assertEquals(1, pool.getMisses());
+        assertEquals(2, pool.getHits());
+        assertEquals(1, pool.getGenerated());
+        assertEquals(0, pool.getSpares());
+    }
+
+    @Test
+    public void testRotateToSpare()
+        throws InterruptedException
+    {
+        CertificatePool pool = new CertificatePool(generator, 100, 60000, 1);
+
+        CertificateInfo first = pool.get();
+
+        assertEquals(1, pool.getMisses());
+        waitForSpares(pool, 1);
+        assertEquals(2, pool.getGenerated());
+
+        Thread.sleep(150);
+
+        CertificateInfo second = pool.get();
+
+        assertNotSame(first, second);
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+
+        // The spare which was handed out is replaced in the background.
+        waitForSpares(pool, 1);
+        assertEquals(3, pool.getGenerated());
+        assertSame(second, pool.get());
+    }
+
+    @Test
+    public void testExpiredSpareIsReplaced()
+        throws InterruptedException
+    {
+        CertificatePool pool = new CertificatePool(generator, 60000, 50, 1);
+
+        pool.get();
+        waitForSpares(pool, 1);
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (pool.getGenerated() < 4)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testNoPool()
+        throws InterruptedException
+    {
+        CertificatePool pool = new CertificatePool(generator, 50, 60000, 0);
+
+        CertificateInfo first = pool.get();
+
+        Thread.sleep(80);
+
+        CertificateInfo second = pool.get();
+
+        assertNotSame(first, second);
+        assertEquals(2, pool.getMisses());
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getGenerated());
+        assertEquals(0, pool.getSpares());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.utils.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class DtlsHandshakeExecutorTest
+{
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getLong(EasyMock.anyString(), EasyMock.anyLong()))
+            .andAnswer(() -> (Long) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+        replayAll();
+    }
+
+    private static DtlsHandshakeExecutor.Task task(
+            MediaType mediaType,
+            Runnable runnable)
+    {
+        return task(mediaType, runnable, () -> {});
+    }
+
+    private static DtlsHandshakeExecutor.Task task(
+            MediaType mediaType,
+            Runnable runnable,
+            Runnable abort)
+    {
+        return new DtlsHandshakeExecutor.Task(mediaType)
+        {
+            @Override
+            protected void runHandshake()
+            {
+                runnable.run();
+            }
+
+            @Override
+            protected void abortHandshake()
+            {
+                abort.run();
+            }
+        };
+    }
+
+    /**
+     * Blocks the single thread of an executor until the returned latch is
+     * counted down.
+     */
+    private static CountDownLatch block(DtlsHandshakeExecutor executor)
+        throws InterruptedException
+    {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        assertTrue(executor.execute(task(MediaType.DATA, () -> {
+            running.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        })));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void testPriority()
+        throws InterruptedException
+    {
+        DtlsHandshakeExecutor executor = new DtlsHandshakeExecutor(1, 16, 0);
+        CountDownLatch release = block(executor);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+
+        executor.execute(task(MediaType.DATA, () -> {
+            order.add("data");
+            done.countDown();
+        }));
+        executor.execute(task(MediaType.VIDEO, () -> {
+            order.add("video1");
+            done.countDown();
+        }));
+        executor.execute(task(MediaType.AUDIO, () -> {
+            order.add("audio");
+            done.countDown();
+        }));
+        executor.execute(task(MediaType.VIDEO, () -> {
+            order.add("video2");
+            done.countDown();
+        }));
+        assertEquals(4, executor.getQueued());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(
+                Arrays.asList("audio", "video1", "video2", "data"),
+                order);
+        assertEquals(5, executor.getSubmitted());
+        assertEquals(4, executor.getDelayed());
+    }
+
+    @Test
+    public void testRejectAndCancel()
+        throws InterruptedException
+    {
+        DtlsHandshakeExecutor executor = new DtlsHandshakeExecutor(1, 2, 0);
+        CountDownLatch release = block(executor);
+        CountDownLatch done = new CountDownLatch(1);
+        DtlsHandshakeExecutor.Task cancelled
+            = task(MediaType.AUDIO, () -> fail("cancelled task ran"));
+
+        assertTrue(executor.execute(cancelled));
+        assertTrue(executor.execute(task(MediaType.VIDEO, done::countDown)));
+        assertFalse(executor.execute(task(MediaType.AUDIO, () -> {})));
+        assertEquals(1, executor.getRejected());
+
+        executor.cancel(cancelled);
+        assertEquals(1, executor.getCancelled());
+        assertEquals(1, executor.getQueued());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that a handshake which stalls (e.g. because its peer does not
+     * respond) is aborted after the handshake timeout, so that it does not
+     * keep the handshakes queued after it from running.
+     */
+    @Test
+    public void testStalledHandshakeDoesNotBlock()
+        throws InterruptedException
+    {
+        DtlsHandshakeExecutor executor = new DtlsHandshakeExecutor(1, 16, 200);
+        CountDownLatch stalledRunning = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Like a Bouncy Castle handshake, the stalled handshake only returns
+        // when its transport is closed.
+        assertTrue(executor.execute(task(MediaType.VIDEO, () -> {
+            stalledRunning.countDown();
+            try
+            {
+                aborted.await();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, aborted::countDown)));
+        assertTrue(stalledRunning.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.execute(task(MediaType.AUDIO, done::countDown)));
+        assertEquals(1, executor.getQueued());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, aborted.getCount());
+        assertEquals(1, executor.getTimedOut());
+    }
+
+    /**
+     * Tests that a handshake which completes in time is not aborted.
+     */
+    @Test
+    public void testHandshakeWithinTimeoutIsNotAborted()
+        throws InterruptedException
+    {
+        DtlsHandshakeExecutor executor = new DtlsHandshakeExecutor(1, 16, 200);
+        CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(executor.execute(task(MediaType.AUDIO, done::countDown)));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(0, executor.getTimedOut());
+    }
+}
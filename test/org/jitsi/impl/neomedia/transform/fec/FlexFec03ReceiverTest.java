@@ -246,4 +246,84 @@ public void testReverseTransformWithOffset()
             verifyFlexFec(flexFecPacket, fecCaptureReadResult.mediaPackets);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Drops two media packets which are protected by the same flexfec packet
+     * and verifies that both are recovered, the first one through another
+     * flexfec packet which overlaps with the first.
+     */
+    @Test
+    public void testRecoverMultipleLosses()
+    {
+        replayAll();
+        FlexFec03Sender sender
+            = new FlexFec03Sender(1234L, 5678L, 2, (byte) 107, null);
+        sender.setMaskType(FlexFec03Sender.MaskType.FLEXIBLE);
+        sender.setWindowSize(16);
+
+        Random random = new Random(0);
+        List<RawPacket> sentPackets = new ArrayList<>();
+        RawPacket[] lostPackets = new RawPacket[2];
+
+        for (int seq = 100; seq < 116; seq++)
+        {
+            byte[] buf = new byte[RawPacket.FIXED_HEADER_SIZE + 100];
+            random.nextBytes(buf);
+            buf[0] = (byte) 0x80;
+            buf[1] = 98;
+
+            RawPacket mediaPacket = new RawPacket(buf, 0, buf.length);
+            mediaPacket.setSequenceNumber(seq);
+            mediaPacket.setSSRC(1234);
+
+            // 100 and 108 are in the same column of 8 flexfec packets, but in
+            // different rows.
+            if (seq == 100)
+            {
+                lostPackets[0] = mediaPacket;
+            }
+            else if (seq == 108)
+            {
+                lostPackets[1] = mediaPacket;
+            }
+
+            sentPackets.addAll(
+                Arrays.asList(
+                    sender.transform(new RawPacket[] { mediaPacket })));
+        }
+
+        FlexFec03Receiver receiver = new FlexFec03Receiver(1234L, (byte) 107);
+        Map<Integer, RawPacket> recoveredPackets = new HashMap<>();
+
+        for (RawPacket sentPacket : sentPackets)
+        {
+            if (sentPacket == lostPackets[0] || sentPacket == lostPackets[1])
+            {
+                continue;
+            }
+            for (RawPacket pkt
+                    : receiver.reverseTransform(new RawPacket[] { sentPacket }))
+            {
+                if (pkt != null)
+                {
+                    recoveredPackets.put(pkt.getSequenceNumber(), pkt);
+                }
+            }
+        }
+
+        for (RawPacket lostPacket : lostPackets)
+        {
+            RawPacket recoveredPacket
+                = recoveredPackets.get(lostPacket.getSequenceNumber());
+
+            assertNotNull(recoveredPacket);
+            assertArrayEquals(
+                lostPacket.getBuffer(),
+                Arrays.copyOfRange(
+                    recoveredPacket.getBuffer(),
+                    recoveredPacket.getOffset(),
+                    recoveredPacket.getOffset()
+                        + recoveredPacket.getLength()));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.util.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class FlexFec03SenderTest
+{
+    private static final long MEDIA_SSRC = 1234L;
+
+    private static final long FEC_SSRC = 5678L;
+
+    private static final byte FEC_PT = 107;
+
+    private ConfigurationService mockConfigurationService;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        mockConfigurationService = PowerMock.createMock(ConfigurationService.class);
+        expect(mockConfigurationService.getInt(EasyMock.anyString(), EasyMock.anyInt())).andAnswer(new IAnswer<Integer>() {
+            public Integer answer()
+            {
+                return (Integer)EasyMock.getCurrentArguments()[1];
+            }
+
+        }).anyTimes();
+        expect(mockConfigurationService.getString(EasyMock.anyString()))
+            .andReturn(null).anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(mockConfigurationService).anyTimes();
+        replayAll();
+    }
+
+    @After
+    public void tearDown()
+    {
+        verifyAll();
+    }
+
+    /**
+     * Creates a media packet with a random payload.
+     */
+    private static RawPacket createMediaPacket(int seq, Random random)
+    {
+        int length = RawPacket.FIXED_HEADER_SIZE + 20 + random.nextInt(200);
+        byte[] buf = new byte[length];
+
+        random.nextBytes(buf);
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) ((seq % 5 == 0 ? 0x80 : 0) | 100);
+
+        RawPacket pkt = new RawPacket(buf, 0, length);
+
+        pkt.setSequenceNumber(seq);
+        pkt.setSSRC((int) MEDIA_SSRC);
+        pkt.setTimestamp(seq * 90);
+        return pkt;
+    }
+
+    private static RawPacket copy(RawPacket pkt)
+    {
+        byte[] buf
+            = Arrays.copyOfRange(
+                    pkt.getBuffer(),
+                    pkt.getOffset(),
+                    pkt.getOffset() + pkt.getLength());
+
+        return new RawPacket(buf, 0, buf.length);
+    }
+
+    /**
+     * Protects 2 windows of media packets and makes sure that a
+     * <tt>FlexFec03Receiver</tt> recovers each one of them when it is lost.
+     */
+    private void testRecovery(FlexFec03Sender.MaskType maskType, int windowSize)
+    {
+        Random random = new Random(windowSize);
+        FlexFec03Sender sender
+            = new FlexFec03Sender(MEDIA_SSRC, FEC_SSRC, 4, FEC_PT, null);
+
+        sender.setMaskType(maskType);
+        sender.setWindowSize(windowSize);
+
+        List<RawPacket> mediaPackets = new ArrayList<>();
+        List<RawPacket> sentPackets = new ArrayList<>();
+
+        // Start close to the end of the sequence number space in order to
+        // test the wrap around.
+        for (int i = 0; i < 2 * windowSize; i++)
+        {
+            RawPacket mediaPacket
+                = createMediaPacket((65530 + i) & 0xffff, random);
+
+            mediaPackets.add(mediaPacket);
+            sentPackets.addAll(
+                Arrays.asList(
+                    sender.transform(new RawPacket[] { mediaPacket })));
+        }
+        assertTrue(sentPackets.size() > mediaPackets.size());
+
+        for (RawPacket lostPacket : mediaPackets)
+        {
+            FlexFec03Receiver receiver
+                = new FlexFec03Receiver(MEDIA_SSRC, FEC_PT);
+            RawPacket recoveredPacket = null;
+
+            for (RawPacket sentPacket : sentPackets)
+            {
+                if (sentPacket == lostPacket)
+                {
+                    continue;
+                }
+                for (RawPacket pkt
+                        : receiver.reverseTransform(
+                                new RawPacket[] { copy(sentPacket) }))
+                {
+                    if (pkt != null
+                            && pkt.getSequenceNumber()
+                                == lostPacket.getSequenceNumber())
+                    {
+                        recoveredPacket = pkt;
+                    }
+                }
+            }
+
+            assertNotNull(recoveredPacket);
+            assertArrayEquals(
+                copy(lostPacket).getBuffer(),
+                Arrays.copyOfRange(
+                    recoveredPacket.getBuffer(),
+                    recoveredPacket.getOffset(),
+                    recoveredPacket.getOffset()
+                        + recoveredPacket.getLength()));
+        }
+    }
+
+    @Test
+    public void testRowRecovery()
+    {
+        testRecovery(FlexFec03Sender.MaskType.ROW, 8);
+    }
+
+    @Test
+    public void testColumnRecovery()
+    {
+        // A window of 20 packets needs 6-byte masks.
+        testRecovery(FlexFec03Sender.MaskType.COLUMN, 20);
+    }
+
+    @Test
+    public void testFlexibleRecovery()
+    {
+        // A window of 50 packets needs 14-byte masks.
+        testRecovery(FlexFec03Sender.MaskType.FLEXIBLE, 50);
+    }
+
+    @Test
+    public void testFlexFecPacketHeader()
+    {
+        FlexFec03Sender sender
+            = new FlexFec03Sender(MEDIA_SSRC, FEC_SSRC, 4, FEC_PT, null);
+        Random random = new Random(0);
+        RawPacket fecPacket = null;
+
+        sender.setWindowSize(4);
+        for (int seq = 100; seq < 104; seq++)
+        {
+            RawPacket[] pkts
+                = sender.transform(
+                        new RawPacket[] { createMediaPacket(seq, random) });
+
+            if (pkts.length > 1)
+            {
+                fecPacket = pkts[1];
+            }
+        }
+
+        assertNotNull(fecPacket);
+        assertEquals(FEC_SSRC, fecPacket.getSSRCAsLong());
+        assertEquals(FEC_PT, fecPacket.getPayloadType());
+
+        FlexFec03Packet flexFecPacket = FlexFec03Packet.create(fecPacket);
+
+        assertNotNull(flexFecPacket);
+        assertEquals(MEDIA_SSRC, flexFecPacket.getProtectedSsrc());
+        assertEquals(
+            Arrays.asList(100, 101, 102, 103),
+            flexFecPacket.getProtectedSequenceNumbers());
+    }
+}
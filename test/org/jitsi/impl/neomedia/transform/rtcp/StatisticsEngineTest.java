@@ -0,0 +1,346 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.rtcp;
+
+import net.sf.fmj.media.rtp.*;
+import org.easymock.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.stats.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.rtp.*;
+import org.jitsi.utils.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(LibJitsi.class)
+public class StatisticsEngineTest
+{
+    private static final int SENDER_SSRC = 0x11111111;
+
+    private static final int OTHER_SENDER_SSRC = 0x22222222;
+
+    private static final int SOURCE_SSRC = 0x33333333;
+
+    private RTCPReports reports;
+
+    private StatisticsEngine engine;
+
+    @Before
+    public void setUp()
+    {
+        PowerMock.mockStatic(LibJitsi.class);
+        ConfigurationService cfg
+            = PowerMock.createMock(ConfigurationService.class);
+        expect(cfg.getBoolean(EasyMock.anyString(), EasyMock.anyBoolean()))
+            .andAnswer(() -> (Boolean) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(cfg.getInt(EasyMock.anyString(), EasyMock.anyInt()))
+            .andAnswer(() -> (Integer) EasyMock.getCurrentArguments()[1])
+            .anyTimes();
+        expect(LibJitsi.getConfigurationService()).andReturn(cfg).anyTimes();
+
+        reports = new RTCPReports();
+
+        MediaStreamStats2Impl stats
+            = PowerMock.createNiceMock(MediaStreamStats2Impl.class);
+        expect(stats.getRTCPReports()).andReturn(reports).anyTimes();
+
+        MediaStreamImpl stream
+            = PowerMock.createNiceMock(MediaStreamImpl.class);
+        expect(stream.getMediaStreamStats()).andReturn(stats).anyTimes();
+        expect(stream.getMediaType()).andReturn(MediaType.VIDEO).anyTimes();
+
+        replayAll();
+
+        engine = new StatisticsEngine(stream);
+    }
+
+    /**
+     * Writes the report block of an SR or RR.
+     */
+    private static void putReportBlock(ByteBuffer bb, int jitter)
+    {
+        bb.putInt(SOURCE_SSRC);
+        bb.putInt(0x01000002); // fraction lost, cumulative number lost
+        bb.putInt(1000); // extended highest sequence number received
+        bb.putInt(jitter);
+        bb.putInt(0); // LSR
+        bb.putInt(0); // DLSR
+    }
+
+    /**
+     * Creates an RTCP SR with one report block.
+     */
+    private static byte[] sr(int ssrc, int packetCount, int jitter)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(52);
+
+        bb.put((byte) 0x81).put((byte) RTCPPacket.SR).putShort((short) 12);
+        bb.putInt(ssrc);
+        bb.putLong(0x0102030405060708L); // NTP timestamp
+        bb.putInt(90000); // RTP timestamp
+        bb.putInt(packetCount);
+        bb.putInt(packetCount * 100); // sender's octet count
+        putReportBlock(bb, jitter);
+        return bb.array();
+    }
+
+    /**
+     * Creates an RTCP RR with one report block.
+     */
+    private static byte[] rr(int ssrc, int jitter)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(32);
+
+        bb.put((byte) 0x81).put((byte) RTCPPacket.RR).putShort((short) 7);
+        bb.putInt(ssrc);
+        putReportBlock(bb, jitter);
+        return bb.array();
+    }
+
+    /**
+     * Creates an RTCP SDES with a CNAME.
+     */
+    private static byte[] sdes(int ssrc)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(12);
+
+        bb.put((byte) 0x81).put((byte) RTCPPacket.SDES).putShort((short) 2);
+        bb.putInt(ssrc);
+        bb.put((byte) 1).put((byte) 1).put((byte) 'a'); // CNAME "a"
+        bb.put((byte) 0); // end of items
+        return bb.array();
+    }
+
+    /**
+     * Creates an RTCP XR with a VoIP metrics report block.
+     */
+    private static RTCPExtendedReport xr(int ssrc)
+    {
+        RTCPExtendedReport xr = new RTCPExtendedReport();
+        RTCPExtendedReport.VoIPMetricsReportBlock block
+            = new RTCPExtendedReport.VoIPMetricsReportBlock();
+
+        block.setSourceSSRC(SOURCE_SSRC);
+        xr.addReportBlock(block);
+        xr.setSSRC(ssrc);
+        return xr;
+    }
+
+    private static byte[] bytes(RTCPExtendedReport xr)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        xr.assemble(new DataOutputStream(baos));
+        return baos.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... pkts)
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        for (byte[] pkt : pkts)
+            baos.write(pkt, 0, pkt.length);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Wraps a packet in a <tt>RawPacket</tt> at a non-zero offset.
+     */
+    private static RawPacket packet(byte[] pkt)
+    {
+        byte[] buf = new byte[pkt.length + 10];
+
+        System.arraycopy(pkt, 0, buf, 5, pkt.length);
+        return new RawPacket(buf, 5, pkt.length);
+    }
+
+    private static RTCPFeedback feedback(RTCPReport report)
+    {
+        List<?> feedbacks = report.getFeedbackReports();
+
+        assertEquals(1, feedbacks.size());
+        return (RTCPFeedback) feedbacks.get(0);
+    }
+
+    @Test
+    public void testFindRTCPReport()
+        throws IOException
+    {
+        byte[] sr = sr(SENDER_SSRC, 1, 1);
+        byte[] sdes = sdes(SENDER_SSRC);
+        byte[] xr = bytes(xr(SENDER_SSRC));
+        byte[] buf = concat(sr, sdes, xr, rr(OTHER_SENDER_SSRC, 1));
+        int rrOff = sr.length + sdes.length + xr.length;
+
+        assertEquals(0, StatisticsEngine.findRTCPReport(buf, 0, buf.length));
+        assertEquals(
+            rrOff,
+            StatisticsEngine.findRTCPReport(buf, sr.length, buf.length));
+        assertEquals(
+            rrOff,
+            StatisticsEngine.findRTCPReport(buf, rrOff, buf.length));
+        assertEquals(
+            -1,
+            StatisticsEngine.findRTCPReport(buf, buf.length, buf.length));
+        // A truncated packet is not an RTCP packet.
+        assertEquals(
+            -1,
+            StatisticsEngine.findRTCPReport(buf, rrOff, buf.length - 4));
+        // Neither is garbage.
+        assertEquals(
+            -1,
+            StatisticsEngine.findRTCPReport(new byte[16], 0, 16));
+    }
+
+    @Test
+    public void testReceiveSR()
+    {
+        RawPacket pkt = packet(sr(SENDER_SSRC, 42, 7));
+
+        assertSame(pkt, engine.reverseTransform(pkt));
+
+        RTCPReport report = reports.getReceivedRTCPReport(SENDER_SSRC);
+
+        assertTrue(report instanceof RTCPSenderReport);
+        assertEquals(SENDER_SSRC, (int) report.getSSRC());
+        assertEquals(42, ((RTCPSenderReport) report).getSenderPacketCount());
+        assertEquals(SOURCE_SSRC, (int) feedback(report).getSSRC());
+        assertEquals(7, feedback(report).getJitter());
+    }
+
+    @Test
+    public void testReceiveRR()
+    {
+        engine.reverseTransform(packet(rr(OTHER_SENDER_SSRC, 9)));
+
+        RTCPReport report = reports.getReceivedRTCPReport(OTHER_SENDER_SSRC);
+
+        assertTrue(report instanceof RTCPReceiverReport);
+        assertEquals(OTHER_SENDER_SSRC, (int) report.getSSRC());
+        assertEquals(9, feedback(report).getJitter());
+    }
+
+    /**
+     * The reports of a compound packet are read from their own slices of the
+     * packet, past the packets which are not SR or RR.
+     */
+    @Test
+    public void testReceiveCompoundWithXR()
+        throws IOException
+    {
+        RawPacket pkt
+            = packet(
+                concat(
+                    sr(SENDER_SSRC, 5, 11),
+                    sdes(SENDER_SSRC),
+                    bytes(xr(SENDER_SSRC)),
+                    rr(OTHER_SENDER_SSRC, 13)));
+
+        assertSame(pkt, engine.reverseTransform(pkt));
+
+        RTCPReport sr = reports.getReceivedRTCPReport(SENDER_SSRC);
+        RTCPReport rr = reports.getReceivedRTCPReport(OTHER_SENDER_SSRC);
+
+        assertTrue(sr instanceof RTCPSenderReport);
+        assertEquals(5, ((RTCPSenderReport) sr).getSenderPacketCount());
+        assertEquals(11, feedback(sr).getJitter());
+        assertTrue(rr instanceof RTCPReceiverReport);
+        assertEquals(13, feedback(rr).getJitter());
+        assertEquals(2, reports.getReceivedRTCPReports().length);
+        assertNotNull(reports.getReceivedRTCPExtendedReport(SENDER_SSRC));
+    }
+
+    /**
+     * The jitter statistics of the sent reports sum up the reports of all
+     * SSRCs.
+     */
+    @Test
+    public void testSentReportCounters()
+    {
+        assertEquals(0, engine.getAvgInterArrivalJitter(), 0);
+        assertEquals(-1, engine.getMinInterArrivalJitter());
+
+        engine.transform(packet(rr(SENDER_SSRC, 10)));
+        engine.transform(packet(rr(OTHER_SENDER_SSRC, 20)));
+        engine.transform(packet(sr(SENDER_SSRC, 1, 30)));
+
+        assertEquals(20, engine.getAvgInterArrivalJitter(), 0);
+        assertEquals(10, engine.getMinInterArrivalJitter());
+        assertEquals(30, engine.getMaxInterArrivalJitter());
+        assertTrue(
+            reports.getSentRTCPReport(SENDER_SSRC)
+                instanceof RTCPSenderReport);
+        assertEquals(2, reports.getSentRTCPReports().length);
+    }
+
+    /**
+     * The XRs are appended to the packet with a single reallocation of its
+     * buffer.
+     */
+    @Test
+    public void testAddRTCPExtendedReportsGrowsOnce()
+        throws IOException
+    {
+        byte[] compound
+            = concat(sr(SENDER_SSRC, 1, 1), rr(OTHER_SENDER_SSRC, 1));
+        int[] reallocations = new int[1];
+        RawPacket pkt
+            = new RawPacket(compound, 0, compound.length)
+            {
+                @Override
+                public void grow(int howMuch)
+                {
+                    byte[] buf = getBuffer();
+
+                    super.grow(howMuch);
+                    if (buf != getBuffer())
+                        reallocations[0]++;
+                }
+            };
+        RTCPExtendedReport xr1 = xr(SENDER_SSRC);
+        RTCPExtendedReport xr2 = xr(OTHER_SENDER_SSRC);
+        byte[] xrs = concat(bytes(xr1), bytes(xr2));
+
+        StatisticsEngine.addRTCPExtendedReports(pkt, Arrays.asList(xr1, xr2));
+
+        assertEquals(1, reallocations[0]);
+        assertEquals(compound.length + xrs.length, pkt.getLength());
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+
+        for (int i = 0; i < compound.length; i++)
+            assertEquals(compound[i], buf[off + i]);
+        for (int i = 0; i < xrs.length; i++)
+            assertEquals(xrs[i], buf[off + compound.length + i]);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.srtp.*;
+import org.junit.*;
+import org.junit.runner.*;
+import org.powermock.api.easymock.*;
+import org.powermock.core.classloader.annotations.*;
+import org.powermock.modules.junit4.*;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.*;
+import static org.powermock.api.easymock.PowerMock.*;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ SrtpContextFactory.class, SrtpCryptoContext.class })
+public class SRTPTransformerTest
+{
+    private static final int SSRC_A = 1;
+
+    private static final int SSRC_B = 2;
+
+    private static final int SSRC_C = 3;
+
+    private SrtpContextFactory factory;
+
+    private SrtpCryptoContext contextA;
+
+    private SrtpCryptoContext contextB;
+
+    @Before
+    public void setUp()
+    {
+        factory = PowerMock.createMock(SrtpContextFactory.class);
+        contextA = PowerMock.createStrictMock(SrtpCryptoContext.class);
+        contextB = PowerMock.createStrictMock(SrtpCryptoContext.class);
+    }
+
+    /**
+     * Creates an RTP packet with a specific SSRC and sequence number.
+     */
+    private static RawPacket packet(int ssrc, int seq)
+    {
+        byte[] buf = new byte[12 + 20];
+
+        buf[0] = (byte) 0x80;
+        buf[1] = 100;
+        buf[2] = (byte) (seq >> 8);
+        buf[3] = (byte) seq;
+        buf[8] = (byte) (ssrc >> 24);
+        buf[9] = (byte) (ssrc >> 16);
+        buf[10] = (byte) (ssrc >> 8);
+        buf[11] = (byte) ssrc;
+        return new RawPacket(buf, 0, buf.length);
+    }
+
+    /**
+     * Tests that the packets of an array are transformed in groups of the
+     * same SSRC, each with the context of its SSRC and in array order, and
+     * that a context is derived once per SSRC.
+     */
+    @Test
+    public void testTransformGroupsBySsrc()
+    {
+        RawPacket a1 = packet(SSRC_A, 1);
+        RawPacket b1 = packet(SSRC_B, 1);
+        RawPacket a2 = packet(SSRC_A, 2);
+        RawPacket b2 = packet(SSRC_B, 2);
+
+        expect(factory.deriveContext(SSRC_A, 0)).andReturn(contextA);
+        expect(factory.deriveContext(SSRC_B, 0)).andReturn(contextB);
+        expect(contextA.transformPacket(a1)).andReturn(SrtpErrorStatus.OK);
+        expect(contextA.transformPacket(a2)).andReturn(SrtpErrorStatus.OK);
+        expect(contextB.transformPacket(b1)).andReturn(SrtpErrorStatus.OK);
+        expect(contextB.transformPacket(b2))
+            .andReturn(SrtpErrorStatus.AUTH_FAIL);
+        replayAll();
+
+        SRTPTransformer transformer = new SRTPTransformer(factory);
+        RawPacket[] pkts = { a1, b1, null, a2, b2 };
+
+        assertSame(pkts, transformer.transform(pkts));
+        assertArrayEquals(new RawPacket[] { a1, b1, null, a2, null }, pkts);
+        verifyAll();
+    }
+
+    /**
+     * Tests that the packets of an SSRC for which no context can be derived
+     * are dropped without affecting the packets of the other SSRCs.
+     */
+    @Test
+    public void testNullContext()
+    {
+        RawPacket a1 = packet(SSRC_A, 1);
+        RawPacket c1 = packet(SSRC_C, 1);
+        RawPacket a2 = packet(SSRC_A, 2);
+        RawPacket c2 = packet(SSRC_C, 2);
+
+        expect(factory.deriveContext(SSRC_A, 0)).andReturn(contextA);
+        expect(factory.deriveContext(SSRC_C, 0)).andReturn(null).anyTimes();
+        expect(contextA.reverseTransformPacket(a1, false))
+            .andReturn(SrtpErrorStatus.OK);
+        expect(contextA.reverseTransformPacket(a2, false))
+            .andReturn(SrtpErrorStatus.OK);
+        replayAll();
+
+        SRTPTransformer transformer = new SRTPTransformer(factory);
+        RawPacket[] pkts = { a1, c1, a2, c2 };
+
+        transformer.reverseTransform(pkts);
+        assertArrayEquals(new RawPacket[] { a1, null, a2, null }, pkts);
+
+        // A single SSRC without a context.
+        pkts = new RawPacket[] { c1, c2 };
+        transformer.reverseTransform(pkts);
+        assertArrayEquals(new RawPacket[] { null, null }, pkts);
+        verifyAll();
+    }
+
+    /**
+     * Tests that a packet which fails with an exception is dropped and does
+     * not keep the rest of the array from being transformed.
+     */
+    @Test
+    public void testExceptionIsolation()
+    {
+        RawPacket a1 = packet(SSRC_A, 1);
+        RawPacket b1 = packet(SSRC_B, 1);
+        RawPacket a2 = packet(SSRC_A, 2);
+
+        expect(factory.deriveContext(SSRC_A, 0)).andReturn(contextA);
+        expect(factory.deriveContext(SSRC_B, 0)).andReturn(contextB);
+        expect(contextA.transformPacket(a1))
+            .andThrow(new IllegalStateException("malformed"));
+        expect(contextA.transformPacket(a2)).andReturn(SrtpErrorStatus.OK);
+        expect(contextB.transformPacket(b1)).andReturn(SrtpErrorStatus.OK);
+        replayAll();
+
+        SRTPTransformer transformer = new SRTPTransformer(factory);
+        RawPacket[] pkts = { a1, b1, a2 };
+
+        transformer.transform(pkts);
+        assertArrayEquals(new RawPacket[] { null, b1, a2 }, pkts);
+        verifyAll();
+    }
+
+    /**
+     * Tests that packets which are not RTP version 2 are dropped before their
+     * context is looked up.
+     */
+    @Test
+    public void testReverseTransformDropsNonRtpV2()
+    {
+        RawPacket a1 = packet(SSRC_A, 1);
+        RawPacket b1 = packet(SSRC_B, 1);
+
+        b1.getBuffer()[b1.getOffset()] = 0;
+        expect(factory.deriveContext(SSRC_A, 0)).andReturn(contextA);
+        expect(contextA.reverseTransformPacket(a1, false))
+            .andReturn(SrtpErrorStatus.OK);
+        replayAll();
+
+        SRTPTransformer transformer = new SRTPTransformer(factory);
+        RawPacket[] pkts = { a1, b1 };
+
+        transformer.reverseTransform(pkts);
+        assertArrayEquals(new RawPacket[] { a1, null }, pkts);
+        verifyAll();
+    }
+}
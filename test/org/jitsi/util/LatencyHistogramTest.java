@@ -0,0 +1,165 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest
+{
+    /**
+     * The index of the last sub-bucket of a histogram.
+     */
+    private static final int LAST = LatencyHistogram.indexOf(Long.MAX_VALUE);
+
+    /**
+     * Values below 32 are counted exactly and every power of 2 above is split
+     * into 16 sub-buckets.
+     */
+    @Test
+    public void testBucketBoundaries()
+    {
+        assertEquals(0, LatencyHistogram.indexOf(0));
+        assertEquals(31, LatencyHistogram.indexOf(31));
+        assertEquals(32, LatencyHistogram.indexOf(32));
+        assertEquals(32, LatencyHistogram.indexOf(33));
+        assertEquals(33, LatencyHistogram.indexOf(34));
+        assertEquals(47, LatencyHistogram.indexOf(63));
+        assertEquals(48, LatencyHistogram.indexOf(64));
+        assertEquals(48, LatencyHistogram.indexOf(67));
+        assertEquals(49, LatencyHistogram.indexOf(68));
+
+        assertEquals(31, LatencyHistogram.highestValueAt(31));
+        assertEquals(33, LatencyHistogram.highestValueAt(32));
+        assertEquals(63, LatencyHistogram.highestValueAt(47));
+        assertEquals(67, LatencyHistogram.highestValueAt(48));
+    }
+
+    /**
+     * The sub-buckets are contiguous and a sub-bucket's width is at most 1/16
+     * of the values it counts.
+     */
+    @Test
+    public void testPrecision()
+    {
+        int previous = -1;
+
+        for (long value = 0; value < (1 << 20); value++)
+        {
+            int index = LatencyHistogram.indexOf(value);
+
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+
+            long highest = LatencyHistogram.highestValueAt(index);
+
+            assertTrue(value <= highest);
+            assertTrue(highest - value <= value / 16);
+        }
+    }
+
+    /**
+     * The values which do not fit in the buckets are counted in the last
+     * sub-bucket and are reported as the maximum.
+     */
+    @Test
+    public void testOverflow()
+    {
+        assertEquals(511, LAST);
+        assertEquals(LAST, LatencyHistogram.indexOf((1L << 35) - 1));
+        assertEquals(LAST, LatencyHistogram.indexOf(31L << 30));
+        assertEquals(LAST - 1, LatencyHistogram.indexOf((31L << 30) - 1));
+        assertEquals(LAST, LatencyHistogram.indexOf(1L << 35));
+        assertEquals(LAST, LatencyHistogram.indexOf(1L << 40));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(10);
+        histogram.record(1L << 40);
+        assertEquals(1L << 40, histogram.getMax());
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(1L << 40, histogram.getValueAtPercentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    /**
+     * The percentiles are upper bounds which are within 1/16 of the exact
+     * values.
+     */
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+
+        for (int percentile = 1; percentile <= 100; percentile++)
+        {
+            long exact = percentile * 10;
+            long value = histogram.getValueAtPercentile(percentile);
+
+            assertTrue(exact <= value);
+            assertTrue(value - exact <= exact / 16);
+        }
+    }
+
+    /**
+     * Negative values are recorded as 0, and <tt>add</tt> and <tt>reset</tt>
+     * carry all of the statistics.
+     */
+    @Test
+    public void testAddAndReset()
+    {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+
+        assertEquals(0, a.getMean(), 0);
+
+        a.record(-5);
+        a.record(100);
+        b.record(300);
+        b.record(1L << 36);
+        a.add(b);
+
+        assertEquals(4, a.getCount());
+        assertEquals(1L << 36, a.getMax());
+        assertEquals((400 + (1L << 36)) / 4d, a.getMean(), 0);
+        assertEquals(0, a.getValueAtPercentile(25));
+        assertEquals(2, b.getCount());
+
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getMax());
+        assertEquals(0, a.getMean(), 0);
+        assertEquals(0, a.getValueAtPercentile(100));
+    }
+}
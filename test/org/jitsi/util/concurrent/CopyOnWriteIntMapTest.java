@@ -0,0 +1,86 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CopyOnWriteIntMapTest
+{
+    @Test
+    public void putGetRemove()
+    {
+        CopyOnWriteIntMap<String> map = new CopyOnWriteIntMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1));
+
+        // SSRCs which only differ in their high bits.
+        for (int i = 0; i < 100; i++)
+        {
+            assertNull(map.put(i << 24, "v" + i));
+        }
+        assertEquals(100, map.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("v" + i, map.get(i << 24));
+        }
+
+        assertEquals("v7", map.put(7 << 24, "w7"));
+        assertEquals(100, map.size());
+        assertEquals("w7", map.get(7 << 24));
+
+        assertEquals("w7", map.remove(7 << 24));
+        assertNull(map.remove(7 << 24));
+        assertFalse(map.containsKey(7 << 24));
+        assertEquals(99, map.size());
+        assertEquals(99, map.keys().length);
+        assertEquals(99, map.values().size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void computeIfAbsent()
+    {
+        CopyOnWriteIntMap<String> map = new CopyOnWriteIntMap<>();
+
+        assertEquals("a", map.computeIfAbsent(0xdeadbeef, k -> "a"));
+        assertEquals("a", map.computeIfAbsent(0xdeadbeef, k -> "b"));
+        assertNull(map.computeIfAbsent(42, k -> null));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void removeIf()
+    {
+        CopyOnWriteIntMap<Integer> map = new CopyOnWriteIntMap<>();
+
+        for (int i = 0; i < 10; i++)
+        {
+            map.put(i, i);
+        }
+        assertTrue(map.removeIf(v -> v % 2 == 0));
+        assertFalse(map.removeIf(v -> v % 2 == 0));
+
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(new int[] { 1, 3, 5, 7, 9 }, keys);
+    }
+}
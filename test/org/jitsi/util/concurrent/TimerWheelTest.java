@@ -0,0 +1,128 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static Runnable task(List<String> log, String name)
+    {
+        return () -> log.add(name);
+    }
+
+    private static void run(Collection<Runnable> tasks)
+    {
+        for (Runnable task : tasks)
+        {
+            task.run();
+        }
+        tasks.clear();
+    }
+
+    @Test
+    public void expiresInOrderOfDeadlines()
+    {
+        TimerWheel wheel = new TimerWheel(MS, 16);
+        long now = System.nanoTime();
+        List<String> log = new ArrayList<>();
+        List<Runnable> expired = new ArrayList<>();
+
+        wheel.schedule(task(log, "c"), now + 5 * MS);
+        wheel.schedule(task(log, "a"), now + MS);
+        wheel.schedule(task(log, "b"), now + 3 * MS);
+        assertEquals(3, wheel.size());
+
+        assertEquals(3, wheel.expire(now + 10 * MS, expired));
+        run(expired);
+        assertEquals(Arrays.asList("a", "b", "c"), log);
+        assertTrue(wheel.isEmpty());
+        assertEquals(-1, wheel.getNanosUntilNextTick(now + 10 * MS));
+    }
+
+    @Test
+    public void neverExpiresBeforeDeadline()
+    {
+        TimerWheel wheel = new TimerWheel(MS, 16);
+        long now = System.nanoTime();
+        List<Runnable> expired = new ArrayList<>();
+
+        wheel.schedule(() -> {}, now + 3 * MS + MS / 2);
+
+        assertEquals(0, wheel.expire(now + 3 * MS, expired));
+
+        long nanos = wheel.getNanosUntilNextTick(now + 3 * MS);
+
+        assertTrue(nanos > 0 && nanos <= 2 * MS);
+
+        // The task may expire up to one tick late.
+        assertEquals(1, wheel.expire(now + 5 * MS, expired));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlinesExpireOnNextCall()
+    {
+        TimerWheel wheel = new TimerWheel(MS, 16);
+        long now = System.nanoTime();
+        List<Runnable> expired = new ArrayList<>();
+
+        wheel.expire(now + 10 * MS, expired);
+        wheel.schedule(() -> {}, now);
+
+        assertEquals(0, wheel.getNanosUntilNextTick(now + 12 * MS));
+        assertEquals(1, wheel.expire(now + 12 * MS, expired));
+    }
+
+    @Test
+    public void deadlinesBeyondOneRotation()
+    {
+        // 8 ticks per rotation.
+        TimerWheel wheel = new TimerWheel(MS, 5);
+        long now = System.nanoTime();
+        List<String> log = new ArrayList<>();
+        List<Runnable> expired = new ArrayList<>();
+
+        // Both tasks fall into the same bucket.
+        wheel.schedule(task(log, "later"), now + 18 * MS);
+        wheel.schedule(task(log, "sooner"), now + 2 * MS);
+
+        assertEquals(1, wheel.expire(now + 4 * MS, expired));
+        run(expired);
+        assertEquals(Collections.singletonList("sooner"), log);
+
+        // A full rotation later the remaining task has not expired yet.
+        assertEquals(0, wheel.expire(now + 12 * MS, expired));
+        assertEquals(1, wheel.size());
+
+        assertEquals(1, wheel.expire(now + 20 * MS, expired));
+        run(expired);
+        assertEquals(Arrays.asList("sooner", "later"), log);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidTick()
+    {
+        new TimerWheel(0, 16);
+    }
+}